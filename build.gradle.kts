@@ -43,3 +43,27 @@ dependencies {
 tasks.withType<Test> {
     useJUnitPlatform()
 }
+
+// benchmarks, run with e.g. ./gradlew benchRenameStar -PbenchArgs="dir=/mnt/nas files=20000"
+val bench by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output + configurations.compileClasspath.get()
+    runtimeClasspath += output + compileClasspath + configurations.runtimeClasspath.get()
+}
+
+fun benchArgs() = (findProperty("benchArgs") as String? ?: "").split(" ").filter { it.isNotEmpty() }
+
+tasks.register<JavaExec>("benchRenameStar") {
+    group = "benchmark"
+    description = "Rename/star metadata path with and without the blob stat"
+    classpath = bench.runtimeClasspath
+    mainClass.set("server.phoestorage.bench.RenameStarBench")
+    args(benchArgs())
+}
+
+tasks.register<JavaExec>("benchCipher") {
+    group = "benchmark"
+    description = "Plain against SegmentCipher blobs, full reads, 1MB ranges and writes"
+    classpath = bench.runtimeClasspath
+    mainClass.set("server.phoestorage.bench.CipherBench")
+    args(benchArgs())
+}
@@ -0,0 +1,155 @@
+package server.phoestorage.bench;
+
+import server.phoestorage.blob.SegmentCipher;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Plain blobs against SegmentCipher blobs: full reads, random 1MB ranges and writes. Reads go through the same
+ * calls BlobStoreService makes, the sealed blob is opened at cipherOffset of the range and decrypted from there.
+ * Writes encrypt and copy into a FileChannel that is forced like a finished upload. Both blobs are read once before
+ * the rounds so reads come from the page cache
+ *
+ * Arguments as key=value: dir (default a temp dir), size in MB (256), ranges per round (256), rounds (5)
+ *
+ */
+public class CipherBench {
+    private static final int RANGE = 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        Path dir = Files.createTempDirectory(opts.containsKey("dir") ? Paths.get(opts.get("dir")) : Paths.get(System.getProperty("java.io.tmpdir")), "bench-cipher");
+        long size = Long.parseLong(opts.getOrDefault("size", "256")) * 1024 * 1024;
+        int ranges = Integer.parseInt(opts.getOrDefault("ranges", "256"));
+        int rounds = Integer.parseInt(opts.getOrDefault("rounds", "5"));
+
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(256);
+        SecretKey key = generator.generateKey();
+        String id = UUID.randomUUID().toString();
+
+        Path plain = dir.resolve("plain");
+        Path sealed = dir.resolve("sealed");
+        try {
+            write(plain, random(size), null, id);
+            write(sealed, random(size), key, id);
+            read(plain, null, id, 0, size);
+            read(sealed, key, id, 0, size);
+            System.out.printf("%d MB blobs in %s, %d ranges of 1MB per round%n", size >> 20, dir, ranges);
+
+            for (int round = 0; round < rounds; round++) {
+                long start = System.nanoTime();
+                read(plain, null, id, 0, size);
+                double plainRead = rate(size, start);
+                start = System.nanoTime();
+                read(sealed, key, id, 0, size);
+                double sealedRead = rate(size, start);
+
+                Random random = new Random(round);
+                start = System.nanoTime();
+                for (int i = 0; i < ranges; i++) read(plain, null, id, random.nextLong(size - RANGE), RANGE);
+                double plainRange = rate((long) ranges * RANGE, start);
+                random = new Random(round);
+                start = System.nanoTime();
+                for (int i = 0; i < ranges; i++) read(sealed, key, id, random.nextLong(size - RANGE), RANGE);
+                double sealedRange = rate((long) ranges * RANGE, start);
+
+                start = System.nanoTime();
+                write(plain, random(size), null, id);
+                double plainWrite = rate(size, start);
+                start = System.nanoTime();
+                write(sealed, random(size), key, id);
+                double sealedWrite = rate(size, start);
+
+                System.out.printf("round %d  full read %5.2f / %5.2f GB/s  ranges %5.2f / %5.2f GB/s  write %5.2f / %5.2f GB/s (plain / encrypted)%n",
+                        round, plainRead, sealedRead, plainRange, sealedRange, plainWrite, sealedWrite);
+            }
+        } finally {
+            Files.deleteIfExists(plain);
+            Files.deleteIfExists(sealed);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static double rate(long bytes, long start) {
+        return bytes / ((System.nanoTime() - start) / 1e9) / 1e9;
+    }
+
+    /* reads length bytes of the plaintext from offset, key null for a plain blob */
+    private static void read(Path blob, SecretKey key, String id, long offset, long length) throws IOException {
+        FileChannel channel = FileChannel.open(blob, StandardOpenOption.READ);
+        channel.position(key == null ? offset : SegmentCipher.cipherOffset(offset));
+        try (InputStream in = key == null ? Channels.newInputStream(channel) : SegmentCipher.decrypt(key, id, Channels.newInputStream(channel), offset)) {
+            byte[] buffer = new byte[64 * 1024];
+            long left = length;
+            while (left > 0) {
+                int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                if (n < 0) throw new IOException(blob + " ended " + left + " bytes early");
+                left -= n;
+            }
+        }
+    }
+
+    private static void write(Path blob, InputStream data, SecretKey key, String id) throws IOException {
+        try (InputStream in = key == null ? data : SegmentCipher.encrypt(key, id, data, 0, true);
+             FileChannel out = FileChannel.open(blob, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            in.transferTo(Channels.newOutputStream(out));
+            out.force(false);
+        }
+    }
+
+    /* size bytes of incompressible data, one random block repeated so generating it costs nothing */
+    private static InputStream random(long size) {
+        byte[] block = new byte[RANGE];
+        new Random(size).nextBytes(block);
+        return new InputStream() {
+            long left = size;
+
+            @Override
+            public int read() {
+                if (left == 0) return -1;
+                return block[(int) (size - left--) % block.length] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (left == 0) return -1;
+                int at = (int) ((size - left) % block.length);
+                int n = (int) Math.min(Math.min(len, block.length - at), left);
+                System.arraycopy(block, at, b, off, n);
+                left -= n;
+                return n;
+            }
+
+            @Override
+            public long transferTo(OutputStream out) throws IOException {
+                long total = left;
+                while (left > 0) {
+                    int at = (int) ((size - left) % block.length);
+                    int n = (int) Math.min(block.length - at, left);
+                    out.write(block, at, n);
+                    left -= n;
+                }
+                return total;
+            }
+        };
+    }
+}
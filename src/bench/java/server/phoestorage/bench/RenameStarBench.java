@@ -0,0 +1,184 @@
+package server.phoestorage.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Rename/star workload on the metadata path as it was before and after rows became the source of truth.
+ * Before: row lookup, stat of the blob (what UrlResource.exists does for a file url), the same lookup again, update.
+ * After: row lookup, update. Half the operations rename, half star, on random files.
+ *
+ * Blobs are real files under dir, point it at the storage volume (a network mount shows the stat best). Rows live
+ * in a HashMap unless jdbc is given, then in a scratch table bench_file with the index of the file table
+ *
+ * Arguments as key=value: dir (default a temp dir), files (10000), ops (200000), rounds (5), jdbc, user, password
+ *
+ */
+public class RenameStarBench {
+
+    private record Row(String owner, String folderId, String uuid, String internalPath) {}
+
+    private interface Rows extends AutoCloseable {
+        Row find(String owner, String folderId, String uuid) throws SQLException;
+        void rename(Row row, String name) throws SQLException;
+        void star(Row row, boolean starred) throws SQLException;
+        default void close() throws SQLException {}
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq > 0) opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        Path dir = opts.containsKey("dir") ? Paths.get(opts.get("dir")) : Files.createTempDirectory("bench-rename");
+        int files = Integer.parseInt(opts.getOrDefault("files", "10000"));
+        int ops = Integer.parseInt(opts.getOrDefault("ops", "200000"));
+        int rounds = Integer.parseInt(opts.getOrDefault("rounds", "5"));
+
+        String owner = UUID.randomUUID().toString();
+        String folderId = UUID.randomUUID().toString();
+        List<Row> rows = new ArrayList<>(files);
+        Path blobs = Files.createDirectories(dir.resolve("bench-" + owner));
+        for (int i = 0; i < files; i++) {
+            String uuid = UUID.randomUUID().toString();
+            Path blob = Files.createDirectories(blobs.resolve(uuid.substring(0, 2))).resolve(uuid);
+            Files.write(blob, new byte[]{1});
+            rows.add(new Row(owner, folderId, uuid, blob.toString()));
+        }
+
+        try (Rows store = opts.containsKey("jdbc")
+                ? new JdbcRows(opts.get("jdbc"), opts.get("user"), opts.get("password"), rows)
+                : new MemoryRows(rows)) {
+            System.out.printf("%d files in %s, %d ops per round, rows %s%n", files, blobs, ops,
+                    opts.containsKey("jdbc") ? "in " + opts.get("jdbc") : "in memory");
+            for (int round = 0; round < rounds; round++) {
+                double before = run(store, rows, ops, true, round);
+                double after = run(store, rows, ops, false, round);
+                System.out.printf("round %d  before %8.2f us/op  after %8.2f us/op%n", round, before, after);
+            }
+        } finally {
+            deleteTree(opts.containsKey("dir") ? blobs : dir);
+        }
+    }
+
+    /* µs per operation over ops random renames and stars */
+    private static double run(Rows store, List<Row> rows, int ops, boolean stat, int seed) throws SQLException {
+        Random random = new Random(seed);
+        long start = System.nanoTime();
+        int missing = 0;
+        for (int i = 0; i < ops; i++) {
+            Row picked = rows.get(random.nextInt(rows.size()));
+            Row row = store.find(picked.owner, picked.folderId, picked.uuid);
+            if (row == null) { missing++; continue; }
+            if (stat) {
+                if (!new File(row.internalPath).exists()) { missing++; continue; }
+                row = store.find(picked.owner, picked.folderId, picked.uuid);
+            }
+            if ((i & 1) == 0) store.rename(row, "file-" + i + ".txt");
+            else store.star(row, random.nextBoolean());
+        }
+        if (missing > 0) System.err.println(missing + " files not found");
+        return (System.nanoTime() - start) / 1000.0 / ops;
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        try (var walk = Files.walk(root)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(path);
+        }
+    }
+
+    private static class MemoryRows implements Rows {
+        private final Map<String, Row> rows = new HashMap<>();
+        private final Map<String, String> names = new HashMap<>();
+        private final Map<String, Boolean> stars = new HashMap<>();
+
+        MemoryRows(List<Row> rows) {
+            for (Row row : rows) this.rows.put(row.owner + "/" + row.folderId + "/" + row.uuid, row);
+        }
+
+        public Row find(String owner, String folderId, String uuid) {
+            return rows.get(owner + "/" + folderId + "/" + uuid);
+        }
+
+        public void rename(Row row, String name) {
+            names.put(row.uuid, name);
+        }
+
+        public void star(Row row, boolean starred) {
+            stars.put(row.uuid, starred);
+        }
+    }
+
+    private static class JdbcRows implements Rows {
+        private final Connection connection;
+        private final PreparedStatement find;
+        private final PreparedStatement rename;
+        private final PreparedStatement star;
+
+        JdbcRows(String url, String user, String password, List<Row> rows) throws SQLException {
+            connection = DriverManager.getConnection(url, user, password);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS bench_file");
+                statement.execute("CREATE TABLE bench_file (id INT AUTO_INCREMENT PRIMARY KEY, owner VARCHAR(255), " +
+                        "folder_id VARCHAR(255), uuid VARCHAR(255), name VARCHAR(255), extension VARCHAR(255), " +
+                        "internal_path VARCHAR(1024), starred BIT NOT NULL DEFAULT 0, trashed BIT NOT NULL DEFAULT 0, " +
+                        "INDEX ix_files_owner_folder (owner, folder_id))");
+            }
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO bench_file (owner, folder_id, uuid, name, extension, internal_path) VALUES (?, ?, ?, ?, 'txt', ?)")) {
+                for (Row row : rows) {
+                    insert.setString(1, row.owner);
+                    insert.setString(2, row.folderId);
+                    insert.setString(3, row.uuid);
+                    insert.setString(4, row.uuid + ".txt");
+                    insert.setString(5, row.internalPath);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            find = connection.prepareStatement("SELECT owner, folder_id, uuid, internal_path FROM bench_file " +
+                    "WHERE owner = ? AND folder_id = ? AND uuid = ? AND trashed = 0");
+            rename = connection.prepareStatement("UPDATE bench_file SET name = ?, extension = 'txt' " +
+                    "WHERE owner = ? AND folder_id = ? AND uuid = ? AND trashed = 0");
+            star = connection.prepareStatement("UPDATE bench_file SET starred = ? WHERE owner = ? AND folder_id = ? AND uuid = ?");
+        }
+
+        public Row find(String owner, String folderId, String uuid) throws SQLException {
+            find.setString(1, owner);
+            find.setString(2, folderId);
+            find.setString(3, uuid);
+            try (ResultSet result = find.executeQuery()) {
+                return result.next() ? new Row(result.getString(1), result.getString(2), result.getString(3), result.getString(4)) : null;
+            }
+        }
+
+        public void rename(Row row, String name) throws SQLException {
+            rename.setString(1, name);
+            rename.setString(2, row.owner);
+            rename.setString(3, row.folderId);
+            rename.setString(4, row.uuid);
+            rename.executeUpdate();
+        }
+
+        public void star(Row row, boolean starred) throws SQLException {
+            star.setBoolean(1, starred);
+            star.setString(2, row.owner);
+            star.setString(3, row.folderId);
+            star.setString(4, row.uuid);
+            star.executeUpdate();
+        }
+
+        public void close() throws SQLException {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DROP TABLE IF EXISTS bench_file");
+            }
+            connection.close();
+        }
+    }
+}
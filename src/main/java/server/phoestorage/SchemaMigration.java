@@ -0,0 +1,104 @@
+package server.phoestorage;
+
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import server.phoestorage.service.StoragePoolService;
+
+import java.util.List;
+
+/**
+ * Data migrations ddl-auto can't do. They run once all beans are created and before the context is refreshed,
+ * which is when scheduled jobs start, so no job ever sees a half migrated table. Start runs after them
+ *
+ */
+@Component
+public class SchemaMigration implements SmartInitializingSingleton {
+    private final JdbcTemplate jdbcTemplate;
+    private final StoragePoolService storagePoolService;
+
+    @Autowired
+    public SchemaMigration(JdbcTemplate jdbcTemplate, StoragePoolService storagePoolService) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.storagePoolService = storagePoolService;
+    }
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        migrateFileTimestamps();
+        migrateLinkExpiry();
+        recordFileVolumes();
+        moveTrashedFolderNames();
+    }
+
+    /**
+     * File timestamps used to be stored as LocalDateTime.toString() in varchar columns.
+     * ddl-auto never changes a column type, so convert them once here
+     *
+     */
+    private void migrateFileTimestamps() {
+        if (!isVarchar("file", "created")) return;
+
+        System.err.println("Converting file timestamps to DATETIME, this can take a while on large tables");
+
+        // 2024-01-01T10:15 -> 2024-01-01 10:15:00, 2024-01-01T10:15:30.123456789 -> 2024-01-01 10:15:30.123456
+        for (String column : new String[]{"created", "modified", "accessed"}) {
+            jdbcTemplate.update("UPDATE file SET " + column + " = LEFT(REPLACE(IF(LENGTH(" + column + ") = 16, " +
+                    "CONCAT(" + column + ", ':00'), " + column + "), 'T', ' '), 26) WHERE " + column + " IS NOT NULL");
+        }
+        jdbcTemplate.update("UPDATE file SET modified = created WHERE modified IS NULL");
+
+        jdbcTemplate.execute("ALTER TABLE file " +
+                "MODIFY created DATETIME(6) NOT NULL, " +
+                "MODIFY modified DATETIME(6) NULL, " +
+                "MODIFY accessed DATETIME(6) NULL");
+    }
+
+    /**
+     * Link expiry used to be whatever string the client sent, -1 for never. Turn it into a nullable DATETIME
+     *
+     */
+    private void migrateLinkExpiry() {
+        if (!isVarchar("download", "date_expire")) return;
+
+        System.err.println("Converting link expiry dates to DATETIME");
+
+        jdbcTemplate.execute("ALTER TABLE download MODIFY date_expire VARCHAR(255) NULL");
+        jdbcTemplate.update("UPDATE download SET date_expire = NULL " +
+                "WHERE date_expire NOT REGEXP '^[0-9]{4}-[0-9]{2}-[0-9]{2}'");
+        // a plain date was valid through that day
+        jdbcTemplate.update("UPDATE download SET date_expire = CONCAT(DATE_ADD(date_expire, INTERVAL 1 DAY), ' 00:00:00') " +
+                "WHERE LENGTH(date_expire) = 10");
+        jdbcTemplate.update("UPDATE download SET date_expire = LEFT(REPLACE(IF(LENGTH(date_expire) = 16, " +
+                "CONCAT(date_expire, ':00'), date_expire), 'T', ' '), 26) WHERE date_expire IS NOT NULL");
+        jdbcTemplate.execute("ALTER TABLE download MODIFY date_expire DATETIME(6) NULL");
+    }
+
+    /**
+     * Files from before the storage pool are all on server.root
+     *
+     */
+    private void recordFileVolumes() {
+        int updated = jdbcTemplate.update("UPDATE file SET volume = ? WHERE volume IS NULL", storagePoolService.getPrimary().getId());
+        if (updated > 0) System.err.println("Recorded the volume of " + updated + " files");
+    }
+
+    /**
+     * Folders trashed before trashedName existed still hold their name, move it aside like trashFolderTree does
+     *
+     */
+    private void moveTrashedFolderNames() {
+        int updated = jdbcTemplate.update("UPDATE folder SET trashed_name = name, name = uuid " +
+                "WHERE trashed = true AND trash_root = uuid AND trashed_name IS NULL");
+        if (updated > 0) System.err.println("Freed the names of " + updated + " trashed folders");
+    }
+
+    private boolean isVarchar(String table, String column) {
+        List<String> types = jdbcTemplate.queryForList(
+                "SELECT DATA_TYPE FROM information_schema.COLUMNS " +
+                "WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = ?",
+                String.class, table, column);
+        return !types.isEmpty() && types.get(0).equalsIgnoreCase("varchar");
+    }
+}
@@ -4,21 +4,27 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.CommandLineRunner;
 import org.springframework.stereotype.Component;
 import server.phoestorage.datasource.users.UserRepository;
+import server.phoestorage.service.StorageStatsService;
 import server.phoestorage.service.UserService;
 
 @Component
 public class Start implements CommandLineRunner {
     private final UserService userService;
     private final UserRepository userRepository;
+    private final StorageStatsService storageStatsService;
 
     @Autowired
-    public Start(UserService userService, UserRepository userRepository) {
+    public Start(UserService userService, UserRepository userRepository, StorageStatsService storageStatsService) {
         this.userService = userService;
         this.userRepository = userRepository;
+        this.storageStatsService = storageStatsService;
     }
 
     @Override
     public void run(String... args) throws Exception {
+        // first start with storage stats, count once instead of waiting for the nightly job
+        if (storageStatsService.isEmpty()) storageStatsService.reconcile();
+
         if(!userRepository.existsByAdminTrue()){
             userService.addUser("admin", "admin", 107374182400L, true, true);
         }
@@ -0,0 +1,83 @@
+package server.phoestorage.blob;
+
+import server.phoestorage.datasource.file.FileEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Keeps the bytes of files. A blob is addressed by the internalPath of its file row and every store
+ * recognises its own locations, so rows written by different stores work side by side
+ *
+ */
+public interface BlobStore {
+    /**
+     * @param location internalPath of a file row
+     * @return whether the blob at this location belongs to this store
+     */
+    boolean holds(String location);
+
+    /**
+     * Writes one chunk of an upload. Chunks may come in any order and at the same time
+     *
+     * @param owner uuid of the user
+     * @param uploadId the upload session id, later the uuid of the file
+     * @param chunkId index of the chunk
+     * @param offset where the chunk starts in the file
+     * @param in bytes of the chunk
+     * @param length size of the chunk
+     * @param expectedSize size of the whole upload as far as known
+     */
+    void writeChunk(String owner, String uploadId, int chunkId, long offset, InputStream in, long length, long expectedSize) throws IOException;
+
+    /**
+     * @return smallest size this store takes for every chunk of an upload but the last, 0 for any size
+     */
+    default long minChunkSize() {
+        return 0;
+    }
+
+    /**
+     * @return bytes of an upload received so far
+     */
+    long received(String owner, String uploadId) throws IOException;
+
+    /**
+     * Turns a complete upload into the blob of a file and sets internalPath, volume and size on the row
+     *
+     */
+    void finishUpload(String owner, String uploadId, int totalChunks, FileEntity file) throws IOException;
+
+    /**
+     * Throws away an upload that will not be finished
+     *
+     */
+    void abortUpload(String owner, String uploadId);
+
+    /**
+     * @return size of a blob
+     * @throws java.nio.file.NoSuchFileException if it does not exist
+     */
+    long size(String location) throws IOException;
+
+    /**
+     * Opens a blob for reading
+     *
+     * @param location internalPath of the file
+     * @param offset first byte to read
+     * @throws java.nio.file.NoSuchFileException if it does not exist
+     */
+    InputStream open(String location, long offset) throws IOException;
+
+    /**
+     * Creates the blob of a copied file and sets internalPath and volume on the copy
+     *
+     */
+    void copy(FileEntity source, FileEntity copy) throws IOException;
+
+    /**
+     * Deletes a blob, nothing happens if it does not exist
+     *
+     */
+    void delete(String location) throws IOException;
+}
@@ -0,0 +1,229 @@
+package server.phoestorage.blob;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import server.phoestorage.datasource.file.FileEntity;
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Local read cache in front of a remote store, meant for an SSD. A full read of a blob that misses is
+ * written to the cache while it is streamed to the client, later reads are served from the local copy.
+ * The cache is bounded in bytes and evicts by Caffeine's frequency and recency policy, blobs larger than
+ * a tenth of the cache are never kept so a single large download can't flush it
+ *
+ */
+public class CachingBlobStore implements BlobStore {
+    private final BlobStore remote;
+    private final Path dir;
+    private final long maxObject;
+
+    // file name in dir -> size
+    private final Cache<String, Long> entries;
+
+    public CachingBlobStore(BlobStore remote, Path dir, long maxBytes) throws IOException {
+        this.remote = remote;
+        this.dir = dir;
+        this.maxObject = maxBytes / 10;
+        this.entries = Caffeine.newBuilder()
+                .maximumWeight(Math.max(1, maxBytes >> 10))
+                .weigher((String name, Long size) -> (int) Math.min(Integer.MAX_VALUE, (size >> 10) + 1)) // KB
+                .removalListener((String name, Long size, RemovalCause cause) -> {
+                    if (name != null && cause != RemovalCause.REPLACED) deleteQuietly(dir.resolve(name));
+                })
+                .build();
+
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            files.forEach(file -> {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".part")) {
+                    deleteQuietly(file); // from a read that was running when the server stopped
+                    return;
+                }
+                try {
+                    entries.put(name, Files.size(file));
+                } catch (IOException ignored) {}
+            });
+        }
+    }
+
+    @Override
+    public boolean holds(String location) {
+        return remote.holds(location);
+    }
+
+    @Override
+    public long size(String location) throws IOException {
+        Long size = entries.getIfPresent(name(location));
+        return size != null ? size : remote.size(location);
+    }
+
+    @Override
+    public InputStream open(String location, long offset) throws IOException {
+        String name = name(location);
+        if (entries.getIfPresent(name) != null) {
+            try {
+                FileChannel ch = FileChannel.open(dir.resolve(name), StandardOpenOption.READ);
+                ch.position(offset);
+                return Channels.newInputStream(ch);
+            } catch (NoSuchFileException e) {
+                entries.invalidate(name);
+            }
+        }
+
+        InputStream in = remote.open(location, offset);
+        // ranges after the start are not cached, they are mostly resumed downloads of large files
+        return offset == 0 ? new Filling(in, name) : in;
+    }
+
+    @Override
+    public void delete(String location) throws IOException {
+        entries.invalidate(name(location));
+        remote.delete(location);
+    }
+
+    @Override
+    public void writeChunk(String owner, String uploadId, int chunkId, long offset, InputStream in, long length, long expectedSize) throws IOException {
+        remote.writeChunk(owner, uploadId, chunkId, offset, in, length, expectedSize);
+    }
+
+    @Override
+    public long received(String owner, String uploadId) throws IOException {
+        return remote.received(owner, uploadId);
+    }
+
+    @Override
+    public void finishUpload(String owner, String uploadId, int totalChunks, FileEntity file) throws IOException {
+        remote.finishUpload(owner, uploadId, totalChunks, file);
+    }
+
+    @Override
+    public void abortUpload(String owner, String uploadId) {
+        remote.abortUpload(owner, uploadId);
+    }
+
+    @Override
+    public void copy(FileEntity source, FileEntity copy) throws IOException {
+        remote.copy(source, copy);
+    }
+
+    public long getCachedBytes() {
+        return entries.asMap().values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    private static String name(String location) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(location.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Copies what the client reads into a part file and moves it into the cache once the blob was read to its end
+     *
+     */
+    private class Filling extends FilterInputStream {
+        private final String name;
+        private final Path part;
+        private OutputStream out;
+        private long written;
+        private boolean ended;
+
+        Filling(InputStream in, String name) {
+            super(in);
+            this.name = name;
+            this.part = dir.resolve(UUID.randomUUID() + ".part");
+            try {
+                this.out = new BufferedOutputStream(Files.newOutputStream(part, StandardOpenOption.CREATE_NEW), 65536);
+            } catch (IOException e) {
+                this.out = null; // no cache for this read, the download goes on
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) ended = true;
+            else fill(new byte[]{(byte) b}, 0, 1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) ended = true;
+            else if (read > 0) fill(b, off, read);
+            return read;
+        }
+
+        private void fill(byte[] b, int off, int len) {
+            if (out == null) return;
+            written += len;
+            if (written > maxObject) {
+                drop();
+                return;
+            }
+            try {
+                out.write(b, off, len);
+            } catch (IOException e) {
+                drop();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                // a download stops at the content length without asking for the end of the stream
+                if (out != null && !ended && super.read() == -1) ended = true;
+            } catch (IOException e) {
+                ended = false;
+            } finally {
+                super.close();
+                commit();
+            }
+        }
+
+        private void commit() {
+            if (out == null) return;
+            if (!ended) {
+                drop();
+                return;
+            }
+            try {
+                out.close();
+                out = null;
+                Files.move(part, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                entries.put(name, written);
+            } catch (IOException e) {
+                drop();
+            }
+        }
+
+        private void drop() {
+            try {
+                if (out != null) out.close();
+            } catch (IOException ignored) {}
+            out = null;
+            deleteQuietly(part);
+        }
+    }
+}
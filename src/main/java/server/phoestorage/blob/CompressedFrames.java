@@ -0,0 +1,221 @@
+package server.phoestorage.blob;
+
+import org.apache.commons.io.input.BoundedInputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Format of compressed blobs. The plaintext is cut into frames of 256KB that are deflated on their own and ended
+ * with a full flush, so a range is read by inflating from the frame holding its start. All frames followed by an
+ * empty final block are one raw deflate stream, which a zip entry can take as it is. After it come the compressed
+ * length of every frame and a trailer with the plaintext size, its CRC32 and the frame count
+ *
+ */
+public class CompressedFrames {
+    public static final int FRAME = 256 * 1024;
+    private static final byte[] END = {0x03, 0x00}; // empty final block with fixed codes
+    private static final int MAGIC = 0x5046524d;
+    private static final int TRAILER = 8 + 4 + 4 + 4;
+
+    /**
+     * Where compressed bytes are read from, at any offset
+     *
+     */
+    public interface Source {
+        InputStream open(long offset) throws IOException;
+    }
+
+    /**
+     * @param plain the bytes to compress
+     * @param level Deflater level
+     * @return the blob in this format
+     */
+    public static InputStream compress(InputStream plain, int level) {
+        return new Compressing(plain, level);
+    }
+
+    /**
+     * Reads the frame index at the end of a blob
+     *
+     * @param size bytes of the blob
+     */
+    public static Index readIndex(Source source, long size) throws IOException {
+        if (size < END.length + TRAILER) throw new IOException("Too small for a compressed blob: " + size);
+        ByteBuffer trailer;
+        try (InputStream in = source.open(size - TRAILER)) {
+            trailer = ByteBuffer.wrap(in.readNBytes(TRAILER));
+        }
+        if (trailer.remaining() < TRAILER || trailer.getInt(TRAILER - 4) != MAGIC) throw new IOException("No frame index");
+        long plainSize = trailer.getLong(0);
+        long crc = Integer.toUnsignedLong(trailer.getInt(8));
+        int frames = trailer.getInt(12);
+
+        long[] starts = new long[frames + 1];
+        long indexAt = size - TRAILER - 4L * frames;
+        try (DataInputStream in = new DataInputStream(source.open(indexAt))) {
+            for (int i = 0; i < frames; i++) starts[i + 1] = starts[i] + Integer.toUnsignedLong(in.readInt());
+        }
+        if (starts[frames] + END.length != indexAt) throw new IOException("Frame index does not match the blob");
+        return new Index(plainSize, crc, starts);
+    }
+
+    /**
+     * @return the plaintext from offset on, inflating from the frame that holds it
+     */
+    public static InputStream open(Index index, Source source, long offset) throws IOException {
+        if (offset >= index.plainSize) return InputStream.nullInputStream();
+        int frame = (int) (offset / FRAME);
+        long start = index.starts[frame];
+        InputStream deflated = new BoundedInputStream(source.open(start), index.deflatedSize() - start);
+        Inflating in = new Inflating(deflated);
+        in.skipNBytes(offset - (long) frame * FRAME);
+        return in;
+    }
+
+    /**
+     * @return the raw deflate stream of all frames, what a zip entry of the file holds
+     */
+    public static InputStream openDeflated(Index index, Source source) throws IOException {
+        return new BoundedInputStream(source.open(0), index.deflatedSize());
+    }
+
+    /**
+     * Frame positions of one blob
+     *
+     */
+    public static class Index {
+        private final long plainSize;
+        private final long crc;
+        private final long[] starts; // start of every frame, then the end of the last
+
+        Index(long plainSize, long crc, long[] starts) {
+            this.plainSize = plainSize;
+            this.crc = crc;
+            this.starts = starts;
+        }
+
+        public long getPlainSize() {
+            return plainSize;
+        }
+
+        // CRC32 of the plaintext, as zip entries want it
+        public long getCrc() {
+            return crc;
+        }
+
+        public int getFrames() {
+            return starts.length - 1;
+        }
+
+        public long deflatedSize() {
+            return starts[starts.length - 1] + END.length;
+        }
+    }
+
+    /* ends its own Inflater, the one of InflaterInputStream is only ended if it made it */
+    private static class Inflating extends InflaterInputStream {
+        Inflating(InputStream in) {
+            super(in, new Inflater(true), 65536);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+
+    private static class Compressing extends InputStream {
+        private final InputStream in;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] read = new byte[FRAME];
+        private final ByteArrayOutputStream lengths = new ByteArrayOutputStream();
+        private final DataOutputStream index = new DataOutputStream(lengths);
+        private byte[] out = new byte[FRAME + FRAME / 8];
+        private int pos;
+        private int limit;
+        private long plainSize;
+        private int frames;
+        private boolean ended;
+
+        Compressing(InputStream in, int level) {
+            this.in = in;
+            this.deflater = new Deflater(level, true);
+        }
+
+        private boolean fill() throws IOException {
+            if (pos < limit) return true;
+            if (ended) return false;
+            pos = 0;
+            limit = 0;
+
+            int n = in.readNBytes(read, 0, read.length);
+            if (n > 0) {
+                crc.update(read, 0, n);
+                plainSize += n;
+                deflater.setInput(read, 0, n);
+                // a full flush ends the frame on a byte and forgets the history, so it can be inflated on its own
+                int written;
+                do {
+                    if (limit == out.length) out = Arrays.copyOf(out, out.length * 2);
+                    written = deflater.deflate(out, limit, out.length - limit, Deflater.FULL_FLUSH);
+                    limit += written;
+                } while (limit == out.length);
+                index.writeInt(limit);
+                frames++;
+            }
+            if (n < read.length) {
+                ended = true;
+                deflater.end();
+                tail();
+            }
+            return limit > 0;
+        }
+
+        /* after the last frame: the end of the deflate stream, the frame lengths and the trailer */
+        private void tail() throws IOException {
+            byte[] lengthBytes = lengths.toByteArray();
+            int size = limit + END.length + lengthBytes.length + TRAILER;
+            if (out.length < size) out = Arrays.copyOf(out, size);
+            ByteBuffer buf = ByteBuffer.wrap(out, limit, size - limit);
+            buf.put(END).put(lengthBytes);
+            buf.putLong(plainSize).putInt((int) crc.getValue()).putInt(frames).putInt(MAGIC);
+            limit = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? out[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(out, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!ended) deflater.end();
+            in.close();
+        }
+    }
+}
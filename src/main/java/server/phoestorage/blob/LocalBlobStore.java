@@ -0,0 +1,129 @@
+package server.phoestorage.blob;
+
+import server.phoestorage.classes.Volume;
+import server.phoestorage.datasource.file.FileEntity;
+import server.phoestorage.service.StorageLayoutService;
+import server.phoestorage.service.StoragePoolService;
+import server.phoestorage.utils.BlobLink;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.*;
+
+/**
+ * Blobs as files on the volumes of the storage pool, the internalPath is the path of the file
+ *
+ */
+public class LocalBlobStore implements BlobStore {
+    private final StoragePoolService storagePoolService;
+    private final StorageLayoutService storageLayoutService;
+
+    public LocalBlobStore(StoragePoolService storagePoolService, StorageLayoutService storageLayoutService) {
+        this.storagePoolService = storagePoolService;
+        this.storageLayoutService = storageLayoutService;
+    }
+
+    @Override
+    public boolean holds(String location) {
+        return !location.contains("://");
+    }
+
+    @Override
+    public void writeChunk(String owner, String uploadId, int chunkId, long offset, InputStream in, long length, long expectedSize) throws IOException {
+        Volume volume = storagePoolService.placeUpload(owner, uploadId, expectedSize);
+        Path staging = storageLayoutService.stagingPath(volume.getRoot(), owner, uploadId);
+        Files.createDirectories(staging.getParent());
+
+        volume.startWrite();
+        try (FileChannel ch = FileChannel.open(staging, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = ch.lock(offset, Math.max(1L, length), false)) {
+            ch.position(offset);
+
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                ByteBuffer buf = ByteBuffer.wrap(buffer, 0, n);
+                while (buf.hasRemaining()) {
+                    ch.write(buf);
+                }
+            }
+
+            ch.force(false); // flush file contents
+        } finally {
+            volume.endWrite(length);
+        }
+    }
+
+    @Override
+    public long received(String owner, String uploadId) throws IOException {
+        return Files.size(stagingPath(owner, uploadId));
+    }
+
+    @Override
+    public void finishUpload(String owner, String uploadId, int totalChunks, FileEntity file) throws IOException {
+        Path staging = stagingPath(owner, uploadId);
+        Volume volume = storagePoolService.volumeOf(staging);
+
+        // staging and storage sit in the same user directory of the volume, so this is a rename
+        Path target = storageLayoutService.blobPath(volume.getRoot(), owner, file.getUuid());
+        Files.createDirectories(target.getParent());
+        Files.move(staging, target);
+        storagePoolService.uploadDone(owner, uploadId);
+
+        file.setInternalPath(target.toString());
+        file.setVolume(volume.getId());
+        file.setSize(Files.size(target));
+    }
+
+    @Override
+    public void abortUpload(String owner, String uploadId) {
+        try {
+            Files.deleteIfExists(stagingPath(owner, uploadId));
+        } catch (IOException e) {
+            System.err.println("Could not delete upload " + uploadId + ": " + e.getMessage());
+        }
+        storagePoolService.uploadDone(owner, uploadId);
+    }
+
+    @Override
+    public long size(String location) throws IOException {
+        return Files.size(Paths.get(location));
+    }
+
+    @Override
+    public InputStream open(String location, long offset) throws IOException {
+        Path path = Paths.get(location);
+        FileChannel ch = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            ch.position(offset);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return storagePoolService.volumeOf(path).reading(Channels.newInputStream(ch));
+    }
+
+    @Override
+    public void copy(FileEntity source, FileEntity copy) throws IOException {
+        // same volume as the source so the blob can be a hardlink
+        Volume volume = storagePoolService.volumeOf(source.getVolume(), source.getInternalPath());
+        Path target = storageLayoutService.blobPath(volume.getRoot(), copy.getOwner(), copy.getUuid());
+        BlobLink.link(Paths.get(source.getInternalPath()), target);
+        copy.setInternalPath(target.toString());
+        copy.setVolume(volume.getId());
+    }
+
+    @Override
+    public void delete(String location) throws IOException {
+        Files.deleteIfExists(Paths.get(location));
+    }
+
+    Path stagingPath(String owner, String uploadId) {
+        Volume volume = storagePoolService.placeUpload(owner, uploadId, 0);
+        return storageLayoutService.stagingPath(volume.getRoot(), owner, uploadId);
+    }
+}
@@ -0,0 +1,217 @@
+package server.phoestorage.blob;
+
+import org.apache.commons.io.input.BoundedInputStream;
+import server.phoestorage.classes.Volume;
+import server.phoestorage.datasource.file.FileEntity;
+import server.phoestorage.service.StorageLayoutService;
+import server.phoestorage.service.StoragePoolService;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Small files appended to segment files instead of one file each, so a folder of thumbnails and notes costs a few
+ * inodes and its zip is read mostly in order from a few files. Every owner has one segment per volume being
+ * appended to, which is replaced by a new one once it reaches the segment size. The internalPath is
+ * pack://<segment>#<offset>+<length>, the offset padded so sorting locations sorts reads by position.
+ * Bytes of deleted files stay in their segment until PackService compacts it. Uploads go through the
+ * local store and are moved into a segment when they are finished and small enough
+ *
+ */
+public class PackedBlobStore implements BlobStore {
+    public static final String SCHEME = "pack://";
+
+    private final LocalBlobStore local;
+    private final StoragePoolService storagePoolService;
+    private final StorageLayoutService storageLayoutService;
+    private final long threshold;
+    private final long segmentSize;
+
+    // owner:volume -> segment being appended to
+    private final ConcurrentHashMap<String, Appender> appenders = new ConcurrentHashMap<>();
+
+    /**
+     * @param threshold largest file that is packed, in bytes
+     * @param segmentSize size at which a segment stops taking files, in bytes
+     */
+    public PackedBlobStore(LocalBlobStore local, StoragePoolService storagePoolService, StorageLayoutService storageLayoutService,
+                           long threshold, long segmentSize) {
+        this.local = local;
+        this.storagePoolService = storagePoolService;
+        this.storageLayoutService = storageLayoutService;
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+    }
+
+    @Override
+    public boolean holds(String location) {
+        return location.startsWith(SCHEME);
+    }
+
+    @Override
+    public void writeChunk(String owner, String uploadId, int chunkId, long offset, InputStream in, long length, long expectedSize) throws IOException {
+        local.writeChunk(owner, uploadId, chunkId, offset, in, length, expectedSize);
+    }
+
+    @Override
+    public long received(String owner, String uploadId) throws IOException {
+        return local.received(owner, uploadId);
+    }
+
+    @Override
+    public void finishUpload(String owner, String uploadId, int totalChunks, FileEntity file) throws IOException {
+        Path staging = local.stagingPath(owner, uploadId);
+        long size = Files.size(staging);
+        // empty files would all get the same location
+        if (totalChunks != 1 || size == 0 || size > threshold) {
+            local.finishUpload(owner, uploadId, totalChunks, file);
+            return;
+        }
+
+        Volume volume = storagePoolService.volumeOf(staging);
+        String location;
+        try (FileChannel in = FileChannel.open(staging, StandardOpenOption.READ)) {
+            location = append(owner, volume, in, 0, size);
+        }
+        Files.delete(staging);
+        storagePoolService.uploadDone(owner, uploadId);
+
+        file.setInternalPath(location);
+        file.setVolume(volume.getId());
+        file.setSize(size);
+    }
+
+    @Override
+    public void abortUpload(String owner, String uploadId) {
+        local.abortUpload(owner, uploadId);
+    }
+
+    @Override
+    public long size(String location) throws IOException {
+        Packed packed = parse(location);
+        if (!Files.exists(packed.segment)) throw new NoSuchFileException(packed.segment.toString());
+        return packed.length;
+    }
+
+    @Override
+    public InputStream open(String location, long offset) throws IOException {
+        Packed packed = parse(location);
+        FileChannel ch = FileChannel.open(packed.segment, StandardOpenOption.READ);
+        try {
+            ch.position(packed.offset + offset);
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        InputStream in = new BoundedInputStream(Channels.newInputStream(ch), Math.max(0, packed.length - offset));
+        return storagePoolService.volumeOf(packed.segment).reading(in);
+    }
+
+    @Override
+    public void copy(FileEntity source, FileEntity copy) throws IOException {
+        Volume volume = storagePoolService.volumeOf(source.getVolume(), source.getInternalPath());
+        copy.setInternalPath(relocate(source.getInternalPath(), copy.getOwner(), volume));
+        copy.setVolume(volume.getId());
+    }
+
+    /* the bytes stay in the segment until compaction finds no row pointing at them */
+    @Override
+    public void delete(String location) {
+    }
+
+    /**
+     * Appends the bytes of a packed blob to the current segment of the owner on a volume
+     *
+     * @return the new location
+     */
+    public String relocate(String location, String owner, Volume volume) throws IOException {
+        Packed packed = parse(location);
+        try (FileChannel in = FileChannel.open(packed.segment, StandardOpenOption.READ)) {
+            return append(owner, volume, in, packed.offset, packed.length);
+        }
+    }
+
+    /**
+     * @return whether files are still being appended to this segment
+     */
+    public boolean isAppending(Path segment) {
+        for (Appender appender : appenders.values()) {
+            if (segment.equals(appender.current)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the segment file of a packed location
+     */
+    public static Path segmentOf(String location) {
+        return parse(location).segment;
+    }
+
+    /**
+     * @return start of the locations of all blobs in a segment
+     */
+    public static String prefixOf(Path segment) {
+        return SCHEME + segment + "#";
+    }
+
+    private String append(String owner, Volume volume, FileChannel in, long from, long length) throws IOException {
+        Appender appender = appenders.computeIfAbsent(owner + ":" + volume.getId(),
+                k -> new Appender(storageLayoutService.packDir(volume.getRoot(), owner)));
+        volume.startWrite();
+        try {
+            return appender.append(in, from, length);
+        } finally {
+            volume.endWrite(length);
+        }
+    }
+
+    private static Packed parse(String location) {
+        int hash = location.lastIndexOf('#');
+        int plus = location.lastIndexOf('+');
+        if (!location.startsWith(SCHEME) || hash < 0 || plus < hash) throw new IllegalArgumentException("Not a packed location: " + location);
+        return new Packed(Paths.get(location.substring(SCHEME.length(), hash)),
+                Long.parseLong(location.substring(hash + 1, plus)),
+                Long.parseLong(location.substring(plus + 1)));
+    }
+
+    private record Packed(Path segment, long offset, long length) {}
+
+    private class Appender {
+        private final Path dir;
+        private volatile Path current; // null until the first file
+
+        Appender(Path dir) {
+            this.dir = dir;
+        }
+
+        synchronized String append(FileChannel in, long from, long length) throws IOException {
+            if (current == null || Files.size(current) >= segmentSize) {
+                Files.createDirectories(dir);
+                current = dir.resolve(UUID.randomUUID() + ".pack");
+            }
+
+            try (FileChannel out = FileChannel.open(current, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long offset = out.size();
+                out.position(offset);
+                long done = 0;
+                while (done < length) {
+                    long n = in.transferTo(from + done, length - done, out);
+                    if (n <= 0) break;
+                    done += n;
+                }
+                if (done != length) {
+                    out.truncate(offset); // keep the segment free of half files
+                    throw new IOException("Source ended after " + done + " of " + length + " bytes");
+                }
+                out.force(false);
+                return SCHEME + current + "#" + String.format("%012d", offset) + "+" + length;
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package server.phoestorage.blob;
+
+import server.phoestorage.datasource.file.FileEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Blobs as objects in an S3 compatible bucket, the internalPath is s3://<bucket>/<key>. An upload is a multipart
+ * upload and every chunk of our upload protocol becomes one part: chunks are 5MB, the smallest part S3 allows,
+ * and only the last one may be smaller. Smaller chunks are refused before they are sent, see minChunkSize.
+ * Running uploads are only known in memory, a restart loses them and leaves the parts to the bucket's
+ * lifecycle rules
+ *
+ */
+public class S3BlobStore implements BlobStore {
+    public static final String VOLUME = "s3"; // volume recorded on rows of this store
+    public static final long MIN_PART = 5L * 1024 * 1024; // S3 refuses smaller parts except the last one
+
+    private final S3Client client;
+    private final String prefix;
+    private final String scheme;
+
+    // owner:uploadId -> multipart upload
+    private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    public S3BlobStore(S3Client client, String prefix) {
+        this.client = client;
+        String p = prefix == null ? "" : prefix;
+        this.prefix = p.isEmpty() || p.endsWith("/") ? p : p + "/";
+        this.scheme = "s3://" + client.getBucket() + "/";
+    }
+
+    @Override
+    public boolean holds(String location) {
+        return location.startsWith(scheme);
+    }
+
+    @Override
+    public void writeChunk(String owner, String uploadId, int chunkId, long offset, InputStream in, long length, long expectedSize) throws IOException {
+        Upload upload = uploads.computeIfAbsent(owner + ":" + uploadId, k -> new Upload(key(owner, uploadId)));
+        synchronized (upload) {
+            if (upload.id == null) upload.id = client.createMultipartUpload(upload.key);
+        }
+        upload.lastUsed = Instant.now();
+
+        int part = chunkId + 1;
+        String etag = client.uploadPart(upload.key, upload.id, part, in, length);
+        upload.etags.put(part, etag);
+        upload.sizes.put(part, length); // a retried chunk replaces its part
+    }
+
+    @Override
+    public long minChunkSize() {
+        return MIN_PART;
+    }
+
+    @Override
+    public long received(String owner, String uploadId) {
+        Upload upload = uploads.get(owner + ":" + uploadId);
+        return upload == null ? 0 : upload.size();
+    }
+
+    @Override
+    public void finishUpload(String owner, String uploadId, int totalChunks, FileEntity file) throws IOException {
+        Upload upload = uploads.remove(owner + ":" + uploadId);
+        if (upload == null || upload.id == null) throw new IOException("Unknown upload " + uploadId);
+        if (upload.etags.size() != totalChunks) {
+            client.abortMultipartUpload(upload.key, upload.id);
+            throw new IOException("Upload " + uploadId + " has " + upload.etags.size() + " of " + totalChunks + " parts");
+        }
+
+        client.completeMultipartUpload(upload.key, upload.id, new TreeMap<>(upload.etags));
+        file.setInternalPath(scheme + upload.key);
+        file.setVolume(VOLUME);
+        file.setSize(upload.size());
+    }
+
+    @Override
+    public void abortUpload(String owner, String uploadId) {
+        Upload upload = uploads.remove(owner + ":" + uploadId);
+        if (upload != null) abort(upload);
+    }
+
+    /**
+     * Aborts uploads no chunk arrived for in a while, the counterpart of UGCService for staging files
+     *
+     */
+    public void expireUploads(Duration idle) {
+        Instant cutoff = Instant.now().minus(idle);
+        for (Map.Entry<String, Upload> entry : uploads.entrySet()) {
+            if (entry.getValue().lastUsed.isBefore(cutoff) && uploads.remove(entry.getKey(), entry.getValue())) {
+                abort(entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public long size(String location) throws IOException {
+        return client.head(key(location));
+    }
+
+    @Override
+    public InputStream open(String location, long offset) throws IOException {
+        return client.get(key(location), offset);
+    }
+
+    @Override
+    public void copy(FileEntity source, FileEntity copy) throws IOException {
+        String target = key(copy.getOwner(), copy.getUuid());
+        String from = key(source.getInternalPath());
+        // the stored length, encrypted and compressed objects differ from the file size
+        client.copy(from, target, client.head(from));
+        copy.setInternalPath(scheme + target);
+        copy.setVolume(VOLUME);
+    }
+
+    @Override
+    public void delete(String location) throws IOException {
+        client.delete(key(location));
+    }
+
+    private void abort(Upload upload) {
+        if (upload.id == null) return;
+        try {
+            client.abortMultipartUpload(upload.key, upload.id);
+        } catch (IOException e) {
+            System.err.println("Could not abort upload of " + upload.key + ": " + e.getMessage());
+        }
+    }
+
+    private String key(String owner, String fileUuid) {
+        return prefix + owner + "/" + fileUuid;
+    }
+
+    private String key(String location) {
+        return location.substring(scheme.length());
+    }
+
+    private static class Upload {
+        final String key;
+        volatile String id;
+        volatile Instant lastUsed = Instant.now();
+        final SortedMap<Integer, String> etags = new ConcurrentSkipListMap<>();
+        final Map<Integer, Long> sizes = new ConcurrentHashMap<>();
+
+        Upload(String key) {
+            this.key = key;
+        }
+
+        long size() {
+            return sizes.values().stream().mapToLong(Long::longValue).sum();
+        }
+    }
+}
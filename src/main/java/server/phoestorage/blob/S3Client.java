@@ -0,0 +1,267 @@
+package server.phoestorage.blob;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The few calls of the S3 API the blob store needs, signed with AWS signature version 4 and sent with the
+ * JDK http client. Path style addressing, so MinIO and other S3 compatible servers work as well.
+ * Payloads are sent unsigned, use an https endpoint outside of a trusted network
+ *
+ */
+public class S3Client {
+    public static final long MAX_COPY = 5L << 30; // larger objects have to be copied in parts
+    private static final long COPY_PART = 1L << 30;
+    private static final String UNSIGNED = "UNSIGNED-PAYLOAD";
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final Pattern UPLOAD_ID = Pattern.compile("<UploadId>([^<]+)</UploadId>");
+    private static final Pattern ETAG = Pattern.compile("<ETag>([^<]+)</ETag>");
+
+    private final HttpClient http = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    private final String endpoint;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+
+    /**
+     * @param endpoint e.g. https://s3.eu-central-1.amazonaws.com or http://localhost:9000
+     */
+    public S3Client(String endpoint, String region, String bucket, String accessKey, String secretKey) {
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    public String getBucket() {
+        return bucket;
+    }
+
+    public String createMultipartUpload(String key) throws IOException {
+        String body = send("POST", key, Map.of("uploads", ""), Map.of(), HttpRequest.BodyPublishers.noBody());
+        Matcher m = UPLOAD_ID.matcher(body);
+        if (!m.find()) throw new IOException("No upload id for " + key);
+        return m.group(1);
+    }
+
+    /**
+     * @return the ETag of the part
+     */
+    public String uploadPart(String key, String uploadId, int partNumber, InputStream in, long length) throws IOException {
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.fromPublisher(
+                HttpRequest.BodyPublishers.ofInputStream(() -> in), length);
+        HttpResponse<String> response = exchange("PUT", key,
+                Map.of("partNumber", String.valueOf(partNumber), "uploadId", uploadId), Map.of(), body,
+                HttpResponse.BodyHandlers.ofString());
+        check(response, key);
+        return response.headers().firstValue("ETag").orElseThrow(() -> new IOException("No ETag for part of " + key));
+    }
+
+    public void completeMultipartUpload(String key, String uploadId, SortedMap<Integer, String> etags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        etags.forEach((part, etag) -> xml.append("<Part><PartNumber>").append(part).append("</PartNumber><ETag>")
+                .append(etag).append("</ETag></Part>"));
+        xml.append("</CompleteMultipartUpload>");
+
+        String body = send("POST", key, Map.of("uploadId", uploadId), Map.of(),
+                HttpRequest.BodyPublishers.ofString(xml.toString()));
+        // S3 can answer 200 and still fail the upload
+        if (body.contains("<Error>")) throw new IOException("Could not complete upload of " + key + ": " + body);
+    }
+
+    public void abortMultipartUpload(String key, String uploadId) throws IOException {
+        send("DELETE", key, Map.of("uploadId", uploadId), Map.of(), HttpRequest.BodyPublishers.noBody());
+    }
+
+    /**
+     * @return size of the object
+     * @throws NoSuchFileException if it does not exist
+     */
+    public long head(String key) throws IOException {
+        HttpResponse<Void> response = exchange("HEAD", key, Map.of(), Map.of(), HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 404) throw new NoSuchFileException(key);
+        if (response.statusCode() >= 300) throw new IOException("S3 HEAD " + key + " returned " + response.statusCode());
+        return response.headers().firstValueAsLong("Content-Length").orElseThrow(() -> new IOException("No size for " + key));
+    }
+
+    public InputStream get(String key, long offset) throws IOException {
+        Map<String, String> headers = offset > 0 ? Map.of("Range", "bytes=" + offset + "-") : Map.of();
+        HttpResponse<InputStream> response = exchange("GET", key, Map.of(), headers, HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.ofInputStream());
+        if (response.statusCode() >= 300) {
+            try (InputStream error = response.body()) {
+                String body = new String(error.readNBytes(1024), StandardCharsets.UTF_8);
+                if (response.statusCode() == 404) throw new NoSuchFileException(key);
+                throw new IOException("S3 GET " + key + " returned " + response.statusCode() + ": " + body);
+            }
+        }
+        return response.body();
+    }
+
+    /**
+     * Server side copy, in parts of 1GB for objects over 5GB
+     *
+     */
+    public void copy(String sourceKey, String targetKey, long size) throws IOException {
+        String source = "/" + bucket + "/" + encodePath(sourceKey);
+        if (size <= MAX_COPY) {
+            String body = send("PUT", targetKey, Map.of(), Map.of("x-amz-copy-source", source), HttpRequest.BodyPublishers.noBody());
+            if (body.contains("<Error>")) throw new IOException("Could not copy " + sourceKey + ": " + body);
+            return;
+        }
+
+        String uploadId = createMultipartUpload(targetKey);
+        try {
+            SortedMap<Integer, String> etags = new TreeMap<>();
+            int part = 1;
+            for (long start = 0; start < size; start += COPY_PART, part++) {
+                long end = Math.min(size, start + COPY_PART) - 1;
+                String body = send("PUT", targetKey,
+                        Map.of("partNumber", String.valueOf(part), "uploadId", uploadId),
+                        Map.of("x-amz-copy-source", source, "x-amz-copy-source-range", "bytes=" + start + "-" + end),
+                        HttpRequest.BodyPublishers.noBody());
+                Matcher m = ETAG.matcher(body);
+                if (!m.find()) throw new IOException("No ETag for copied part of " + targetKey);
+                etags.put(part, m.group(1).replace("&quot;", "\""));
+            }
+            completeMultipartUpload(targetKey, uploadId, etags);
+        } catch (IOException e) {
+            abortMultipartUpload(targetKey, uploadId);
+            throw e;
+        }
+    }
+
+    public void delete(String key) throws IOException {
+        HttpResponse<String> response = exchange("DELETE", key, Map.of(), Map.of(), HttpRequest.BodyPublishers.noBody(),
+                HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != 404) check(response, key);
+    }
+
+    private String send(String method, String key, Map<String, String> query, Map<String, String> headers,
+                        HttpRequest.BodyPublisher body) throws IOException {
+        HttpResponse<String> response = exchange(method, key, query, headers, body, HttpResponse.BodyHandlers.ofString());
+        check(response, key);
+        return response.body();
+    }
+
+    private static void check(HttpResponse<String> response, String key) throws IOException {
+        if (response.statusCode() == 404) throw new NoSuchFileException(key);
+        if (response.statusCode() >= 300) {
+            throw new IOException("S3 " + response.request().method() + " " + key + " returned "
+                    + response.statusCode() + ": " + response.body());
+        }
+    }
+
+    private <T> HttpResponse<T> exchange(String method, String key, Map<String, String> query, Map<String, String> headers,
+                                         HttpRequest.BodyPublisher body, HttpResponse.BodyHandler<T> handler) throws IOException {
+        String path = "/" + bucket + "/" + encodePath(key);
+        StringJoiner canonicalQuery = new StringJoiner("&");
+        for (Map.Entry<String, String> e : new TreeMap<>(query).entrySet()) {
+            canonicalQuery.add(encode(e.getKey()) + "=" + encode(e.getValue()));
+        }
+        URI uri = URI.create(endpoint + path + (query.isEmpty() ? "" : "?" + canonicalQuery));
+
+        String amzDate = ZonedDateTime.now(ZoneOffset.UTC).format(AMZ_DATE);
+        String date = amzDate.substring(0, 8);
+
+        // host and every x-amz-* header are signed
+        TreeMap<String, String> signed = new TreeMap<>();
+        signed.put("host", uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort());
+        signed.put("x-amz-content-sha256", UNSIGNED);
+        signed.put("x-amz-date", amzDate);
+        headers.forEach((name, value) -> {
+            if (name.toLowerCase().startsWith("x-amz-")) signed.put(name.toLowerCase(), value);
+        });
+
+        StringBuilder canonicalHeaders = new StringBuilder();
+        signed.forEach((name, value) -> canonicalHeaders.append(name).append(':').append(value.trim()).append('\n'));
+        String signedHeaders = String.join(";", signed.keySet());
+
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n" + canonicalHeaders + "\n"
+                + signedHeaders + "\n" + UNSIGNED;
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" + hex(sha256(canonicalRequest));
+
+        byte[] key4 = hmac(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        key4 = hmac(key4, region);
+        key4 = hmac(key4, "s3");
+        key4 = hmac(key4, "aws4_request");
+        String signature = hex(hmac(key4, stringToSign));
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMinutes(5))
+                .method(method, body)
+                .header("x-amz-content-sha256", UNSIGNED)
+                .header("x-amz-date", amzDate)
+                .header("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+                        + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+        headers.forEach(request::header);
+
+        try {
+            return http.send(request.build(), handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("S3 request interrupted");
+        }
+    }
+
+    private static String encodePath(String key) {
+        StringJoiner path = new StringJoiner("/");
+        for (String segment : key.split("/", -1)) path.add(encode(segment));
+        return path.toString();
+    }
+
+    // RFC 3986, as signature version 4 wants it
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+                .replace("+", "%20")
+                .replace("*", "%2A")
+                .replace("%7E", "~");
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+}
@@ -0,0 +1,196 @@
+package server.phoestorage.blob;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * Format of encrypted blobs. The plaintext is cut into segments of 64KB and every segment is sealed on its own with
+ * AES-GCM as nonce (12 bytes), ciphertext, tag (16 bytes). The additional data is the id of the blob, the segment
+ * number and whether it is the last segment, so segments can not be swapped within or between blobs and a blob cut
+ * short on a segment boundary fails on its new last segment. A range is read by decrypting only the segments it
+ * touches, and upload chunks start on a segment boundary so they are encrypted independently in any order.
+ * javax.crypto runs AES-GCM on the AES-NI and carry-less multiply instructions where the CPU has them
+ *
+ */
+public class SegmentCipher {
+    public static final int SEGMENT = 64 * 1024;
+    private static final int NONCE = 12;
+    private static final int TAG = 16;
+    public static final int OVERHEAD = NONCE + TAG;
+    private static final int SEALED = SEGMENT + OVERHEAD;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param plainOffset start of a segment in the plaintext
+     * @return where that segment starts in the blob
+     */
+    public static long cipherOffset(long plainOffset) {
+        return plainOffset / SEGMENT * SEALED;
+    }
+
+    public static long cipherSize(long plainSize) {
+        long rest = plainSize % SEGMENT;
+        return plainSize / SEGMENT * SEALED + (rest > 0 ? rest + OVERHEAD : 0);
+    }
+
+    public static long plainSize(long cipherSize) {
+        long rest = cipherSize % SEALED;
+        return cipherSize / SEALED * SEGMENT + Math.max(0, rest - OVERHEAD);
+    }
+
+    /**
+     * @param id id of the blob, the same for every chunk of it
+     * @param plain plaintext starting at plainOffset
+     * @param plainOffset start of a segment
+     * @param last plain runs to the end of the blob, its last segment is marked as the last
+     * @return the sealed segments of plain, to be stored at cipherOffset(plainOffset)
+     */
+    public static InputStream encrypt(SecretKey key, String id, InputStream plain, long plainOffset, boolean last) {
+        return new Sealing(key, id, plain, plainOffset / SEGMENT, last);
+    }
+
+    /**
+     * @param id id the blob was encrypted with
+     * @param sealed blob read from cipherOffset of the segment holding plainOffset to its end
+     * @param plainOffset first plaintext byte wanted
+     * @return the plaintext from plainOffset on
+     */
+    public static InputStream decrypt(SecretKey key, String id, InputStream sealed, long plainOffset) throws IOException {
+        Opening opening = new Opening(key, id, sealed, plainOffset / SEGMENT);
+        opening.skipNBytes(plainOffset % SEGMENT);
+        return opening;
+    }
+
+    private static Cipher cipher() {
+        try {
+            return Cipher.getInstance("AES/GCM/NoPadding");
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] aad(byte[] id, long segment, boolean last) {
+        return ByteBuffer.allocate(id.length + 9).put(id).putLong(segment).put((byte) (last ? 1 : 0)).array();
+    }
+
+    /* a segment at a time from in to out, subclasses fill out */
+    private abstract static class Segments extends InputStream {
+        final Cipher cipher = cipher();
+        final SecretKey key;
+        final byte[] id;
+        final PushbackInputStream in;
+        final byte[] read;
+        final byte[] out;
+        long segment;
+        int pos;
+        int limit;
+        boolean ended; // nothing follows the segment in read
+
+        Segments(SecretKey key, String id, InputStream in, long segment, int readSize, int outSize) {
+            this.key = key;
+            this.id = id.getBytes(StandardCharsets.UTF_8);
+            this.in = new PushbackInputStream(in, 1);
+            this.segment = segment;
+            this.read = new byte[readSize];
+            this.out = new byte[outSize];
+        }
+
+        /* turns n bytes in read into out, returns the bytes in out */
+        abstract int transform(int n) throws IOException;
+
+        private boolean fill() throws IOException {
+            if (pos < limit) return true;
+            if (ended) return false;
+            int n = in.readNBytes(read, 0, read.length);
+            if (n < read.length) {
+                ended = true;
+            } else {
+                // a full segment can still be the last one, look one byte ahead
+                int next = in.read();
+                if (next == -1) ended = true;
+                else in.unread(next);
+            }
+            if (n == 0) return false;
+            limit = transform(n);
+            pos = 0;
+            segment++;
+            return limit > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? out[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, limit - pos);
+            System.arraycopy(out, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit - pos;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static class Sealing extends Segments {
+        final boolean last;
+
+        Sealing(SecretKey key, String id, InputStream plain, long segment, boolean last) {
+            super(key, id, plain, segment, SEGMENT, SEALED);
+            this.last = last;
+        }
+
+        @Override
+        int transform(int n) throws IOException {
+            byte[] nonce = new byte[NONCE];
+            random.nextBytes(nonce);
+            System.arraycopy(nonce, 0, out, 0, NONCE);
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG * 8, nonce));
+                cipher.updateAAD(aad(id, segment, last && ended));
+                return NONCE + cipher.doFinal(read, 0, n, out, NONCE);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Could not encrypt segment " + segment, e);
+            }
+        }
+    }
+
+    private static class Opening extends Segments {
+        Opening(SecretKey key, String id, InputStream sealed, long segment) {
+            super(key, id, sealed, segment, SEALED, SEGMENT);
+        }
+
+        @Override
+        int transform(int n) throws IOException {
+            if (n <= OVERHEAD) throw new IOException("Segment " + segment + " is truncated");
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(TAG * 8, read, 0, NONCE));
+                cipher.updateAAD(aad(id, segment, ended));
+                return cipher.doFinal(read, NONCE, n - NONCE, out, 0);
+            } catch (GeneralSecurityException e) {
+                // a wrong tag means the bytes on disk changed or were cut short, or the key or id is not theirs
+                throw new IOException("Segment " + segment + " failed authentication", e);
+            }
+        }
+    }
+}
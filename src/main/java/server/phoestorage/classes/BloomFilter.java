@@ -0,0 +1,65 @@
+package server.phoestorage.classes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed size bloom filter over strings. mightContain never misses an added key but can say yes
+ * for a key that was never added, so a hit has to be confirmed somewhere else
+ *
+ */
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long size;
+    private final int hashes;
+
+    /**
+     * @param expected number of keys it is sized for
+     * @param falsePositive wanted false positive rate at that many keys
+     */
+    public BloomFilter(int expected, double falsePositive) {
+        long m = (long) Math.ceil(-expected * Math.log(falsePositive) / (Math.log(2) * Math.log(2)));
+        this.size = Math.max(64, m);
+        this.hashes = Math.max(1, (int) Math.round((double) size / expected * Math.log(2)));
+        this.bits = new AtomicLongArray((int) ((size + 63) / 64));
+    }
+
+    public void put(String key) {
+        long h = hash(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, size);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+            do {
+                old = bits.get(word);
+            } while ((old & mask) == 0 && !bits.compareAndSet(word, old, old | mask));
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long h = hash(key);
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, size);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    // 64 bit FNV-1a with a murmur finalizer, the two halves are used as independent hashes
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,158 @@
+package server.phoestorage.classes;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * One immutable segment of a user's content index.
+ * name.dict holds the sorted terms and where their postings start in name.post. The dictionary is kept in memory,
+ * postings are read from disk per lookup. A posting list is the sorted file ids of the term, delta and varint coded.
+ * The .dict file is written last, so a segment without one was never finished and is ignored
+ *
+ */
+public class ContentSegment {
+    private final Path post;
+    private final String name;
+    private final String[] terms;
+    private final long[] offsets; // one more than terms, the last one is the end of the postings
+
+    private ContentSegment(Path post, String name, String[] terms, long[] offsets) {
+        this.post = post;
+        this.name = name;
+        this.terms = terms;
+        this.offsets = offsets;
+    }
+
+    public static ContentSegment open(Path dir, String name) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(dir.resolve(name + ".dict"))))) {
+            int count = in.readInt();
+            String[] terms = new String[count];
+            long[] offsets = new long[count + 1];
+            for (int i = 0; i < count; i++) {
+                terms[i] = in.readUTF();
+                offsets[i] = in.readLong();
+            }
+            offsets[count] = in.readLong();
+            return new ContentSegment(dir.resolve(name + ".post"), name, terms, offsets);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int termCount() {
+        return terms.length;
+    }
+
+    public String term(int i) {
+        return terms[i];
+    }
+
+    /**
+     * @return the sorted file ids containing the term, empty if the term is not in this segment
+     */
+    public int[] postings(String term) throws IOException {
+        int i = Arrays.binarySearch(terms, term);
+        return i < 0 ? new int[0] : postingsAt(i);
+    }
+
+    public int[] postingsAt(int i) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) (offsets[i + 1] - offsets[i]));
+        try (FileChannel channel = FileChannel.open(post, StandardOpenOption.READ)) {
+            long position = offsets[i];
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException(post.toString());
+            }
+        }
+        buffer.flip();
+
+        int[] ids = new int[8];
+        int count = 0, last = 0;
+        while (buffer.hasRemaining()) {
+            int value = 0, shift = 0, b;
+            do {
+                b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+
+            last += value;
+            if (count == ids.length) ids = Arrays.copyOf(ids, count * 2);
+            ids[count++] = last;
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    public void delete() throws IOException {
+        Files.deleteIfExists(post.resolveSibling(name + ".dict"));
+        Files.deleteIfExists(post);
+    }
+
+    /**
+     * Writes a segment term by term, terms have to be added in sorted order
+     *
+     */
+    public static class Writer implements Closeable {
+        private final Path dir;
+        private final String name;
+        private final DataOutputStream post;
+        private final List<String> terms = new ArrayList<>();
+        private final List<Long> offsets = new ArrayList<>();
+        private long written = 0;
+
+        public Writer(Path dir, String name) throws IOException {
+            this.dir = dir;
+            this.name = name;
+            Files.createDirectories(dir);
+            this.post = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(dir.resolve(name + ".post"))));
+        }
+
+        public void add(String term, int[] sortedIds) throws IOException {
+            if (sortedIds.length == 0) return;
+            terms.add(term);
+            offsets.add(written);
+
+            int last = 0;
+            for (int id : sortedIds) {
+                int delta = id - last;
+                last = id;
+                while ((delta & ~0x7F) != 0) {
+                    post.write((delta & 0x7F) | 0x80);
+                    delta >>>= 7;
+                    written++;
+                }
+                post.write(delta);
+                written++;
+            }
+        }
+
+        public ContentSegment finish() throws IOException {
+            post.close();
+
+            Path tmp = dir.resolve(name + ".dict.tmp");
+            try (DataOutputStream dict = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                dict.writeInt(terms.size());
+                for (int i = 0; i < terms.size(); i++) {
+                    dict.writeUTF(terms.get(i));
+                    dict.writeLong(offsets.get(i));
+                }
+                dict.writeLong(written);
+            }
+            Files.move(tmp, dir.resolve(name + ".dict"), StandardCopyOption.ATOMIC_MOVE);
+
+            long[] o = new long[offsets.size() + 1];
+            for (int i = 0; i < offsets.size(); i++) o[i] = offsets.get(i);
+            o[offsets.size()] = written;
+            return new ContentSegment(dir.resolve(name + ".post"), name, terms.toArray(new String[0]), o);
+        }
+
+        @Override
+        public void close() throws IOException {
+            post.close();
+        }
+    }
+}
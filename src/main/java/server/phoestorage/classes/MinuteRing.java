@@ -0,0 +1,97 @@
+package server.phoestorage.classes;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring buffer of per minute download counters. Slot i holds minute m when m % slots == i,
+ * a slot that still holds an older minute is reset when a new minute lands on it.
+ * Rows are long[]{minute, hits, complete, partial, bytes} with minute in epoch minutes
+ *
+ */
+public class MinuteRing {
+    public static final int MINUTE = 0, HITS = 1, COMPLETE = 2, PARTIAL = 3, BYTES = 4;
+
+    private final long[][] slots;
+
+    public MinuteRing(int size) {
+        this.slots = new long[Math.max(2, size)][5];
+        for (long[] slot : slots) slot[MINUTE] = -1;
+    }
+
+    public synchronized void add(long minute, long bytes, boolean complete) {
+        long[] slot = slot(minute);
+        slot[HITS]++;
+        slot[complete ? COMPLETE : PARTIAL]++;
+        slot[BYTES] += bytes;
+    }
+
+    /**
+     * Takes out every minute up to and including upTo, the slots are empty afterwards
+     *
+     * @param upTo last minute to take
+     * @return the minutes taken, oldest first
+     */
+    public synchronized List<long[]> drain(long upTo) {
+        List<long[]> rows = new ArrayList<>();
+        for (long[] slot : slots) {
+            if (slot[MINUTE] < 0 || slot[MINUTE] > upTo) continue;
+            rows.add(slot.clone());
+            slot[MINUTE] = -1;
+        }
+        rows.sort((a, b) -> Long.compare(a[MINUTE], b[MINUTE]));
+        return rows;
+    }
+
+    /**
+     * Puts drained minutes back, e.g. after writing them failed. Minutes the ring has moved past are dropped
+     *
+     * @return how many rows were dropped
+     */
+    public synchronized int restore(List<long[]> rows) {
+        int dropped = 0;
+        for (long[] row : rows) {
+            long[] slot = slots[(int) Math.floorMod(row[MINUTE], (long) slots.length)];
+            if (slot[MINUTE] > row[MINUTE]) {
+                dropped++;
+                continue;
+            }
+            if (slot[MINUTE] != row[MINUTE]) {
+                slot[MINUTE] = row[MINUTE];
+                slot[HITS] = slot[COMPLETE] = slot[PARTIAL] = slot[BYTES] = 0;
+            }
+            for (int i = HITS; i <= BYTES; i++) slot[i] += row[i];
+        }
+        return dropped;
+    }
+
+    /**
+     * Copies the minutes from since on without taking them out
+     *
+     * @return the minutes, oldest first
+     */
+    public synchronized List<long[]> snapshot(long since) {
+        List<long[]> rows = new ArrayList<>();
+        for (long[] slot : slots) {
+            if (slot[MINUTE] >= since) rows.add(slot.clone());
+        }
+        rows.sort((a, b) -> Long.compare(a[MINUTE], b[MINUTE]));
+        return rows;
+    }
+
+    public synchronized boolean isEmpty() {
+        for (long[] slot : slots) {
+            if (slot[MINUTE] >= 0) return false;
+        }
+        return true;
+    }
+
+    private long[] slot(long minute) {
+        long[] slot = slots[(int) Math.floorMod(minute, (long) slots.length)];
+        if (slot[MINUTE] != minute) {
+            slot[MINUTE] = minute;
+            slot[HITS] = slot[COMPLETE] = slot[PARTIAL] = slot[BYTES] = 0;
+        }
+        return slot;
+    }
+}
@@ -0,0 +1,275 @@
+package server.phoestorage.classes;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+/**
+ * Typeahead index over the file and folder names of one user.
+ * Instead of a trie every name is stored once, and a sorted array of (slot, offset) pairs points at every
+ * word start in it. That is a suffix array limited to word starts: a prefix lookup is two binary searches and
+ * the whole thing costs one string plus 8 bytes per word. Keys at the start of a name sort before all others,
+ * so names starting with the prefix are found first and results are ranked before the limit cuts them.
+ * New names go into a small sorted delta that is merged into the array once it grows, a merge also renumbers
+ * the slots so renamed and deleted names don't pile up
+ *
+ */
+public class PrefixIndex {
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final int MAX_WORDS = 16; // per name
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private String[] names = new String[1024];
+    private long[] refs = new long[1024];
+    private int slots = 0;
+    private int liveCount = 0;
+    private final BitSet live = new BitSet();
+    private final HashMap<Long, Integer> slotByRef = new HashMap<>();
+
+    private long[] keys = new long[0]; // (slot << 16) | offset, name starts first, then by the text at offset
+    private long[] delta = new long[64]; // same order, new names until the next merge
+    private int deltaSize = 0;
+    private long[] pending = new long[0]; // bulk loaded keys waiting for the first merge
+    private int pendingSize = 0;
+
+    public static long fileRef(int id) {
+        return id;
+    }
+
+    public static long folderRef(int id) {
+        return (1L << 32) | id;
+    }
+
+    public static boolean isFolder(long ref) {
+        return (ref >>> 32) == 1;
+    }
+
+    public static int id(long ref) {
+        return (int) ref;
+    }
+
+    public static String normalize(String name) {
+        return MARKS.matcher(Normalizer.normalize(name, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    public void put(long ref, String name) {
+        lock.writeLock().lock();
+        try {
+            Integer old = slotByRef.get(ref);
+            if (old != null) kill(old);
+
+            int slot = appendSlot(ref, name);
+            for (int offset : wordStarts(names[slot])) {
+                addToDelta(key(slot, offset));
+            }
+            if (deltaSize > Math.max(1024, keys.length / 32)) merge();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long ref) {
+        lock.writeLock().lock();
+        try {
+            Integer old = slotByRef.remove(ref);
+            if (old != null) kill(old);
+            if (slots - liveCount > 1024 && slots - liveCount > liveCount) merge();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Bulk load used when the index is built. Call merge once all names are in
+     *
+     */
+    public void load(long ref, String name) {
+        lock.writeLock().lock();
+        try {
+            int slot = appendSlot(ref, name);
+            for (int offset : wordStarts(names[slot])) {
+                if (pendingSize == pending.length) pending = Arrays.copyOf(pending, Math.max(1024, pendingSize * 2));
+                pending[pendingSize++] = key(slot, offset);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds names with a word starting with the prefix. Names that start with it come first
+     *
+     * @param prefix what the user has typed so far
+     * @param limit max number of results
+     * @return refs of the matching files and folders
+     */
+    public List<Long> search(String prefix, int limit) {
+        String p = normalize(prefix);
+        if (p.isEmpty()) return List.of();
+
+        LinkedHashSet<Long> result = new LinkedHashSet<>();
+        lock.readLock().lock();
+        try {
+            collect(false, p, limit, result);
+            collect(true, p, limit, result);
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ArrayList<>(result);
+    }
+
+    public void merge() {
+        lock.writeLock().lock();
+        try {
+            // live slots move to the front in their old order, so keys keep their order among equal text
+            int[] slotMap = new int[slots];
+            String[] oldNames = names;
+            long[] oldRefs = refs;
+            names = new String[Math.max(1024, liveCount * 2)];
+            refs = new long[names.length];
+            slotByRef.clear();
+            int next = 0;
+            for (int slot = live.nextSetBit(0); slot >= 0 && slot < slots; slot = live.nextSetBit(slot + 1)) {
+                slotMap[slot] = next;
+                names[next] = oldNames[slot];
+                refs[next] = oldRefs[slot];
+                slotByRef.put(oldRefs[slot], next);
+                next++;
+            }
+
+            ArrayList<Long> merged = new ArrayList<>(keys.length + deltaSize + pendingSize);
+            for (long key : keys) addRemapped(merged, key, slotMap);
+            for (int i = 0; i < deltaSize; i++) addRemapped(merged, delta[i], slotMap);
+            for (int i = 0; i < pendingSize; i++) addRemapped(merged, pending[i], slotMap);
+
+            live.clear();
+            live.set(0, next);
+            slots = next;
+            liveCount = next;
+
+            merged.sort(this::compareKeys);
+            keys = new long[merged.size()];
+            for (int i = 0; i < keys.length; i++) keys[i] = merged.get(i);
+            delta = new long[64];
+            deltaSize = 0;
+            pending = new long[0];
+            pendingSize = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void addRemapped(List<Long> merged, long key, int[] slotMap) {
+        int slot = (int) (key >>> 16);
+        if (live.get(slot)) merged.add(key(slotMap[slot], (int) (key & 0xFFFF)));
+    }
+
+    /* walks the matching keys of one kind in the array and the delta side by side, in key order */
+    private void collect(boolean word, String p, int limit, Set<Long> result) {
+        int i = lowerBound(keys, keys.length, word, p);
+        int j = lowerBound(delta, deltaSize, word, p);
+        while (result.size() < limit) {
+            boolean inKeys = i < keys.length && matches(keys[i], word, p);
+            boolean inDelta = j < deltaSize && matches(delta[j], word, p);
+            if (!inKeys && !inDelta) return;
+
+            long key = inKeys && (!inDelta || compareKeys(keys[i], delta[j]) <= 0) ? keys[i++] : delta[j++];
+            int slot = (int) (key >>> 16);
+            if (live.get(slot)) result.add(refs[slot]);
+        }
+    }
+
+    private boolean matches(long key, boolean word, String p) {
+        int offset = (int) (key & 0xFFFF);
+        return (offset != 0) == word && names[(int) (key >>> 16)].startsWith(p, offset);
+    }
+
+    private void kill(int slot) {
+        if (!live.get(slot)) return;
+        live.clear(slot);
+        liveCount--;
+    }
+
+    private int appendSlot(long ref, String name) {
+        if (slots == names.length) {
+            names = Arrays.copyOf(names, slots * 2);
+            refs = Arrays.copyOf(refs, slots * 2);
+        }
+        int slot = slots++;
+        names[slot] = normalize(name);
+        refs[slot] = ref;
+        live.set(slot);
+        liveCount++;
+        slotByRef.put(ref, slot);
+        return slot;
+    }
+
+    private void addToDelta(long key) {
+        int lo = 0, hi = deltaSize;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (compareKeys(delta[mid], key) < 0) lo = mid + 1;
+            else hi = mid;
+        }
+        if (deltaSize == delta.length) delta = Arrays.copyOf(delta, deltaSize * 2);
+        System.arraycopy(delta, lo, delta, lo + 1, deltaSize - lo);
+        delta[lo] = key;
+        deltaSize++;
+    }
+
+    private int lowerBound(long[] sorted, int size, boolean word, String p) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            long key = sorted[mid];
+            int c = Boolean.compare((key & 0xFFFF) != 0, word);
+            if (c < 0 || (c == 0 && compareText(key, p) < 0)) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private int compareKeys(long a, long b) {
+        int ao = (int) (a & 0xFFFF), bo = (int) (b & 0xFFFF);
+        int c = Boolean.compare(ao != 0, bo != 0);
+        if (c != 0) return c;
+
+        String an = names[(int) (a >>> 16)], bn = names[(int) (b >>> 16)];
+        int length = Math.min(an.length() - ao, bn.length() - bo);
+        for (int i = 0; i < length; i++) {
+            c = Character.compare(an.charAt(ao + i), bn.charAt(bo + i));
+            if (c != 0) return c;
+        }
+        c = Integer.compare(an.length() - ao, bn.length() - bo);
+        return c != 0 ? c : Long.compare(a, b);
+    }
+
+    // compares the text at a key with the prefix, only over the prefix length
+    private int compareText(long key, String p) {
+        String name = names[(int) (key >>> 16)];
+        int offset = (int) (key & 0xFFFF);
+        int length = Math.min(name.length() - offset, p.length());
+        for (int i = 0; i < length; i++) {
+            int c = Character.compare(name.charAt(offset + i), p.charAt(i));
+            if (c != 0) return c;
+        }
+        return name.length() - offset < p.length() ? -1 : 0;
+    }
+
+    private static long key(int slot, int offset) {
+        return ((long) slot << 16) | offset;
+    }
+
+    private static List<Integer> wordStarts(String name) {
+        List<Integer> starts = new ArrayList<>();
+        if (name.isEmpty()) return starts;
+
+        starts.add(0);
+        for (int i = 1; i < name.length() && i <= 0xFFFF && starts.size() < MAX_WORDS; i++) {
+            if (!Character.isLetterOrDigit(name.charAt(i - 1)) && Character.isLetterOrDigit(name.charAt(i))) starts.add(i);
+        }
+        return starts;
+    }
+}
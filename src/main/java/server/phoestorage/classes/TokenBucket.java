@@ -0,0 +1,53 @@
+package server.phoestorage.classes;
+
+/**
+ * Token bucket in bytes. Callers reserve what they want to send and get back how long to wait
+ * before sending it, the bucket goes into debt instead of blocking so several buckets can be chained
+ *
+ */
+public class TokenBucket {
+    private final long rate; // bytes per second, 0 or less for no limit
+    private final long burst;
+    private long tokens;
+    private long last;
+
+    /**
+     * @param rate bytes per second, 0 or less for no limit
+     * @param burst bytes that may be sent at once after being idle
+     */
+    public TokenBucket(long rate, long burst) {
+        this.rate = rate;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.last = System.nanoTime();
+    }
+
+    /**
+     * Takes bytes from the bucket
+     *
+     * @param bytes bytes about to be sent
+     * @return nanoseconds to wait before sending them, 0 if they can go now
+     */
+    public synchronized long reserve(long bytes) {
+        if (rate <= 0) return 0;
+
+        long now = System.nanoTime();
+        long elapsed = now - last;
+        if (elapsed >= (burst - tokens) * 1_000_000_000L / rate) {
+            tokens = burst;
+            last = now;
+        } else {
+            // only move the clock by what was credited so short gaps don't round away
+            long credit = elapsed * rate / 1_000_000_000L;
+            tokens += credit;
+            last += credit * 1_000_000_000L / rate;
+        }
+
+        tokens -= bytes;
+        return tokens >= 0 ? 0 : -tokens * 1_000_000_000L / rate;
+    }
+
+    public boolean isLimited() {
+        return rate > 0;
+    }
+}
@@ -0,0 +1,212 @@
+package server.phoestorage.classes;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In memory trigram index over the file names of one user.
+ * Every name gets a slot, slots are only ever appended so each posting list stays sorted.
+ * A rename or delete kills the old slot and the index is compacted once the dead slots outnumber the live ones.
+ * Queries of one or two characters have no trigram, they are looked up in postings of the first one and two
+ * characters of every word of a name, so they find names and words starting with them
+ *
+ */
+public class TrigramIndex {
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final HashMap<Long, Postings> postings = new HashMap<>();
+    private final HashMap<Integer, Integer> slotById = new HashMap<>();
+    private final BitSet live = new BitSet();
+    private String[] names = new String[1024];
+    private int[] fileIds = new int[1024];
+    private int slots = 0;
+    private int liveCount = 0;
+
+    /**
+     * Adds a file or replaces the name of a file already in the index
+     *
+     * @param fileId row id of the file
+     * @param name name of the file
+     */
+    public void put(int fileId, String name) {
+        lock.writeLock().lock();
+        try {
+            Integer old = slotById.get(fileId);
+            if (old != null) kill(old);
+            append(fileId, name.toLowerCase(Locale.ROOT));
+            if (slots - liveCount > 1024 && slots - liveCount > liveCount) compact();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(int fileId) {
+        lock.writeLock().lock();
+        try {
+            Integer old = slotById.remove(fileId);
+            if (old != null) kill(old);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        return liveCount;
+    }
+
+    /**
+     * Finds the best matching files for a substring query
+     *
+     * @param query the substring to look for
+     * @param limit max number of results
+     * @return row ids of the matching files, best match first
+     */
+    public List<Integer> search(String query, int limit) {
+        String q = query.toLowerCase(Locale.ROOT);
+        // worst match on top so it can be dropped as soon as a better one turns up
+        PriorityQueue<long[]> best = new PriorityQueue<>(limit + 1, (a, b) -> Long.compare(b[0], a[0]));
+
+        lock.readLock().lock();
+        try {
+            if (q.length() < 3) {
+                Postings starts = q.isEmpty() ? null : postings.get(wordStart(q, 0, q.length()));
+                if (starts == null) return List.of();
+                for (int i = 0; i < starts.size; i++) {
+                    int slot = starts.data[i];
+                    if (live.get(slot)) offer(best, limit, slot, q);
+                }
+            } else {
+                long[] grams = trigrams(q);
+                Postings[] lists = new Postings[grams.length];
+                for (int i = 0; i < grams.length; i++) {
+                    lists[i] = postings.get(grams[i]);
+                    if (lists[i] == null) return List.of();
+                }
+                Arrays.sort(lists, Comparator.comparingInt(p -> p.size));
+
+                Postings smallest = lists[0];
+                candidates:
+                for (int i = 0; i < smallest.size; i++) {
+                    int slot = smallest.data[i];
+                    if (!live.get(slot)) continue;
+                    for (int j = 1; j < lists.length; j++) {
+                        if (Arrays.binarySearch(lists[j].data, 0, lists[j].size, slot) < 0) continue candidates;
+                    }
+                    offer(best, limit, slot, q);
+                }
+            }
+
+            Integer[] result = new Integer[best.size()];
+            for (int i = result.length - 1; i >= 0; i--) {
+                result[i] = fileIds[(int) best.poll()[1]];
+            }
+            return Arrays.asList(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void offer(PriorityQueue<long[]> best, int limit, int slot, String q) {
+        String name = names[slot];
+        int at = name.indexOf(q);
+        if (at < 0) return; // trigrams can match without the whole query matching
+
+        long rank;
+        if (name.equals(q)) rank = 0;
+        else if (at == 0 || (q.startsWith(".") && name.endsWith(q))) rank = 1;
+        else if (!Character.isLetterOrDigit(name.charAt(at - 1))) rank = 2;
+        else rank = 3;
+        long score = (rank << 32) | name.length();
+
+        if (best.size() < limit) {
+            best.add(new long[]{score, slot});
+        } else if (score < best.peek()[0]) {
+            best.poll();
+            best.add(new long[]{score, slot});
+        }
+    }
+
+    private void append(int fileId, String name) {
+        if (slots == names.length) {
+            names = Arrays.copyOf(names, slots * 2);
+            fileIds = Arrays.copyOf(fileIds, slots * 2);
+        }
+        int slot = slots++;
+        names[slot] = name;
+        fileIds[slot] = fileId;
+        live.set(slot);
+        liveCount++;
+        slotById.put(fileId, slot);
+
+        for (long gram : trigrams(name)) {
+            postings.computeIfAbsent(gram, k -> new Postings()).add(slot);
+        }
+        for (long start : wordStarts(name)) {
+            postings.computeIfAbsent(start, k -> new Postings()).add(slot);
+        }
+    }
+
+    private void kill(int slot) {
+        if (!live.get(slot)) return;
+        live.clear(slot);
+        liveCount--;
+        names[slot] = null;
+    }
+
+    private void compact() {
+        String[] oldNames = names;
+        int[] oldIds = fileIds;
+        BitSet oldLive = (BitSet) live.clone();
+
+        postings.clear();
+        slotById.clear();
+        live.clear();
+        names = new String[Math.max(1024, liveCount * 2)];
+        fileIds = new int[names.length];
+        slots = 0;
+        liveCount = 0;
+
+        for (int slot = oldLive.nextSetBit(0); slot >= 0; slot = oldLive.nextSetBit(slot + 1)) {
+            append(oldIds[slot], oldNames[slot]);
+        }
+    }
+
+    private static long[] trigrams(String s) {
+        if (s.length() < 3) return new long[0];
+        long[] grams = new long[s.length() - 2];
+        for (int i = 0; i < grams.length; i++) {
+            grams[i] = ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+        }
+        return Arrays.stream(grams).distinct().toArray();
+    }
+
+    /* the first one and two characters at the start of the name, at separators and after them */
+    private static long[] wordStarts(String s) {
+        long[] starts = new long[s.length() * 2];
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            boolean start = i == 0 || !Character.isLetterOrDigit(s.charAt(i)) || !Character.isLetterOrDigit(s.charAt(i - 1));
+            if (!start) continue;
+            starts[n++] = wordStart(s, i, 1);
+            if (i + 1 < s.length()) starts[n++] = wordStart(s, i, 2);
+        }
+        return Arrays.stream(starts, 0, n).distinct().toArray();
+    }
+
+    /* keys are tagged above the 48 bits a trigram takes */
+    private static long wordStart(String s, int at, int length) {
+        long key = (1L << 62) | ((long) length << 48) | ((long) s.charAt(at) << 16);
+        return length == 2 ? key | s.charAt(at + 1) : key;
+    }
+
+    private static class Postings {
+        int[] data = new int[4];
+        int size = 0;
+
+        void add(int slot) {
+            if (size > 0 && data[size - 1] == slot) return;
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = slot;
+        }
+    }
+}
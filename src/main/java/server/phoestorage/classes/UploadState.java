@@ -1,5 +1,6 @@
 package server.phoestorage.classes;
 
+import javax.crypto.SecretKey;
 import java.util.BitSet;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -7,9 +8,13 @@ public class UploadState {
     public final int totalChunks;
     public final BitSet received;
     public final AtomicInteger receivedCount = new AtomicInteger(0);
+    public final int[] checksums; // CRC32C of every chunk, see BlobChecksum
+    public final SecretKey key; // chunks are encrypted with it, null for a plain upload
 
-    public UploadState(int totalChunks) {
+    public UploadState(int totalChunks, SecretKey key) {
         this.totalChunks = totalChunks;
+        this.key = key;
         this.received = new BitSet(totalChunks);
+        this.checksums = new int[totalChunks];
     }
-}
\ No newline at end of file
+}
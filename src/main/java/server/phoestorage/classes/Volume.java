@@ -0,0 +1,130 @@
+package server.phoestorage.classes;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileStore;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One storage root of the pool. Keeps the streams currently reading or writing on it, which is the load
+ * placement looks at, and the bytes moved since start
+ *
+ */
+public class Volume {
+    private final String id;
+    private final Path root;
+    private final FileStore store;
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private volatile boolean draining;
+
+    public Volume(String id, Path root, FileStore store) {
+        this.id = id;
+        this.root = root;
+        this.store = store;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public Path getRoot() {
+        return root;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    public void setDraining(boolean draining) {
+        this.draining = draining;
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    public String getStoreName() {
+        return store.name();
+    }
+
+    public long getUsableSpace() {
+        try {
+            return store.getUsableSpace();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    public long getTotalSpace() {
+        try {
+            return store.getTotalSpace();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /* fraction of the file system in use, 1 if it can not be read */
+    public double getUsedFraction() {
+        long total = getTotalSpace();
+        return total <= 0 ? 1 : 1 - (double) getUsableSpace() / total;
+    }
+
+    public void startWrite() {
+        active.incrementAndGet();
+    }
+
+    public void endWrite(long bytes) {
+        active.decrementAndGet();
+        bytesWritten.add(bytes);
+    }
+
+    /**
+     * Counts a stream reading from this volume until it is closed
+     *
+     */
+    public InputStream reading(InputStream in) {
+        active.incrementAndGet();
+        return new FilterInputStream(in) {
+            private boolean closed;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) bytesRead.increment();
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) bytesRead.add(read);
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!closed) {
+                        closed = true;
+                        active.decrementAndGet();
+                    }
+                }
+            }
+        };
+    }
+}
@@ -12,6 +12,8 @@ import org.springframework.security.core.session.SessionRegistryImpl;
 import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.SecurityFilterChain;
+import org.springframework.security.web.authentication.UsernamePasswordAuthenticationFilter;
+import server.phoestorage.service.AccessTokenService;
 import server.phoestorage.service.AppUserDetailsService;
 import server.phoestorage.utils.PasswordEncoding;
 
@@ -19,14 +21,17 @@ import server.phoestorage.utils.PasswordEncoding;
 @EnableWebSecurity
 public class SecurityConfig {
     private final AppUserDetailsService userDetailsService;
+    private final AccessTokenService accessTokenService;
 
-    public SecurityConfig(AppUserDetailsService userDetailsService) {
+    public SecurityConfig(AppUserDetailsService userDetailsService, AccessTokenService accessTokenService) {
         this.userDetailsService = userDetailsService;
+        this.accessTokenService = accessTokenService;
     }
     @Bean
     public SecurityFilterChain securityFilterChain(HttpSecurity http) throws Exception {
         return http
                 .csrf(AbstractHttpConfigurer::disable)
+                .addFilterBefore(new AccessTokenFilter(accessTokenService), UsernamePasswordAuthenticationFilter.class)
                 .authorizeHttpRequests(auth -> auth
                         .requestMatchers("/api/admin/**", "/admin/**", "/pages/admin.html", "/code/admin.js", "/style/admin.css").hasRole("ADMIN")
                         .requestMatchers("/login", "/api/public/**", "/style/**",
@@ -5,20 +5,48 @@ import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import server.phoestorage.dto.DownloadEntry;
 import server.phoestorage.dto.UserEntry;
+import server.phoestorage.service.BandwidthService;
+import server.phoestorage.service.BlobStoreService;
+import server.phoestorage.service.CompressionService;
+import server.phoestorage.service.ContentIndexService;
+import server.phoestorage.service.EncryptionService;
 import server.phoestorage.service.LinkService;
+import server.phoestorage.service.ReconcileService;
+import server.phoestorage.service.ScrubService;
+import server.phoestorage.service.StorageMigrationService;
+import server.phoestorage.service.StorageStatsService;
 import server.phoestorage.service.UserService;
 
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/admin")
 public class AdminController {
     private final UserService userService;
     private final LinkService linkService;
+    private final ContentIndexService contentIndexService;
+    private final BandwidthService bandwidthService;
+    private final StorageStatsService storageStatsService;
+    private final ReconcileService reconcileService;
+    private final StorageMigrationService storageMigrationService;
+    private final BlobStoreService blobStoreService;
+    private final ScrubService scrubService;
+    private final EncryptionService encryptionService;
+    private final CompressionService compressionService;
 
-    public AdminController(UserService userService, LinkService linkService) {
+    public AdminController(UserService userService, LinkService linkService, ContentIndexService contentIndexService, BandwidthService bandwidthService, StorageStatsService storageStatsService, ReconcileService reconcileService, StorageMigrationService storageMigrationService, BlobStoreService blobStoreService, ScrubService scrubService, EncryptionService encryptionService, CompressionService compressionService) {
         this.userService = userService;
         this.linkService = linkService;
+        this.contentIndexService = contentIndexService;
+        this.bandwidthService = bandwidthService;
+        this.storageStatsService = storageStatsService;
+        this.reconcileService = reconcileService;
+        this.storageMigrationService = storageMigrationService;
+        this.blobStoreService = blobStoreService;
+        this.scrubService = scrubService;
+        this.encryptionService = encryptionService;
+        this.compressionService = compressionService;
     }
 
     @PostMapping("/user")
@@ -100,6 +128,22 @@ public class AdminController {
         };
     }
 
+    // only new uploads follow the setting, existing files stay as they were written
+    @PostMapping("/user/encryption")
+    public ResponseEntity<String> setEncryption(
+            @RequestParam() String uuid,
+            @RequestParam() boolean enabled
+    ){
+        int code = encryptionService.setEncryption(uuid, enabled);
+
+        return switch (code) {
+            case 0 -> ResponseEntity.ok(enabled ? "Encryption enabled" : "Encryption disabled");
+            case 400 -> ResponseEntity.badRequest().body("No master key is configured");
+            case 404 -> ResponseEntity.status(404).body("User not found");
+            default -> ResponseEntity.internalServerError().body("Failed to change encryption");
+        };
+    }
+
     @GetMapping("/user")
     public ResponseEntity<List<UserEntry>> getUsers(){
         return ResponseEntity.ok(userService.getAllUsers());
@@ -117,13 +161,121 @@ public class AdminController {
     }
 
     @GetMapping("/storage")
-    public ResponseEntity<long[]> getStorage(){
-        return null;
+    public ResponseEntity<Map<String, Object>> getStorage(){
+        return ResponseEntity.ok(storageStatsService.getStorage());
+    }
+
+    @GetMapping("/storage/volumes")
+    public ResponseEntity<List<Map<String, Object>>> getVolumes(){
+        return ResponseEntity.ok(storageStatsService.getVolumes());
+    }
+
+    @GetMapping("/storage/blobs")
+    public ResponseEntity<Map<String, Object>> getBlobStore(){
+        return ResponseEntity.ok(blobStoreService.getStats());
+    }
+
+    @GetMapping("/storage/compression")
+    public ResponseEntity<Map<String, Object>> getCompression(){
+        return ResponseEntity.ok(compressionService.getReport());
+    }
+
+    @PostMapping("/storage/migrate")
+    public ResponseEntity<String> startLayoutMigration(){
+        int code = storageMigrationService.start();
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("Migration started");
+            case 409 -> ResponseEntity.status(409).body("A migration is already running");
+            default -> ResponseEntity.internalServerError().body("Failed to start migration");
+        };
+    }
+
+    @PostMapping("/storage/volume/drain")
+    public ResponseEntity<String> drainVolume(
+            @RequestParam("id") String volumeId
+    ){
+        int code = storageMigrationService.drain(volumeId);
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("Drain started");
+            case 400 -> ResponseEntity.badRequest().body("The only volume can not be drained");
+            case 404 -> ResponseEntity.status(404).body("Volume not found");
+            case 409 -> ResponseEntity.status(409).body("A migration is already running");
+            default -> ResponseEntity.internalServerError().body("Failed to start drain");
+        };
+    }
+
+    @PostMapping("/storage/rebalance")
+    public ResponseEntity<String> rebalanceVolumes(){
+        int code = storageMigrationService.rebalance();
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("Rebalance started");
+            case 409 -> ResponseEntity.status(409).body("A migration is already running");
+            default -> ResponseEntity.internalServerError().body("Failed to start rebalance");
+        };
+    }
+
+    @GetMapping("/storage/migrate")
+    public ResponseEntity<Map<String, Object>> getLayoutMigration(){
+        return ResponseEntity.ok(storageMigrationService.getProgress());
+    }
+
+    @PostMapping("/reconcile")
+    public ResponseEntity<String> startReconcile(
+            @RequestParam(value = "quarantine", defaultValue = "false", required = false) boolean quarantine
+    ){
+        int code = reconcileService.start(quarantine);
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("Reconcile started");
+            case 409 -> ResponseEntity.status(409).body("Reconcile is already running");
+            default -> ResponseEntity.internalServerError().body("Failed to start reconcile");
+        };
+    }
+
+    @GetMapping("/reconcile")
+    public ResponseEntity<Map<String, Object>> getReconcile(){
+        return ResponseEntity.ok(reconcileService.getReport());
+    }
+
+    @PostMapping("/scrub")
+    public ResponseEntity<String> startScrub(
+            @RequestParam(value = "quarantine", defaultValue = "false", required = false) boolean quarantine
+    ){
+        int code = scrubService.start(quarantine);
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("Scrub started");
+            case 409 -> ResponseEntity.status(409).body("Scrub is already running");
+            default -> ResponseEntity.internalServerError().body("Failed to start scrub");
+        };
+    }
+
+    @GetMapping("/scrub")
+    public ResponseEntity<Map<String, Object>> getScrub(){
+        return ResponseEntity.ok(scrubService.getReport());
+    }
+
+    @GetMapping("/indexing")
+    public ResponseEntity<Map<String, Object>> getIndexing(){
+        return ResponseEntity.ok(contentIndexService.getBacklog());
+    }
+
+    @GetMapping("/bandwidth")
+    public ResponseEntity<Map<String, Object>> getBandwidth(){
+        return ResponseEntity.ok(bandwidthService.getStats());
     }
 
     @GetMapping("/link")
-    public ResponseEntity<List<DownloadEntry>> getLink(){
-        return ResponseEntity.ok(linkService.getAllDownloads());
+    public ResponseEntity<List<DownloadEntry>> getLink(
+            @RequestParam(value = "page", defaultValue = "0", required = false) int page,
+            @RequestParam(value = "size", defaultValue = "100", required = false) int size
+    ){
+        return ResponseEntity.ok(linkService.getAllDownloads(Math.max(0, page), Math.max(1, Math.min(size, 500))));
+    }
+
+    @GetMapping("/link/stats")
+    public ResponseEntity<Map<String, Object>> getLinkStats(
+            @RequestParam(value = "limit", defaultValue = "10", required = false) int limit
+    ){
+        return ResponseEntity.ok(linkService.getLinkOverview(Math.max(1, Math.min(limit, 100))));
     }
 
     @DeleteMapping("/link")
@@ -0,0 +1,33 @@
+package server.phoestorage.controller.api;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import server.phoestorage.dto.BatchOperation;
+import server.phoestorage.dto.BatchResult;
+import server.phoestorage.service.BatchService;
+
+import java.util.List;
+
+@RestController
+@RequestMapping("/api/batch")
+public class BatchController {
+    private final BatchService batchService;
+
+    @Autowired
+    public BatchController(BatchService batchService) {
+        this.batchService = batchService;
+    }
+
+    @PostMapping()
+    public ResponseEntity<?> runBatch(
+            @RequestBody List<BatchOperation> operations
+    ){
+        if(operations.isEmpty()) {return ResponseEntity.ok(List.of());}
+
+        List<BatchResult> results = batchService.runBatch(operations);
+        if(results == null) {return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body("Too many operations in one batch");}
+        return ResponseEntity.ok(results);
+    }
+}
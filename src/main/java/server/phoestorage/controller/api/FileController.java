@@ -6,11 +6,15 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import server.phoestorage.blob.S3BlobStore;
+import server.phoestorage.blob.SegmentCipher;
 import server.phoestorage.dto.FileEntry;
 import server.phoestorage.service.AppUserDetailsService;
+import server.phoestorage.service.BandwidthService;
 import server.phoestorage.service.FileService;
 import server.phoestorage.service.HandlerService;
 import server.phoestorage.service.LinkService;
+import server.phoestorage.service.SignedLinkService;
 
 import java.util.List;
 import java.util.UUID;
@@ -23,13 +27,17 @@ public class FileController {
     private HandlerService handlerService;
     private LinkService linkService;
     private AppUserDetailsService appUserDetailsService;
+    private final SignedLinkService signedLinkService;
+    private final BandwidthService bandwidthService;
 
     @Autowired
-    public FileController(FileService fileService, HandlerService handlerService, LinkService linkService, AppUserDetailsService appUserDetailsService) {
+    public FileController(FileService fileService, HandlerService handlerService, LinkService linkService, AppUserDetailsService appUserDetailsService, SignedLinkService signedLinkService, BandwidthService bandwidthService) {
         this.fileService = fileService;
         this.handlerService = handlerService;
         this.linkService = linkService;
         this.appUserDetailsService = appUserDetailsService;
+        this.signedLinkService = signedLinkService;
+        this.bandwidthService = bandwidthService;
     }
 
     @PostMapping("/upload")
@@ -60,6 +68,12 @@ public class FileController {
         if(chunkCode == -3) {
             return ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body("You dont have enough space for this file");
         }
+        if(chunkCode == -4) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Every chunk but the last needs at least " + S3BlobStore.MIN_PART + " Bytes when uploading to S3");
+        }
+        if(chunkCode == 400){
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST).body("Encrypted uploads need a chunk size that is a multiple of " + SegmentCipher.SEGMENT + " Bytes");
+        }
         if(chunkCode == 409){
             return ResponseEntity.status(HttpStatus.CONFLICT).body("Something happened");
         }
@@ -79,7 +93,17 @@ public class FileController {
             @RequestParam("folderId") String FolderId,
             @RequestHeader(value = "Range", required = false) String rangeHeader
     ){
-        return fileService.downloadFile(FolderId, fileId, rangeHeader, appUserDetailsService.getUserEntity().getUuid());
+        return fileService.downloadFile(FolderId, fileId, rangeHeader, appUserDetailsService.getUserEntity().getUuid(), bandwidthService.forOwner());
+    }
+
+    @PostMapping("/download/signed")
+    public String createSignedDownload(
+            @RequestParam("folderId") String folderId,
+            @RequestParam("fileId") String fileId,
+            @RequestParam(value="limit", defaultValue = "-1", required = false) int limit,
+            @RequestParam(value = "expire", defaultValue = "-1", required = false) String expire
+    ){
+        return signedLinkService.createSignedLink(folderId, fileId, limit, expire, false);
     }
 
     @PostMapping("/download")
@@ -103,9 +127,10 @@ public class FileController {
 
     @GetMapping("/search")
     public ResponseEntity<List<FileEntry>> searchFile(
-            @RequestParam("query") String query
+            @RequestParam("query") String query,
+            @RequestParam(value = "mode", defaultValue = "name", required = false) String mode
     ){
-        return ResponseEntity.ok(fileService.searchFile(query));
+        return ResponseEntity.ok(fileService.searchFile(query, mode));
     }
 
     @PostMapping("/rename")
@@ -149,4 +174,21 @@ public class FileController {
             default -> ResponseEntity.status(500).body("Something happened");
         };
     }
-}
\ No newline at end of file
+
+    @PostMapping("/copy")
+    public ResponseEntity<?> copyFile(
+            @RequestParam("folderId") String folderId,
+            @RequestParam("fileId") String fileId,
+            @RequestParam("newFolderId") String newFolderId
+    ){
+        int code = fileService.copyFile(fileId, folderId, newFolderId);
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("Successfully copied file");
+            case -3 -> ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body("You dont have enough space for this file");
+            case 2 -> ResponseEntity.status(404).body("Could not find the folder");
+            case 404 -> ResponseEntity.status(404).body("Could not find the file");
+            case 409 -> ResponseEntity.status(409).body("Too many files named that in the new location");
+            default -> ResponseEntity.status(500).body("Something happened");
+        };
+    }
+}
@@ -18,16 +18,22 @@ public class FolderController {
     private final HandlerService handlerService;
     private final LinkService linkService;
     private final AppUserDetailsService appUserDetailsService;
+    private final SignedLinkService signedLinkService;
+    private final BandwidthService bandwidthService;
 
     @Autowired
     public FolderController(FolderService folderService,
                             HandlerService handlerService,
                             LinkService linkService,
-                            AppUserDetailsService appUserDetailsService) {
+                            AppUserDetailsService appUserDetailsService,
+                            SignedLinkService signedLinkService,
+                            BandwidthService bandwidthService) {
         this.folderService = folderService;
         this.handlerService = handlerService;
         this.linkService = linkService;
         this.appUserDetailsService = appUserDetailsService;
+        this.signedLinkService = signedLinkService;
+        this.bandwidthService = bandwidthService;
     }
 
     @GetMapping("/browse")
@@ -41,7 +47,7 @@ public class FolderController {
             @RequestParam("folderUuid") String folderUuid,
             HttpServletResponse response
     ){
-        folderService.downloadZipFile(folderId, folderUuid, response, appUserDetailsService.getUserEntity().getUuid());
+        folderService.downloadZipFile(folderId, folderUuid, response, appUserDetailsService.getUserEntity().getUuid(), bandwidthService.forOwner());
     }
     @PostMapping("/download")
     public String createDownload(
@@ -53,6 +59,16 @@ public class FolderController {
         return linkService.createDownloadLink(folderId, folderUuid, downloadLimit, expireDate, true);
     }
 
+    @PostMapping("/download/signed")
+    public String createSignedDownload(
+            @RequestParam("folderId") String folderId,
+            @RequestParam("folderUuid") String folderUuid,
+            @RequestParam(value="limit", defaultValue = "-1", required = false) int downloadLimit,
+            @RequestParam(value = "expire", defaultValue = "-1", required = false) String expireDate
+    ){
+        return signedLinkService.createSignedLink(folderId, folderUuid, downloadLimit, expireDate, true);
+    }
+
     @PostMapping("/delete")
     public ResponseEntity<String> deleteFolder(
             @RequestParam("folderId") String folderId,
@@ -128,4 +144,21 @@ public class FolderController {
             default -> ResponseEntity.status(HttpStatus.CONFLICT).body("Something happened");
         };
     }
+
+    @PostMapping("/copy")
+    public ResponseEntity<String> copyFolder(
+            @RequestParam("folderId") String folderId,
+            @RequestParam("folderUuid") String folderUuid,
+            @RequestParam("newFolderId") String newFolderId
+    ){
+        int code = folderService.copyFolder(folderId, folderUuid, newFolderId);
+        return switch (code) {
+            case 0 -> ResponseEntity.status(HttpStatus.OK).body("Successfully copied folder");
+            case -3 -> ResponseEntity.status(HttpStatus.INSUFFICIENT_STORAGE).body("You dont have enough space for this folder");
+            case 2, 404 -> ResponseEntity.status(HttpStatus.NOT_FOUND).body("Something was not found");
+            case 400 -> ResponseEntity.status(HttpStatus.BAD_REQUEST).body("A folder cannot be copied into itself");
+            case 409 -> ResponseEntity.status(HttpStatus.CONFLICT).body("Too many folders named that in the new location");
+            default -> ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Something happened");
+        };
+    }
 }
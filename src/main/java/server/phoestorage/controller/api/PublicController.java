@@ -1,63 +1,131 @@
 package server.phoestorage.controller.api;
 
+import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import server.phoestorage.datasource.download.DownloadEntity;
-import server.phoestorage.datasource.download.DownloadRepository;
+import server.phoestorage.datasource.file.FileEntity;
 import server.phoestorage.service.*;
 
+
 @RestController
 @RequestMapping("/api/public")
 public class PublicController {
     private final FolderService folderService;
-    private final DownloadRepository downloadRepository;
     private FileService fileService;
     private HandlerService handlerService;
     private LinkService linkService;
+    private final SignedLinkService signedLinkService;
+    private final BandwidthService bandwidthService;
     @Autowired
     public PublicController(FileService fileService,
                             HandlerService handlerService,
                             FolderService folderService,
-                            LinkService linkService, DownloadRepository downloadRepository) {
+                            LinkService linkService,
+                            SignedLinkService signedLinkService,
+                            BandwidthService bandwidthService) {
         this.fileService = fileService;
         this.handlerService = handlerService;
         this.folderService = folderService;
         this.linkService = linkService;
-        this.downloadRepository = downloadRepository;
+        this.signedLinkService = signedLinkService;
+        this.bandwidthService = bandwidthService;
     }
     @GetMapping("/download/file")
     public ResponseEntity<?> downloadFile(
             @RequestParam("downloadId") String downloadId,
-            @RequestHeader(value = "Range", required = false) String rangeHeader
+            @RequestHeader(value = "Range", required = false) String rangeHeader,
+            HttpServletRequest request
     ){
-        DownloadEntity downloadEntity = linkService.isLinkValid(downloadId);
+        DownloadEntity downloadEntity = linkService.claimDownload(downloadId);
         if(downloadEntity == null) {
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());
         }
 
-        downloadEntity.setDownloads(downloadEntity.getDownloads() + 1);
-        downloadRepository.save(downloadEntity);
-        return fileService.downloadFile(downloadEntity.getFolderUuid(), downloadEntity.getFileUuid(), rangeHeader, downloadEntity.getOwnerUuid());
+        return fileService.downloadFile(downloadEntity.getFolderUuid(), downloadEntity.getFileUuid(), rangeHeader, downloadEntity.getOwnerUuid(),
+                bandwidthService.forLink(downloadId, downloadEntity.getOwnerUuid(), request.getRemoteAddr()));
     }
 
     @GetMapping("/download/folder")
     public void downloadFolder(
             @RequestParam("downloadId") String downloadId,
+            HttpServletRequest request,
             HttpServletResponse response
     ){
-        DownloadEntity downloadEntity = linkService.isLinkValid(downloadId);
+        DownloadEntity downloadEntity = linkService.claimDownload(downloadId);
         if(downloadEntity == null) {
             response.setStatus(HttpStatus.NOT_FOUND.value());
             System.out.println("downloadEntity was not found for zip download");
             return;
         }
 
-        downloadEntity.setDownloads(downloadEntity.getDownloads() + 1);
-        downloadRepository.save(downloadEntity);
-        folderService.downloadZipFile(downloadEntity.getFolderUuid(), downloadEntity.getFileUuid(), response, downloadEntity.getOwnerUuid());
+        folderService.downloadZipFile(downloadEntity.getFolderUuid(), downloadEntity.getFileUuid(), response, downloadEntity.getOwnerUuid(),
+                bandwidthService.forLink(downloadId, downloadEntity.getOwnerUuid(), request.getRemoteAddr()));
+    }
+
+    @GetMapping("/download/browse")
+    public ResponseEntity<?> browseShare(
+            @RequestParam("downloadId") String downloadId,
+            @RequestParam(value = "folderId", required = false) String folderId
+    ){
+        return linkService.browseShare(downloadId, folderId);
+    }
+
+    // one file out of a folder share, counts as a download of the link like a single file link does
+    @GetMapping("/download/share/file")
+    public ResponseEntity<?> downloadSharedFile(
+            @RequestParam("downloadId") String downloadId,
+            @RequestParam("fileId") String fileId,
+            @RequestHeader(value = "Range", required = false) String rangeHeader,
+            HttpServletRequest request
+    ){
+        LinkService.SharedFile sharedFile = linkService.findSharedFile(downloadId, fileId);
+        DownloadEntity downloadEntity = sharedFile == null ? null : linkService.claimDownload(downloadId);
+        if(downloadEntity == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());
+        }
+
+        return fileService.streamFile(sharedFile.file, sharedFile.name, rangeHeader,
+                bandwidthService.forLink(downloadId, downloadEntity.getOwnerUuid(), request.getRemoteAddr()));
+    }
+
+    // Signed links are checked from the token alone, the file row comes from memory after the first download
+    @GetMapping("/signed/file")
+    public ResponseEntity<?> downloadSignedFile(
+            @RequestParam("token") String token,
+            @RequestHeader(value = "Range", required = false) String rangeHeader,
+            HttpServletRequest request
+    ){
+        SignedLinkService.SignedLink link = signedLinkService.verify(token);
+        if(link == null || link.isFolder) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());
+        }
+        FileEntity file = signedLinkService.fileOf(link);
+        if(file == null || !signedLinkService.claimDownload(link)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());
+        }
+
+        return fileService.streamFile(file, link.name, rangeHeader,
+                bandwidthService.forLink(link.tokenId, link.owner, request.getRemoteAddr()));
+    }
+
+    @GetMapping("/signed/folder")
+    public void downloadSignedFolder(
+            @RequestParam("token") String token,
+            HttpServletRequest request,
+            HttpServletResponse response
+    ){
+        SignedLinkService.SignedLink link = signedLinkService.verify(token);
+        if(link == null || !link.isFolder || !signedLinkService.claimDownload(link)) {
+            response.setStatus(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+
+        folderService.downloadZipFile(link.parentId, link.itemId, response, link.owner,
+                bandwidthService.forLink(link.tokenId, link.owner, request.getRemoteAddr()));
     }
 
     @GetMapping("/download/info")
@@ -0,0 +1,81 @@
+package server.phoestorage.controller.api;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import server.phoestorage.dto.FileQuery;
+import server.phoestorage.service.AppUserDetailsService;
+import server.phoestorage.service.SearchService;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/search")
+public class SearchController {
+    private static final int MAX_LIMIT = 500;
+
+    private final SearchService searchService;
+    private final AppUserDetailsService appUserDetailsService;
+
+    @Autowired
+    public SearchController(SearchService searchService, AppUserDetailsService appUserDetailsService) {
+        this.searchService = searchService;
+        this.appUserDetailsService = appUserDetailsService;
+    }
+
+    @GetMapping("/typeahead")
+    public ResponseEntity<StreamingResponseBody> typeahead(
+            @RequestParam("query") String query,
+            @RequestParam(value = "limit", defaultValue = "20", required = false) int limit
+    ){
+        String uuid = appUserDetailsService.getUserEntity().getUuid();
+        StreamingResponseBody body = searchService.typeahead(uuid, query, Math.max(1, Math.min(limit, MAX_LIMIT)));
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    @GetMapping("/files")
+    public ResponseEntity<Map<String, Object>> queryFiles(
+            @RequestParam(value = "name", required = false) String name,
+            @RequestParam(value = "extension", required = false) List<String> extensions,
+            @RequestParam(value = "minSize", required = false) Long minSize,
+            @RequestParam(value = "maxSize", required = false) Long maxSize,
+            @RequestParam(value = "createdAfter", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdAfter,
+            @RequestParam(value = "createdBefore", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime createdBefore,
+            @RequestParam(value = "modifiedAfter", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime modifiedAfter,
+            @RequestParam(value = "modifiedBefore", required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime modifiedBefore,
+            @RequestParam(value = "starred", required = false) Boolean starred,
+            @RequestParam(value = "folderId", required = false) String folderId,
+            @RequestParam(value = "sort", defaultValue = "modified", required = false) String sort,
+            @RequestParam(value = "descending", defaultValue = "true", required = false) boolean descending,
+            @RequestParam(value = "limit", defaultValue = "100", required = false) int limit,
+            @RequestParam(value = "cursor", required = false) String cursor,
+            @RequestParam(value = "facets", defaultValue = "false", required = false) boolean facets
+    ){
+        FileQuery query = new FileQuery();
+        query.setName(name);
+        query.setExtensions(extensions);
+        query.setMinSize(minSize);
+        query.setMaxSize(maxSize);
+        query.setCreatedAfter(createdAfter);
+        query.setCreatedBefore(createdBefore);
+        query.setModifiedAfter(modifiedAfter);
+        query.setModifiedBefore(modifiedBefore);
+        query.setStarred(starred);
+        query.setFolderId(folderId);
+        query.setSort(sort);
+        query.setDescending(descending);
+        query.setLimit(limit);
+        query.setCursor(cursor);
+        query.setFacets(facets);
+
+        return searchService.queryFiles(appUserDetailsService.getUserEntity().getUuid(), query);
+    }
+}
@@ -0,0 +1,58 @@
+package server.phoestorage.controller.api;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import server.phoestorage.service.TrashService;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/trash")
+public class TrashController {
+    private final TrashService trashService;
+
+    @Autowired
+    public TrashController(TrashService trashService) {
+        this.trashService = trashService;
+    }
+
+    @GetMapping()
+    public ResponseEntity<Map<String, Object>> getTrash() {
+        return trashService.getTrash();
+    }
+
+    @PostMapping("/restore")
+    public ResponseEntity<String> restore(
+            @RequestParam("itemId") String itemId,
+            @RequestParam(value = "isFolder", defaultValue = "false", required = false) boolean isFolder
+    ){
+        int code = trashService.restore(itemId, isFolder);
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("Successfully restored item");
+            case 404 -> ResponseEntity.status(HttpStatus.NOT_FOUND).body("Could not find the item in the trash");
+            case 409 -> ResponseEntity.status(HttpStatus.CONFLICT).body("An item named that already exist in this location");
+            default -> ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Something happened");
+        };
+    }
+
+    @PostMapping("/delete")
+    public ResponseEntity<String> deleteForever(
+            @RequestParam("itemId") String itemId
+    ){
+        int code = trashService.deleteForever(itemId);
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("");
+            case 404 -> ResponseEntity.status(HttpStatus.NOT_FOUND).body("Could not find the item in the trash");
+            default -> ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Something happened");
+        };
+    }
+
+    @DeleteMapping()
+    public ResponseEntity<String> emptyTrash() {
+        int code = trashService.emptyTrash();
+        if(code != 0) {return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body("Something happened");}
+        return ResponseEntity.ok("");
+    }
+}
@@ -5,11 +5,13 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import server.phoestorage.datasource.users.UserRepository;
+import server.phoestorage.dto.AccessTokenEntry;
 import server.phoestorage.dto.DownloadEntry;
 import server.phoestorage.dto.SettingsEntry;
 import server.phoestorage.service.*;
 
 import java.util.List;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/users")
@@ -18,13 +20,19 @@ public class UserController {
     private final UserService userService;
     private UserRepository userRepository;
     private AppUserDetailsService appUserDetailsService;
+    private final SignedLinkService signedLinkService;
+    private final AccessTokenService accessTokenService;
+    private final CompressionService compressionService;
 
     @Autowired
-    public UserController(UserRepository userRepository, AppUserDetailsService appUserDetailsService, LinkService linkService, UserService userService) {
+    public UserController(UserRepository userRepository, AppUserDetailsService appUserDetailsService, LinkService linkService, UserService userService, SignedLinkService signedLinkService, AccessTokenService accessTokenService, CompressionService compressionService) {
         this.userRepository = userRepository;
         this.appUserDetailsService = appUserDetailsService;
         this.linkService = linkService;
         this.userService = userService;
+        this.signedLinkService = signedLinkService;
+        this.accessTokenService = accessTokenService;
+        this.compressionService = compressionService;
     }
 
     @GetMapping("/whois")
@@ -54,6 +62,15 @@ public class UserController {
         return ResponseEntity.ok(userRepository.findByUuid(uuid).getDataUsed() + "-" + userRepository.findByUuid(uuid).getDataLimit());
     }
 
+    @GetMapping("/space/compression")
+    public ResponseEntity<Map<String, Object>> getCompression() {
+        String uuid = appUserDetailsService.getUserEntity().getUuid();
+        if(uuid == null || uuid.isEmpty()) {
+            return ResponseEntity.notFound().build();
+        }
+        return ResponseEntity.ok(compressionService.getSavings(uuid));
+    }
+
     @GetMapping("/download")
     public ResponseEntity<List<DownloadEntry>> getDownloads() {
         String uuid = appUserDetailsService.getUserEntity().getUuid();
@@ -79,6 +96,42 @@ public class UserController {
         };
     }
 
+    @DeleteMapping("/download/signed")
+    public ResponseEntity<String> revokeSignedDownload(
+            @RequestParam() String token
+    ) {
+        int code = signedLinkService.revoke(token);
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("");
+            case 404 -> ResponseEntity.notFound().build();
+            default -> ResponseEntity.internalServerError().build();
+        };
+    }
+
+    @GetMapping("/token")
+    public ResponseEntity<List<AccessTokenEntry>> getTokens() {
+        return ResponseEntity.ok(accessTokenService.getTokens());
+    }
+
+    @PostMapping("/token")
+    public String createToken(
+            @RequestParam() String name
+    ) {
+        return accessTokenService.createToken(name);
+    }
+
+    @DeleteMapping("/token")
+    public ResponseEntity<String> revokeToken(
+            @RequestParam() String uuid
+    ) {
+        int code = accessTokenService.revokeToken(uuid);
+        return switch (code) {
+            case 0 -> ResponseEntity.ok("");
+            case 404 -> ResponseEntity.notFound().build();
+            default -> ResponseEntity.internalServerError().build();
+        };
+    }
+
     @GetMapping("/setting")
     public ResponseEntity<SettingsEntry> getSettings() {
         String uuid = appUserDetailsService.getUserEntity().getUuid();
@@ -39,7 +39,7 @@ public class PageController {
         }
     }
 
-    @Cacheable("resources")
+    // not cached, a link can run out or expire, LinkService caches the lookup itself
     @GetMapping("/download/{uuid}")
     public String downloadPage(@PathVariable String uuid) {
         String path;
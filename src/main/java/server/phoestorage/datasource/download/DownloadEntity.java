@@ -2,7 +2,16 @@ package server.phoestorage.datasource.download;
 
 import jakarta.persistence.*;
 
+import java.time.LocalDateTime;
+
 @Entity(name = "download")
+@Table(
+        name = "download",
+        indexes = {
+                @Index(name = "ix_download_expire", columnList = "dateExpire"),
+                @Index(name = "ix_download_owner",  columnList = "ownerUuid")
+        }
+)
 public class DownloadEntity {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -22,8 +31,8 @@ public class DownloadEntity {
     String fileExtension;
     @Column(unique = false, nullable = false, name = "dateCreated")
     String dateCreated;
-    @Column(unique = false, nullable = false, name = "dateExpire")
-    String dateExpire;
+    @Column(unique = false, nullable = true, name = "dateExpire")
+    LocalDateTime dateExpire; // null for never
     @Column(unique = false, nullable = false, name = "downloadLimit")
     int downloadLimit;
     @Column(unique = false, nullable = false, name = "downloads")
@@ -77,11 +86,11 @@ public class DownloadEntity {
         this.dateCreated = dateCreated;
     }
 
-    public String getDateExpire() {
+    public LocalDateTime getDateExpire() {
         return dateExpire;
     }
 
-    public void setDateExpire(String dateExpire) {
+    public void setDateExpire(LocalDateTime dateExpire) {
         this.dateExpire = dateExpire;
     }
 
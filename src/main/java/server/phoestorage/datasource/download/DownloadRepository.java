@@ -1,8 +1,15 @@
 package server.phoestorage.datasource.download;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 import server.phoestorage.datasource.file.FileEntity;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
@@ -10,5 +17,26 @@ public interface DownloadRepository extends JpaRepository<DownloadEntity, Intege
     DownloadEntity findByUuid(String uuid);
 
     List<DownloadEntity> findAllByOwnerUuid(String ownerUuid);
+    List<DownloadEntity> findAllByOrderByIdDesc(Pageable pageable);
+    List<DownloadEntity> findAllByUuidIn(Collection<String> uuids);
+
+    @Query("SELECT d.id FROM download d WHERE d.dateExpire < :now")
+    List<Integer> findExpiredIds(@Param("now") LocalDateTime now, Pageable pageable);
     Optional<DownloadEntity> findByUuidAndOwnerUuid(String uuid, String ownerUuid);
+
+    // Takes one download of a limited link, 0 rows when the limit is reached. The row lock makes it exact
+    @Modifying
+    @Transactional
+    @Query("update download d set d.downloads = d.downloads + 1 where d.uuid = :uuid and d.downloads < d.downloadLimit")
+    int claimDownload(@Param("uuid") String uuid);
+
+    @Modifying
+    @Transactional
+    @Query("update download d set d.downloads = d.downloads + :count where d.uuid = :uuid")
+    int addDownloads(@Param("uuid") String uuid, @Param("count") long count);
+
+    @Modifying
+    @Transactional
+    @Query("delete from download d where d.uuid = :uuid and d.downloadLimit >= 0 and d.downloads >= d.downloadLimit")
+    int deleteExhausted(@Param("uuid") String uuid);
 }
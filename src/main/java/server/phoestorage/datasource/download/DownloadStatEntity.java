@@ -0,0 +1,73 @@
+package server.phoestorage.datasource.download;
+
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Downloads of one share link in one hour, written by the minute rollup of DownloadStatsService
+ *
+ */
+@Entity(name = "download_stat")
+@Table(
+        name = "download_stat",
+        uniqueConstraints = {
+                @UniqueConstraint(name = "ux_download_stat_link_hour", columnNames = {"linkUuid", "hourStart"})
+        },
+        indexes = {
+                @Index(name = "ix_download_stat_owner_hour", columnList = "ownerUuid, hourStart"),
+                @Index(name = "ix_download_stat_hour", columnList = "hourStart")
+        }
+)
+public class DownloadStatEntity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    long id;
+
+    @Column(unique = false, nullable = false, name = "linkUuid")
+    String linkUuid;
+    @Column(unique = false, nullable = false, name = "ownerUuid")
+    String ownerUuid;
+    @Column(unique = false, nullable = false, name = "hourStart")
+    LocalDateTime hourStart;
+    @Column(unique = false, nullable = false, name = "hits")
+    long hits;
+    @Column(unique = false, nullable = false, name = "complete")
+    long complete;
+    @Column(unique = false, nullable = false, name = "partial")
+    long partial;
+    @Column(unique = false, nullable = false, name = "bytes")
+    long bytes;
+
+    public long getId() {
+        return id;
+    }
+
+    public String getLinkUuid() {
+        return linkUuid;
+    }
+
+    public String getOwnerUuid() {
+        return ownerUuid;
+    }
+
+    public LocalDateTime getHourStart() {
+        return hourStart;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getComplete() {
+        return complete;
+    }
+
+    public long getPartial() {
+        return partial;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
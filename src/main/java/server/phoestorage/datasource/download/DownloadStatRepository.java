@@ -0,0 +1,47 @@
+package server.phoestorage.datasource.download;
+
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+public interface DownloadStatRepository extends JpaRepository<DownloadStatEntity, Long> {
+    List<DownloadStatEntity> findByOwnerUuidAndHourStartGreaterThanEqual(String ownerUuid, LocalDateTime since);
+    List<DownloadStatEntity> findByLinkUuidInAndHourStartGreaterThanEqual(Collection<String> linkUuids, LocalDateTime since);
+
+    // Adds a rollup to the hour row of a link, creating it on the first rollup of that hour
+    @Modifying
+    @Transactional
+    @Query(value = """
+    INSERT INTO download_stat (link_uuid, owner_uuid, hour_start, hits, complete, partial, bytes)
+    VALUES (:link, :owner, :hour, :hits, :complete, :partial, :bytes)
+    ON DUPLICATE KEY UPDATE
+        hits = hits + VALUES(hits),
+        complete = complete + VALUES(complete),
+        partial = partial + VALUES(partial),
+        bytes = bytes + VALUES(bytes)
+    """, nativeQuery = true)
+    int addHour(@Param("link") String link, @Param("owner") String owner, @Param("hour") LocalDateTime hour,
+                @Param("hits") long hits, @Param("complete") long complete,
+                @Param("partial") long partial, @Param("bytes") long bytes);
+
+    @Query("""
+    SELECT s.linkUuid, s.ownerUuid, SUM(s.hits), SUM(s.complete), SUM(s.partial), SUM(s.bytes)
+    FROM download_stat s
+    WHERE s.hourStart >= :since
+    GROUP BY s.linkUuid, s.ownerUuid
+    ORDER BY SUM(s.hits) DESC
+    """)
+    List<Object[]> findTop(@Param("since") LocalDateTime since, Pageable pageable);
+
+    @Modifying
+    @Transactional
+    @Query("delete from download_stat s where s.hourStart < :before")
+    int deleteOlderThan(@Param("before") LocalDateTime before);
+}
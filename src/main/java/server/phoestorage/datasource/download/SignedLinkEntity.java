@@ -0,0 +1,78 @@
+package server.phoestorage.datasource.download;
+
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * State of a signed share link. Signed links live in their token, a row only exists once
+ * the link has been revoked or has a download limit and was used
+ *
+ */
+@Entity(name = "signed_link")
+@Table(
+        name = "signed_link",
+        indexes = {
+                @Index(name = "ix_signed_link_expire", columnList = "expiresAt")
+        }
+)
+public class SignedLinkEntity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    int id;
+
+    @Column(unique = true, nullable = false, name = "tokenId")
+    String tokenId;
+    @Column(unique = false, nullable = false, name = "ownerUuid")
+    String ownerUuid;
+    @Column(unique = false, nullable = false, name = "downloads")
+    int downloads;
+    @Column(unique = false, nullable = false, name = "revoked")
+    boolean revoked;
+    @Column(unique = false, nullable = true, name = "expiresAt")
+    LocalDateTime expiresAt; // null for never, the row is no use after that
+
+    public int getId() {
+        return id;
+    }
+
+    public String getTokenId() {
+        return tokenId;
+    }
+
+    public void setTokenId(String tokenId) {
+        this.tokenId = tokenId;
+    }
+
+    public String getOwnerUuid() {
+        return ownerUuid;
+    }
+
+    public void setOwnerUuid(String ownerUuid) {
+        this.ownerUuid = ownerUuid;
+    }
+
+    public int getDownloads() {
+        return downloads;
+    }
+
+    public void setDownloads(int downloads) {
+        this.downloads = downloads;
+    }
+
+    public boolean getRevoked() {
+        return revoked;
+    }
+
+    public void setRevoked(boolean revoked) {
+        this.revoked = revoked;
+    }
+
+    public LocalDateTime getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(LocalDateTime expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
@@ -0,0 +1,24 @@
+package server.phoestorage.datasource.download;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+public interface SignedLinkRepository extends JpaRepository<SignedLinkEntity, Integer> {
+    Optional<SignedLinkEntity> findByTokenId(String tokenId);
+    boolean existsByTokenIdAndRevokedTrue(String tokenId);
+
+    @Query("SELECT s.tokenId FROM signed_link s WHERE s.revoked = true")
+    List<String> findRevokedTokenIds();
+
+    @Modifying
+    @Transactional
+    @Query("delete from signed_link s where s.expiresAt < :now")
+    int deleteExpired(@Param("now") LocalDateTime now);
+}
@@ -2,11 +2,30 @@ package server.phoestorage.datasource.file;
 
 import jakarta.persistence.*;
 
+import java.time.LocalDateTime;
+
 /**
  * File entity is data of a file
  *
  */
 @Entity(name = "file")
+@Table(
+        name = "file",
+        indexes = {
+                @Index(name = "ix_files_owner_folder",     columnList = "owner, folderId"),
+                @Index(name = "ix_files_owner_trash_root", columnList = "owner, trashRoot"),
+                @Index(name = "ix_files_trashed_at",       columnList = "trashed, trashedAt"),
+                // structured search, each one serves a filter and the keyset order on that column
+                @Index(name = "ix_files_owner_size",       columnList = "owner, trashed, size"),
+                @Index(name = "ix_files_owner_created",    columnList = "owner, trashed, created"),
+                @Index(name = "ix_files_owner_modified",   columnList = "owner, trashed, modified"),
+                @Index(name = "ix_files_owner_extension",  columnList = "owner, trashed, extension"),
+                @Index(name = "ix_files_content_indexed",  columnList = "contentIndexed, id"),
+                @Index(name = "ix_files_owner_uuid",       columnList = "owner, uuid"),
+                @Index(name = "ix_files_volume",           columnList = "volume, id"),
+                @Index(name = "ix_files_compress_checked", columnList = "compressChecked, id")
+        }
+)
 public class FileEntity {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -30,14 +49,17 @@ public class FileEntity {
     @Column(unique = true, nullable = false, name = "internalPath")
     String internalPath;
 
+    @Column(unique = false, nullable = true, name = "volume", length = 16)
+    String volume; // id of the storage pool volume holding the blob
+
     @Column(unique = false, nullable = false, name = "created")
-    String created;
+    LocalDateTime created;
 
     @Column(unique = false, nullable = true, name = "modified")
-    String modified;
+    LocalDateTime modified;
 
     @Column(unique = false, nullable = true, name = "accessed")
-    String accessed;
+    LocalDateTime accessed;
 
     @Column(unique = false, nullable = false, name = "size")
     long size; // Bytes
@@ -45,6 +67,36 @@ public class FileEntity {
     @Column(unique = false, nullable = false, name = "starred")
     boolean starred;
 
+    @Column(unique = false, nullable = false, name = "trashed")
+    boolean trashed;
+
+    @Column(unique = false, nullable = true, name = "trashedAt")
+    LocalDateTime trashedAt;
+
+    @Column(unique = false, nullable = true, name = "trashRoot")
+    String trashRoot; // uuid of the item the user put in the trash
+
+    @Column(unique = false, nullable = false, name = "contentIndexed")
+    boolean contentIndexed; // text has been added to the owner's content index
+
+    @Column(unique = false, nullable = true, name = "checksum", length = 16)
+    String checksum; // BlobChecksum of the blob, null until the upload or the scrubber computed it
+
+    @Column(unique = false, nullable = true, name = "verifiedAt")
+    LocalDateTime verifiedAt; // last time the scrubber read the blob and found the checksum
+
+    @Column(unique = false, nullable = false, name = "encrypted")
+    boolean encrypted; // blob is in SegmentCipher format under the owner's key, size is the plaintext size
+
+    @Column(unique = false, nullable = true, name = "cipherId")
+    String cipherId; // id the segments of an encrypted blob are bound to, the upload id that wrote it, copies keep it
+
+    @Column(unique = false, nullable = false, name = "compressChecked")
+    boolean compressChecked; // CompressionService has looked at the file
+
+    @Column(unique = false, nullable = true, name = "storedSize")
+    Long storedSize; // bytes of the blob when it is in CompressedFrames format, null for a blob stored as is
+
     public int getId() {
         return id;
     }
@@ -101,30 +153,38 @@ public class FileEntity {
         this.internalPath = internalPath;
     }
 
-    public String getCreated() {
+    public LocalDateTime getCreated() {
         return created;
     }
 
-    public void setCreated(String created) {
+    public void setCreated(LocalDateTime created) {
         this.created = created;
     }
 
-    public String getModified() {
+    public LocalDateTime getModified() {
         return modified;
     }
 
-    public void setModified(String modified) {
+    public void setModified(LocalDateTime modified) {
         this.modified = modified;
     }
 
-    public String getAccessed() {
+    public LocalDateTime getAccessed() {
         return accessed;
     }
 
-    public void setAccessed(String accessed) {
+    public void setAccessed(LocalDateTime accessed) {
         this.accessed = accessed;
     }
 
+    public String getVolume() {
+        return volume;
+    }
+
+    public void setVolume(String volume) {
+        this.volume = volume;
+    }
+
     public long getSize() {
         return size;
     }
@@ -140,4 +200,89 @@ public class FileEntity {
     public void setStarred(boolean starred) {
         this.starred = starred;
     }
+
+    public boolean getTrashed() {
+        return trashed;
+    }
+
+    public void setTrashed(boolean trashed) {
+        this.trashed = trashed;
+    }
+
+    public LocalDateTime getTrashedAt() {
+        return trashedAt;
+    }
+
+    public void setTrashedAt(LocalDateTime trashedAt) {
+        this.trashedAt = trashedAt;
+    }
+
+    public String getTrashRoot() {
+        return trashRoot;
+    }
+
+    public void setTrashRoot(String trashRoot) {
+        this.trashRoot = trashRoot;
+    }
+
+    public boolean getContentIndexed() {
+        return contentIndexed;
+    }
+
+    public void setContentIndexed(boolean contentIndexed) {
+        this.contentIndexed = contentIndexed;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public void setChecksum(String checksum) {
+        this.checksum = checksum;
+    }
+
+    public LocalDateTime getVerifiedAt() {
+        return verifiedAt;
+    }
+
+    public void setVerifiedAt(LocalDateTime verifiedAt) {
+        this.verifiedAt = verifiedAt;
+    }
+
+    public boolean getEncrypted() {
+        return encrypted;
+    }
+
+    public void setEncrypted(boolean encrypted) {
+        this.encrypted = encrypted;
+    }
+
+    public String getCipherId() {
+        return cipherId;
+    }
+
+    public void setCipherId(String cipherId) {
+        this.cipherId = cipherId;
+    }
+
+    public boolean getCompressChecked() {
+        return compressChecked;
+    }
+
+    public void setCompressChecked(boolean compressChecked) {
+        this.compressChecked = compressChecked;
+    }
+
+    public Long getStoredSize() {
+        return storedSize;
+    }
+
+    public void setStoredSize(Long storedSize) {
+        this.storedSize = storedSize;
+    }
+
+    // bytes counted against the owner's dataLimit
+    public long getChargedSize() {
+        return storedSize != null ? storedSize : size;
+    }
 }
@@ -1,5 +1,6 @@
 package server.phoestorage.datasource.file;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
@@ -7,28 +8,78 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 import server.phoestorage.dto.FileEntry;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 public interface FileRepository extends JpaRepository<FileEntity, Integer> {
-    List<FileEntity> findByOwnerAndFolderId(String userId, String folderId);
+    List<FileEntity> findByOwnerAndFolderIdAndTrashedFalse(String userId, String folderId);
     List<FileEntity> findAllByOwner(String userId);
-    Optional<FileEntity> findByOwnerAndFolderIdAndName(String userId, String folderId, String name);
-    Optional<FileEntity> findByOwnerAndFolderIdAndUuid(String userId, String folderId, String fileId);
-    List<FileEntity> findByOwnerAndStarred(String userId, boolean starred);
+    Optional<FileEntity> findByOwnerAndFolderIdAndNameAndTrashedFalse(String userId, String folderId, String name);
+    Optional<FileEntity> findByOwnerAndFolderIdAndUuidAndTrashedFalse(String userId, String folderId, String fileId);
+    List<FileEntity> findByOwnerAndStarredAndTrashedFalse(String userId, boolean starred);
+    List<FileEntity> findByOwnerAndUuidInAndTrashedFalse(String userId, Collection<String> fileIds);
+
+    // keyset pages of one owner's blobs for the reconciler, trashed rows included since their blobs still exist
+    @Query("SELECT f.uuid, f.internalPath, f.size, f.encrypted, f.storedSize FROM file f WHERE f.owner = :owner AND f.uuid > :after ORDER BY f.uuid")
+    List<Object[]> findBlobPage(@Param("owner") String owner, @Param("after") String after, Pageable pageable);
+
+    @Query("SELECT f.uuid FROM file f WHERE f.owner = :owner AND f.uuid IN :uuids")
+    List<String> findExistingUuids(@Param("owner") String owner, @Param("uuids") Collection<String> uuids);
+
+    // keyset pages of the blobs on one volume, for draining and rebalancing
+    @Query("SELECT f.id, f.uuid, f.owner, f.internalPath, f.size FROM file f WHERE f.volume = :volume AND f.id > :afterId ORDER BY f.id")
+    List<Object[]> findVolumePage(@Param("volume") String volume, @Param("afterId") int afterId, Pageable pageable);
+
+    // keyset pages of the blobs on one volume for the scrubber
+    @Query("SELECT f.id, f.owner, f.uuid, f.internalPath, f.size, f.checksum, f.encrypted, f.storedSize, f.cipherId FROM file f WHERE f.volume = :volume AND f.id > :afterId ORDER BY f.id")
+    List<Object[]> findScrubPage(@Param("volume") String volume, @Param("afterId") int afterId, Pageable pageable);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE file f SET f.verifiedAt = :now WHERE f.id IN :ids")
+    int markVerified(@Param("ids") Collection<Integer> ids, @Param("now") LocalDateTime now);
+
+    // rows from before checksums get the one of their blob's first read
+    @Modifying
+    @Transactional
+    @Query("UPDATE file f SET f.checksum = :checksum, f.verifiedAt = :now WHERE f.id = :id AND f.internalPath = :path AND f.checksum IS NULL")
+    int recordChecksum(@Param("id") int id,
+                       @Param("path") String path,
+                       @Param("checksum") String checksum,
+                       @Param("now") LocalDateTime now);
+
+    // rows of the files packed into one segment, the prefix escaped with !
+    @Query("SELECT f.uuid, f.internalPath, f.size, f.encrypted FROM file f WHERE f.owner = :owner AND f.internalPath LIKE :prefix ESCAPE '!'")
+    List<Object[]> findPacked(@Param("owner") String owner, @Param("prefix") String prefix);
+
+    // only moves the row if nothing else changed its blob in the meantime
+    @Modifying
+    @Transactional
+    @Query("UPDATE file f SET f.internalPath = :path, f.volume = :volume WHERE f.owner = :owner AND f.uuid = :uuid AND f.internalPath = :old")
+    int moveBlob(@Param("owner") String owner,
+                 @Param("uuid") String uuid,
+                 @Param("old") String old,
+                 @Param("path") String path,
+                 @Param("volume") String volume);
+
+    @Query("SELECT f.folderId, f.name FROM file f WHERE f.owner = :owner AND f.folderId IN :folderIds AND f.trashed = false")
+    List<Object[]> findNamesInFolders(@Param("owner") String owner, @Param("folderIds") Collection<String> folderIds);
 
     @Query(value = """
     SELECT * FROM file
     WHERE owner = :owner
+      AND trashed = false
       AND folder_id IN (
           SELECT uuid FROM (
               WITH RECURSIVE folder_tree AS (
-                  SELECT uuid FROM folder 
-                  WHERE uuid = :folderId AND folder_id = :parentId AND owner = :owner
+                  SELECT uuid FROM folder
+                  WHERE uuid = :folderId AND folder_id = :parentId AND owner = :owner AND trashed = false
                   UNION ALL
                   SELECT f.uuid FROM folder f
                   JOIN folder_tree ft ON f.folder_id = ft.uuid
-                  WHERE f.owner = :owner
+                  WHERE f.owner = :owner AND f.trashed = false
               )
               SELECT uuid FROM folder_tree
           ) AS all_folders
@@ -43,14 +94,173 @@ public interface FileRepository extends JpaRepository<FileEntity, Integer> {
 
     @Modifying
     @Transactional
-    @Query("UPDATE file f SET f.name = :name, f.extension = :ext WHERE f.owner = :owner AND f.folderId = :folderId AND f.uuid = :fileId")
+    @Query("UPDATE file f SET f.name = :name, f.extension = :ext WHERE f.owner = :owner AND f.folderId = :folderId AND f.uuid = :fileId AND f.trashed = false")
     int renameFile(@Param("owner") String owner,
                    @Param("folderId") String folderId,
                    @Param("fileId") String fileId,
                    @Param("name") String name,
                    @Param("ext") String ext);
 
-    List<FileEntity> findTop100ByOwnerAndNameContainingIgnoreCase(String owner, String namePart);
+    @Query("SELECT f.name FROM file f " +
+            "WHERE f.owner = :owner AND f.folderId = :folderId AND f.trashed = false " +
+            "AND f.name LIKE CONCAT(:baseName, '%')")
+    List<String> findNamesByOwnerAndFolderIdStartingWith(@Param("owner") String owner,
+                                                         @Param("folderId") String folderId,
+                                                         @Param("baseName") String baseName);
+
+    // Keyset pages of (id, name) used to build the in memory search index
+    @Query("SELECT f.id, f.name FROM file f WHERE f.owner = :owner AND f.trashed = false AND f.id > :afterId ORDER BY f.id")
+    List<Object[]> findNamesAfter(@Param("owner") String owner, @Param("afterId") int afterId, Pageable pageable);
+
+    // Keyset pages of what a bulk change touched, replayed into loaded search indexes
+    @Query("SELECT f.id FROM file f WHERE f.owner = :owner AND f.trashRoot = :trashRoot AND f.id > :afterId ORDER BY f.id")
+    List<Integer> findIdsByTrashRootAfter(@Param("owner") String owner,
+                                          @Param("trashRoot") String trashRoot,
+                                          @Param("afterId") int afterId,
+                                          Pageable pageable);
+
+    @Query(value = """
+    SELECT id, name FROM file
+    WHERE owner = :owner
+      AND trashed = false
+      AND id > :afterId
+      AND folder_id IN (
+          SELECT uuid FROM (
+              WITH RECURSIVE folder_tree AS (
+                  SELECT uuid FROM folder
+                  WHERE uuid = :folderId AND folder_id = :parentId AND owner = :owner AND trashed = false
+                  UNION ALL
+                  SELECT f.uuid FROM folder f
+                  JOIN folder_tree ft ON f.folder_id = ft.uuid
+                  WHERE f.owner = :owner AND f.trashed = false
+              )
+              SELECT uuid FROM folder_tree
+          ) AS all_folders
+      )
+    ORDER BY id
+    LIMIT :limit
+    """, nativeQuery = true)
+    List<Object[]> findNamesUnderFolderTreeAfter(@Param("owner") String owner,
+                                                 @Param("parentId") String parentId,
+                                                 @Param("folderId") String folderId,
+                                                 @Param("afterId") int afterId,
+                                                 @Param("limit") int limit);
+
+    // Trash
+    @Modifying
+    @Transactional
+    @Query("""
+        update file f
+           set f.trashed   = true,
+               f.trashedAt = :now,
+               f.trashRoot = f.uuid
+         where f.owner     = :owner
+           and f.folderId  = :folderId
+           and f.uuid      = :fileId
+           and f.trashed   = false
+    """)
+    int trashFile(@Param("owner") String owner,
+                  @Param("folderId") String folderId,
+                  @Param("fileId") String fileId,
+                  @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Transactional
+    @Query(value = """
+    UPDATE file
+       SET trashed = true, trashed_at = :now, trash_root = :folderId
+     WHERE owner = :owner
+       AND trashed = false
+       AND folder_id IN (
+           SELECT uuid FROM (
+               WITH RECURSIVE folder_tree AS (
+                   SELECT uuid FROM folder
+                   WHERE uuid = :folderId AND folder_id = :parentId AND owner = :owner
+                   UNION ALL
+                   SELECT f.uuid FROM folder f
+                   JOIN folder_tree ft ON f.folder_id = ft.uuid
+                   WHERE f.owner = :owner
+               )
+               SELECT uuid FROM folder_tree
+           ) AS all_folders
+       )
+    """, nativeQuery = true)
+    int trashFilesUnderFolderTree(@Param("owner") String owner,
+                                  @Param("parentId") String parentId,
+                                  @Param("folderId") String folderId,
+                                  @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Transactional
+    @Query("""
+        update file f
+           set f.trashed   = false,
+               f.trashedAt = null,
+               f.trashRoot = null
+         where f.owner     = :owner
+           and f.trashRoot = :trashRoot
+    """)
+    int restoreTrash(@Param("owner") String owner, @Param("trashRoot") String trashRoot);
+
+    @Modifying
+    @Transactional
+    @Query("update file f set f.trashedAt = :expired where f.owner = :owner and f.trashRoot = :trashRoot")
+    int expireTrash(@Param("owner") String owner,
+                    @Param("trashRoot") String trashRoot,
+                    @Param("expired") LocalDateTime expired);
+
+    @Query("SELECT f FROM file f WHERE f.owner = :owner AND f.trashed = true AND f.trashRoot = f.uuid AND f.trashedAt >= :cutoff")
+    List<FileEntity> findTrashRoots(@Param("owner") String owner, @Param("cutoff") LocalDateTime cutoff);
+
+    Optional<FileEntity> findByOwnerAndUuidAndTrashRoot(String owner, String uuid, String trashRoot);
+
+    @Modifying
+    @Transactional
+    @Query("update file f set f.trashedAt = :expired where f.owner = :owner and f.trashed = true")
+    int expireAllTrash(@Param("owner") String owner, @Param("expired") LocalDateTime expired);
+
+    @Query("SELECT COALESCE(SUM(f.size), 0) FROM file f WHERE f.owner = :owner AND f.trashRoot = :trashRoot")
+    long sizeOfTrash(@Param("owner") String owner, @Param("trashRoot") String trashRoot);
+
+    List<FileEntity> findByTrashedTrueAndTrashedAtBeforeAndIdGreaterThanOrderByIdAsc(LocalDateTime cutoff, int afterId, Pageable pageable);
+
+    boolean existsByOwnerAndTrashRoot(String owner, String trashRoot);
+
+    // Content indexing
+    List<FileEntity> findByContentIndexedFalseAndTrashedFalseAndExtensionInAndIdGreaterThanOrderByIdAsc(
+            Collection<String> extensions, int afterId, Pageable pageable);
+
+    long countByContentIndexedFalseAndTrashedFalseAndExtensionIn(Collection<String> extensions);
+
+    @Modifying
+    @Transactional
+    @Query("update file f set f.contentIndexed = true where f.id in :ids")
+    int markContentIndexed(@Param("ids") Collection<Integer> ids);
+
+    // Compression at rest
+    List<FileEntity> findByCompressCheckedFalseAndTrashedFalseAndIdGreaterThanOrderByIdAsc(int afterId, Pageable pageable);
+
+    long countByCompressCheckedFalseAndTrashedFalse();
+
+    @Modifying
+    @Transactional
+    @Query("update file f set f.compressChecked = true where f.id = :id")
+    int markCompressChecked(@Param("id") int id);
+
+    // only if the blob is still the one that was compressed
+    @Modifying
+    @Transactional
+    @Query("UPDATE file f SET f.internalPath = :path, f.storedSize = :storedSize, f.cipherId = :cipherId, f.compressChecked = true WHERE f.id = :id AND f.internalPath = :old AND f.trashed = false")
+    int compressBlob(@Param("id") int id,
+                     @Param("old") String old,
+                     @Param("path") String path,
+                     @Param("storedSize") long storedSize,
+                     @Param("cipherId") String cipherId);
+
+    @Query("SELECT COUNT(f), COALESCE(SUM(f.size), 0), COALESCE(SUM(f.storedSize), 0) FROM file f WHERE f.owner = :owner AND f.storedSize IS NOT NULL")
+    List<Object[]> sumCompressed(@Param("owner") String owner);
 
-    List<FileEntity> findTop100ByOwnerAndExtensionContainingIgnoreCase(String owner, String namePart);
+    // owners by bytes saved
+    @Query("SELECT f.owner, COUNT(f), SUM(f.size), SUM(f.storedSize) FROM file f WHERE f.storedSize IS NOT NULL GROUP BY f.owner ORDER BY SUM(f.size) - SUM(f.storedSize) DESC")
+    List<Object[]> sumCompressedByOwner(Pageable pageable);
 }
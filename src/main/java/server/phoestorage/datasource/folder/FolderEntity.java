@@ -2,6 +2,8 @@ package server.phoestorage.datasource.folder;
 
 import jakarta.persistence.*;
 
+import java.time.LocalDateTime;
+
 /**
  * File entity is data of a file
  *
@@ -17,7 +19,9 @@ import jakarta.persistence.*;
         },
         indexes = {
                 @Index(name = "ix_folders_owner_uuid",   columnList = "owner, uuid"),
-                @Index(name = "ix_folders_owner_parent", columnList = "owner, folderId")
+                @Index(name = "ix_folders_owner_parent", columnList = "owner, folderId"),
+                @Index(name = "ix_folders_owner_trash_root", columnList = "owner, trashRoot"),
+                @Index(name = "ix_folders_trashed_at",   columnList = "trashed, trashedAt")
         }
 )
 public class FolderEntity {
@@ -40,6 +44,18 @@ public class FolderEntity {
     @Column(unique = false, nullable = false, name = "userCreated")
     boolean userCreated;
 
+    @Column(unique = false, nullable = false, name = "trashed")
+    boolean trashed;
+
+    @Column(unique = false, nullable = true, name = "trashedAt")
+    LocalDateTime trashedAt;
+
+    @Column(unique = false, nullable = true, name = "trashRoot")
+    String trashRoot; // uuid of the item the user put in the trash
+
+    @Column(unique = false, nullable = true, name = "trashedName")
+    String trashedName; // name of a trashed folder, its name column holds its uuid so the name is free meanwhile
+
     public int getId() {
         return id;
     }
@@ -87,4 +103,36 @@ public class FolderEntity {
     public void setUserCreated(boolean userCreated) {
         this.userCreated = userCreated;
     }
+
+    public boolean getTrashed() {
+        return trashed;
+    }
+
+    public void setTrashed(boolean trashed) {
+        this.trashed = trashed;
+    }
+
+    public LocalDateTime getTrashedAt() {
+        return trashedAt;
+    }
+
+    public void setTrashedAt(LocalDateTime trashedAt) {
+        this.trashedAt = trashedAt;
+    }
+
+    public String getTrashRoot() {
+        return trashRoot;
+    }
+
+    public void setTrashRoot(String trashRoot) {
+        this.trashRoot = trashRoot;
+    }
+
+    public String getTrashedName() {
+        return trashedName;
+    }
+
+    public void setTrashedName(String trashedName) {
+        this.trashedName = trashedName;
+    }
 }
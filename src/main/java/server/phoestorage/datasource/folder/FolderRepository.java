@@ -1,6 +1,7 @@
 package server.phoestorage.datasource.folder;
 
 import org.springframework.dao.DataAccessException;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
@@ -9,20 +10,49 @@ import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import server.phoestorage.datasource.file.FileEntity;
 
+import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
 public interface FolderRepository extends JpaRepository<FolderEntity, Integer> {
-    List<FolderEntity> findByOwnerAndFolderId(String userId, String folderId);
+    List<FolderEntity> findByOwnerAndFolderIdAndTrashedFalse(String userId, String folderId);
     List<FolderEntity> findAllByOwner(String userId);
 
-    Optional<FolderEntity> findByOwnerAndFolderIdAndName(String owner, String folderId, String name);
-    Optional<FolderEntity> findByOwnerAndFolderIdAndUuid(String owner, String folderId, String uuid);
+    Optional<FolderEntity> findByOwnerAndFolderIdAndNameAndTrashedFalse(String owner, String folderId, String name);
+    Optional<FolderEntity> findByOwnerAndFolderIdAndUuidAndTrashedFalse(String owner, String folderId, String uuid);
 
     Optional<FolderEntity> findByOwnerAndUuid(String owner, String uuid);
+    Optional<FolderEntity> findByOwnerAndUuidAndTrashedFalse(String owner, String uuid);
+    List<FolderEntity> findByOwnerAndUuidInAndTrashedFalse(String owner, Collection<String> uuids);
+
+    // Keyset pages of (id, name) used to build the in memory typeahead index
+    @Query("SELECT f.id, f.name FROM folder f WHERE f.owner = :owner AND f.trashed = false AND f.userCreated = true AND f.id > :afterId ORDER BY f.id")
+    List<Object[]> findNamesAfter(@Param("owner") String owner, @Param("afterId") int afterId, Pageable pageable);
+
+    @Query("SELECT f.id FROM folder f WHERE f.owner = :owner AND f.trashRoot = :trashRoot AND f.userCreated = true")
+    List<Integer> findIdsByTrashRoot(@Param("owner") String owner, @Param("trashRoot") String trashRoot);
+
+    @Query(value = """
+    WITH RECURSIVE folder_tree AS (
+        SELECT id, uuid, name, user_created FROM folder WHERE uuid = :folderId AND folder_id = :parentId AND owner = :owner AND trashed = false
+        UNION ALL
+        SELECT f.id, f.uuid, f.name, f.user_created FROM folder f
+        JOIN folder_tree ft ON f.folder_id = ft.uuid
+        WHERE f.owner = :owner AND f.trashed = false
+    )
+    SELECT id, name FROM folder_tree WHERE user_created = true;
+    """, nativeQuery = true)
+    List<Object[]> findNamesInFolderTree(@Param("owner") String owner,
+                                         @Param("parentId") String parentId,
+                                         @Param("folderId") String folderId);
+
+    // A trashed folder gives up its name, see trashFolderTree
+    @Query("SELECT f.folderId, f.name FROM folder f WHERE f.owner = :owner AND f.folderId IN :folderIds AND f.trashed = false")
+    List<Object[]> findNamesInFolders(@Param("owner") String owner, @Param("folderIds") Collection<String> folderIds);
 
     @Query("SELECT f.name FROM folder f " +
-            "WHERE f.owner = :owner AND f.folderId = :folderId " +
+            "WHERE f.owner = :owner AND f.folderId = :folderId AND f.trashed = false " +
             "AND f.name LIKE CONCAT(:folderName, '%')")
     List<String> findByOwnerAndFolderIdStartingWithName(@Param("owner") String owner,
                                        @Param("folderId") String folderId,
@@ -30,11 +60,11 @@ public interface FolderRepository extends JpaRepository<FolderEntity, Integer> {
 
     @Query(value = """
     WITH RECURSIVE folder_tree AS (
-        SELECT * FROM folder WHERE uuid = :folderId AND folder_id = :parentId AND owner = :owner
+        SELECT * FROM folder WHERE uuid = :folderId AND folder_id = :parentId AND owner = :owner AND trashed = false
         UNION ALL
         SELECT f.* FROM folder f
         JOIN folder_tree ft ON f.folder_id = ft.uuid
-        WHERE f.owner = :owner
+        WHERE f.owner = :owner AND f.trashed = false
     )
     SELECT * FROM folder_tree;
     """, nativeQuery = true)
@@ -44,6 +74,21 @@ public interface FolderRepository extends JpaRepository<FolderEntity, Integer> {
             @Param("folderId") String folderId
     );
 
+    @Query(value = """
+    WITH RECURSIVE folder_tree AS (
+        SELECT uuid FROM folder WHERE uuid = :folderId AND owner = :owner AND trashed = false
+        UNION ALL
+        SELECT f.uuid FROM folder f
+        JOIN folder_tree ft ON f.folder_id = ft.uuid
+        WHERE f.owner = :owner AND f.trashed = false
+    )
+    SELECT uuid FROM folder_tree;
+    """, nativeQuery = true)
+    List<String> findDescendantFolderIds(
+            @Param("owner") String owner,
+            @Param("folderId") String folderId
+    );
+
 
 
     @Query(value = """
@@ -75,17 +120,20 @@ public interface FolderRepository extends JpaRepository<FolderEntity, Integer> {
             WHERE uuid      = :folderId
               AND folder_id = :parentId
               AND owner     = :owner
+              AND trashed   = false
             UNION ALL
             SELECT f.*
             FROM `folder` f
             JOIN folder_tree ft ON f.folder_id = ft.uuid
             WHERE f.owner = :owner
+              AND f.trashed = false
         )
         SELECT COALESCE(SUM(fi.size), 0)
         FROM folder_tree ft
         LEFT JOIN `file` fi
           ON fi.folder_id = ft.uuid
          AND fi.owner     = :owner
+         AND fi.trashed   = false
         """,
             nativeQuery = true
     )
@@ -99,7 +147,7 @@ public interface FolderRepository extends JpaRepository<FolderEntity, Integer> {
     //Improved signle queries
     @Modifying
     @Transactional
-    @Query("UPDATE folder f SET f.name = :name WHERE f.owner = :owner AND f.folderId = :folderId AND f.uuid = :folderUuid")
+    @Query("UPDATE folder f SET f.name = :name WHERE f.owner = :owner AND f.folderId = :folderId AND f.uuid = :folderUuid AND f.trashed = false")
     int renameFolder(@Param("owner") String owner,
                      @Param("folderId") String folderId,
                      @Param("folderUuid") String folderUuid,
@@ -112,8 +160,73 @@ public interface FolderRepository extends JpaRepository<FolderEntity, Integer> {
            set f.folderId = :newParent
          where f.owner    = :owner
            and f.uuid     = :id
+           and f.trashed  = false
     """)
     int moveFolder(@Param("owner") String owner,
                        @Param("id") String itemId,
                        @Param("newParent") String newFolderUuid) throws DataAccessException;
+
+    // Trash
+    // The trashed folder moves its name aside to trashed_name and takes its uuid as name, so the name is free in
+    // uq_owner_parent_name while it is in the trash. MySQL assigns left to right, trashed_name has to come first
+    @Modifying
+    @Transactional
+    @Query(value = """
+    UPDATE folder
+       SET trashed = true, trashed_at = :now, trash_root = :folderId,
+           trashed_name = IF(uuid = :folderId, name, trashed_name),
+           name = IF(uuid = :folderId, uuid, name)
+     WHERE owner = :owner
+       AND trashed = false
+       AND uuid IN (
+           SELECT uuid FROM (
+               WITH RECURSIVE folder_tree AS (
+                   SELECT uuid FROM folder
+                   WHERE uuid = :folderId AND folder_id = :parentId AND owner = :owner
+                   UNION ALL
+                   SELECT f.uuid FROM folder f
+                   JOIN folder_tree ft ON f.folder_id = ft.uuid
+                   WHERE f.owner = :owner
+               )
+               SELECT uuid FROM folder_tree
+           ) AS all_folders
+       )
+    """, nativeQuery = true)
+    int trashFolderTree(@Param("owner") String owner,
+                        @Param("parentId") String parentId,
+                        @Param("folderId") String folderId,
+                        @Param("now") LocalDateTime now);
+
+    @Modifying
+    @Transactional
+    @Query("""
+        update folder f
+           set f.trashed     = false,
+               f.trashedAt   = null,
+               f.trashRoot   = null,
+               f.name        = coalesce(f.trashedName, f.name),
+               f.trashedName = null
+         where f.owner       = :owner
+           and f.trashRoot   = :trashRoot
+    """)
+    int restoreTrash(@Param("owner") String owner, @Param("trashRoot") String trashRoot);
+
+    @Modifying
+    @Transactional
+    @Query("update folder f set f.trashedAt = :expired where f.owner = :owner and f.trashRoot = :trashRoot")
+    int expireTrash(@Param("owner") String owner,
+                    @Param("trashRoot") String trashRoot,
+                    @Param("expired") LocalDateTime expired);
+
+    @Modifying
+    @Transactional
+    @Query("update folder f set f.trashedAt = :expired where f.owner = :owner and f.trashed = true")
+    int expireAllTrash(@Param("owner") String owner, @Param("expired") LocalDateTime expired);
+
+    @Query("SELECT f FROM folder f WHERE f.owner = :owner AND f.trashed = true AND f.trashRoot = f.uuid AND f.trashedAt >= :cutoff")
+    List<FolderEntity> findTrashRoots(@Param("owner") String owner, @Param("cutoff") LocalDateTime cutoff);
+
+    Optional<FolderEntity> findByOwnerAndUuidAndTrashRoot(String owner, String uuid, String trashRoot);
+
+    List<FolderEntity> findByTrashedTrueAndTrashedAtBeforeAndIdGreaterThanOrderByIdAsc(LocalDateTime cutoff, int afterId, Pageable pageable);
 }
@@ -0,0 +1,64 @@
+package server.phoestorage.datasource.stats;
+
+import jakarta.persistence.*;
+
+import java.time.LocalDate;
+
+/**
+ * Storage totals at the end of one day, written by the nightly reconciliation
+ *
+ */
+@Entity(name = "storage_history")
+public class StorageHistoryEntity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(unique = true, nullable = false, name = "day")
+    private LocalDate day;
+
+    @Column(unique = false, nullable = false, name = "files")
+    private long files;
+
+    @Column(unique = false, nullable = false, name = "bytes")
+    private long bytes;
+
+    @Column(unique = false, nullable = false, name = "users")
+    private long users;
+
+    public long getId() {
+        return id;
+    }
+
+    public LocalDate getDay() {
+        return day;
+    }
+
+    public void setDay(LocalDate day) {
+        this.day = day;
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    public void setFiles(long files) {
+        this.files = files;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    public long getUsers() {
+        return users;
+    }
+
+    public void setUsers(long users) {
+        this.users = users;
+    }
+}
@@ -0,0 +1,12 @@
+package server.phoestorage.datasource.stats;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Optional;
+
+public interface StorageHistoryRepository extends JpaRepository<StorageHistoryEntity, Long> {
+    Optional<StorageHistoryEntity> findByDay(LocalDate day);
+    List<StorageHistoryEntity> findByDayGreaterThanEqualOrderByDayAsc(LocalDate since);
+}
@@ -0,0 +1,79 @@
+package server.phoestorage.datasource.stats;
+
+import jakarta.persistence.*;
+
+/**
+ * Files and bytes of one user, extension and size class. Kept up to date by StorageStatsService
+ *
+ */
+@Entity(name = "storage_stat")
+@Table(
+        name = "storage_stat",
+        uniqueConstraints = {
+                @UniqueConstraint(name = "ux_storage_stat_key", columnNames = {"ownerUuid", "extension", "sizeClass"})
+        }
+)
+public class StorageStatEntity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private long id;
+
+    @Column(unique = false, nullable = false, name = "ownerUuid")
+    private String ownerUuid;
+
+    @Column(unique = false, nullable = false, name = "extension")
+    private String extension;
+
+    @Column(unique = false, nullable = false, name = "sizeClass")
+    private int sizeClass;
+
+    @Column(unique = false, nullable = false, name = "files")
+    private long files;
+
+    @Column(unique = false, nullable = false, name = "bytes")
+    private long bytes;
+
+    public long getId() {
+        return id;
+    }
+
+    public String getOwnerUuid() {
+        return ownerUuid;
+    }
+
+    public void setOwnerUuid(String ownerUuid) {
+        this.ownerUuid = ownerUuid;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public void setExtension(String extension) {
+        this.extension = extension;
+    }
+
+    public int getSizeClass() {
+        return sizeClass;
+    }
+
+    public void setSizeClass(int sizeClass) {
+        this.sizeClass = sizeClass;
+    }
+
+    public long getFiles() {
+        return files;
+    }
+
+    public void setFiles(long files) {
+        this.files = files;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+}
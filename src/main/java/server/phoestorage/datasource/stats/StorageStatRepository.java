@@ -0,0 +1,43 @@
+package server.phoestorage.datasource.stats;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.util.List;
+
+public interface StorageStatRepository extends JpaRepository<StorageStatEntity, Long> {
+
+    @Modifying
+    @Transactional
+    @Query(value = """
+    INSERT INTO storage_stat (owner_uuid, extension, size_class, files, bytes)
+    VALUES (:owner, :extension, :sizeClass, :files, :bytes)
+    ON DUPLICATE KEY UPDATE files = files + VALUES(files), bytes = bytes + VALUES(bytes)
+    """, nativeQuery = true)
+    int addTotals(@Param("owner") String owner, @Param("extension") String extension, @Param("sizeClass") int sizeClass,
+                  @Param("files") long files, @Param("bytes") long bytes);
+
+    @Modifying
+    @Transactional
+    @Query("delete from storage_stat s where s.ownerUuid = :owner")
+    int deleteByOwner(@Param("owner") String owner);
+
+    // The full scan the counters exist to avoid, only run by the nightly reconciliation
+    @Query(value = """
+    SELECT owner, extension,
+           CASE WHEN size < 4096 THEN 0
+                WHEN size < 65536 THEN 1
+                WHEN size < 1048576 THEN 2
+                WHEN size < 16777216 THEN 3
+                WHEN size < 268435456 THEN 4
+                WHEN size < 4294967296 THEN 5
+                ELSE 6 END AS size_class,
+           COUNT(*), COALESCE(SUM(size), 0)
+    FROM file
+    GROUP BY owner, extension, size_class
+    """, nativeQuery = true)
+    List<Object[]> countFiles();
+}
@@ -0,0 +1,92 @@
+package server.phoestorage.datasource.users;
+
+import jakarta.persistence.*;
+
+import java.time.LocalDateTime;
+
+/**
+ * Personal access token of a user. Only the SHA-256 of the secret is stored
+ *
+ */
+@Entity(name = "access_token")
+@Table(
+        name = "access_token",
+        indexes = {
+                @Index(name = "ix_access_token_owner", columnList = "ownerUuid")
+        }
+)
+public class AccessTokenEntity {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private int id;
+
+    @Column(unique = true, nullable = false, name = "uuid")
+    private String uuid;
+
+    @Column(unique = false, nullable = false, name = "ownerUuid")
+    private String ownerUuid;
+
+    @Column(unique = false, nullable = false, name = "name")
+    private String name;
+
+    @Column(unique = true, nullable = false, name = "tokenHash", length = 64)
+    private String tokenHash;
+
+    @Column(unique = false, nullable = false, name = "created")
+    private LocalDateTime created;
+
+    @Column(unique = false, nullable = true, name = "lastUsed")
+    private LocalDateTime lastUsed;
+
+    public int getId() {
+        return id;
+    }
+
+    public String getUuid() {
+        return uuid;
+    }
+
+    public void setUuid(String uuid) {
+        this.uuid = uuid;
+    }
+
+    public String getOwnerUuid() {
+        return ownerUuid;
+    }
+
+    public void setOwnerUuid(String ownerUuid) {
+        this.ownerUuid = ownerUuid;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getTokenHash() {
+        return tokenHash;
+    }
+
+    public void setTokenHash(String tokenHash) {
+        this.tokenHash = tokenHash;
+    }
+
+    public LocalDateTime getCreated() {
+        return created;
+    }
+
+    public void setCreated(LocalDateTime created) {
+        this.created = created;
+    }
+
+    public LocalDateTime getLastUsed() {
+        return lastUsed;
+    }
+
+    public void setLastUsed(LocalDateTime lastUsed) {
+        this.lastUsed = lastUsed;
+    }
+}
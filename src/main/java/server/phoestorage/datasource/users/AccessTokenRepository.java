@@ -0,0 +1,24 @@
+package server.phoestorage.datasource.users;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+public interface AccessTokenRepository extends JpaRepository<AccessTokenEntity, Integer> {
+    Optional<AccessTokenEntity> findByTokenHash(String tokenHash);
+    Optional<AccessTokenEntity> findByUuidAndOwnerUuid(String uuid, String ownerUuid);
+    List<AccessTokenEntity> findAllByOwnerUuidOrderByCreatedDesc(String ownerUuid);
+    List<AccessTokenEntity> findAllByOwnerUuid(String ownerUuid);
+    long countByOwnerUuid(String ownerUuid);
+
+    @Modifying
+    @Transactional
+    @Query("update access_token t set t.lastUsed = :lastUsed where t.tokenHash = :tokenHash")
+    int setLastUsed(@Param("tokenHash") String tokenHash, @Param("lastUsed") LocalDateTime lastUsed);
+}
@@ -42,6 +42,12 @@ public class UserEntity implements UserDetails {
     @Column(unique = false, nullable = false, name = "forceChangePassword")
     private boolean forceChangePassword;
 
+    @Column(unique = false, nullable = false, name = "encrypted")
+    private boolean encrypted; // new uploads are encrypted at rest
+
+    @Column(unique = false, nullable = true, name = "wrappedKey", length = 128)
+    private String wrappedKey; // key of the user under the master key, see EncryptionService
+
     public int getId() {
         return id;
     }
@@ -117,6 +123,22 @@ public class UserEntity implements UserDetails {
         this.forceChangePassword = forceChangePassword;
     }
 
+    public boolean isEncrypted() {
+        return encrypted;
+    }
+
+    public void setEncrypted(boolean encrypted) {
+        this.encrypted = encrypted;
+    }
+
+    public String getWrappedKey() {
+        return wrappedKey;
+    }
+
+    public void setWrappedKey(String wrappedKey) {
+        this.wrappedKey = wrappedKey;
+    }
+
     @Override
     public Collection<? extends GrantedAuthority> getAuthorities() {
         if (admin) {
@@ -1,9 +1,12 @@
 package server.phoestorage.datasource.users;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.List;
 import java.util.Optional;
 
 public interface UserRepository extends JpaRepository<UserEntity, Integer> {
@@ -20,4 +23,22 @@ public interface UserRepository extends JpaRepository<UserEntity, Integer> {
     Optional<String> findUuidByUsername(String username);
 
     boolean existsByAdminTrue();
+
+    @Query("SELECT u.uuid FROM users u")
+    List<String> findAllUuids();
+
+    @Query("SELECT u.dataUsed FROM users u WHERE u.uuid = :uuid")
+    Optional<Long> findDataUsed(@Param("uuid") String uuid);
+
+    // Sets dataUsed to the bytes of all rows of the user in one statement, trashed rows count until purged, compressed ones by their stored size
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE users SET data_used = (SELECT COALESCE(SUM(COALESCE(stored_size, size)), 0) FROM file WHERE owner = :uuid) WHERE uuid = :uuid",
+            nativeQuery = true)
+    int recountDataUsed(@Param("uuid") String uuid);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE users u SET u.dataUsed = u.dataUsed + :delta WHERE u.uuid = :uuid")
+    int addDataUsed(@Param("uuid") String uuid, @Param("delta") long delta);
 }
\ No newline at end of file
@@ -0,0 +1,71 @@
+package server.phoestorage.dto;
+
+/**
+ * Batch operation is one item of a batch request
+ *
+ */
+public class BatchOperation {
+    private String op; // move, rename, star or delete
+    private boolean isFolder;
+    private String folderId;
+    private String itemId;
+    private String newFolderId;
+    private String name;
+    private boolean value;
+
+    public String getOp() {
+        return op;
+    }
+
+    public void setOp(String op) {
+        this.op = op;
+    }
+
+    public boolean getIsFolder() {
+        return isFolder;
+    }
+
+    public void setIsFolder(boolean isFolder) {
+        this.isFolder = isFolder;
+    }
+
+    public String getFolderId() {
+        return folderId;
+    }
+
+    public void setFolderId(String folderId) {
+        this.folderId = folderId;
+    }
+
+    public String getItemId() {
+        return itemId;
+    }
+
+    public void setItemId(String itemId) {
+        this.itemId = itemId;
+    }
+
+    public String getNewFolderId() {
+        return newFolderId;
+    }
+
+    public void setNewFolderId(String newFolderId) {
+        this.newFolderId = newFolderId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public boolean getValue() {
+        return value;
+    }
+
+    public void setValue(boolean value) {
+        this.value = value;
+    }
+}
@@ -13,6 +13,12 @@ public class DownloadEntry {
     long size;
     int downloads;
     int maxDownloads;
+    // analytics of the last server.stats.hours hours
+    long hits;
+    long completeDownloads;
+    long partialDownloads;
+    long bytesSent;
+    long[] hourlyHits; // oldest hour first
 
     public String getOwnerUuid() {
         return ownerUuid;
@@ -78,6 +84,46 @@ public class DownloadEntry {
         this.downloads = downloads;
     }
 
+    public long getHits() {
+        return hits;
+    }
+
+    public void setHits(long hits) {
+        this.hits = hits;
+    }
+
+    public long getCompleteDownloads() {
+        return completeDownloads;
+    }
+
+    public void setCompleteDownloads(long completeDownloads) {
+        this.completeDownloads = completeDownloads;
+    }
+
+    public long getPartialDownloads() {
+        return partialDownloads;
+    }
+
+    public void setPartialDownloads(long partialDownloads) {
+        this.partialDownloads = partialDownloads;
+    }
+
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public void setBytesSent(long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    public long[] getHourlyHits() {
+        return hourlyHits;
+    }
+
+    public void setHourlyHits(long[] hourlyHits) {
+        this.hourlyHits = hourlyHits;
+    }
+
     public String getUuid() {
         return uuid;
     }
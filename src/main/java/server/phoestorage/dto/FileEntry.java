@@ -1,5 +1,7 @@
 package server.phoestorage.dto;
 
+import java.time.LocalDateTime;
+
 /**
  * File entry hold file data that are being send to the client
  *
@@ -10,9 +12,9 @@ public class FileEntry {
     private String name;
     private String extension;
     private String folderId;
-    private String created;
-    private String modified;
-    private String accessed;
+    private LocalDateTime created;
+    private LocalDateTime modified;
+    private LocalDateTime accessed;
     private long size;
     private boolean starred;
 
@@ -56,27 +58,27 @@ public class FileEntry {
         this.folderId = folderId;
     }
 
-    public String getCreated() {
+    public LocalDateTime getCreated() {
         return created;
     }
 
-    public void setCreated(String created) {
+    public void setCreated(LocalDateTime created) {
         this.created = created;
     }
 
-    public String getModified() {
+    public LocalDateTime getModified() {
         return modified;
     }
 
-    public void setModified(String modified) {
+    public void setModified(LocalDateTime modified) {
         this.modified = modified;
     }
 
-    public String getAccessed() {
+    public LocalDateTime getAccessed() {
         return accessed;
     }
 
-    public void setAccessed(String accessed) {
+    public void setAccessed(LocalDateTime accessed) {
         this.accessed = accessed;
     }
 
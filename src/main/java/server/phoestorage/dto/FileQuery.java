@@ -0,0 +1,146 @@
+package server.phoestorage.dto;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * File query holds the filters of a structured search, every filter is optional
+ *
+ */
+public class FileQuery {
+    private String name; // substring of the name
+    private List<String> extensions;
+    private Long minSize; // Bytes
+    private Long maxSize;
+    private LocalDateTime createdAfter;
+    private LocalDateTime createdBefore;
+    private LocalDateTime modifiedAfter;
+    private LocalDateTime modifiedBefore;
+    private Boolean starred;
+    private String folderId; // only search this folder and everything under it
+    private String sort; // name, size, created or modified
+    private boolean descending;
+    private int limit;
+    private String cursor; // next from the previous page
+    private boolean facets;
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public List<String> getExtensions() {
+        return extensions;
+    }
+
+    public void setExtensions(List<String> extensions) {
+        this.extensions = extensions;
+    }
+
+    public Long getMinSize() {
+        return minSize;
+    }
+
+    public void setMinSize(Long minSize) {
+        this.minSize = minSize;
+    }
+
+    public Long getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(Long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public LocalDateTime getCreatedAfter() {
+        return createdAfter;
+    }
+
+    public void setCreatedAfter(LocalDateTime createdAfter) {
+        this.createdAfter = createdAfter;
+    }
+
+    public LocalDateTime getCreatedBefore() {
+        return createdBefore;
+    }
+
+    public void setCreatedBefore(LocalDateTime createdBefore) {
+        this.createdBefore = createdBefore;
+    }
+
+    public LocalDateTime getModifiedAfter() {
+        return modifiedAfter;
+    }
+
+    public void setModifiedAfter(LocalDateTime modifiedAfter) {
+        this.modifiedAfter = modifiedAfter;
+    }
+
+    public LocalDateTime getModifiedBefore() {
+        return modifiedBefore;
+    }
+
+    public void setModifiedBefore(LocalDateTime modifiedBefore) {
+        this.modifiedBefore = modifiedBefore;
+    }
+
+    public Boolean getStarred() {
+        return starred;
+    }
+
+    public void setStarred(Boolean starred) {
+        this.starred = starred;
+    }
+
+    public String getFolderId() {
+        return folderId;
+    }
+
+    public void setFolderId(String folderId) {
+        this.folderId = folderId;
+    }
+
+    public String getSort() {
+        return sort;
+    }
+
+    public void setSort(String sort) {
+        this.sort = sort;
+    }
+
+    public boolean getDescending() {
+        return descending;
+    }
+
+    public void setDescending(boolean descending) {
+        this.descending = descending;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public boolean getFacets() {
+        return facets;
+    }
+
+    public void setFacets(boolean facets) {
+        this.facets = facets;
+    }
+}
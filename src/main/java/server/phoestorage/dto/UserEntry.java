@@ -7,6 +7,7 @@ public class UserEntry{
     private Long dataUsed;
     private boolean isAdmin;
     private boolean isEnabled;
+    private boolean isEncrypted;
 
     public String getUuid() {
         return uuid;
@@ -55,4 +56,12 @@ public class UserEntry{
     public void setEnabled(boolean enabled) {
         isEnabled = enabled;
     }
+
+    public boolean isEncrypted() {
+        return isEncrypted;
+    }
+
+    public void setEncrypted(boolean encrypted) {
+        isEncrypted = encrypted;
+    }
 }
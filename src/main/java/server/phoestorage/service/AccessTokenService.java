@@ -0,0 +1,191 @@
+package server.phoestorage.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import server.phoestorage.datasource.users.AccessTokenEntity;
+import server.phoestorage.datasource.users.AccessTokenRepository;
+import server.phoestorage.datasource.users.UserEntity;
+import server.phoestorage.datasource.users.UserRepository;
+import server.phoestorage.dto.AccessTokenEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Personal access tokens for scripts and sync clients. A token is a random secret, the table only keeps
+ * its SHA-256 so checking one is a hash and a cache lookup instead of a BCrypt verification
+ *
+ */
+@Service
+public class AccessTokenService {
+    public static final String PREFIX = "phs_";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final AccessTokenRepository accessTokenRepository;
+    private final UserRepository userRepository;
+    private final AppUserDetailsService appUserDetailsService;
+
+    @Value("${server.tokens.max}")
+    private int maxTokens; // per user
+
+    // token hash -> user, unknown tokens are not kept so random ones can't push out real ones
+    private final Cache<String, UserEntity> tokens;
+    // token hash -> last use not written yet
+    private final ConcurrentHashMap<String, LocalDateTime> lastUsed = new ConcurrentHashMap<>();
+
+    @Autowired
+    public AccessTokenService(AccessTokenRepository accessTokenRepository,
+                              UserRepository userRepository,
+                              AppUserDetailsService appUserDetailsService,
+                              @Value("${server.tokens.cache}") int maxCached,
+                              @Value("${server.tokens.ttl}") int ttlSeconds) {
+        this.accessTokenRepository = accessTokenRepository;
+        this.userRepository = userRepository;
+        this.appUserDetailsService = appUserDetailsService;
+        this.tokens = Caffeine.newBuilder()
+                .maximumSize(maxCached)
+                .expireAfterWrite(Duration.ofSeconds(ttlSeconds)) // picks up disabled users and role changes
+                .build();
+    }
+
+    /**
+     * Creates a token for the current user
+     *
+     * @param name label shown in the token list
+     * @return the token, it can not be shown again. Or an error string like createDownloadLink
+     *
+     */
+    public String createToken(String name) {
+        try {
+            String uuid = appUserDetailsService.getUserEntity().getUuid();
+            if (name == null || name.isBlank() || name.length() > 100) return "400 - BAD REQUEST";
+            if (accessTokenRepository.countByOwnerUuid(uuid) >= maxTokens) return "409 - CONFLICT";
+
+            byte[] secret = new byte[32];
+            RANDOM.nextBytes(secret);
+            String token = PREFIX + Base64.getUrlEncoder().withoutPadding().encodeToString(secret);
+
+            AccessTokenEntity entity = new AccessTokenEntity();
+            entity.setUuid(UUID.randomUUID().toString().replace("-", ""));
+            entity.setOwnerUuid(uuid);
+            entity.setName(name.trim());
+            entity.setTokenHash(hash(token));
+            entity.setCreated(LocalDateTime.now());
+            accessTokenRepository.save(entity);
+            return token;
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            return "500 - INTERNAL SERVER ERROR";
+        }
+    }
+
+    public List<AccessTokenEntry> getTokens() {
+        String uuid = appUserDetailsService.getUserEntity().getUuid();
+
+        List<AccessTokenEntry> entries = new ArrayList<>();
+        for (AccessTokenEntity entity : accessTokenRepository.findAllByOwnerUuidOrderByCreatedDesc(uuid)) {
+            AccessTokenEntry entry = new AccessTokenEntry();
+            entry.setUuid(entity.getUuid());
+            entry.setName(entity.getName());
+            entry.setCreated(entity.getCreated());
+            entry.setLastUsed(lastUsed.getOrDefault(entity.getTokenHash(), entity.getLastUsed()));
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    /**
+     * Revokes a token of the current user
+     *
+     * @param tokenUuid uuid of the token
+     * @return exit code
+     *
+     */
+    public int revokeToken(String tokenUuid) {
+        try {
+            String uuid = appUserDetailsService.getUserEntity().getUuid();
+            Optional<AccessTokenEntity> entity = accessTokenRepository.findByUuidAndOwnerUuid(tokenUuid, uuid);
+            if (entity.isEmpty()) return 404;
+
+            accessTokenRepository.delete(entity.get());
+            tokens.invalidate(entity.get().getTokenHash());
+            lastUsed.remove(entity.get().getTokenHash());
+            return 0;
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            return 500;
+        }
+    }
+
+    public void deleteAllTokens(String owner) {
+        List<AccessTokenEntity> entities = accessTokenRepository.findAllByOwnerUuid(owner);
+        accessTokenRepository.deleteAll(entities);
+        for (AccessTokenEntity entity : entities) {
+            tokens.invalidate(entity.getTokenHash());
+            lastUsed.remove(entity.getTokenHash());
+        }
+    }
+
+    /**
+     * Drops cached lookups of a user so changes to the account apply to its tokens right away
+     *
+     */
+    public void forgetUser(String owner) {
+        tokens.asMap().values().removeIf(user -> user.getUuid().equals(owner));
+    }
+
+    /**
+     * Resolves a bearer token
+     *
+     * @param token the token from the Authorization header
+     * @return the user, null if the token is unknown or the user is disabled
+     *
+     */
+    public UserEntity authenticate(String token) {
+        if (token == null || !token.startsWith(PREFIX)) return null;
+
+        String tokenHash = hash(token);
+        UserEntity user = tokens.get(tokenHash, k -> accessTokenRepository.findByTokenHash(k)
+                .map(entity -> userRepository.findByUuid(entity.getOwnerUuid()))
+                .orElse(null));
+        if (user == null || !user.isEnabled()) return null;
+
+        lastUsed.put(tokenHash, LocalDateTime.now());
+        return user;
+    }
+
+    @Scheduled(fixedDelay = 60 * 1000)
+    @PreDestroy
+    public void flushLastUsed() {
+        for (String tokenHash : lastUsed.keySet()) {
+            LocalDateTime used = lastUsed.remove(tokenHash);
+            if (used == null) continue;
+            try {
+                accessTokenRepository.setLastUsed(tokenHash, used);
+            } catch (Exception e) {
+                System.err.println("Could not save last use of an access token: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package server.phoestorage.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import server.phoestorage.classes.TokenBucket;
+
+import java.io.*;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shapes download streams with token buckets. Share link traffic goes through a bucket for its link,
+ * one for the client ip and one for all share links together, logged in users have their own class.
+ * While a logged in user is downloading, share links drop to the busy rate so owners keep their uplink.
+ * Every stream reserves one chunk at a time and waits its turn behind the chunks already reserved,
+ * so active streams get an equal share of a bucket unless one of their own buckets holds them back.
+ * Finished share link downloads are handed to DownloadStatsService
+ *
+ */
+@Service
+public class BandwidthService {
+    private final DownloadStatsService downloadStatsService;
+
+    private final int chunk;
+    private final long linkRate;
+    private final long ipRate;
+
+    private final TokenBucket publicBucket;
+    private final TokenBucket busyBucket;
+    private final TokenBucket ownerBucket;
+    private final Cache<String, TokenBucket> linkBuckets;
+    private final Cache<String, TokenBucket> ipBuckets;
+
+    private final Traffic publicTraffic = new Traffic();
+    private final Traffic ownerTraffic = new Traffic();
+
+    @Autowired
+    public BandwidthService(DownloadStatsService downloadStatsService,
+                            @Value("${server.bandwidth.public}") long publicRate,
+                            @Value("${server.bandwidth.busy}") long busyRate,
+                            @Value("${server.bandwidth.link}") long linkRate,
+                            @Value("${server.bandwidth.ip}") long ipRate,
+                            @Value("${server.bandwidth.owner}") long ownerRate,
+                            @Value("${server.bandwidth.chunk}") int chunk) {
+        this.downloadStatsService = downloadStatsService;
+        this.chunk = Math.max(1024, chunk);
+        this.linkRate = linkRate * 1024;
+        this.ipRate = ipRate * 1024;
+        this.publicBucket = bucket(publicRate * 1024);
+        this.busyBucket = bucket((busyRate > 0 ? busyRate : publicRate) * 1024);
+        this.ownerBucket = bucket(ownerRate * 1024);
+
+        this.linkBuckets = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterAccess(Duration.ofMinutes(10))
+                .build();
+        this.ipBuckets = Caffeine.newBuilder()
+                .maximumSize(100_000)
+                .expireAfterAccess(Duration.ofMinutes(10))
+                .build();
+    }
+
+    /**
+     * Shaper for a share link download
+     *
+     * @param linkKey identifies the link, e.g. its uuid
+     * @param owner owner of the link
+     * @param clientIp address of the client
+     * @return the shaper
+     *
+     */
+    public Shaper forLink(String linkKey, String owner, String clientIp) {
+        TokenBucket link = linkRate > 0 ? linkBuckets.get(linkKey, k -> bucket(linkRate)) : null;
+        TokenBucket ip = ipRate > 0 && clientIp != null ? ipBuckets.get(clientIp, k -> bucket(ipRate)) : null;
+        return new Shaper(publicTraffic, link, ip, linkKey, owner);
+    }
+
+    /**
+     * Shaper for a logged in user downloading their own files
+     *
+     * @return the shaper
+     *
+     */
+    public Shaper forOwner() {
+        return new Shaper(ownerTraffic, null, null, null, null);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("public", publicTraffic.toMap());
+        stats.put("owner", ownerTraffic.toMap());
+        stats.put("links", linkBuckets.estimatedSize());
+        stats.put("clients", ipBuckets.estimatedSize());
+        return stats;
+    }
+
+    private TokenBucket bucket(long rate) {
+        // a second worth of burst, at least one chunk so a chunk never waits on itself forever
+        return new TokenBucket(rate, Math.max(rate, chunk));
+    }
+
+    /**
+     * Limits one download. wrap() starts it and closing the wrapped stream ends it
+     *
+     */
+    public class Shaper {
+        private final Traffic traffic;
+        private final TokenBucket link;
+        private final TokenBucket ip;
+        private final String linkKey;
+        private final String owner;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile long streamed;
+        private volatile boolean ranged;
+        private volatile boolean complete;
+
+        private Shaper(Traffic traffic, TokenBucket link, TokenBucket ip, String linkKey, String owner) {
+            this.traffic = traffic;
+            this.link = link;
+            this.ip = ip;
+            this.linkKey = linkKey;
+            this.owner = owner;
+        }
+
+        /* a range that is not the whole file never counts as a complete download */
+        public void setRanged(boolean ranged) {
+            this.ranged = ranged;
+        }
+
+        public void markComplete() {
+            this.complete = true;
+        }
+
+        public InputStream wrap(InputStream in) {
+            traffic.active.incrementAndGet();
+            return new FilterInputStream(in) {
+                private long owed;
+
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b != -1) pay(1);
+                    else if (!ranged) markComplete();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int read = super.read(b, off, len);
+                    if (read > 0) pay(read);
+                    else if (read == -1 && !ranged) markComplete();
+                    return read;
+                }
+
+                // small reads are settled a chunk at a time
+                private void pay(int bytes) throws IOException {
+                    owed += bytes;
+                    if (owed >= chunk) {
+                        acquire(owed);
+                        owed = 0;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        traffic.sent.add(owed);
+                        streamed += owed;
+                        owed = 0;
+                        end();
+                    }
+                }
+            };
+        }
+
+        public OutputStream wrap(OutputStream out) {
+            traffic.active.incrementAndGet();
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    while (len > 0) {
+                        int n = Math.min(len, chunk);
+                        acquire(n);
+                        out.write(b, off, n);
+                        off += n;
+                        len -= n;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        end();
+                    }
+                }
+            };
+        }
+
+        /* waits on each bucket in turn, the shared ones last so they are only taken when the bytes can go */
+        private void acquire(long bytes) throws IOException {
+            long waited = 0;
+            waited += waitFor(link, bytes);
+            waited += waitFor(ip, bytes);
+            if (traffic == publicTraffic) {
+                waited += waitFor(ownerTraffic.active.get() > 0 ? busyBucket : publicBucket, bytes);
+            } else {
+                waited += waitFor(ownerBucket, bytes);
+            }
+
+            traffic.sent.add(bytes);
+            streamed += bytes;
+            if (waited > 0) {
+                traffic.throttledBytes.add(bytes);
+                traffic.throttledNanos.add(waited);
+            }
+        }
+
+        private long waitFor(TokenBucket bucket, long bytes) throws IOException {
+            if (bucket == null || !bucket.isLimited()) return 0;
+            long wait = bucket.reserve(bytes);
+            if (wait <= 0) return 0;
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Download interrupted while throttled");
+            }
+            return wait;
+        }
+
+        private void end() {
+            if (!closed.compareAndSet(false, true)) return;
+            traffic.active.decrementAndGet();
+            if (linkKey != null) downloadStatsService.record(linkKey, owner, streamed, complete);
+        }
+    }
+
+    private static class Traffic {
+        final AtomicInteger active = new AtomicInteger();
+        final LongAdder sent = new LongAdder();
+        final LongAdder throttledBytes = new LongAdder();
+        final LongAdder throttledNanos = new LongAdder();
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("activeStreams", active.get());
+            map.put("bytesSent", sent.sum());
+            map.put("bytesThrottled", throttledBytes.sum());
+            map.put("throttledMillis", TimeUnit.NANOSECONDS.toMillis(throttledNanos.sum()));
+            return map;
+        }
+    }
+}
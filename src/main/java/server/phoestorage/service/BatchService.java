@@ -0,0 +1,266 @@
+package server.phoestorage.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import server.phoestorage.datasource.file.FileEntity;
+import server.phoestorage.datasource.file.FileRepository;
+import server.phoestorage.datasource.folder.FolderEntity;
+import server.phoestorage.datasource.folder.FolderRepository;
+import server.phoestorage.dto.BatchOperation;
+import server.phoestorage.dto.BatchResult;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+@Service
+public class BatchService {
+    @Value("${server.batch.max}")
+    private int maxOperations;
+
+    private final AppUserDetailsService appUserDetailsService;
+
+    private final FileRepository fileRepository;
+    private final FolderRepository folderRepository;
+    private final SearchService searchService;
+    private final SignedLinkService signedLinkService;
+
+    @Autowired
+    public BatchService(AppUserDetailsService appUserDetailsService,
+                        FileRepository fileRepository,
+                        FolderRepository folderRepository,
+                        SearchService searchService,
+                        SignedLinkService signedLinkService) {
+        this.appUserDetailsService = appUserDetailsService;
+        this.fileRepository = fileRepository;
+        this.folderRepository = folderRepository;
+        this.searchService = searchService;
+        this.signedLinkService = signedLinkService;
+    }
+
+    /**
+     * Runs many move/rename/star/delete operations in one transaction. Everything is validated against one
+     * snapshot of the affected rows, so a batch costs a handful of selects plus the (JDBC batched) updates
+     *
+     * @param operations the operations in the order they should be applied
+     * @return one result per operation, null if the batch is too large
+     *
+     */
+    @Transactional
+    public List<BatchResult> runBatch(List<BatchOperation> operations) {
+        if (operations.size() > maxOperations) return null;
+
+        String uuid = appUserDetailsService.getUserEntity().getUuid();
+
+        // 1) Snapshot every row the batch can touch
+        Set<String> fileIds = new HashSet<>();
+        Set<String> folderIds = new HashSet<>();
+        Set<String> parentIds = new HashSet<>();
+        Set<String> destinations = new HashSet<>();
+        for (BatchOperation operation : operations) {
+            (operation.getIsFolder() ? folderIds : fileIds).add(operation.getItemId());
+            parentIds.add(operation.getFolderId());
+            if ("move".equals(operation.getOp()) && operation.getNewFolderId() != null) {
+                destinations.add(operation.getNewFolderId());
+            }
+        }
+        parentIds.addAll(destinations);
+        folderIds.addAll(parentIds);
+
+        Map<String, FileEntity> files = new HashMap<>();
+        for (FileEntity file : fileRepository.findByOwnerAndUuidInAndTrashedFalse(uuid, fileIds)) {
+            files.put(file.getUuid(), file);
+        }
+        Map<String, FolderEntity> folders = new HashMap<>();
+        for (FolderEntity folder : folderRepository.findByOwnerAndUuidInAndTrashedFalse(uuid, folderIds)) {
+            folders.put(folder.getUuid(), folder);
+        }
+
+        Map<String, Set<String>> fileNames = new HashMap<>();
+        for (Object[] row : fileRepository.findNamesInFolders(uuid, parentIds)) {
+            fileNames.computeIfAbsent((String) row[0], k -> new HashSet<>()).add((String) row[1]);
+        }
+        Map<String, Set<String>> folderNames = new HashMap<>();
+        for (Object[] row : folderRepository.findNamesInFolders(uuid, parentIds)) {
+            folderNames.computeIfAbsent((String) row[0], k -> new HashSet<>()).add((String) row[1]);
+        }
+
+        // parent of each folder on the way up from every destination, used to refuse moves into a subfolder
+        Map<String, String> parentOf = new HashMap<>();
+        for (String destination : destinations) {
+            for (FolderEntity folder : folderRepository.findChainUntilUserRoot(destination, uuid)) {
+                parentOf.put(folder.getUuid(), folder.getFolderId());
+            }
+        }
+
+        // 2) Validate and apply in memory
+        LocalDateTime now = LocalDateTime.now();
+        Set<FileEntity> dirtyFiles = new LinkedHashSet<>();
+        Set<FolderEntity> dirtyFolders = new LinkedHashSet<>();
+        List<FolderEntity> trashedFolders = new ArrayList<>();
+        List<BatchResult> results = new ArrayList<>();
+
+        for (int i = 0; i < operations.size(); i++) {
+            BatchOperation operation = operations.get(i);
+            int code = operation.getIsFolder()
+                    ? applyToFolder(operation, folders, folderNames, parentOf, dirtyFolders, trashedFolders)
+                    : applyToFile(operation, files, folders, fileNames, dirtyFiles, now);
+
+            results.add(new BatchResult(i, code, switch (code) {
+                case 200 -> "";
+                case 400 -> "Invalid operation";
+                case 404 -> "Something was not found";
+                case 409 -> "An item named that already exist in this location";
+                default -> "Something happened";
+            }));
+        }
+
+        // 3) Write everything in one go
+        try {
+            fileRepository.saveAll(dirtyFiles);
+            folderRepository.saveAll(dirtyFolders);
+            fileRepository.flush();
+
+            for (FolderEntity folder : trashedFolders) {
+                fileRepository.trashFilesUnderFolderTree(uuid, folder.getFolderId(), folder.getUuid(), now);
+                folderRepository.trashFolderTree(uuid, folder.getFolderId(), folder.getUuid(), now);
+            }
+
+            for (FileEntity file : dirtyFiles) {
+                signedLinkService.fileChanged(uuid, file.getUuid());
+                if (file.getTrashed()) searchService.fileRemoved(uuid, file.getId());
+                else searchService.fileRenamed(uuid, file.getId(), file.getName());
+            }
+            for (FolderEntity folder : dirtyFolders) {
+                searchService.folderRenamed(uuid, folder.getId(), folder.getName());
+            }
+            // last, items moved by this batch may have ended up in one of the trashed trees
+            for (FolderEntity folder : trashedFolders) {
+                searchService.folderTreeTrashed(uuid, folder.getUuid());
+            }
+            if (!trashedFolders.isEmpty()) signedLinkService.ownerChanged(uuid);
+        } catch (Exception e) {
+            System.err.println(e.getMessage() + "\n With Cause:\n" + e.getCause());
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            for (BatchResult result : results) {
+                if (result.getStatus() == 200) {
+                    result.setStatus(500);
+                    result.setMessage("Something happened");
+                }
+            }
+        }
+        return results;
+    }
+
+    private int applyToFile(BatchOperation operation,
+                            Map<String, FileEntity> files,
+                            Map<String, FolderEntity> folders,
+                            Map<String, Set<String>> fileNames,
+                            Set<FileEntity> dirtyFiles,
+                            LocalDateTime now) {
+        FileEntity file = files.get(operation.getItemId());
+        if (file == null || !file.getFolderId().equals(operation.getFolderId())) return 404;
+
+        Set<String> siblings = fileNames.computeIfAbsent(file.getFolderId(), k -> new HashSet<>());
+
+        switch (operation.getOp() == null ? "" : operation.getOp()) {
+            case "move" -> {
+                if (!folders.containsKey(operation.getNewFolderId())) return 404;
+                if (file.getFolderId().equals(operation.getNewFolderId())) return 200;
+
+                Set<String> target = fileNames.computeIfAbsent(operation.getNewFolderId(), k -> new HashSet<>());
+                if (target.contains(file.getName())) return 409;
+
+                siblings.remove(file.getName());
+                target.add(file.getName());
+                file.setFolderId(operation.getNewFolderId());
+            }
+            case "rename" -> {
+                String name = operation.getName() == null ? "" : operation.getName().replaceAll("\\s+", " ").trim();
+                if (name.isEmpty()) return 400;
+                if (file.getName().equals(name)) return 200;
+                if (siblings.contains(name)) return 409;
+
+                siblings.remove(file.getName());
+                siblings.add(name);
+                file.setName(name);
+                file.setExtension(extensionOf(name));
+            }
+            case "star" -> file.setStarred(operation.getValue());
+            case "delete" -> {
+                siblings.remove(file.getName());
+                files.remove(file.getUuid());
+                file.setTrashed(true);
+                file.setTrashedAt(now);
+                file.setTrashRoot(file.getUuid());
+            }
+            default -> { return 400; }
+        }
+
+        dirtyFiles.add(file);
+        return 200;
+    }
+
+    private int applyToFolder(BatchOperation operation,
+                              Map<String, FolderEntity> folders,
+                              Map<String, Set<String>> folderNames,
+                              Map<String, String> parentOf,
+                              Set<FolderEntity> dirtyFolders,
+                              List<FolderEntity> trashedFolders) {
+        FolderEntity folder = folders.get(operation.getItemId());
+        if (folder == null || !folder.getFolderId().equals(operation.getFolderId())) return 404;
+        if (!folder.getUserCreated()) return 400; // the user root can't be touched
+
+        Set<String> siblings = folderNames.computeIfAbsent(folder.getFolderId(), k -> new HashSet<>());
+
+        switch (operation.getOp() == null ? "" : operation.getOp()) {
+            case "move" -> {
+                String destination = operation.getNewFolderId();
+                if (!folders.containsKey(destination)) return 404;
+                if (folder.getFolderId().equals(destination)) return 200;
+
+                // moving into itself or one of its own subfolders would cut the tree loose
+                for (String at = destination; at != null && !at.equals("-1"); at = parentOf.get(at)) {
+                    if (at.equals(folder.getUuid())) return 400;
+                }
+
+                Set<String> target = folderNames.computeIfAbsent(destination, k -> new HashSet<>());
+                if (target.contains(folder.getName())) return 409;
+
+                siblings.remove(folder.getName());
+                target.add(folder.getName());
+                folder.setFolderId(destination);
+                parentOf.put(folder.getUuid(), destination);
+            }
+            case "rename" -> {
+                String name = operation.getName() == null ? "" : operation.getName().replaceAll("\\s+", " ").trim();
+                if (name.isEmpty()) return 400;
+                if (folder.getName().equals(name)) return 200;
+                if (siblings.contains(name)) return 409;
+
+                siblings.remove(folder.getName());
+                siblings.add(name);
+                folder.setName(name);
+            }
+            case "delete" -> {
+                folders.remove(folder.getUuid());
+                trashedFolders.add(folder);
+                return 200;
+            }
+            default -> { return 400; }
+        }
+
+        dirtyFolders.add(folder);
+        return 200;
+    }
+
+    private static String extensionOf(String name) {
+        String[] parts = name.split("\\.");
+        if (parts.length > 1) {
+            return parts[parts.length - 1].toLowerCase();
+        }
+        return "";
+    }
+}
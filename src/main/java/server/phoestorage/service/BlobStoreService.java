@@ -0,0 +1,221 @@
+package server.phoestorage.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import server.phoestorage.blob.*;
+import server.phoestorage.datasource.file.FileEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Picks the BlobStore for a blob. Files live on the local volumes unless server.blob.store is s3, then new
+ * uploads go to the bucket, optionally through a local read cache. With server.pack.enabled small local uploads
+ * are packed into segment files. Rows keep working from wherever they were written, so switching stores
+ * only affects new files. Reads of whole files go through open(FileEntity), which undoes encryption and
+ * compression at rest
+ *
+ */
+@Service
+public class BlobStoreService {
+    private final LocalBlobStore local;
+    private final PackedBlobStore packed; // always there so packed rows stay readable when packing is turned off
+    private final S3BlobStore s3;
+    private final BlobStore remote; // s3, behind the cache if there is one
+    private final CachingBlobStore cache;
+    private final BlobStore uploads;
+    private final EncryptionService encryptionService;
+
+    // location of a compressed blob -> its frame index
+    private final Cache<String, CompressedFrames.Index> indexes = Caffeine.newBuilder()
+            .maximumWeight(4 * 1024 * 1024)
+            .weigher((String location, CompressedFrames.Index index) -> index.getFrames() + 1)
+            .build();
+
+    @Autowired
+    public BlobStoreService(StoragePoolService storagePoolService,
+                            StorageLayoutService storageLayoutService,
+                            EncryptionService encryptionService,
+                            @Value("${server.blob.store}") String store,
+                            @Value("${server.blob.s3.endpoint}") String endpoint,
+                            @Value("${server.blob.s3.region}") String region,
+                            @Value("${server.blob.s3.bucket}") String bucket,
+                            @Value("${server.blob.s3.prefix}") String prefix,
+                            @Value("${server.blob.s3.access-key}") String accessKey,
+                            @Value("${server.blob.s3.secret-key}") String secretKey,
+                            @Value("${server.blob.cache.dir}") String cacheDir,
+                            @Value("${server.blob.cache.size}") long cacheMb,
+                            @Value("${server.pack.enabled}") boolean pack,
+                            @Value("${server.pack.threshold}") long packThresholdKb,
+                            @Value("${server.pack.segment}") long packSegmentMb) throws IOException {
+        this.encryptionService = encryptionService;
+        this.local = new LocalBlobStore(storagePoolService, storageLayoutService);
+        this.packed = new PackedBlobStore(local, storagePoolService, storageLayoutService,
+                packThresholdKb * 1024, packSegmentMb * 1024 * 1024);
+
+        if (endpoint != null && !endpoint.isBlank() && bucket != null && !bucket.isBlank()) {
+            this.s3 = new S3BlobStore(new S3Client(endpoint, region, bucket, accessKey, secretKey), prefix);
+            this.cache = cacheDir == null || cacheDir.isBlank() ? null
+                    : new CachingBlobStore(s3, Paths.get(cacheDir), cacheMb * 1024 * 1024);
+            this.remote = cache != null ? cache : s3;
+        } else {
+            this.s3 = null;
+            this.cache = null;
+            this.remote = null;
+        }
+
+        if ("s3".equalsIgnoreCase(store)) {
+            if (remote == null) throw new IllegalStateException("server.blob.store is s3 but no endpoint and bucket are set");
+            this.uploads = remote;
+        } else {
+            this.uploads = pack ? packed : local;
+        }
+    }
+
+    /**
+     * @return the store new uploads and their chunks go to
+     */
+    public BlobStore forUploads() {
+        return uploads;
+    }
+
+    /**
+     * @param location internalPath of a file row
+     * @return the store holding the blob
+     */
+    public BlobStore of(String location) {
+        if (packed.holds(location)) return packed;
+        return remote != null && remote.holds(location) ? remote : local;
+    }
+
+    /**
+     * @return whether the blob is a file of its own on a local volume
+     */
+    public boolean isLocal(String location) {
+        return of(location) == local;
+    }
+
+    public boolean isPacked(String location) {
+        return packed.holds(location);
+    }
+
+    public PackedBlobStore getPacked() {
+        return packed;
+    }
+
+    /**
+     * @return bytes of the blob as stored, for encrypted blobs more than the file has
+     */
+    public long size(String location) throws IOException {
+        return of(location).size(location);
+    }
+
+    /**
+     * @return the blob as stored from offset on, encrypted blobs are not decrypted
+     */
+    public InputStream open(String location, long offset) throws IOException {
+        return of(location).open(location, offset);
+    }
+
+    /**
+     * @return bytes of the file, checks the blob is there
+     */
+    public long size(FileEntity file) throws IOException {
+        long size = size(file.getInternalPath());
+        if (file.getStoredSize() != null) return file.getSize(); // the frame index has it too, the row saves reading it
+        return file.getEncrypted() ? SegmentCipher.plainSize(size) : size;
+    }
+
+    /**
+     * @return the bytes of a file from offset on, decrypted and inflated as its blob needs
+     */
+    public InputStream open(FileEntity file, long offset) throws IOException {
+        return open(file.getOwner(), file.getInternalPath(), file.getCipherId(), file.getStoredSize() != null, offset);
+    }
+
+    /**
+     * Opens a file by the columns of its row. A compressed blob is inflated from the frame holding offset
+     *
+     * @param cipherId cipherId of the row, null for a blob that is not encrypted
+     */
+    public InputStream open(String owner, String location, String cipherId, boolean compressed, long offset) throws IOException {
+        if (!compressed) return open(owner, location, cipherId, offset);
+        CompressedFrames.Index index = index(owner, location, cipherId);
+        return CompressedFrames.open(index, from -> open(owner, location, cipherId, from), offset);
+    }
+
+    /**
+     * Opens a blob by the columns of its row, under compression. An encrypted blob is read from the segment
+     * holding offset, so a range costs at most one segment of decryption more than its own bytes
+     *
+     */
+    public InputStream open(String owner, String location, String cipherId, long offset) throws IOException {
+        if (cipherId == null) return open(location, offset);
+        long segment = offset / SegmentCipher.SEGMENT * SegmentCipher.SEGMENT;
+        InputStream sealed = open(location, SegmentCipher.cipherOffset(segment));
+        try {
+            return SegmentCipher.decrypt(encryptionService.keyOf(owner), cipherId, sealed, offset);
+        } catch (IOException | RuntimeException e) {
+            sealed.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the frame index of a compressed file
+     */
+    public CompressedFrames.Index index(FileEntity file) throws IOException {
+        return index(file.getOwner(), file.getInternalPath(), file.getCipherId());
+    }
+
+    /**
+     * @return the raw deflate stream of a compressed file, for a zip entry
+     */
+    public InputStream openDeflated(FileEntity file, CompressedFrames.Index index) throws IOException {
+        return CompressedFrames.openDeflated(index, from -> open(file.getOwner(), file.getInternalPath(), file.getCipherId(), from));
+    }
+
+    /* blobs are never changed in place, so an index stays valid as long as its location */
+    private CompressedFrames.Index index(String owner, String location, String cipherId) throws IOException {
+        CompressedFrames.Index index = indexes.getIfPresent(location);
+        if (index != null) return index;
+        long size = size(location);
+        if (cipherId != null) size = SegmentCipher.plainSize(size);
+        index = CompressedFrames.readIndex(from -> open(owner, location, cipherId, from), size);
+        indexes.put(location, index);
+        return index;
+    }
+
+    public void delete(String location) throws IOException {
+        of(location).delete(location);
+    }
+
+    /**
+     * Creates the blob of a copy in the store of its source and sets internalPath and volume on the copy
+     *
+     */
+    public void copy(FileEntity source, FileEntity copy) throws IOException {
+        of(source.getInternalPath()).copy(source, copy);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("uploads", uploads == local ? "local" : uploads == packed ? "packed" : "s3");
+        stats.put("s3", s3 != null);
+        stats.put("cachedBytes", cache == null ? 0 : cache.getCachedBytes());
+        return stats;
+    }
+
+    @Scheduled(fixedRate = 10 * 60 * 1000)
+    public void expireUploads() {
+        if (s3 != null) s3.expireUploads(Duration.ofHours(1));
+    }
+}
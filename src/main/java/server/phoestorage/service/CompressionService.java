@@ -0,0 +1,267 @@
+package server.phoestorage.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import server.phoestorage.blob.CompressedFrames;
+import server.phoestorage.blob.SegmentCipher;
+import server.phoestorage.classes.Volume;
+import server.phoestorage.datasource.file.FileEntity;
+import server.phoestorage.datasource.file.FileRepository;
+import server.phoestorage.datasource.users.UserRepository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compression at rest. New files are handed to a few low priority workers, which rewrite the blobs of compressible
+ * files in CompressedFrames format as <uuid>.z next to the original, switch the row over and give the saved bytes
+ * back to the owner's quota. Text formats are always tried, known compressed formats never, anything else if
+ * the first 64KB have a low byte entropy. Files that save too little stay as they are. Only blobs of their own
+ * on a local volume are compressed, rows not looked at yet are picked up by a scan
+ *
+ */
+@Service
+public class CompressionService {
+    public static final Set<String> COMPRESSIBLE = Set.of(
+            "txt", "log", "csv", "tsv", "json", "jsonl", "ndjson", "xml", "yml", "yaml", "sql", "md", "html", "htm",
+            "svg", "css", "js", "tex", "srt", "har", "ini", "conf", "properties");
+    private static final Set<String> COMPRESSED = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "zst", "7z", "rar", "jar", "apk", "jpg", "jpeg", "png", "gif", "webp",
+            "heic", "avif", "mp3", "m4a", "aac", "ogg", "opus", "flac", "mp4", "m4v", "mkv", "mov", "webm", "avi",
+            "pdf", "docx", "xlsx", "pptx", "odt", "ods", "odp", "epub", "iso", "dmg");
+    private static final int SAMPLE = 64 * 1024;
+    private static final double MIN_SAVING = 0.1; // share of the size a compressed blob has to save to be kept
+
+    private final FileRepository fileRepository;
+    private final UserRepository userRepository;
+    private final BlobStoreService blobStoreService;
+    private final EncryptionService encryptionService;
+    private final StoragePoolService storagePoolService;
+    private final StorageLayoutService storageLayoutService;
+    private final SignedLinkService signedLinkService;
+    private final ThreadPoolExecutor workers;
+
+    private final boolean enabled;
+    private final int level;
+    private final long minSize;
+    private final double maxEntropy;
+
+    private final Set<Integer> inFlight = ConcurrentHashMap.newKeySet();
+    private volatile int scanAfterId = 0;
+
+    @Autowired
+    public CompressionService(FileRepository fileRepository,
+                              UserRepository userRepository,
+                              BlobStoreService blobStoreService,
+                              EncryptionService encryptionService,
+                              StoragePoolService storagePoolService,
+                              StorageLayoutService storageLayoutService,
+                              SignedLinkService signedLinkService,
+                              @Value("${server.compress.enabled}") boolean enabled,
+                              @Value("${server.compress.level}") int level,
+                              @Value("${server.compress.min-size}") long minSizeKb,
+                              @Value("${server.compress.entropy}") double maxEntropy,
+                              @Value("${server.compress.workers}") int workerCount,
+                              @Value("${server.compress.queue}") int queueSize) {
+        this.fileRepository = fileRepository;
+        this.userRepository = userRepository;
+        this.blobStoreService = blobStoreService;
+        this.encryptionService = encryptionService;
+        this.storagePoolService = storagePoolService;
+        this.storageLayoutService = storageLayoutService;
+        this.signedLinkService = signedLinkService;
+        this.enabled = enabled;
+        this.level = level;
+        this.minSize = minSizeKb * 1024;
+        this.maxEntropy = maxEntropy;
+
+        AtomicInteger n = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread t = new Thread(r, "compress-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                },
+                (task, executor) -> inFlight.remove(((CompressTask) task).file.getId())); // dropped, scan() finds it again
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Queues a new file to be looked at, never blocks
+     *
+     * @param file the saved file
+     */
+    public void fileAdded(FileEntity file) {
+        if (!enabled || file.getCompressChecked()) return;
+        if (!inFlight.add(file.getId())) return;
+
+        workers.execute(new CompressTask(file));
+    }
+
+    /**
+     * Refills the queue with files not looked at yet, like those uploaded before compression was turned on
+     *
+     */
+    @Scheduled(fixedDelay = 60 * 1000)
+    public void scan() {
+        if (!enabled) return;
+        int room = workers.getQueue().remainingCapacity();
+        if (room == 0) return;
+
+        List<FileEntity> files = fileRepository.findByCompressCheckedFalseAndTrashedFalseAndIdGreaterThanOrderByIdAsc(
+                scanAfterId, PageRequest.of(0, Math.min(room, 1000)));
+        if (files.isEmpty()) {
+            scanAfterId = 0;
+            return;
+        }
+        for (FileEntity file : files) fileAdded(file);
+        scanAfterId = files.get(files.size() - 1).getId();
+    }
+
+    /**
+     * @return bytes a user's files take before and after compression
+     */
+    public Map<String, Object> getSavings(String owner) {
+        Object[] row = fileRepository.sumCompressed(owner).get(0);
+        return savings(((Number) row[0]).longValue(), ((Number) row[1]).longValue(), ((Number) row[2]).longValue());
+    }
+
+    /**
+     * @return what the workers still have to do and the users saving the most
+     */
+    public Map<String, Object> getReport() {
+        List<Map<String, Object>> users = new ArrayList<>();
+        for (Object[] row : fileRepository.sumCompressedByOwner(PageRequest.of(0, 100))) {
+            Map<String, Object> user = savings(((Number) row[1]).longValue(), ((Number) row[2]).longValue(), ((Number) row[3]).longValue());
+            user.put("owner", row[0]);
+            users.add(user);
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("enabled", enabled);
+        report.put("queued", workers.getQueue().size());
+        report.put("compressing", workers.getActiveCount());
+        report.put("notChecked", fileRepository.countByCompressCheckedFalseAndTrashedFalse());
+        report.put("users", users);
+        return report;
+    }
+
+    private static Map<String, Object> savings(long files, long bytes, long stored) {
+        Map<String, Object> savings = new LinkedHashMap<>();
+        savings.put("files", files);
+        savings.put("bytes", bytes);
+        savings.put("stored", stored);
+        savings.put("saved", bytes - stored);
+        return savings;
+    }
+
+    private void compress(FileEntity file) {
+        try {
+            if (file.getStoredSize() != null || file.getSize() < minSize
+                    || !blobStoreService.isLocal(file.getInternalPath()) || !worthTrying(file)) {
+                fileRepository.markCompressChecked(file.getId());
+                return;
+            }
+            rewrite(file);
+        } catch (IOException | RuntimeException e) {
+            // gone or unreadable, don't keep retrying it
+            System.err.println("Could not compress " + file.getInternalPath() + ": " + e.getMessage());
+            fileRepository.markCompressChecked(file.getId());
+        } finally {
+            inFlight.remove(file.getId());
+        }
+    }
+
+    private boolean worthTrying(FileEntity file) throws IOException {
+        if (COMPRESSIBLE.contains(file.getExtension())) return true;
+        if (COMPRESSED.contains(file.getExtension())) return false;
+
+        byte[] sample;
+        try (InputStream in = blobStoreService.open(file, 0)) {
+            sample = in.readNBytes(SAMPLE);
+        }
+        return entropy(sample) < maxEntropy;
+    }
+
+    /* Shannon entropy of the byte values in bits per byte, 8 for random or compressed data */
+    private static double entropy(byte[] sample) {
+        int[] counts = new int[256];
+        for (byte b : sample) counts[b & 0xff]++;
+        double bits = 0;
+        for (int count : counts) {
+            if (count == 0) continue;
+            double p = (double) count / sample.length;
+            bits -= p * Math.log(p) / Math.log(2);
+        }
+        return bits;
+    }
+
+    private void rewrite(FileEntity file) throws IOException {
+        Path source = Paths.get(file.getInternalPath());
+        Path target = storageLayoutService.compressedPath(source, file.getUuid());
+        Volume volume = storagePoolService.volumeOf(file.getVolume(), file.getInternalPath());
+
+        // a new blob gets an id of its own, the old one lives on where copies link it
+        String cipherId = file.getEncrypted() ? UUID.randomUUID().toString() : null;
+        long stored = 0;
+        volume.startWrite();
+        try (InputStream plain = blobStoreService.open(file, 0);
+             InputStream framed = CompressedFrames.compress(plain, level);
+             // an encrypted file stays encrypted, its frames are sealed like its plaintext was
+             InputStream blob = cipherId != null ? SegmentCipher.encrypt(encryptionService.keyOf(file.getOwner()), cipherId, framed, 0, true) : framed;
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            blob.transferTo(Channels.newOutputStream(out));
+            out.force(false);
+            stored = out.size();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        } finally {
+            volume.endWrite(stored);
+        }
+
+        if (stored > file.getSize() * (1 - MIN_SAVING)) {
+            Files.deleteIfExists(target);
+            fileRepository.markCompressChecked(file.getId());
+            return;
+        }
+        if (fileRepository.compressBlob(file.getId(), file.getInternalPath(), target.toString(), stored, cipherId) != 1) {
+            // moved, trashed or deleted meanwhile, a moved row is found again by the scan
+            Files.deleteIfExists(target);
+            return;
+        }
+        signedLinkService.fileChanged(file.getOwner(), file.getUuid());
+        // copies linked to the old blob keep it
+        Files.deleteIfExists(source);
+        userRepository.addDataUsed(file.getOwner(), stored - file.getChargedSize());
+    }
+
+    private class CompressTask implements Runnable {
+        final FileEntity file;
+
+        CompressTask(FileEntity file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            compress(file);
+        }
+    }
+}
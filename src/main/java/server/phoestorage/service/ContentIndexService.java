@@ -0,0 +1,477 @@
+package server.phoestorage.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import server.phoestorage.classes.ContentSegment;
+import server.phoestorage.datasource.file.FileEntity;
+import server.phoestorage.datasource.file.FileRepository;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Indexes the text of text like files in the background. Uploads only hand the file to a bounded queue,
+ * a few low priority workers extract the words and buffer them per user, and full buffers are written as
+ * immutable segments under {root}/{user}/index. Segments are merged once a user has too many of them.
+ * Files that didn't make it into the queue are picked up again by a scan over rows not yet indexed
+ *
+ */
+@Service
+public class ContentIndexService {
+    public static final Set<String> TEXT_EXTENSIONS = Set.of(
+            "txt", "md", "markdown", "log", "csv", "tsv", "json", "xml", "yml", "yaml", "toml", "ini", "conf",
+            "properties", "html", "htm", "css", "js", "ts", "jsx", "tsx", "java", "kt", "py", "rb", "php", "go",
+            "rs", "c", "h", "cpp", "hpp", "cs", "swift", "sh", "bat", "ps1", "sql", "tex", "srt");
+
+    private static final int MIN_TERM = 2;
+    private static final int MAX_TERM = 64;
+    private static final int MAX_TERMS_PER_FILE = 100_000;
+    private static final long IDLE = 30 * 60 * 1000;
+
+    @Value("${server.root}")
+    private String rootPath;
+    @Value("${server.content.max-bytes}")
+    private long maxBytes; // only the start of bigger files is indexed
+    @Value("${server.content.flush}")
+    private int flushDocs; // files buffered per user before a segment is written
+    @Value("${server.content.segments}")
+    private int maxSegments; // segments per user before they are merged into one
+
+    private final FileRepository fileRepository;
+    private final BlobStoreService blobStoreService;
+    private final ThreadPoolExecutor workers;
+
+    private final Set<Integer> inFlight = ConcurrentHashMap.newKeySet(); // queued or buffered, not yet on disk
+    private final ConcurrentHashMap<String, UserIndex> users = new ConcurrentHashMap<>();
+    private volatile int scanAfterId = 0;
+
+    @Autowired
+    public ContentIndexService(FileRepository fileRepository,
+                               BlobStoreService blobStoreService,
+                               @Value("${server.content.workers}") int workerCount,
+                               @Value("${server.content.queue}") int queueSize) {
+        this.fileRepository = fileRepository;
+        this.blobStoreService = blobStoreService;
+
+        AtomicInteger n = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                r -> {
+                    Thread t = new Thread(r, "content-index-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                },
+                (task, executor) -> inFlight.remove(((IndexTask) task).file.getId())); // dropped, scan() finds it again
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * Queues a new file for indexing, never blocks
+     *
+     * @param file the saved file
+     */
+    public void fileAdded(FileEntity file) {
+        if (!TEXT_EXTENSIONS.contains(file.getExtension())) return;
+        if (!inFlight.add(file.getId())) return;
+
+        workers.execute(new IndexTask(file));
+    }
+
+    /**
+     * Forgets purged files, they are dropped from the segments on the next merge
+     *
+     * @param owner the user uuid
+     * @param fileIds row ids of the purged files
+     */
+    public void filesRemoved(String owner, Collection<Integer> fileIds) {
+        Path dir = indexDir(owner);
+        if (!Files.isDirectory(dir)) return;
+
+        UserIndex index = users.computeIfAbsent(owner, UserIndex::new);
+        synchronized (index) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(
+                    dir.resolve("deleted"), StandardOpenOption.CREATE, StandardOpenOption.APPEND)))) {
+                for (int id : fileIds) out.writeInt(id);
+                index.deleted().addAll(fileIds);
+            } catch (IOException e) {
+                System.err.println("Could not record deleted files for " + owner + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Finds the files containing every word of the query, newest first
+     *
+     * @param owner the user uuid
+     * @param query the words to look for
+     * @param limit max number of results
+     * @return row ids, the caller still has to check they are not trashed
+     */
+    public List<Integer> search(String owner, String query, int limit) {
+        Set<String> terms = tokenize(new StringReader(query), 32);
+        if (terms.isEmpty()) return List.of();
+
+        UserIndex index = users.computeIfAbsent(owner, UserIndex::new);
+        index.lastUsed = System.currentTimeMillis();
+        List<ContentSegment> segments = index.segments();
+        Set<Integer> deleted;
+        Map<String, int[]> buffered = new HashMap<>();
+        synchronized (index) {
+            deleted = new HashSet<>(index.deleted());
+            for (String term : terms) {
+                TreeSet<Integer> ids = index.buffer.get(term);
+                if (ids != null) buffered.put(term, ids.stream().mapToInt(Integer::intValue).toArray());
+            }
+        }
+
+        int[] result = null;
+        try {
+            for (String term : terms) {
+                int[] ids = buffered.getOrDefault(term, new int[0]);
+                for (ContentSegment segment : segments) ids = union(ids, segment.postings(term));
+
+                result = result == null ? ids : intersect(result, ids);
+                if (result.length == 0) return List.of();
+            }
+        } catch (IOException e) {
+            // a merge removed a segment under us, the next search sees the merged one
+            System.err.println("Content search for " + owner + " failed: " + e.getMessage());
+            return List.of();
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        for (int i = result.length - 1; i >= 0 && ids.size() < limit; i--) {
+            if (!deleted.contains(result[i])) ids.add(result[i]);
+        }
+        return ids;
+    }
+
+    /**
+     * @return what the indexer still has to do
+     */
+    public Map<String, Object> getBacklog() {
+        int buffered = 0;
+        for (UserIndex index : users.values()) {
+            synchronized (index) { buffered += index.bufferedIds.size(); }
+        }
+
+        Map<String, Object> backlog = new LinkedHashMap<>();
+        backlog.put("queued", workers.getQueue().size());
+        backlog.put("indexing", workers.getActiveCount());
+        backlog.put("buffered", buffered);
+        backlog.put("notIndexed", fileRepository.countByContentIndexedFalseAndTrashedFalseAndExtensionIn(TEXT_EXTENSIONS));
+        return backlog;
+    }
+
+    /**
+     * Refills the queue with files that are not indexed yet, like those dropped while the queue was full
+     * or uploaded before a restart
+     *
+     */
+    @Scheduled(fixedDelay = 60 * 1000)
+    public void scan() {
+        int room = workers.getQueue().remainingCapacity();
+        if (room == 0) return;
+
+        List<FileEntity> files = fileRepository.findByContentIndexedFalseAndTrashedFalseAndExtensionInAndIdGreaterThanOrderByIdAsc(
+                TEXT_EXTENSIONS, scanAfterId, PageRequest.of(0, Math.min(room, 1000)));
+        if (files.isEmpty()) {
+            scanAfterId = 0;
+            return;
+        }
+        for (FileEntity file : files) fileAdded(file);
+        scanAfterId = files.get(files.size() - 1).getId();
+    }
+
+    /**
+     * Writes buffers that did not fill up, so quiet users don't wait forever for their last files
+     *
+     */
+    @Scheduled(fixedDelay = 30 * 1000)
+    public void flushAll() {
+        long idleSince = System.currentTimeMillis() - IDLE;
+        for (UserIndex index : users.values()) {
+            synchronized (index) {
+                try {
+                    flush(index);
+                } catch (IOException e) {
+                    System.err.println("Could not write content index of " + index.owner + ": " + e.getMessage());
+                }
+                // dictionaries of users that stopped searching are read again from disk when needed
+                if (index.lastUsed < idleSince && index.bufferedIds.isEmpty()) index.segments = null;
+            }
+        }
+    }
+
+    private void index(FileEntity file) {
+        Set<String> terms;
+        try {
+            terms = extract(file);
+        } catch (IOException e) {
+            // gone or unreadable, don't keep retrying it
+            System.err.println("Could not index " + file.getInternalPath() + ": " + e.getMessage());
+            terms = Set.of();
+        }
+
+        UserIndex index = users.computeIfAbsent(file.getOwner(), UserIndex::new);
+        synchronized (index) {
+            index.add(file.getId(), terms);
+            if (index.bufferedIds.size() >= flushDocs) {
+                try {
+                    flush(index);
+                } catch (IOException e) {
+                    System.err.println("Could not write content index of " + index.owner + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // caller holds the index lock
+    private void flush(UserIndex index) throws IOException {
+        if (index.bufferedIds.isEmpty()) return;
+
+        Path dir = indexDir(index.owner);
+        try (ContentSegment.Writer writer = new ContentSegment.Writer(dir, index.nextSegmentName())) {
+            for (Map.Entry<String, TreeSet<Integer>> entry : index.buffer.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue().stream().mapToInt(Integer::intValue).toArray());
+            }
+            List<ContentSegment> segments = new ArrayList<>(index.segments());
+            segments.add(writer.finish());
+            index.segments = segments;
+        }
+
+        fileRepository.markContentIndexed(index.bufferedIds);
+        inFlight.removeAll(index.bufferedIds);
+        index.buffer.clear();
+        index.bufferedIds.clear();
+
+        if (index.segments.size() > maxSegments) merge(index);
+    }
+
+    // caller holds the index lock
+    private void merge(UserIndex index) throws IOException {
+        List<ContentSegment> old = index.segments();
+        Set<Integer> deleted = index.deleted();
+
+        // k way merge over the sorted dictionaries
+        PriorityQueue<int[]> cursors = new PriorityQueue<>(
+                Comparator.comparing((int[] c) -> old.get(c[0]).term(c[1])));
+        for (int s = 0; s < old.size(); s++) {
+            if (old.get(s).termCount() > 0) cursors.add(new int[]{s, 0});
+        }
+
+        Path dir = indexDir(index.owner);
+        ContentSegment merged;
+        try (ContentSegment.Writer writer = new ContentSegment.Writer(dir, index.nextSegmentName())) {
+            while (!cursors.isEmpty()) {
+                String term = old.get(cursors.peek()[0]).term(cursors.peek()[1]);
+                int[] ids = new int[0];
+                while (!cursors.isEmpty() && old.get(cursors.peek()[0]).term(cursors.peek()[1]).equals(term)) {
+                    int[] c = cursors.poll();
+                    ids = union(ids, old.get(c[0]).postingsAt(c[1]));
+                    if (++c[1] < old.get(c[0]).termCount()) cursors.add(c);
+                }
+                if (!deleted.isEmpty()) ids = Arrays.stream(ids).filter(id -> !deleted.contains(id)).toArray();
+                writer.add(term, ids);
+            }
+            merged = writer.finish();
+        }
+
+        index.segments = new ArrayList<>(List.of(merged));
+        for (ContentSegment segment : old) segment.delete();
+        deleted.clear();
+        Files.deleteIfExists(dir.resolve("deleted"));
+    }
+
+    private Set<String> extract(FileEntity file) throws IOException {
+        try (InputStream in = new BufferedInputStream(blobStoreService.open(file, 0))) {
+            // a NUL byte near the start means it is not really text
+            in.mark(8192);
+            byte[] head = in.readNBytes(8192);
+            for (byte b : head) {
+                if (b == 0) return Set.of();
+            }
+            in.reset();
+
+            Reader reader = new InputStreamReader(new LimitedInputStream(in, maxBytes), StandardCharsets.UTF_8);
+            return tokenize(reader, MAX_TERMS_PER_FILE);
+        }
+    }
+
+    private static Set<String> tokenize(Reader reader, int maxTerms) {
+        Set<String> terms = new HashSet<>();
+        StringBuilder word = new StringBuilder();
+        try {
+            int c;
+            while ((c = reader.read()) != -1 && terms.size() < maxTerms) {
+                if (Character.isLetterOrDigit(c)) {
+                    if (word.length() <= MAX_TERM) word.append(Character.toLowerCase((char) c));
+                } else if (!word.isEmpty()) {
+                    if (word.length() >= MIN_TERM && word.length() <= MAX_TERM) terms.add(word.toString());
+                    word.setLength(0);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Stopped reading text: " + e.getMessage());
+        }
+        if (word.length() >= MIN_TERM && word.length() <= MAX_TERM) terms.add(word.toString());
+        return terms;
+    }
+
+    private static int[] union(int[] a, int[] b) {
+        if (a.length == 0) return b;
+        if (b.length == 0) return a;
+        int[] r = new int[a.length + b.length];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length || j < b.length) {
+            int next;
+            if (j == b.length || (i < a.length && a[i] < b[j])) next = a[i++];
+            else if (i == a.length || b[j] < a[i]) next = b[j++];
+            else { next = a[i++]; j++; }
+            r[n++] = next;
+        }
+        return Arrays.copyOf(r, n);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] r = new int[Math.min(a.length, b.length)];
+        int i = 0, j = 0, n = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) i++;
+            else if (a[i] > b[j]) j++;
+            else { r[n++] = a[i]; i++; j++; }
+        }
+        return Arrays.copyOf(r, n);
+    }
+
+    private Path indexDir(String owner) {
+        return Paths.get(rootPath, owner, "index");
+    }
+
+    /**
+     * Index state of one user. segments is swapped as a whole so searches can read it without the lock
+     *
+     */
+    private class UserIndex {
+        final String owner;
+        final TreeMap<String, TreeSet<Integer>> buffer = new TreeMap<>();
+        final List<Integer> bufferedIds = new ArrayList<>();
+        volatile List<ContentSegment> segments;
+        volatile long lastUsed;
+        Set<Integer> deleted;
+        int generation = 0;
+
+        UserIndex(String owner) {
+            this.owner = owner;
+        }
+
+        void add(int fileId, Set<String> terms) {
+            if (bufferedIds.contains(fileId)) return;
+            bufferedIds.add(fileId);
+            for (String term : terms) buffer.computeIfAbsent(term, k -> new TreeSet<>()).add(fileId);
+        }
+
+        List<ContentSegment> segments() {
+            if (segments == null) {
+                synchronized (this) {
+                    if (segments == null) segments = load();
+                }
+            }
+            return segments;
+        }
+
+        Set<Integer> deleted() {
+            if (deleted == null) {
+                deleted = new HashSet<>();
+                Path file = indexDir(owner).resolve("deleted");
+                if (Files.exists(file)) {
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                        while (in.available() > 0) deleted.add(in.readInt());
+                    } catch (IOException e) {
+                        System.err.println("Could not read deleted files of " + owner + ": " + e.getMessage());
+                    }
+                }
+            }
+            return deleted;
+        }
+
+        String nextSegmentName() {
+            segments();
+            return String.format("seg-%08d", ++generation);
+        }
+
+        private List<ContentSegment> load() {
+            List<ContentSegment> loaded = new ArrayList<>();
+            Path dir = indexDir(owner);
+            if (!Files.isDirectory(dir)) return loaded;
+
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "seg-*.dict")) {
+                List<String> names = new ArrayList<>();
+                for (Path file : files) {
+                    String name = file.getFileName().toString();
+                    names.add(name.substring(0, name.length() - ".dict".length()));
+                }
+                Collections.sort(names);
+                for (String name : names) {
+                    loaded.add(ContentSegment.open(dir, name));
+                    generation = Math.max(generation, Integer.parseInt(name.substring("seg-".length())));
+                }
+            } catch (IOException | NumberFormatException e) {
+                System.err.println("Could not open content index of " + owner + ": " + e.getMessage());
+            }
+            return loaded;
+        }
+    }
+
+    private class IndexTask implements Runnable {
+        final FileEntity file;
+
+        IndexTask(FileEntity file) {
+            this.file = file;
+        }
+
+        @Override
+        public void run() {
+            index(file);
+        }
+    }
+
+    /* Stops reading after max bytes so huge logs only cost their first part */
+    private static class LimitedInputStream extends FilterInputStream {
+        private long left;
+
+        LimitedInputStream(InputStream in, long max) {
+            super(in);
+            this.left = max;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left <= 0) return -1;
+            int b = super.read();
+            if (b >= 0) left--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (left <= 0) return -1;
+            int n = super.read(b, off, (int) Math.min(len, left));
+            if (n > 0) left -= n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package server.phoestorage.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import server.phoestorage.classes.MinuteRing;
+import server.phoestorage.datasource.download.DownloadEntity;
+import server.phoestorage.datasource.download.DownloadRepository;
+import server.phoestorage.datasource.download.DownloadStatEntity;
+import server.phoestorage.datasource.download.DownloadStatRepository;
+import server.phoestorage.dto.DownloadEntry;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static server.phoestorage.classes.MinuteRing.*;
+
+/**
+ * Download analytics of share links. A finished download only bumps a slot in the minute ring of its link,
+ * once a minute the closed minutes are summed per hour and added to the download_stat table.
+ * Reads combine the hour rows with the minutes that are not written yet
+ *
+ */
+@Service
+public class DownloadStatsService {
+    private final DownloadStatRepository downloadStatRepository;
+    private final DownloadRepository downloadRepository;
+
+    @Value("${server.stats.hours}")
+    private int hours;
+    @Value("${server.stats.retention}")
+    private int retention; // days
+
+    // link uuid (or signed token id) -> minutes not written yet
+    private final Cache<String, LinkSeries> series;
+    // rings pushed out of the cache before their minutes were written
+    private final ConcurrentLinkedQueue<LinkSeries> evicted = new ConcurrentLinkedQueue<>();
+    // all links together, never drained, for the live view
+    private final MinuteRing total = new MinuteRing(60);
+
+    @Autowired
+    public DownloadStatsService(DownloadStatRepository downloadStatRepository,
+                                DownloadRepository downloadRepository,
+                                @Value("${server.stats.links}") int maxLinks) {
+        this.downloadStatRepository = downloadStatRepository;
+        this.downloadRepository = downloadRepository;
+        this.series = Caffeine.newBuilder()
+                .maximumSize(maxLinks)
+                .expireAfterAccess(Duration.ofHours(2))
+                .removalListener((String key, LinkSeries value, RemovalCause cause) -> {
+                    if (value != null && cause.wasEvicted() && !value.ring.isEmpty()) evicted.add(value);
+                })
+                .build();
+    }
+
+    /**
+     * Counts one finished share link download
+     *
+     * @param link uuid of the link or id of the signed token
+     * @param owner owner of the link
+     * @param bytes bytes sent
+     * @param complete whether the whole file or zip was sent
+     *
+     */
+    public void record(String link, String owner, long bytes, boolean complete) {
+        long minute = currentMinute();
+        series.get(link, k -> new LinkSeries(k, owner)).ring.add(minute, bytes, complete);
+        total.add(minute, bytes, complete);
+    }
+
+    /**
+     * Fills the analytics of the last server.stats.hours hours into download entries
+     *
+     * @param entries entries with their uuid set
+     * @param owner owner of all entries, null if they belong to different users
+     *
+     */
+    public void addStats(List<DownloadEntry> entries, String owner) {
+        if (entries.isEmpty()) return;
+
+        long firstHour = currentMinute() / 60 - (hours - 1);
+        LocalDateTime since = hourStart(firstHour);
+
+        Map<String, DownloadEntry> byUuid = new HashMap<>();
+        for (DownloadEntry entry : entries) {
+            entry.setHourlyHits(new long[hours]);
+            byUuid.put(entry.getUuid(), entry);
+        }
+
+        List<DownloadStatEntity> rows = owner != null
+                ? downloadStatRepository.findByOwnerUuidAndHourStartGreaterThanEqual(owner, since)
+                : downloadStatRepository.findByLinkUuidInAndHourStartGreaterThanEqual(byUuid.keySet(), since);
+        for (DownloadStatEntity row : rows) {
+            DownloadEntry entry = byUuid.get(row.getLinkUuid());
+            if (entry == null) continue;
+            add(entry, epochHour(row.getHourStart()) - firstHour,
+                    row.getHits(), row.getComplete(), row.getPartial(), row.getBytes());
+        }
+
+        // minutes still in memory
+        for (DownloadEntry entry : entries) {
+            LinkSeries linkSeries = series.getIfPresent(entry.getUuid());
+            if (linkSeries != null) addPending(entry, linkSeries, firstHour);
+        }
+        for (LinkSeries linkSeries : evicted) {
+            DownloadEntry entry = byUuid.get(linkSeries.link);
+            if (entry != null) addPending(entry, linkSeries, firstHour);
+        }
+    }
+
+    /**
+     * Live view for the admin: all links per minute for the last hour and the top links of the last hours
+     *
+     * @param limit how many top links
+     * @return minutes and top links
+     *
+     */
+    public Map<String, Object> getOverview(int limit) {
+        long minute = currentMinute();
+        LocalDateTime since = hourStart(minute / 60 - (hours - 1));
+
+        List<DownloadEntry> top = new ArrayList<>();
+        for (Object[] row : downloadStatRepository.findTop(since, PageRequest.of(0, limit))) {
+            DownloadEntry entry = new DownloadEntry();
+            entry.setUuid((String) row[0]);
+            entry.setOwnerUuid((String) row[1]);
+            entry.setHits(((Number) row[2]).longValue());
+            entry.setCompleteDownloads(((Number) row[3]).longValue());
+            entry.setPartialDownloads(((Number) row[4]).longValue());
+            entry.setBytesSent(((Number) row[5]).longValue());
+            top.add(entry);
+        }
+
+        // signed links have no row, those keep only the uuid
+        Map<String, DownloadEntity> links = new HashMap<>();
+        for (DownloadEntity link : downloadRepository.findAllByUuidIn(top.stream().map(DownloadEntry::getUuid).toList())) {
+            links.put(link.getUuid(), link);
+        }
+        for (DownloadEntry entry : top) {
+            DownloadEntity link = links.get(entry.getUuid());
+            if (link == null) continue;
+            entry.setFileName(link.getFileName());
+            entry.setFileExtension(link.getFileExtension());
+            entry.setIsFolder(link.getIsFolder());
+            entry.setDownloads(link.getDownloads());
+            entry.setMaxDownloads(link.getDownloadLimit());
+        }
+
+        List<Map<String, Long>> minutes = new ArrayList<>();
+        for (long[] row : total.snapshot(minute - 59)) {
+            Map<String, Long> point = new LinkedHashMap<>();
+            point.put("minute", row[MINUTE] * 60_000);
+            point.put("hits", row[HITS]);
+            point.put("complete", row[COMPLETE]);
+            point.put("partial", row[PARTIAL]);
+            point.put("bytes", row[BYTES]);
+            minutes.add(point);
+        }
+
+        Map<String, Object> overview = new LinkedHashMap<>();
+        overview.put("minutes", minutes);
+        overview.put("top", top);
+        return overview;
+    }
+
+    @Scheduled(fixedRate = 60 * 1000)
+    public void rollup() {
+        rollup(currentMinute() - 1); // the current minute is still filling
+    }
+
+    @PreDestroy
+    public void flush() {
+        rollup(currentMinute());
+    }
+
+    @Scheduled(cron = "0 15 4 * * *")
+    public void purgeOld() {
+        int deleted = downloadStatRepository.deleteOlderThan(LocalDateTime.now().minusDays(retention));
+        if (deleted > 0) System.err.println("Deleted " + deleted + " old download stat rows");
+    }
+
+    private synchronized void rollup(long upTo) {
+        for (LinkSeries linkSeries : series.asMap().values()) write(linkSeries, upTo);
+
+        LinkSeries linkSeries;
+        int left = evicted.size();
+        while (left-- > 0 && (linkSeries = evicted.poll()) != null) {
+            write(linkSeries, Long.MAX_VALUE);
+            if (!linkSeries.ring.isEmpty()) evicted.add(linkSeries);
+        }
+    }
+
+    /* writes the closed minutes of one link, one upsert per hour. Hours that fail go back into the ring */
+    private void write(LinkSeries linkSeries, long upTo) {
+        List<long[]> rows = linkSeries.ring.drain(upTo);
+        if (rows.isEmpty()) return;
+
+        Map<Long, List<long[]>> byHour = new TreeMap<>();
+        for (long[] row : rows) byHour.computeIfAbsent(row[MINUTE] / 60, h -> new ArrayList<>()).add(row);
+
+        for (Map.Entry<Long, List<long[]>> hour : byHour.entrySet()) {
+            long[] sum = new long[5];
+            for (long[] row : hour.getValue()) {
+                for (int i = HITS; i <= BYTES; i++) sum[i] += row[i];
+            }
+            try {
+                downloadStatRepository.addHour(linkSeries.link, linkSeries.owner, hourStart(hour.getKey()),
+                        sum[HITS], sum[COMPLETE], sum[PARTIAL], sum[BYTES]);
+            } catch (Exception e) {
+                System.err.println("Could not save download stats of " + linkSeries.link + ": " + e.getMessage());
+                int dropped = linkSeries.ring.restore(hour.getValue());
+                if (dropped > 0) System.err.println("Dropped " + dropped + " minutes of download stats of " + linkSeries.link);
+            }
+        }
+    }
+
+    private void addPending(DownloadEntry entry, LinkSeries linkSeries, long firstHour) {
+        for (long[] row : linkSeries.ring.snapshot(firstHour * 60)) {
+            add(entry, row[MINUTE] / 60 - firstHour, row[HITS], row[COMPLETE], row[PARTIAL], row[BYTES]);
+        }
+    }
+
+    private static void add(DownloadEntry entry, long hour, long hits, long complete, long partial, long bytes) {
+        entry.setHits(entry.getHits() + hits);
+        entry.setCompleteDownloads(entry.getCompleteDownloads() + complete);
+        entry.setPartialDownloads(entry.getPartialDownloads() + partial);
+        entry.setBytesSent(entry.getBytesSent() + bytes);
+        long[] hourly = entry.getHourlyHits();
+        if (hour >= 0 && hour < hourly.length) hourly[(int) hour] += hits;
+    }
+
+    private static long currentMinute() {
+        return System.currentTimeMillis() / 60_000;
+    }
+
+    private static LocalDateTime hourStart(long epochHour) {
+        return LocalDateTime.ofInstant(Instant.ofEpochSecond(epochHour * 3600), ZoneId.systemDefault());
+    }
+
+    private static long epochHour(LocalDateTime hourStart) {
+        return hourStart.atZone(ZoneId.systemDefault()).toEpochSecond() / 3600;
+    }
+
+    private static class LinkSeries {
+        final String link;
+        final String owner;
+        final MinuteRing ring = new MinuteRing(60);
+
+        LinkSeries(String link, String owner) {
+            this.link = link;
+            this.owner = owner;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package server.phoestorage.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import server.phoestorage.datasource.users.UserEntity;
+import server.phoestorage.datasource.users.UserRepository;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Keys for encryption at rest. Every user with encryption gets an AES-256 key of their own, stored on the user row
+ * wrapped with AES-GCM under the master key from server.crypto.master-key so the database alone can't read blobs.
+ * Unwrapped keys are kept in memory for a while. Blobs of users with encryption turned on are written in
+ * SegmentCipher format, turning it off only affects new uploads since existing blobs keep their key
+ *
+ */
+@Service
+public class EncryptionService {
+    private static final int NONCE = 12;
+
+    private final UserRepository userRepository;
+    private final SecretKey master; // null if no master key is configured
+    private final SecureRandom random = new SecureRandom();
+
+    // user uuid -> unwrapped key
+    private final Cache<String, SecretKey> keys = Caffeine.newBuilder()
+            .maximumSize(10_000)
+            .expireAfterAccess(Duration.ofMinutes(30))
+            .build();
+
+    @Autowired
+    public EncryptionService(UserRepository userRepository,
+                             @Value("${server.crypto.master-key}") String masterKey) {
+        this.userRepository = userRepository;
+        if (masterKey == null || masterKey.isBlank()) {
+            this.master = null;
+            return;
+        }
+        byte[] raw = Base64.getDecoder().decode(masterKey.trim());
+        if (raw.length != 32) throw new IllegalStateException("server.crypto.master-key must be 32 bytes in base64");
+        this.master = new SecretKeySpec(raw, "AES");
+    }
+
+    /**
+     * Turns encryption of new uploads on or off for a user
+     *
+     * @param uuid the user
+     * @param enabled whether new uploads are encrypted
+     * @return exit code
+     *
+     */
+    public int setEncryption(String uuid, boolean enabled) {
+        try {
+            UserEntity user = userRepository.findByUuid(uuid);
+            if (user == null) return 404;
+            if (enabled && master == null) return 400;
+
+            if (enabled && user.getWrappedKey() == null) {
+                KeyGenerator generator = KeyGenerator.getInstance("AES");
+                generator.init(256, random);
+                user.setWrappedKey(wrap(uuid, generator.generateKey()));
+            }
+            user.setEncrypted(enabled);
+            userRepository.save(user);
+            return 0;
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            return 500;
+        }
+    }
+
+    /**
+     * @return the key new uploads of the user are encrypted with, null if they are stored in plain
+     */
+    public SecretKey uploadKey(UserEntity user) {
+        return user.isEncrypted() ? keyOf(user.getUuid()) : null;
+    }
+
+    /**
+     * @return the key of a user, to read their encrypted blobs
+     */
+    public SecretKey keyOf(String uuid) {
+        return keys.get(uuid, this::load);
+    }
+
+    private SecretKey load(String uuid) {
+        if (master == null) throw new IllegalStateException("Encrypted blobs need server.crypto.master-key");
+        UserEntity user = userRepository.findByUuid(uuid);
+        if (user == null || user.getWrappedKey() == null) throw new IllegalStateException("No key for user " + uuid);
+        try {
+            byte[] wrapped = Base64.getDecoder().decode(user.getWrappedKey());
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, master, new GCMParameterSpec(128, wrapped, 0, NONCE));
+            cipher.updateAAD(uuid.getBytes(StandardCharsets.UTF_8));
+            byte[] raw = cipher.doFinal(wrapped, NONCE, wrapped.length - NONCE);
+            return new SecretKeySpec(raw, "AES");
+        } catch (GeneralSecurityException e) {
+            // the master key changed, or the row was edited
+            throw new IllegalStateException("Could not unwrap the key of user " + uuid, e);
+        }
+    }
+
+    /* nonce, then the key and tag under the master key, bound to the user */
+    private String wrap(String uuid, SecretKey key) throws GeneralSecurityException {
+        byte[] nonce = new byte[NONCE];
+        random.nextBytes(nonce);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, master, new GCMParameterSpec(128, nonce));
+        cipher.updateAAD(uuid.getBytes(StandardCharsets.UTF_8));
+        byte[] sealed = cipher.doFinal(key.getEncoded());
+
+        byte[] wrapped = Arrays.copyOf(nonce, NONCE + sealed.length);
+        System.arraycopy(sealed, 0, wrapped, NONCE, sealed.length);
+        return Base64.getEncoder().encodeToString(wrapped);
+    }
+}
@@ -4,28 +4,26 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
 
 import org.apache.commons.io.input.BoundedInputStream;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.InputStreamResource;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
+import server.phoestorage.blob.BlobStore;
+import server.phoestorage.blob.SegmentCipher;
 import server.phoestorage.classes.UploadState;
 import server.phoestorage.datasource.file.FileEntity;
 import server.phoestorage.datasource.file.FileRepository;
@@ -33,18 +31,25 @@ import server.phoestorage.datasource.folder.FolderRepository;
 import server.phoestorage.datasource.users.UserEntity;
 import server.phoestorage.datasource.users.UserRepository;
 import server.phoestorage.dto.FileEntry;
+import server.phoestorage.utils.BlobChecksum;
 
 @Service
 public class FileService {
     private final FolderRepository folderRepository;
     private final UserRepository userRepository;
-    @Value("${server.root}")
-    private String rootPath;
 
     private final AppUserDetailsService appUserDetailsService;
     private final HandlerService handlerService;
 
     private final FileRepository fileRepository;
+    private final SearchService searchService;
+    private final ContentIndexService contentIndexService;
+    private final StorageStatsService storageStatsService;
+    private final ReconcileService reconcileService;
+    private final BlobStoreService blobStoreService;
+    private final EncryptionService encryptionService;
+    private final CompressionService compressionService;
+    private final SignedLinkService signedLinkService;
 
     public static final ConcurrentHashMap<String, UploadState> ongoingUploads = new ConcurrentHashMap<>();
 
@@ -52,12 +57,28 @@ public class FileService {
     @Autowired
     public FileService(AppUserDetailsService appUserDetailsService,
                        HandlerService handlerService,
-                       FileRepository fileRepository, FolderRepository folderRepository, UserRepository userRepository) {
+                       FileRepository fileRepository, FolderRepository folderRepository, UserRepository userRepository,
+                       SearchService searchService,
+                       ContentIndexService contentIndexService,
+                       StorageStatsService storageStatsService,
+                       ReconcileService reconcileService,
+                       BlobStoreService blobStoreService,
+                       EncryptionService encryptionService,
+                       CompressionService compressionService,
+                       SignedLinkService signedLinkService) {
         this.appUserDetailsService = appUserDetailsService;
         this.handlerService = handlerService;
         this.fileRepository = fileRepository;
+        this.searchService = searchService;
+        this.contentIndexService = contentIndexService;
+        this.storageStatsService = storageStatsService;
+        this.reconcileService = reconcileService;
+        this.blobStoreService = blobStoreService;
+        this.encryptionService = encryptionService;
+        this.compressionService = compressionService;
         this.folderRepository = folderRepository;
         this.userRepository = userRepository;
+        this.signedLinkService = signedLinkService;
     }
 
     /**
@@ -73,52 +94,44 @@ public class FileService {
      */
     public int saveChunk(int chunkId, int totalChunks, MultipartFile file, String folderId, String fileName, String uploadId, long constChunkSize){
         try{
-            String uuid = appUserDetailsService.getUserEntity().getUuid();
+            UserEntity userEntity = appUserDetailsService.getUserEntity();
+            String uuid = userEntity.getUuid();
             if(fileExistByName(uuid, folderId, fileName)) {return -2;}
 
-            Path storageDir = Paths.get(rootPath, uuid, "storage");
-            Files.createDirectories(storageDir);
+            // chunks of an encrypted upload have to start on a cipher segment, never store them in plain instead
+            if (userEntity.isEncrypted() && constChunkSize % SegmentCipher.SEGMENT != 0) {return 400;}
 
+            // a store like S3 only fails parts that are too small when the upload is completed, after all bytes were sent
+            BlobStore store = blobStoreService.forUploads();
+            if (totalChunks > 1 && (constChunkSize < store.minChunkSize()
+                    || chunkId < totalChunks - 1 && file.getSize() < store.minChunkSize())) {return -4;}
 
-            Path finalFile = Paths.get(rootPath, uuid, "storage", uploadId + ".lock");
+            // whether the upload is encrypted is decided by its first chunk
+            UploadState state = ongoingUploads.computeIfAbsent(
+                    uuid + ":" + uploadId,
+                    id -> new UploadState(totalChunks, encryptionService.uploadKey(userEntity))
+            );
 
             long offset = (long) chunkId * constChunkSize;
-
-            try (InputStream is = file.getInputStream();
-                 FileChannel ch = FileChannel.open(
-                         finalFile,
-                         StandardOpenOption.CREATE,
-                         StandardOpenOption.WRITE
-                 )) {
-
-                try (FileLock lock = ch.lock(offset, Math.max(1L, file.getSize()), false)) {
-
-                    ch.position(offset);
-
-                    byte[] buffer = new byte[8192];
-                    int n;
-                    while ((n = is.read(buffer)) != -1) {
-                        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, n);
-                        while (buf.hasRemaining()) {
-                            ch.write(buf);
-                        }
-                    }
-
-                    ch.force(false); // flush file contents
+            long length = file.getSize();
+            long expectedSize = (long) totalChunks * constChunkSize;
+
+            // the chunk is checksummed on its way through, before encryption, the store reads it to the end
+            CRC32C crc = new CRC32C();
+            try (InputStream is = new CheckedInputStream(file.getInputStream(), crc);
+                 InputStream sealed = state.key == null ? is : SegmentCipher.encrypt(state.key, uploadId, is, offset, chunkId == totalChunks - 1)) {
+                if (state.key != null) {
+                    offset = SegmentCipher.cipherOffset(offset);
+                    length = SegmentCipher.cipherSize(length);
+                    expectedSize = SegmentCipher.cipherSize(expectedSize);
                 }
+                store.writeChunk(uuid, uploadId, chunkId, offset, sealed, length, expectedSize);
             }
 
-            UserEntity userEntity = appUserDetailsService.getUserEntity();
-
-            if(userEntity.getDataUsed() + finalFile.toFile().length() > userEntity.getDataLimit()) {
+            if(userEntity.getDataUsed() + store.received(uuid, uploadId) > userEntity.getDataLimit()) {
                 return -3;
             }
 
-            UploadState state = ongoingUploads.computeIfAbsent(
-                    uuid + ":" + uploadId,
-                    id -> new UploadState(totalChunks)
-            );
-
             boolean complete;
 
             synchronized (state) {
@@ -126,10 +139,14 @@ public class FileService {
                     state.received.set(chunkId);
                     state.receivedCount.incrementAndGet();
                 }
+                state.checksums[chunkId] = (int) crc.getValue(); // a retried chunk replaces its crc
                 complete = state.receivedCount.get() == state.totalChunks;
             }
             if(complete){
-                return saveFileDatabase(folderId, fileName, finalFile);
+                ongoingUploads.remove(uuid + ":" + uploadId);
+                // chunks only line up with the scrubber's segments at the usual chunk size
+                String checksum = constChunkSize == BlobChecksum.SEGMENT ? BlobChecksum.combine(state.checksums) : null;
+                return saveFileDatabase(folderId, fileName, uploadId, totalChunks, checksum, state.key != null);
             }
 
 
@@ -145,16 +162,20 @@ public class FileService {
      *
      * @param folderId the folder the file should be saved in
      * @param fileName the name of the saved file
-     * @param filePath path to the name of the file being saved
+     * @param uploadId the upload session id, becomes the uuid of the file
+     * @param totalChunks number of chunks of the upload
+     * @param checksum BlobChecksum of the uploaded bytes, null if not known
+     * @param encrypted whether the chunks were written in SegmentCipher format
      * @return exit code
      *
      */
-    public int saveFileDatabase(String folderId, String fileName, Path filePath) {
+    public int saveFileDatabase(String folderId, String fileName, String uploadId, int totalChunks, String checksum, boolean encrypted) {
         try{
             String uuid = appUserDetailsService.getUserEntity().getUuid();
-            String fileUuid = filePath.toFile().getName().split("\\.")[0];
-            if(fileExistByUuid(uuid, folderId, fileUuid)) {Files.delete(filePath); return 409;}
-            if(folderRepository.findByOwnerAndFolderId(uuid, folderId) == null) {Files.delete(filePath); return 404;}
+            String fileUuid = uploadId;
+            BlobStore store = blobStoreService.forUploads();
+            if(fileExistByUuid(uuid, folderId, fileUuid)) {store.abortUpload(uuid, uploadId); return 409;}
+            if(folderRepository.findByOwnerAndUuidAndTrashedFalse(uuid, folderId).isEmpty()) {store.abortUpload(uuid, uploadId); return 404;}
 
             String extension;
 
@@ -165,24 +186,30 @@ public class FileService {
                 extension = "";
             }
 
-            Path movedPath = filePath.resolveSibling(fileUuid);
-            Files.move(filePath, movedPath);
-
             FileEntity fileEntity = new FileEntity();
             fileEntity.setUuid(fileUuid);
             fileEntity.setOwner(uuid);
             fileEntity.setName(fileName);
             fileEntity.setExtension(extension);
             fileEntity.setFolderId(folderId);
-            fileEntity.setInternalPath(movedPath.toString());
-            fileEntity.setCreated(LocalDateTime.now().toString());
-            fileEntity.setSize(Files.size(movedPath));
+            LocalDateTime now = LocalDateTime.now();
+            fileEntity.setCreated(now);
+            fileEntity.setModified(now);
             fileEntity.setStarred(false);
-
-            UserEntity userEntity = appUserDetailsService.getUserEntity();
-            userEntity.setDataUsed(userEntity.getDataUsed() + Files.size(movedPath));
+            fileEntity.setChecksum(checksum);
+            store.finishUpload(uuid, uploadId, totalChunks, fileEntity);
+            if (encrypted) {
+                fileEntity.setEncrypted(true);
+                fileEntity.setCipherId(uploadId);
+                fileEntity.setSize(SegmentCipher.plainSize(fileEntity.getSize())); // the store set the size of the ciphertext
+            }
 
             fileRepository.save(fileEntity);
+            userRepository.addDataUsed(uuid, fileEntity.getSize());
+            searchService.fileAdded(fileEntity);
+            contentIndexService.fileAdded(fileEntity);
+            storageStatsService.fileAdded(fileEntity);
+            compressionService.fileAdded(fileEntity);
             return 0;
         }catch (Exception e){
             System.err.println(e);
@@ -197,25 +224,43 @@ public class FileService {
      * @param folderId the folder the file is in
      * @param fileId the id of the file
      * @param rangeHeader the folder the file should be saved in
+     * @param shaper limits the bandwidth of the download
      * @return response entity
      *
      */
-    public ResponseEntity<?> downloadFile(String folderId, String fileId, String rangeHeader, String uuid) {
+    public ResponseEntity<?> downloadFile(String folderId, String fileId, String rangeHeader, String uuid, BandwidthService.Shaper shaper) {
         try{
 
-            if(!fileExistByUuid(uuid, folderId, fileId)) {return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());}
-
-            Optional<FileEntity> fileEntity = fileRepository.findByOwnerAndFolderIdAndUuid(uuid, folderId, fileId);
+            Optional<FileEntity> fileEntity = fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, folderId, fileId);
+            if(fileEntity.isEmpty()) {return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());}
 
-            Path file = Paths.get(fileEntity.get().getInternalPath()); // warning is irrelevant because we call fileExistByUuid()
-            Resource resource = new UrlResource(file.toUri());
+            return streamFile(fileEntity.get(), fileEntity.get().getName(), rangeHeader, shaper);
+        }catch (Exception e){
+            System.err.println(e.getMessage() + "\n With Cause:\n" + e.getCause());
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(handlerService.get500(e));
+        }
+    }
 
-            if (!resource.exists()) {
-                System.out.print("Could not find file in local files. send 404");
+    /**
+     * Streams a blob from its store, honouring a single byte range
+     *
+     * @param file row of the file
+     * @param name file name sent to the client
+     * @param rangeHeader the Range header, may be null
+     * @param shaper limits the bandwidth of the download
+     * @return response entity with the bytes
+     *
+     */
+    public ResponseEntity<?> streamFile(FileEntity file, String name, String rangeHeader, BandwidthService.Shaper shaper) {
+        try{
+            // the only place a blob is looked at, one stat that also tells if it is there
+            long fileSize;
+            try {
+                fileSize = blobStoreService.size(file);
+            } catch (NoSuchFileException e) {
+                reconcileService.blobMissing(file.getInternalPath());
                 return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());
             }
-
-            long fileSize = Files.size(file);
             long start = 0, end = fileSize - 1;
 
             if (rangeHeader != null && rangeHeader.startsWith("bytes=")) {
@@ -227,20 +272,14 @@ public class FileService {
             }
 
             long contentLength = end - start + 1;
-            InputStream inputStream = Files.newInputStream(file);
-
-            long skipped = 0;
-            while (skipped < start) {
-                long bytes = inputStream.skip(start - skipped);
-                if (bytes <= 0) return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(handlerService.get500(new Exception()));
-                skipped += bytes;
-            }
+            shaper.setRanged(start > 0 || end < fileSize - 1);
+            InputStream inputStream = blobStoreService.open(file, start);
 
             BoundedInputStream limited = new BoundedInputStream(inputStream, contentLength);
-            InputStreamResource inputStreamResource = new InputStreamResource(limited);
+            InputStreamResource inputStreamResource = new InputStreamResource(shaper.wrap(limited));
 
             return ResponseEntity.status(rangeHeader == null ? 200 : 206)
-                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileEntity.get().getName() + "\"")
+                    .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + name + "\"")
                     .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + fileSize)
                     .header(HttpHeaders.ACCEPT_RANGES, "bytes")
                     .contentLength(contentLength)
@@ -256,10 +295,10 @@ public class FileService {
         try{
             String uuid = appUserDetailsService.getUserEntity().getUuid();
 
-            Optional<FileEntity> fileEntity = fileRepository.findByOwnerAndFolderIdAndUuid(uuid, folderId, fileId);
+            Optional<FileEntity> fileEntity = fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, folderId, fileId);
             if(fileEntity.isEmpty()) return 404;
 
-            if(folderRepository.findByOwnerAndUuid(uuid, newFolderUuid).isEmpty()) return 2;
+            if(folderRepository.findByOwnerAndUuidAndTrashedFalse(uuid, newFolderUuid).isEmpty()) return 2;
 
 
 
@@ -269,6 +308,7 @@ public class FileService {
 
             file.setFolderId(newFolderUuid);
             fileRepository.save(file);
+            signedLinkService.fileChanged(uuid, fileId);
             return 0;
 
         } catch (Exception e) {
@@ -278,7 +318,105 @@ public class FileService {
     }
 
     /**
-     * Deletes the file local and on database
+     * Copies a file into another folder. The blob is shared with a hardlink so no bytes are duplicated
+     *
+     * @param fileId the id of the file
+     * @param folderId the folder the file is in
+     * @param newFolderUuid the folder to copy into
+     * @return exit code
+     *
+     */
+    public int copyFile(String fileId, String folderId, String newFolderUuid){
+        try{
+            UserEntity userEntity = appUserDetailsService.getUserEntity();
+            String uuid = userEntity.getUuid();
+
+            Optional<FileEntity> fileEntity = fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, folderId, fileId);
+            if(fileEntity.isEmpty()) return 404;
+
+            if(folderRepository.findByOwnerAndUuidAndTrashedFalse(uuid, newFolderUuid).isEmpty()) return 2;
+
+            FileEntity source = fileEntity.get();
+            if(userEntity.getDataUsed() + source.getChargedSize() > userEntity.getDataLimit()) return -3;
+
+            String name = getValidFileName(newFolderUuid, source.getName(), uuid);
+            if(name.equals("nil")) return 409;
+
+            FileEntity copy = copyOf(source, newFolderUuid, name);
+            blobStoreService.copy(source, copy);
+            try {
+                fileRepository.save(copy);
+            } catch (Exception e) {
+                blobStoreService.delete(copy.getInternalPath());
+                throw e;
+            }
+            searchService.fileAdded(copy);
+            contentIndexService.fileAdded(copy);
+            storageStatsService.fileAdded(copy);
+
+            userRepository.addDataUsed(uuid, source.getChargedSize());
+            return 0;
+        } catch (Exception e) {
+            System.err.println(e);
+            return 500;
+        }
+    }
+
+    /**
+     * Builds the row for a copy of a file. The caller creates the blob with BlobStoreService.copy, which also sets its internal path
+     *
+     * @param source the file being copied
+     * @param folderId the folder the copy goes into
+     * @param name the name of the copy
+     * @return the new unsaved file entity
+     *
+     */
+    public FileEntity copyOf(FileEntity source, String folderId, String name) {
+        String fileUuid = UUID.randomUUID().toString();
+
+        FileEntity copy = new FileEntity();
+        copy.setUuid(fileUuid);
+        copy.setOwner(source.getOwner());
+        copy.setName(name);
+        copy.setExtension(source.getExtension());
+        copy.setFolderId(folderId);
+        LocalDateTime now = LocalDateTime.now();
+        copy.setCreated(now);
+        copy.setModified(now);
+        copy.setSize(source.getSize());
+        copy.setChecksum(source.getChecksum());
+        copy.setEncrypted(source.getEncrypted()); // copies stay with the owner, so under the same key
+        copy.setCipherId(source.getCipherId());
+        copy.setCompressChecked(source.getCompressChecked());
+        copy.setStoredSize(source.getStoredSize()); // the copy shares or repeats the blob as it is stored
+        copy.setStarred(false);
+        return copy;
+    }
+
+    /* single query, same scheme as FolderService.getValidFolderName */
+    public String getValidFileName(String folderId, String fileName, String owner) {
+        int dot = fileName.lastIndexOf('.');
+        String base = dot > 0 ? fileName.substring(0, dot) : fileName;
+        String extension = dot > 0 ? fileName.substring(dot) : "";
+
+        List<String> existingNames = fileRepository.findNamesByOwnerAndFolderIdStartingWith(owner, folderId, base);
+
+        if (!existingNames.contains(fileName)) {
+            return fileName;
+        }
+
+        for (int i = 1; i <= 20; i++) {
+            String newFileName = base + " (" + i + ")" + extension;
+            if (!existingNames.contains(newFileName)) {
+                return newFileName;
+            }
+        }
+
+        return "nil"; // fallback if all names are taken
+    }
+
+    /**
+     * Moves the file to the trash. The bytes are reclaimed later by TrashService
      *
      * @param folderId the folder the file is in
      * @param fileId the id of the file
@@ -289,21 +427,12 @@ public class FileService {
         try{
             String uuid = appUserDetailsService.getUserEntity().getUuid();
 
-            if (!fileExistByUuid(uuid, folderId, fileId)) {
+            Optional<FileEntity> fileEntity = fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, folderId, fileId);
+            if (fileEntity.isEmpty() || fileRepository.trashFile(uuid, folderId, fileId, LocalDateTime.now()) != 1) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());
             }
-
-            Optional<FileEntity> response = fileRepository.findByOwnerAndFolderIdAndUuid(uuid, folderId, fileId);
-            FileEntity fileEntity = response.get();
-            if (Files.exists(Paths.get(fileEntity.getInternalPath()))) {
-                Files.delete(Paths.get(fileEntity.getInternalPath()));
-            } else { return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());}
-
-            fileRepository.delete(fileEntity);
-
-            UserEntity userEntity = appUserDetailsService.getUserEntity();
-            userEntity.setDataUsed(userEntity.getDataUsed() - fileEntity.getSize());
-            userRepository.save(userEntity);
+            searchService.fileRemoved(uuid, fileEntity.get().getId());
+            signedLinkService.fileChanged(uuid, fileId);
 
             return ResponseEntity.ok().build();
         }catch (Exception e){
@@ -316,11 +445,13 @@ public class FileService {
         try {
             String uuid = appUserDetailsService.getUserEntity().getUuid();
 
-            if(!fileExistByUuid(uuid, folderId, fileId)) {
+            Optional<FileEntity> found = fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, folderId, fileId);
+            if(found.isEmpty()) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());
             }
 
-            if(fileRepository.findByOwnerAndFolderIdAndUuid(uuid, folderId, fileId).get().getName().equals(name)) {
+            FileEntity fileEntity = found.get();
+            if(fileEntity.getName().equals(name)) {
                 return ResponseEntity.ok().body("");
             }
 
@@ -340,6 +471,7 @@ public class FileService {
             if(fileRepository.renameFile(uuid, folderId, fileId, name, extension) != 1){
                 return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(handlerService.get500(new Exception()));
             }
+            searchService.fileRenamed(uuid, fileEntity.getId(), name);
             return ResponseEntity.ok().build();
         } catch (Exception e){
             System.err.println(e.getMessage() + "\n With Cause:\n" + e.getCause());
@@ -348,22 +480,16 @@ public class FileService {
     }
 
     /**
-     * File exist with uuid
+     * File exist with uuid. The row is the truth for metadata, the blob is only looked at when bytes are
+     * served and ReconcileService reports rows whose blob is gone
      *
      * @param folderId the parent folder
      * @param fileId uuid of the file
      * @return exit code
      *
      */
-    public boolean fileExistByUuid(String owner, String folderId, String fileId) throws IOException {
-        Optional<FileEntity> fileEntity = fileRepository.findByOwnerAndFolderIdAndUuid(owner, folderId, fileId);
-
-        if(fileEntity.isEmpty()){ return false; }
-
-        Path file = Paths.get(fileEntity.get().getInternalPath());
-        Resource resource = new UrlResource(file.toUri());
-
-        return resource.exists();
+    public boolean fileExistByUuid(String owner, String folderId, String fileId) {
+        return fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(owner, folderId, fileId).isPresent();
     }
 
     /**
@@ -375,7 +501,7 @@ public class FileService {
      *
      */
     public boolean fileExistByName(String owner, String folderId, String fileName) {
-        Optional<FileEntity> fileEntity = fileRepository.findByOwnerAndFolderIdAndName(owner, folderId, fileName);
+        Optional<FileEntity> fileEntity = fileRepository.findByOwnerAndFolderIdAndNameAndTrashedFalse(owner, folderId, fileName);
 
         return fileEntity.isPresent();
 
@@ -385,7 +511,7 @@ public class FileService {
     public ResponseEntity<?> getStarredFiles() {
         try{
             String uuid = appUserDetailsService.getUserEntity().getUuid();
-            return ResponseEntity.ok(fileRepository.findByOwnerAndStarred(uuid, true));
+            return ResponseEntity.ok(fileRepository.findByOwnerAndStarredAndTrashedFalse(uuid, true));
         }catch (Exception e){
             System.err.println(e.getMessage() + "\n With Cause:\n" + e.getCause());
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(handlerService.get500(e));
@@ -396,9 +522,10 @@ public class FileService {
         try{
             String uuid = appUserDetailsService.getUserEntity().getUuid();
 
-            if(!fileExistByUuid(uuid, folderId, fileId)) {return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());}
+            Optional<FileEntity> found = fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, folderId, fileId);
+            if(found.isEmpty()) {return ResponseEntity.status(HttpStatus.NOT_FOUND).body(handlerService.get404());}
 
-            FileEntity file = fileRepository.findByOwnerAndFolderIdAndUuid(uuid, folderId, fileId).get();
+            FileEntity file = found.get();
             file.setStarred(starred);
             fileRepository.save(file);
 
@@ -409,33 +536,10 @@ public class FileService {
         }
     }
 
-    public List<FileEntry> searchFile(String query){
+    public List<FileEntry> searchFile(String query, String mode){
         String uuid = appUserDetailsService.getUserEntity().getUuid();
 
-        List<FileEntity> result = new ArrayList<>();
-        if(query.startsWith(".")){
-            query = query.substring(1);
-            result = fileRepository.findTop100ByOwnerAndExtensionContainingIgnoreCase(uuid, query);
-        }else{
-            result = fileRepository.findTop100ByOwnerAndNameContainingIgnoreCase(uuid, query);
-        }
-
-        List<FileEntry> r = new ArrayList<>();
-        for (FileEntity fileEntity : result) {
-            FileEntry fileEntry = new FileEntry();
-            fileEntry.setUuid(fileEntity.getUuid());
-            fileEntry.setOwner(fileEntity.getOwner());
-            fileEntry.setName(fileEntity.getName());
-            fileEntry.setExtension(fileEntity.getExtension());
-            fileEntry.setFolderId(fileEntity.getFolderId());
-            fileEntry.setCreated(fileEntity.getCreated());
-            fileEntry.setModified(fileEntity.getModified());
-            fileEntry.setAccessed(fileEntity.getAccessed());
-            fileEntry.setSize(fileEntity.getSize());
-            fileEntry.setStarred(fileEntity.getStarred());
-
-            r.add(fileEntry);
-        }
-        return r;
+        if ("content".equals(mode)) return searchService.searchContent(uuid, query, 100);
+        return searchService.searchFiles(uuid, query, 100);
     }
 }
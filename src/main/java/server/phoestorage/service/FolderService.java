@@ -6,24 +6,29 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
+import server.phoestorage.blob.CompressedFrames;
+import server.phoestorage.classes.Volume;
 import server.phoestorage.datasource.file.FileEntity;
 import server.phoestorage.datasource.file.FileRepository;
 import server.phoestorage.datasource.folder.FolderEntity;
 import server.phoestorage.datasource.folder.FolderRepository;
 import server.phoestorage.datasource.users.UserEntity;
+import server.phoestorage.datasource.users.UserRepository;
 import server.phoestorage.dto.FileEntry;
 import server.phoestorage.dto.FolderEntry;
+import server.phoestorage.utils.ZipWriter;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import static server.phoestorage.utils.Database.extractConstraintName;
 
@@ -37,16 +42,34 @@ public class FolderService {
 
     private final FolderRepository folderRepository;
     private final FileRepository fileRepository;
+    private final UserRepository userRepository;
+    private final SearchService searchService;
+    private final StorageStatsService storageStatsService;
+    private final StoragePoolService storagePoolService;
+    private final BlobStoreService blobStoreService;
+    private final SignedLinkService signedLinkService;
 
     @Autowired
     public FolderService(AppUserDetailsService appUserDetailsService,
                        FolderRepository folderRepository,
                          FileRepository fileRepository,
-                         FileService fileService) {
+                         UserRepository userRepository,
+                         FileService fileService,
+                         SearchService searchService,
+                         StorageStatsService storageStatsService,
+                         StoragePoolService storagePoolService,
+                         BlobStoreService blobStoreService,
+                         SignedLinkService signedLinkService) {
         this.appUserDetailsService = appUserDetailsService;
         this.folderRepository = folderRepository;
         this.fileRepository = fileRepository;
+        this.userRepository = userRepository;
         this.fileService = fileService;
+        this.searchService = searchService;
+        this.storageStatsService = storageStatsService;
+        this.storagePoolService = storagePoolService;
+        this.blobStoreService = blobStoreService;
+        this.signedLinkService = signedLinkService;
     }
 
     /**
@@ -62,6 +85,7 @@ public class FolderService {
             new File(rootPath + user.getUuid() + "/temp").mkdirs();
             new File(rootPath + user.getUuid() + "/temp/upload").mkdirs();
             new File(rootPath + user.getUuid() + "/storage").mkdirs();
+            new File(rootPath + user.getUuid() + "/staging").mkdirs();
 
             FolderEntity folderEntity = new FolderEntity();
             folderEntity.setUuid(user.getUuid());
@@ -85,10 +109,26 @@ public class FolderService {
      */
     public void deleteUserFolder(String user) {
         try{
-            deleteDirectoryRecursively(Paths.get(rootPath, user));
+            for (Volume volume : storagePoolService.getVolumes()) {
+                Path userDir = volume.getRoot().resolve(user);
+                if (Files.exists(userDir)) deleteDirectoryRecursively(userDir);
+            }
+
+            List<FileEntity> files = fileRepository.findAllByOwner(user);
+            for (FileEntity file : files) {
+                if (blobStoreService.isLocal(file.getInternalPath())) continue;
+                try {
+                    blobStoreService.delete(file.getInternalPath());
+                } catch (IOException e) {
+                    System.err.println("Could not delete blob " + file.getInternalPath() + ": " + e.getMessage());
+                }
+            }
 
             folderRepository.deleteAll(folderRepository.findAllByOwner(user));
-            fileRepository.deleteAll(fileRepository.findAllByOwner(user));
+            fileRepository.deleteAll(files);
+            searchService.invalidate(user);
+            signedLinkService.ownerChanged(user);
+            storageStatsService.ownerRemoved(user);
         }catch (Exception e){
             System.err.println(e.getMessage() + "\n With Cause:\n" + e.getCause());
         }
@@ -105,7 +145,7 @@ public class FolderService {
     public ResponseEntity<Map<String, Object>> BrowseDirectory(String folderId) {
         String uuid = appUserDetailsService.getUserEntity().getUuid();
 
-        List<FileEntity> files = fileRepository.findByOwnerAndFolderId(uuid, folderId);
+        List<FileEntity> files = fileRepository.findByOwnerAndFolderIdAndTrashedFalse(uuid, folderId);
         List<FileEntry> fileResult = new ArrayList<>();
         List<FolderEntry> folderResult = new ArrayList<>();
 
@@ -124,7 +164,7 @@ public class FolderService {
             fileResult.add(fileEntry);
         }
 
-        List<FolderEntity> folders = folderRepository.findByOwnerAndFolderId(uuid, folderId);
+        List<FolderEntity> folders = folderRepository.findByOwnerAndFolderIdAndTrashedFalse(uuid, folderId);
         for (FolderEntity folder : folders) {
             FolderEntry folderEntry = new FolderEntry();
             folderEntry.setUuid(folder.getUuid());
@@ -168,6 +208,7 @@ public class FolderService {
         folderEntity.setUserCreated(true);
 
         folderRepository.save(folderEntity);
+        searchService.folderAdded(folderEntity);
 
         FolderEntry folderEntry = new FolderEntry();
         folderEntry.setUuid(folderUuid);
@@ -180,29 +221,100 @@ public class FolderService {
 
 
     /**
-     * Delete folder
+     * Moves the folder and everything under it to the trash
      *
      * @param folderId the parent folder
      * @param folderUuid uuid of the folder
      * @return exit code
      *
      */
+    @Transactional
     public int deleteFolder(String folderId, String folderUuid) {
         String uuid = appUserDetailsService.getUserEntity().getUuid();
 
         if(!folderExistByUuid(uuid, folderId, folderUuid)) { return 404; }
 
-        List<FolderEntity> folders = folderRepository.findAllDescendantFolders(uuid, folderId, folderUuid);
-        List<FileEntity> files = fileRepository.findAllFilesUnderFolderTree(uuid, folderId, folderUuid);
-
-        for(FileEntity file : files) {
-            fileService.deleteFile(file.getFolderId(), file.getUuid());
-        }
-        folderRepository.deleteAll(folders);
+        // Files first, the folder walk needs the tree to still be reachable
+        LocalDateTime now = LocalDateTime.now();
+        fileRepository.trashFilesUnderFolderTree(uuid, folderId, folderUuid, now);
+        folderRepository.trashFolderTree(uuid, folderId, folderUuid, now);
+        searchService.folderTreeTrashed(uuid, folderUuid);
+        signedLinkService.ownerChanged(uuid);
 
         return 0;
     }
 
+    /**
+     * Copy folder and everything under it. Rows are written in one transaction, blobs are copied in their store (hardlinks on local volumes)
+     *
+     * @param folderId the parent folder
+     * @param folderUuid uuid of the folder
+     * @param newParent the folder to copy into
+     * @return exit code
+     *
+     */
+    @Transactional
+    public int copyFolder(String folderId, String folderUuid, String newParent) {
+        UserEntity user = appUserDetailsService.getUserEntity();
+        String uuid = user.getUuid();
+
+        List<String> linked = new ArrayList<>();
+        try {
+            if(!folderExistByUuid(uuid, folderId, folderUuid)) return 404;
+            if(folderRepository.findByOwnerAndUuidAndTrashedFalse(uuid, newParent).isEmpty()) return 2;
+
+            List<FolderEntity> folders = folderRepository.findAllDescendantFolders(uuid, folderId, folderUuid);
+            if(folders.stream().anyMatch(f -> f.getUuid().equals(newParent))) return 400; // copied into itself
+
+            List<FileEntity> files = fileRepository.findAllFilesUnderFolderTree(uuid, folderId, folderUuid);
+            long size = files.stream().mapToLong(FileEntity::getChargedSize).sum();
+            if(user.getDataUsed() + size > user.getDataLimit()) return -3;
+
+            Map<String, String> copiedIds = new HashMap<>();
+            for (FolderEntity folder : folders) {
+                copiedIds.put(folder.getUuid(), UUID.randomUUID().toString());
+            }
+
+            List<FolderEntity> folderCopies = new ArrayList<>();
+            for (FolderEntity folder : folders) {
+                boolean root = folder.getUuid().equals(folderUuid);
+
+                FolderEntity copy = new FolderEntity();
+                copy.setUuid(copiedIds.get(folder.getUuid()));
+                copy.setOwner(uuid);
+                copy.setName(root ? getValidFolderName(newParent, folder.getName(), uuid) : folder.getName());
+                copy.setFolderId(root ? newParent : copiedIds.get(folder.getFolderId()));
+                copy.setUserCreated(true);
+                if(copy.getName().equals("nil")) return 409;
+
+                folderCopies.add(copy);
+            }
+
+            List<FileEntity> fileCopies = new ArrayList<>();
+            for (FileEntity file : files) {
+                FileEntity copy = fileService.copyOf(file, copiedIds.get(file.getFolderId()), file.getName());
+                blobStoreService.copy(file, copy);
+                linked.add(copy.getInternalPath());
+                fileCopies.add(copy);
+            }
+
+            folderRepository.saveAll(folderCopies);
+            fileRepository.saveAll(fileCopies);
+            userRepository.addDataUsed(uuid, size);
+            for (FolderEntity copy : folderCopies) searchService.folderAdded(copy);
+            for (FileEntity copy : fileCopies) searchService.fileAdded(copy);
+            storageStatsService.filesAdded(fileCopies);
+            return 0;
+        } catch (Exception e) {
+            System.err.println(e.getMessage() + "\n With Cause:\n" + e.getCause());
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            for (String location : linked) {
+                try { blobStoreService.delete(location); } catch (IOException ignored) {}
+            }
+            return 500;
+        }
+    }
+
     public ResponseEntity<List<FolderEntry>> getFolderLocation(String folderUuid) {
         String uuid = appUserDetailsService.getUserEntity().getUuid();
 
@@ -231,7 +343,7 @@ public class FolderService {
      *
      */
     public boolean folderExistByName(String owner, String folderId, String folderName) {
-        Optional<FolderEntity> folderEntity = folderRepository.findByOwnerAndFolderIdAndName(owner, folderId, folderName);
+        Optional<FolderEntity> folderEntity = folderRepository.findByOwnerAndFolderIdAndNameAndTrashedFalse(owner, folderId, folderName);
 
         return folderEntity.isPresent();
     }
@@ -245,7 +357,7 @@ public class FolderService {
      *
      */
     public boolean folderExistByUuid(String owner, String folderId, String folderUuid) {
-        Optional<FolderEntity> folderEntity = folderRepository.findByOwnerAndFolderIdAndUuid(owner, folderId, folderUuid);
+        Optional<FolderEntity> folderEntity = folderRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(owner, folderId, folderUuid);
 
         return folderEntity.isPresent();
     }
@@ -253,15 +365,16 @@ public class FolderService {
 
 
     public void downloadZipFile(String folderId, String folderUuid,
-                                HttpServletResponse response, String uuid) {
+                                HttpServletResponse response, String uuid, BandwidthService.Shaper shaper) {
         try {
             // 1) Collect folders/files from your repositories
             List<FolderEntity> allFolders = folderRepository.findAllDescendantFolders(uuid, folderId, folderUuid);
             List<FileEntity> allFiles    = fileRepository.findAllFilesUnderFolderTree(uuid, folderId, folderUuid);
 
-            // 2) Validate files exist on disk
+            // 2) Files are rows, a blob that went missing ends up as an empty entry below.
+            //    In location order, so packed files are read front to back through their segments
             List<FileEntity> validFiles = allFiles.stream()
-                    .filter(f -> Files.exists(Paths.get(f.getInternalPath())))
+                    .sorted(Comparator.comparing(FileEntity::getInternalPath))
                     .toList();
 
             if (validFiles.isEmpty()) {
@@ -276,8 +389,8 @@ public class FolderService {
                     .findFirst()
                     .orElse("download") + ".zip";
 
-            // 4) Build "zip path" → "disk path" mapping
-            Map<String, String> zipMap = buildZipPathMap(validFiles, allFolders, folderUuid);
+            // 4) Build "zip path" → file mapping
+            Map<String, FileEntity> zipMap = buildZipPathMap(validFiles, allFolders, folderUuid);
 
             // 5) Prepare response headers (send early to get TTFB and avoid proxy timeouts)
             response.setContentType("application/zip");
@@ -288,22 +401,40 @@ public class FolderService {
             response.flushBuffer(); // flush headers immediately
 
             // 6) Stream the ZIP
-            try (ZipOutputStream zip = new ZipOutputStream(response.getOutputStream())) {
+            try (ZipWriter zip = new ZipWriter(shaper.wrap(response.getOutputStream()))) {
                 zip.setLevel(Deflater.NO_COMPRESSION);
 
                 byte[] buffer = new byte[1024  * 1024];
 
-                for (Map.Entry<String, String> e : zipMap.entrySet()) {
+                for (Map.Entry<String, FileEntity> e : zipMap.entrySet()) {
                     String zipName  = normalizeZipPath(e.getKey());
-                    Path   diskPath = Paths.get(e.getValue());
+                    FileEntity file = e.getValue();
 
                     // Ensure directory entries are present if you want (optional; not strictly required)
                     // addParentDirs(zip, zipName);
 
-                    ZipEntry entry = new ZipEntry(zipName);
-                    zip.putNextEntry(entry);
+                    // compressed files go in as their stored deflate stream, nothing is inflated or deflated again
+                    if (file.getStoredSize() != null) {
+                        CompressedFrames.Index index = null;
+                        InputStream deflated = null;
+                        try {
+                            index = blobStoreService.index(file);
+                            deflated = blobStoreService.openDeflated(file, index);
+                        } catch (IOException io) {
+                            // falls through to an entry written the usual way
+                        }
+                        if (deflated != null) {
+                            // once started, a failure here leaves a broken zip and ends the download
+                            try (InputStream in = deflated) {
+                                zip.putDeflated(zipName, index.getCrc(), index.getPlainSize(), index.deflatedSize(), in);
+                            }
+                            continue;
+                        }
+                    }
 
-                    try (InputStream in = Files.newInputStream(diskPath)) {
+                    zip.putNextEntry(zipName);
+
+                    try (InputStream in = blobStoreService.open(file, 0)) {
                         int read;
                         while ((read = in.read(buffer)) != -1) {
                             zip.write(buffer, 0, read);
@@ -317,6 +448,7 @@ public class FolderService {
                 }
 
                 zip.finish(); // finalize central directory
+                shaper.markComplete();
                 zip.flush();
             }
         } catch (Exception e) {
@@ -330,11 +462,11 @@ public class FolderService {
     }
 
     // Keep your original mapping logic; just normalize to forward slashes for ZIP entries.
-    public Map<String, String> buildZipPathMap(List<FileEntity> files, List<FolderEntity> folders, String rootFolderId) {
+    public Map<String, FileEntity> buildZipPathMap(List<FileEntity> files, List<FolderEntity> folders, String rootFolderId) {
         Map<String, FolderEntity> folderMap = folders.stream()
                 .collect(Collectors.toMap(FolderEntity::getUuid, f -> f));
 
-        Map<String, String> result = new LinkedHashMap<>();
+        Map<String, FileEntity> result = new LinkedHashMap<>();
 
         for (FileEntity file : files) {
             String zipPath = file.getName();
@@ -347,7 +479,7 @@ public class FolderService {
                 parentId = parent.getFolderId();
             }
 
-            result.put(zipPath, file.getInternalPath());
+            result.put(zipPath, file);
         }
         return result;
     }
@@ -403,7 +535,7 @@ public class FolderService {
     public FolderEntry getParentFolder(String folderId, String folderName) {
         String uuid = appUserDetailsService.getUserEntity().getUuid();
 
-        Optional<FolderEntity> folder = folderRepository.findByOwnerAndFolderIdAndName(uuid, folderId, folderName);
+        Optional<FolderEntity> folder = folderRepository.findByOwnerAndFolderIdAndNameAndTrashedFalse(uuid, folderId, folderName);
         if(folder.isEmpty()) return null;
 
         FolderEntity folderEntity = folder.get();
@@ -423,6 +555,9 @@ public class FolderService {
         try {
             int rows = folderRepository.renameFolder(owner, folderId, folderUuid, name);
             if (rows == 0) return 404;
+
+            folderRepository.findByOwnerAndUuidAndTrashedFalse(owner, folderUuid)
+                    .ifPresent(folder -> searchService.folderRenamed(owner, folder.getId(), name));
             return 200;
 
         } catch (DataIntegrityViolationException ex) {
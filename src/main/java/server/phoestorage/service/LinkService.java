@@ -1,8 +1,15 @@
 package server.phoestorage.service;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import jakarta.annotation.PreDestroy;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.servlet.View;
 import server.phoestorage.datasource.download.DownloadEntity;
@@ -15,8 +22,15 @@ import server.phoestorage.dto.DownloadEntry;
 import server.phoestorage.dto.FileEntry;
 import server.phoestorage.dto.FolderEntry;
 
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 @Service
 public class LinkService {
@@ -28,17 +42,74 @@ public class LinkService {
     private final DownloadRepository downloadRepository;
     private final FileRepository fileRepository;
     private final FolderRepository folderRepository;
+    private final DownloadStatsService downloadStatsService;
+
+    // downloads of links without a limit, written to the row in batches by flushDownloads
+    private final ConcurrentHashMap<String, LongAdder> pendingDownloads = new ConcurrentHashMap<>();
+    private final AtomicBoolean reaping = new AtomicBoolean();
+
+    @Value("${server.links.reap-batch}")
+    private int reapBatch;
+    @Value("${server.links.reap-pause}")
+    private long reapPause; // ms between batches
+
+    // link uuid -> link, empty when it doesn't exist (anymore). Each entry lives until its link expires
+    private final Cache<String, Optional<CachedLink>> links;
+    // link uuid -> listing of a shared folder tree, rebuilt after server.links.snapshot seconds
+    private final Cache<String, ShareSnapshot> snapshots;
 
     @Autowired
     public LinkService(AppUserDetailsService appUserDetailsService,
                        FileService fileService, FolderService folderService,
-                       DownloadRepository downloadRepository, FileRepository fileRepository, FolderRepository folderRepository) {
+                       DownloadRepository downloadRepository, FileRepository fileRepository, FolderRepository folderRepository,
+                       DownloadStatsService downloadStatsService,
+                       @Value("${server.links.cache}") int maxLinks,
+                       @Value("${server.links.missing}") int missingSeconds,
+                       @Value("${server.links.snapshots}") int maxSnapshots,
+                       @Value("${server.links.snapshot}") int snapshotSeconds) {
         this.appUserDetailsService = appUserDetailsService;
         this.fileService = fileService;
         this.folderService = folderService;
         this.downloadRepository = downloadRepository;
         this.fileRepository = fileRepository;
         this.folderRepository = folderRepository;
+        this.downloadStatsService = downloadStatsService;
+
+        long missingNanos = Duration.ofSeconds(missingSeconds).toNanos();
+        this.links = Caffeine.newBuilder()
+                .maximumSize(maxLinks)
+                .expireAfter(new Expiry<String, Optional<CachedLink>>() {
+                    @Override
+                    public long expireAfterCreate(String key, Optional<CachedLink> value, long currentTime) {
+                        if (value.isEmpty()) return missingNanos;
+                        LocalDateTime expires = value.get().link.getDateExpire();
+                        if (expires == null) return Long.MAX_VALUE;
+                        return Math.max(0, Duration.between(LocalDateTime.now(), expires).toNanos());
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(String key, Optional<CachedLink> value, long currentTime, long currentDuration) {
+                        return expireAfterCreate(key, value, currentTime);
+                    }
+
+                    @Override
+                    public long expireAfterRead(String key, Optional<CachedLink> value, long currentTime, long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .build();
+        this.snapshots = Caffeine.newBuilder()
+                .maximumSize(maxSnapshots)
+                .expireAfterWrite(Duration.ofSeconds(snapshotSeconds))
+                .build();
+    }
+
+    /**
+     * Drops all shared folder listings, e.g. after blobs were moved
+     *
+     */
+    public void forgetSnapshots() {
+        snapshots.invalidateAll();
     }
 
     public String createDownloadLink(String parentId, String childId, int downloadLimit, String date, boolean isFolder) {
@@ -62,18 +133,18 @@ public class LinkService {
 
             downloadEntity.setOwnerUuid(uuid);
             downloadEntity.setDateCreated(LocalDateTime.now().toString());
-            downloadEntity.setDateExpire(date);
+            downloadEntity.setDateExpire(expiresAt(date));
             downloadEntity.setDownloadLimit(downloadLimit);
             downloadEntity.setIsFolder(isFolder);
 
             if(isFolder){
                 downloadEntity.setSize(folderRepository.totalSizeUnderFolder(childId, parentId, uuid));
                 downloadEntity.setFileExtension("zip");
-                downloadEntity.setFileName(folderRepository.findByOwnerAndFolderIdAndUuid(uuid, parentId, childId).get().getName());
+                downloadEntity.setFileName(folderRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, parentId, childId).get().getName());
             }else{
-                downloadEntity.setSize(fileRepository.findByOwnerAndFolderIdAndUuid(uuid, parentId, childId).get().getSize());
+                downloadEntity.setSize(fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, parentId, childId).get().getSize());
 
-                FileEntity fileEntity = fileRepository.findByOwnerAndFolderIdAndUuid(uuid, parentId, childId).get();
+                FileEntity fileEntity = fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, parentId, childId).get();
                 downloadEntity.setFileExtension(fileEntity.getExtension());
                 downloadEntity.setFileName(fileEntity.getName());
             }
@@ -94,6 +165,8 @@ public class LinkService {
             Optional<DownloadEntity> downloadEntity = downloadRepository.findByUuidAndOwnerUuid(linkUuid, owner);
             if (downloadEntity.isEmpty()) { return 404; }
             downloadRepository.delete(downloadEntity.get());
+            links.invalidate(linkUuid);
+            snapshots.invalidate(linkUuid);
             return 0;
         }catch (Exception e){
             System.err.println(e.getMessage());
@@ -105,6 +178,10 @@ public class LinkService {
         try{
             List<DownloadEntity> downloadEntitys = downloadRepository.findAllByOwnerUuid(owner);
             downloadRepository.deleteAll(downloadEntitys);
+            for (DownloadEntity downloadEntity : downloadEntitys) {
+                links.invalidate(downloadEntity.getUuid());
+                snapshots.invalidate(downloadEntity.getUuid());
+            }
             return 0;
         }catch (Exception e){
             System.err.println(e.getMessage());
@@ -113,34 +190,271 @@ public class LinkService {
     }
 
 
+    /**
+     * Looks up a link without touching the row, used by pages and info lookups. Hot links are served from memory
+     *
+     * @param linkUuid uuid of the link
+     * @return the link, null if it does not exist, has expired or has no downloads left
+     *
+     */
     public DownloadEntity isLinkValid(String linkUuid) {
-        DownloadEntity downloadEntity = downloadRepository.findByUuid(linkUuid);
-        if(downloadEntity == null) {
-            System.out.println("downloadEntity was not found in database");
+        CachedLink cached = resolve(linkUuid);
+        return cached == null ? null : cached.link;
+    }
+
+    /**
+     * Counts one download of a link. Limited links take their download with a single conditional update,
+     * so concurrent downloads can never go past the limit. Unlimited links only bump an in memory counter
+     *
+     * @param linkUuid uuid of the link
+     * @return the link, null if it does not exist or has no downloads left
+     *
+     */
+    public DownloadEntity claimDownload(String linkUuid) {
+        CachedLink cached = resolve(linkUuid);
+        if(cached == null) {
             return null;
         }
-        if(downloadEntity.getDownloadLimit() >= 0 && downloadEntity.getDownloads() >= downloadEntity.getDownloadLimit()){
+        DownloadEntity downloadEntity = cached.link;
+
+        if(downloadEntity.getDownloadLimit() < 0){
+            pendingDownloads.compute(linkUuid, (k, count) -> {
+                if (count == null) count = new LongAdder();
+                count.increment();
+                return count;
+            });
+            return downloadEntity;
+        }
+
+        if(downloadRepository.claimDownload(linkUuid) == 0){
             // max number of downloads reached
-            downloadRepository.delete(downloadEntity);
-            System.out.println("downloadEntity reached maximum downloads. Deleting...");
+            links.invalidate(linkUuid);
+            downloadRepository.deleteExhausted(linkUuid);
             return null;
         }
-
-        downloadRepository.save(downloadEntity);
+        if(cached.downloads.incrementAndGet() >= downloadEntity.getDownloadLimit()){
+            links.invalidate(linkUuid); // that was the last one
+        }
         return downloadEntity;
     }
 
+    /**
+     * Lists one folder inside a shared folder, read only. Served from a snapshot of the whole shared tree
+     *
+     * @param linkUuid uuid of a folder link
+     * @param folderUuid folder to list, null for the shared folder itself
+     * @return files and folders like BrowseDirectory, 404 outside the share
+     *
+     */
+    public ResponseEntity<Map<String, Object>> browseShare(String linkUuid, String folderUuid) {
+        DownloadEntity downloadEntity = isLinkValid(linkUuid);
+        if(downloadEntity == null || !downloadEntity.getIsFolder()) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+
+        ShareSnapshot snapshot = snapshots.get(linkUuid, k -> loadSnapshot(downloadEntity));
+        String folder = folderUuid == null || folderUuid.isEmpty() ? downloadEntity.getFileUuid() : folderUuid;
+        if(!snapshot.folders.containsKey(folder)) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("files", snapshot.files.getOrDefault(folder, List.of()));
+        response.put("folders", snapshot.folders.get(folder));
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Finds a file inside a shared folder without counting a download
+     *
+     * @param linkUuid uuid of a folder link
+     * @param fileUuid uuid of a file somewhere in the shared tree
+     * @return the file, null if the link is not valid or the file is not in the share
+     *
+     */
+    public SharedFile findSharedFile(String linkUuid, String fileUuid) {
+        DownloadEntity downloadEntity = isLinkValid(linkUuid);
+        if(downloadEntity == null || !downloadEntity.getIsFolder()) {
+            return null;
+        }
+        return snapshots.get(linkUuid, k -> loadSnapshot(downloadEntity)).blobs.get(fileUuid);
+    }
+
+    private ShareSnapshot loadSnapshot(DownloadEntity downloadEntity) {
+        String owner = downloadEntity.getOwnerUuid();
+        List<FolderEntity> folders = folderRepository.findAllDescendantFolders(owner, downloadEntity.getFolderUuid(), downloadEntity.getFileUuid());
+        List<FileEntity> files = fileRepository.findAllFilesUnderFolderTree(owner, downloadEntity.getFolderUuid(), downloadEntity.getFileUuid());
+
+        ShareSnapshot snapshot = new ShareSnapshot();
+        Map<String, FolderEntity> byUuid = new HashMap<>();
+        for (FolderEntity folder : folders) {
+            byUuid.put(folder.getUuid(), folder);
+            snapshot.folders.put(folder.getUuid(), new ArrayList<>());
+        }
+
+        // sizes are summed up the tree here instead of one query per folder
+        Map<String, Long> sizes = new HashMap<>();
+        for (FileEntity file : files) {
+            FileEntry fileEntry = new FileEntry();
+            fileEntry.setUuid(file.getUuid());
+            fileEntry.setName(file.getName());
+            fileEntry.setExtension(file.getExtension());
+            fileEntry.setFolderId(file.getFolderId());
+            fileEntry.setCreated(file.getCreated());
+            fileEntry.setModified(file.getModified());
+            fileEntry.setSize(file.getSize());
+            snapshot.files.computeIfAbsent(file.getFolderId(), k -> new ArrayList<>()).add(fileEntry);
+            snapshot.blobs.put(file.getUuid(), new SharedFile(file));
+
+            String folderId = file.getFolderId();
+            while (folderId != null && byUuid.containsKey(folderId)) {
+                sizes.merge(folderId, file.getSize(), Long::sum);
+                if (folderId.equals(downloadEntity.getFileUuid())) break;
+                folderId = byUuid.get(folderId).getFolderId();
+            }
+        }
+
+        for (FolderEntity folder : folders) {
+            if (folder.getUuid().equals(downloadEntity.getFileUuid())) continue;
+            FolderEntry folderEntry = new FolderEntry();
+            folderEntry.setUuid(folder.getUuid());
+            folderEntry.setName(folder.getName());
+            folderEntry.setFolderId(folder.getFolderId());
+            folderEntry.setSize(sizes.getOrDefault(folder.getUuid(), 0L));
+            List<FolderEntry> siblings = snapshot.folders.get(folder.getFolderId());
+            if (siblings != null) siblings.add(folderEntry);
+        }
+        return snapshot;
+    }
+
+    private CachedLink resolve(String linkUuid) {
+        return links.get(linkUuid, uuid -> {
+            DownloadEntity downloadEntity = downloadRepository.findByUuid(uuid);
+            if(downloadEntity == null) {
+                return Optional.empty();
+            }
+            if(downloadEntity.getDownloadLimit() >= 0 && downloadEntity.getDownloads() >= downloadEntity.getDownloadLimit()){
+                return Optional.empty();
+            }
+
+            LocalDateTime expires = downloadEntity.getDateExpire();
+            if(expires != null && !expires.isAfter(LocalDateTime.now())){
+                return Optional.empty();
+            }
+            return Optional.of(new CachedLink(downloadEntity));
+        }).orElse(null);
+    }
+
+    /**
+     * Deletes expired links in small batches, so the table only holds links that can still be used. Runs on a thread
+     * of its own, the pauses between batches would otherwise hold the shared scheduler thread
+     *
+     */
+    @Scheduled(fixedDelay = 10 * 60 * 1000)
+    public void reapExpired() {
+        if (!reaping.compareAndSet(false, true)) return;
+        Thread thread = new Thread(this::reap, "link-reap");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void reap() {
+        try {
+            List<Integer> ids;
+            while (!(ids = downloadRepository.findExpiredIds(LocalDateTime.now(), PageRequest.of(0, reapBatch))).isEmpty()) {
+                downloadRepository.deleteAllByIdInBatch(ids);
+                if (ids.size() < reapBatch) break;
+                Thread.sleep(reapPause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println(e.getMessage() + "\n With Cause:\n" + e.getCause());
+        } finally {
+            reaping.set(false);
+        }
+    }
+
+    /* the client sends -1 for never, a date (valid through that day) or a date and time */
+    static LocalDateTime expiresAt(String dateExpire) {
+        if (dateExpire == null || dateExpire.isBlank() || dateExpire.equals("-1")) return null;
+        try {
+            return LocalDateTime.parse(dateExpire);
+        } catch (DateTimeParseException e) {
+            try {
+                return LocalDate.parse(dateExpire).plusDays(1).atStartOfDay();
+            } catch (DateTimeParseException ex) {
+                System.err.println("Unreadable expiry date " + dateExpire + ", treating it as never");
+                return null;
+            }
+        }
+    }
+
+    private static String expireString(LocalDateTime dateExpire) {
+        return dateExpire == null ? "-1" : dateExpire.toString();
+    }
+
+    /**
+     * A file that may be downloaded through a folder link
+     *
+     */
+    public static class SharedFile {
+        public final FileEntity file; // the row as it was when the share was read
+        public final String name;
+
+        SharedFile(FileEntity file) {
+            this.file = file;
+            this.name = file.getName();
+        }
+    }
+
+    private static class ShareSnapshot {
+        final Map<String, List<FolderEntry>> folders = new HashMap<>(); // every folder of the share -> its subfolders
+        final Map<String, List<FileEntry>> files = new HashMap<>();
+        final Map<String, SharedFile> blobs = new HashMap<>();
+    }
+
+    private static class CachedLink {
+        final DownloadEntity link;
+        final AtomicInteger downloads; // of limited links, counted here so the entry can go once it runs out
+
+        CachedLink(DownloadEntity link) {
+            this.link = link;
+            this.downloads = new AtomicInteger(link.getDownloads());
+        }
+    }
+
+    @Scheduled(fixedDelay = 10 * 1000)
+    @PreDestroy
+    public void flushDownloads() {
+        for (String linkUuid : pendingDownloads.keySet()) {
+            long[] count = new long[1];
+            // idle counters are removed under the same bin lock increments go through, so none get lost
+            pendingDownloads.computeIfPresent(linkUuid, (k, c) -> {
+                count[0] = c.sumThenReset();
+                return count[0] == 0 ? null : c;
+            });
+            if (count[0] == 0) continue;
+
+            try {
+                downloadRepository.addDownloads(linkUuid, count[0]);
+            } catch (Exception e) {
+                System.err.println("Could not save download count of " + linkUuid + ": " + e.getMessage());
+                pendingDownloads.computeIfAbsent(linkUuid, k -> new LongAdder()).add(count[0]);
+            }
+        }
+    }
+
     public ResponseEntity<DownloadEntry> getDownloadInfo(String downloadUuid) {
         DownloadEntity downloadEntity = isLinkValid(downloadUuid);
         if(downloadEntity == null) {
-            System.out.println("downloadEntity was not found in database");
             return ResponseEntity.status(HttpStatus.NOT_FOUND).body(null);
         }
 
         DownloadEntry downloadEntry = new DownloadEntry();
         downloadEntry.setIsFolder(downloadEntity.getIsFolder());
         downloadEntry.setSize(downloadEntity.getSize());
-        downloadEntry.setDateExpire(downloadEntity.getDateExpire());
+        downloadEntry.setDateExpire(expireString(downloadEntity.getDateExpire()));
         downloadEntry.setOwnerUuid(downloadEntity.getOwnerUuid());
         downloadEntry.setFileExtension(downloadEntity.getFileExtension());
         downloadEntry.setFileName(downloadEntity.getFileName());
@@ -160,15 +474,16 @@ public class LinkService {
             downloadEntry.setFileExtension(downloadEntity.getFileExtension());
             downloadEntry.setDownloads(downloadEntity.getDownloads());
             downloadEntry.setMaxDownloads(downloadEntity.getDownloadLimit());
-            downloadEntry.setDateExpire(downloadEntity.getDateExpire());
+            downloadEntry.setDateExpire(expireString(downloadEntity.getDateExpire()));
             downloadEntry.setIsFolder(downloadEntity.getIsFolder());
             downloadEntries.add(downloadEntry);
         }
+        downloadStatsService.addStats(downloadEntries, owner);
         return downloadEntries;
     }
 
-    public List<DownloadEntry> getAllDownloads(){
-        List<DownloadEntity> downloadEntities = downloadRepository.findAll();
+    public List<DownloadEntry> getAllDownloads(int page, int size){
+        List<DownloadEntity> downloadEntities = downloadRepository.findAllByOrderByIdDesc(PageRequest.of(page, size));
 
         List<DownloadEntry> downloadEntries = new ArrayList<>();
         for(DownloadEntity downloadEntity : downloadEntities){
@@ -179,10 +494,15 @@ public class LinkService {
             downloadEntry.setFileExtension(downloadEntity.getFileExtension());
             downloadEntry.setDownloads(downloadEntity.getDownloads());
             downloadEntry.setMaxDownloads(downloadEntity.getDownloadLimit());
-            downloadEntry.setDateExpire(downloadEntity.getDateExpire());
+            downloadEntry.setDateExpire(expireString(downloadEntity.getDateExpire()));
             downloadEntry.setIsFolder(downloadEntity.getIsFolder());
             downloadEntries.add(downloadEntry);
         }
+        downloadStatsService.addStats(downloadEntries, null);
         return downloadEntries;
     }
+
+    public Map<String, Object> getLinkOverview(int limit) {
+        return downloadStatsService.getOverview(limit);
+    }
 }
@@ -0,0 +1,141 @@
+package server.phoestorage.service;
+
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import server.phoestorage.blob.PackedBlobStore;
+import server.phoestorage.blob.SegmentCipher;
+import server.phoestorage.classes.Volume;
+import server.phoestorage.datasource.file.FileRepository;
+import server.phoestorage.datasource.users.UserRepository;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compacts the segment files of PackedBlobStore. Once the bytes of deleted files are more than server.pack.garbage
+ * of a segment, its live files are appended to the owner's current segment and their rows pointed there, each row
+ * only if it still has the old location. A segment no row points at is deleted when it was not touched for an
+ * hour, so a download that read the old location just before the move can still open it
+ *
+ */
+@Service
+public class PackService {
+    private static final Duration GRACE = Duration.ofHours(1);
+
+    private final FileRepository fileRepository;
+    private final UserRepository userRepository;
+    private final StoragePoolService storagePoolService;
+    private final StorageLayoutService storageLayoutService;
+    private final BlobStoreService blobStoreService;
+    private final SignedLinkService signedLinkService;
+
+    @Value("${server.pack.garbage}")
+    private double garbage;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "pack-compact");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    @Autowired
+    public PackService(FileRepository fileRepository,
+                       UserRepository userRepository,
+                       StoragePoolService storagePoolService,
+                       StorageLayoutService storageLayoutService,
+                       BlobStoreService blobStoreService,
+                       SignedLinkService signedLinkService) {
+        this.fileRepository = fileRepository;
+        this.userRepository = userRepository;
+        this.storagePoolService = storagePoolService;
+        this.storageLayoutService = storageLayoutService;
+        this.blobStoreService = blobStoreService;
+        this.signedLinkService = signedLinkService;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        compactor.shutdownNow();
+    }
+
+    // copying segments takes long, it runs on the compactor instead of holding the shared scheduler thread
+    @Scheduled(cron = "${server.pack.cron}")
+    public void compact() {
+        if (!running.compareAndSet(false, true)) return;
+        compactor.execute(this::compactAll);
+    }
+
+    private void compactAll() {
+        long[] reclaimed = new long[1];
+        try {
+            for (String owner : userRepository.findAllUuids()) {
+                for (Volume volume : storagePoolService.getVolumes()) {
+                    Path dir = storageLayoutService.packDir(volume.getRoot(), owner);
+                    if (!Files.isDirectory(dir)) continue;
+                    try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "*.pack")) {
+                        for (Path segment : segments) {
+                            try {
+                                reclaimed[0] += compactSegment(owner, volume, segment);
+                            } catch (IOException e) {
+                                System.err.println("Could not compact " + segment + ": " + e.getMessage());
+                            }
+                        }
+                    } catch (IOException e) {
+                        System.err.println("Could not list " + dir + ": " + e.getMessage());
+                    }
+                }
+            }
+            if (reclaimed[0] > 0) System.err.println("Pack compaction freed " + reclaimed[0] + " bytes");
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /* returns the bytes freed on disk */
+    private long compactSegment(String owner, Volume volume, Path segment) throws IOException {
+        PackedBlobStore packed = blobStoreService.getPacked();
+        if (packed.isAppending(segment)) return 0;
+
+        List<Object[]> rows = fileRepository.findPacked(owner, escape(PackedBlobStore.prefixOf(segment)) + "%");
+        long size = Files.size(segment);
+        if (rows.isEmpty()) {
+            if (Files.getLastModifiedTime(segment).toInstant().isAfter(Instant.now().minus(GRACE))) return 0;
+            Files.delete(segment);
+            return size;
+        }
+
+        long live = 0;
+        for (Object[] row : rows) {
+            long rowSize = ((Number) row[2]).longValue();
+            live += (Boolean) row[3] ? SegmentCipher.cipherSize(rowSize) : rowSize;
+        }
+        if (size - live <= size * garbage) return 0;
+
+        for (Object[] row : rows) {
+            String uuid = (String) row[0];
+            String old = (String) row[1];
+            String moved = packed.relocate(old, owner, volume);
+            // a row that changed meanwhile leaves its new copy as garbage of the current segment
+            if (fileRepository.moveBlob(owner, uuid, old, moved, volume.getId()) == 1) signedLinkService.fileChanged(owner, uuid);
+        }
+        // no rows left, deleted by a run after the grace period
+        Files.setLastModifiedTime(segment, FileTime.from(Instant.now()));
+        return 0;
+    }
+
+    private static String escape(String like) {
+        return like.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+}
@@ -0,0 +1,319 @@
+package server.phoestorage.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import server.phoestorage.blob.SegmentCipher;
+import server.phoestorage.classes.TokenBucket;
+import server.phoestorage.classes.Volume;
+import server.phoestorage.datasource.file.FileRepository;
+import server.phoestorage.datasource.users.UserRepository;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the volumes of the storage pool with the file table and fixes users.dataUsed. Owners are checked in parallel on a
+ * small pool, every stat and directory entry takes a token from a shared bucket so a run can go during the
+ * day without starving downloads. Per owner the file rows are read in keyset pages and the storage
+ * directory in batches, so memory stays bounded no matter how many files an owner has
+ *
+ */
+@Service
+public class ReconcileService {
+    private static final int BATCH = 1000;
+    private static final int REPORT_LIMIT = 1000; // entries kept per list in the report
+
+    private final FileRepository fileRepository;
+    private final UserRepository userRepository;
+    private final StoragePoolService storagePoolService;
+    private final StorageLayoutService storageLayoutService;
+    private final BlobStoreService blobStoreService;
+
+    @Value("${server.reconcile.threads}")
+    private int threads;
+    @Value("${server.reconcile.grace}")
+    private int graceMinutes; // blobs younger than this may belong to an upload that is not saved yet
+    @Value("${server.reconcile.quarantine}")
+    private boolean scheduledQuarantine;
+
+    private final TokenBucket io;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Report report;
+    // blobs found missing while serving, reported with the next run
+    private final Set<String> missingOnServe = ConcurrentHashMap.newKeySet();
+
+    @Autowired
+    public ReconcileService(FileRepository fileRepository,
+                            UserRepository userRepository,
+                            StoragePoolService storagePoolService,
+                            StorageLayoutService storageLayoutService,
+                            BlobStoreService blobStoreService,
+                            @Value("${server.reconcile.rate}") long rate) {
+        this.fileRepository = fileRepository;
+        this.userRepository = userRepository;
+        this.storagePoolService = storagePoolService;
+        this.storageLayoutService = storageLayoutService;
+        this.blobStoreService = blobStoreService;
+        this.io = new TokenBucket(rate, Math.max(1, rate));
+    }
+
+    /**
+     * Starts a run in the background
+     *
+     * @param quarantine move stray blobs to the owner's quarantine folder instead of only reporting them
+     * @return exit code, 409 if a run is already going
+     *
+     */
+    public int start(boolean quarantine) {
+        if (!running.compareAndSet(false, true)) return 409;
+        launch(quarantine);
+        return 0;
+    }
+
+    // the walk takes long, it gets its own thread instead of holding the shared scheduler thread
+    @Scheduled(cron = "${server.reconcile.cron}")
+    public void scheduled() {
+        if (running.compareAndSet(false, true)) launch(scheduledQuarantine);
+    }
+
+    private void launch(boolean quarantine) {
+        Thread thread = new Thread(() -> run(quarantine), "reconcile");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Map<String, Object> getReport() {
+        Report current = report;
+        Map<String, Object> map = current == null ? new LinkedHashMap<>(Map.of("status", "never run")) : current.toMap();
+        map.put("missingOnServe", new ArrayList<>(missingOnServe));
+        return map;
+    }
+
+    /**
+     * Called when a download finds no blob for its row. Nothing is fixed on the request path,
+     * the location is kept for the admin and rechecked by the next run
+     *
+     */
+    public void blobMissing(String location) {
+        System.err.println("Blob missing on download: " + location);
+        if (missingOnServe.size() < REPORT_LIMIT) missingOnServe.add(location);
+    }
+
+    private void run(boolean quarantine) {
+        Report current = new Report(quarantine);
+        report = current;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            Set<String> owners = new TreeSet<>(userRepository.findAllUuids());
+            Set<String> users = new HashSet<>(owners);
+            for (Volume volume : storagePoolService.getVolumes()) {
+                try (DirectoryStream<Path> dirs = Files.newDirectoryStream(volume.getRoot(), Files::isDirectory)) {
+                    for (Path dir : dirs) {
+                        String name = dir.getFileName().toString();
+                        if (!users.contains(name) && Files.isDirectory(dir.resolve("storage"))) {
+                            current.add(current.strayOwners, volume.getId() + ":" + name);
+                        }
+                    }
+                }
+            }
+
+            List<Future<?>> futures = new ArrayList<>();
+            for (String owner : owners) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        reconcileOwner(owner, current);
+                    } catch (Exception e) {
+                        System.err.println("Reconcile of " + owner + " failed: " + e.getMessage());
+                        current.add(current.errors, owner + ": " + e.getMessage());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+            missingOnServe.clear(); // the run has seen them all again
+            current.status = "finished";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            current.status = "interrupted";
+        } catch (Exception e) {
+            System.err.println("Reconcile failed: " + e.getMessage());
+            current.add(current.errors, e.getMessage());
+            current.status = "failed";
+        } finally {
+            pool.shutdownNow();
+            current.finished = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    private void reconcileOwner(String owner, Report current) throws IOException, InterruptedException {
+        // rows without a blob, or with a blob of another size. Only local blobs, the bucket is not walked
+        String after = "";
+        List<Object[]> page;
+        while (!(page = fileRepository.findBlobPage(owner, after, PageRequest.of(0, BATCH))).isEmpty()) {
+            for (Object[] row : page) {
+                String uuid = (String) row[0];
+                long size = ((Number) row[2]).longValue();
+                // the row has the plaintext size
+                if (row[4] != null) size = ((Number) row[4]).longValue();
+                else if ((Boolean) row[3]) size = SegmentCipher.cipherSize(size);
+                after = uuid;
+                if (!blobStoreService.isLocal((String) row[1])) continue;
+                Path blob = Paths.get((String) row[1]);
+                throttle();
+                current.rows.incrementAndGet();
+                try {
+                    long actual = Files.size(blob);
+                    if (actual != size) current.add(current.sizeMismatch, owner + "/" + uuid + ": row " + size + ", disk " + actual);
+                } catch (NoSuchFileException e) {
+                    current.add(current.missing, owner + "/" + uuid);
+                }
+            }
+        }
+
+        // blobs without a row, on every volume
+        Instant grace = Instant.now().minus(Duration.ofMinutes(graceMinutes));
+        for (Volume volume : storagePoolService.getVolumes()) {
+            Path storage = storageLayoutService.storageDir(volume.getRoot(), owner);
+            if (!Files.isDirectory(storage)) continue;
+            List<Path> batch = new ArrayList<>(BATCH);
+            scanBlobs(owner, storage, batch, grace, current);
+            if (!batch.isEmpty()) checkBlobs(owner, batch, grace, current);
+        }
+
+        long before = userRepository.findDataUsed(owner).orElse(0L);
+        userRepository.recountDataUsed(owner);
+        long now = userRepository.findDataUsed(owner).orElse(0L);
+        if (before != now) current.add(current.quotaFixed, owner + ": " + before + " -> " + now);
+    }
+
+    /* walks the fanout directories of StorageLayoutService, blobs of the flat layout are found at the top */
+    private void scanBlobs(String owner, Path dir, List<Path> batch, Instant grace, Report current) throws IOException, InterruptedException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                throttle();
+                // fanout directories have two character names, so blobs never need an extra stat here
+                if (entry.getFileName().toString().length() == 2 && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+                    scanBlobs(owner, entry, batch, grace, current);
+                    continue;
+                }
+                current.blobs.incrementAndGet();
+                batch.add(entry);
+                if (batch.size() == BATCH) {
+                    checkBlobs(owner, batch, grace, current);
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    private void checkBlobs(String owner, List<Path> batch, Instant grace, Report current) throws IOException {
+        Map<String, Path> byUuid = new HashMap<>();
+        for (Path blob : batch) {
+            String name = blob.getFileName().toString();
+            if (name.endsWith(".lock")) {
+                // upload still going unless it has not been written to for the grace period
+                if (Files.getLastModifiedTime(blob).toInstant().isBefore(grace.minus(Duration.ofDays(1)))) {
+                    stray(owner, blob, current);
+                }
+                continue;
+            }
+            byUuid.put(storageLayoutService.uuidOf(name), blob);
+        }
+        if (byUuid.isEmpty()) return;
+
+        for (String uuid : fileRepository.findExistingUuids(owner, byUuid.keySet())) byUuid.remove(uuid);
+        for (Path blob : byUuid.values()) {
+            BasicFileAttributes attrs = Files.readAttributes(blob, BasicFileAttributes.class);
+            if (attrs.isRegularFile() && attrs.lastModifiedTime().toInstant().isBefore(grace)) stray(owner, blob, current);
+        }
+    }
+
+    private void stray(String owner, Path blob, Report current) {
+        current.add(current.orphans, owner + "/" + blob.getFileName());
+        if (!current.quarantine) return;
+
+        try {
+            Path root = storagePoolService.volumeOf(blob).getRoot();
+            Path target = root.resolve(owner).resolve("quarantine").resolve(blob.getFileName().toString());
+            Files.createDirectories(target.getParent());
+            Files.move(blob, target, StandardCopyOption.REPLACE_EXISTING);
+            current.quarantined.incrementAndGet();
+        } catch (IOException e) {
+            current.add(current.errors, "Could not quarantine " + blob + ": " + e.getMessage());
+        }
+    }
+
+    private void throttle() throws InterruptedException {
+        long wait = io.reserve(1);
+        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    private static class Report {
+        final boolean quarantine;
+        final LocalDateTime started = LocalDateTime.now();
+        volatile LocalDateTime finished;
+        volatile String status = "running";
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong blobs = new AtomicLong();
+        final AtomicLong quarantined = new AtomicLong();
+        final Findings missing = new Findings();
+        final Findings orphans = new Findings();
+        final Findings sizeMismatch = new Findings();
+        final Findings quotaFixed = new Findings();
+        final Findings strayOwners = new Findings();
+        final Findings errors = new Findings();
+
+        Report(boolean quarantine) {
+            this.quarantine = quarantine;
+        }
+
+        void add(Findings findings, String entry) {
+            findings.count.incrementAndGet();
+            synchronized (findings.entries) {
+                if (findings.entries.size() < REPORT_LIMIT) findings.entries.add(entry);
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("status", status);
+            map.put("quarantine", quarantine);
+            map.put("started", started);
+            map.put("finished", finished);
+            map.put("rows", rows.get());
+            map.put("blobs", blobs.get());
+            map.put("quarantined", quarantined.get());
+            put(map, "missing", missing);
+            put(map, "orphans", orphans);
+            put(map, "sizeMismatch", sizeMismatch);
+            put(map, "quotaFixed", quotaFixed);
+            put(map, "strayOwners", strayOwners);
+            put(map, "errors", errors);
+            return map;
+        }
+
+        private void put(Map<String, Object> map, String name, Findings findings) {
+            map.put(name + "Count", findings.count.get());
+            synchronized (findings.entries) {
+                map.put(name, new ArrayList<>(findings.entries));
+            }
+        }
+    }
+
+    private static class Findings {
+        final AtomicLong count = new AtomicLong();
+        final List<String> entries = new ArrayList<>(); // the first REPORT_LIMIT only
+    }
+}
@@ -0,0 +1,368 @@
+package server.phoestorage.service;
+
+import com.sun.nio.file.ExtendedOpenOption;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import server.phoestorage.classes.TokenBucket;
+import server.phoestorage.classes.Volume;
+import server.phoestorage.datasource.file.FileRepository;
+import server.phoestorage.utils.BlobChecksum;
+
+import javax.crypto.AEADBadTagException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.*;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads the blobs on the volumes of the storage pool again and compares them with the checksum of their row, so
+ * bit rot and truncated files turn up here instead of on a download. Every volume is walked by its own thread
+ * in file id order, one checksum segment per read, and all threads take their bytes from one shared budget.
+ * Reads skip the page cache where the file system allows it so a run does not push out what users are reading.
+ * The position on every volume is kept in a file at its root, a run after a restart goes on from there.
+ * Packed files are read from their segment through the BlobStore. Blobs in the bucket are left to the object
+ * store, their rows are on no volume
+ *
+ */
+@Service
+public class ScrubService {
+    private static final int BATCH = 500;
+    private static final int REPORT_LIMIT = 1000; // entries kept per list in the report
+    private static final String CURSOR = ".scrub-cursor";
+
+    private final FileRepository fileRepository;
+    private final StoragePoolService storagePoolService;
+    private final BlobStoreService blobStoreService;
+
+    @Value("${server.scrub.quarantine}")
+    private boolean scheduledQuarantine;
+
+    private final TokenBucket io;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Report report;
+
+    @Autowired
+    public ScrubService(FileRepository fileRepository,
+                        StoragePoolService storagePoolService,
+                        BlobStoreService blobStoreService,
+                        @Value("${server.scrub.rate}") long rateMb) {
+        this.fileRepository = fileRepository;
+        this.storagePoolService = storagePoolService;
+        this.blobStoreService = blobStoreService;
+        this.io = new TokenBucket(rateMb * 1024 * 1024, BlobChecksum.SEGMENT);
+    }
+
+    /**
+     * Starts a run in the background, it goes on from where the last one stopped on every volume
+     *
+     * @param quarantine move blobs that do not match their checksum to the owner's quarantine folder
+     * @return exit code, 409 if a run is already going
+     *
+     */
+    public int start(boolean quarantine) {
+        if (!running.compareAndSet(false, true)) return 409;
+        launch(quarantine);
+        return 0;
+    }
+
+    // a throttled pass can take days, it gets its own thread instead of holding the shared scheduler thread
+    @Scheduled(cron = "${server.scrub.cron}")
+    public void scheduled() {
+        if (running.compareAndSet(false, true)) launch(scheduledQuarantine);
+    }
+
+    private void launch(boolean quarantine) {
+        Thread thread = new Thread(() -> run(quarantine), "scrub");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public Map<String, Object> getReport() {
+        Report current = report;
+        return current == null ? new LinkedHashMap<>(Map.of("status", "never run")) : current.toMap();
+    }
+
+    private void run(boolean quarantine) {
+        Report current = new Report(quarantine);
+        report = current;
+
+        List<Volume> volumes = storagePoolService.getVolumes();
+        ExecutorService pool = Executors.newFixedThreadPool(volumes.size());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Volume volume : volumes) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        scrubVolume(volume, current);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } catch (Exception e) {
+                        System.err.println("Scrub of volume " + volume.getId() + " failed: " + e.getMessage());
+                        current.add(current.errors, volume.getId() + ": " + e.getMessage());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+            current.status = "finished";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            current.status = "interrupted";
+        } catch (Exception e) {
+            System.err.println("Scrub failed: " + e.getMessage());
+            current.add(current.errors, e.getMessage());
+            current.status = "failed";
+        } finally {
+            pool.shutdownNow();
+            current.finished = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    private void scrubVolume(Volume volume, Report current) throws IOException, InterruptedException {
+        Path cursor = volume.getRoot().resolve(CURSOR);
+        int after = readCursor(cursor);
+        SegmentReader reader = new SegmentReader(volume);
+        current.cursors.put(volume.getId(), after);
+
+        List<Object[]> page;
+        while (!(page = fileRepository.findScrubPage(volume.getId(), after, PageRequest.of(0, BATCH))).isEmpty()) {
+            List<Integer> verified = new ArrayList<>();
+            for (Object[] row : page) {
+                int id = ((Number) row[0]).intValue();
+                if (scrubBlob(row, reader, volume, current)) verified.add(id);
+                after = id;
+            }
+            if (!verified.isEmpty()) fileRepository.markVerified(verified, LocalDateTime.now());
+            Files.writeString(cursor, Integer.toString(after));
+            current.cursors.put(volume.getId(), after);
+        }
+
+        // through the whole volume, the next run starts over
+        Files.deleteIfExists(cursor);
+        current.cursors.put(volume.getId(), 0);
+    }
+
+    /* row of findScrubPage, true if the blob matches the checksum already on the row */
+    private boolean scrubBlob(Object[] row, SegmentReader reader, Volume volume, Report current) throws InterruptedException {
+        int id = ((Number) row[0]).intValue();
+        String owner = (String) row[1];
+        String uuid = (String) row[2];
+        String location = (String) row[3];
+        long size = ((Number) row[4]).longValue();
+        String checksum = (String) row[5];
+        boolean encrypted = (Boolean) row[6];
+        boolean compressed = row[7] != null;
+        String cipherId = (String) row[8];
+
+        Path blob = blobStoreService.isLocal(location) ? Paths.get(location) : null;
+        SegmentReader.Result result;
+        try {
+            if (blob != null && !encrypted && !compressed) {
+                result = reader.read(blob);
+            } else {
+                // the checksum is of the plaintext, decrypting also checks every segment's tag
+                try (ReadableByteChannel ch = Channels.newChannel(blobStoreService.open(owner, location, cipherId, compressed, 0))) {
+                    result = reader.read(ch, size);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // moved by a migration or reclaimed from the trash since the page was read, otherwise the reconciler's business
+            if (fileRepository.findById(id).map(f -> f.getInternalPath().equals(location)).orElse(false)) {
+                current.add(current.missing, owner + "/" + uuid);
+            }
+            return false;
+        } catch (IOException e) {
+            if (e.getCause() instanceof AEADBadTagException) {
+                mismatch(owner, uuid, location, blob, volume, e.getMessage(), current);
+                return false;
+            }
+            System.err.println("Could not read blob " + location + ": " + e.getMessage());
+            current.add(current.unreadable, owner + "/" + uuid + ": " + e.getMessage());
+            return false;
+        }
+        current.files.incrementAndGet();
+        current.bytes.addAndGet(result.size);
+
+        if (result.size != size) {
+            mismatch(owner, uuid, location, blob, volume, "row " + size + " bytes, disk " + result.size, current);
+            return false;
+        }
+        if (checksum == null) {
+            if (fileRepository.recordChecksum(id, location, result.checksum, LocalDateTime.now()) == 1) current.recorded.incrementAndGet();
+            return false;
+        }
+        if (!checksum.equals(result.checksum)) {
+            mismatch(owner, uuid, location, blob, volume, "checksum " + checksum + ", disk " + result.checksum, current);
+            return false;
+        }
+        return true;
+    }
+
+    /* the row stays, downloads get a 404 instead of bad bytes until the blob is restored. Packed blobs share their file, they are only reported */
+    private void mismatch(String owner, String uuid, String location, Path blob, Volume volume, String detail, Report current) {
+        System.err.println("Blob " + location + " does not match its row: " + detail);
+        current.add(current.mismatched, owner + "/" + uuid + ": " + detail);
+        if (!current.quarantine || blob == null) return;
+
+        try {
+            Path target = volume.getRoot().resolve(owner).resolve("quarantine").resolve(uuid);
+            Files.createDirectories(target.getParent());
+            Files.move(blob, target, StandardCopyOption.REPLACE_EXISTING);
+            current.quarantined.incrementAndGet();
+        } catch (IOException e) {
+            current.add(current.errors, "Could not quarantine " + blob + ": " + e.getMessage());
+        }
+    }
+
+    private static int readCursor(Path cursor) {
+        try {
+            return Integer.parseInt(Files.readString(cursor).trim());
+        } catch (IOException | NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Reads blobs of one volume segment by segment into one buffer, with O_DIRECT until the volume turns out not to support it
+     *
+     */
+    private class SegmentReader {
+        private final ByteBuffer buffer;
+        private final CRC32C crc = new CRC32C();
+        private int[] segments = new int[16];
+        private boolean direct = true;
+
+        SegmentReader(Volume volume) {
+            int align = 4096;
+            try {
+                align = (int) Math.max(512, Files.getFileStore(volume.getRoot()).getBlockSize());
+            } catch (IOException | UnsupportedOperationException ignored) {}
+            // direct reads want an aligned buffer, the segment size is a multiple of every block size
+            this.buffer = ByteBuffer.allocateDirect(BlobChecksum.SEGMENT + align).alignedSlice(align);
+        }
+
+        Result read(Path blob) throws IOException, InterruptedException {
+            if (direct) {
+                try {
+                    return read(blob, true);
+                } catch (NoSuchFileException e) {
+                    throw e;
+                } catch (IOException | UnsupportedOperationException e) {
+                    // read it again the normal way, if that works the volume does not do direct reads
+                    Result result = read(blob, false);
+                    direct = false;
+                    return result;
+                }
+            }
+            return read(blob, false);
+        }
+
+        private Result read(Path blob, boolean direct) throws IOException, InterruptedException {
+            try (FileChannel ch = direct
+                    ? FileChannel.open(blob, StandardOpenOption.READ, ExtendedOpenOption.DIRECT)
+                    : FileChannel.open(blob, StandardOpenOption.READ)) {
+                return read(ch, ch.size());
+            }
+        }
+
+        /* reads size bytes, fewer if the channel ends first */
+        Result read(ReadableByteChannel ch, long size) throws IOException, InterruptedException {
+            long position = 0;
+            int count = 0;
+            boolean ended;
+            do {
+                long want = Math.min(BlobChecksum.SEGMENT, size - position);
+                throttle(want);
+
+                buffer.clear().limit(BlobChecksum.SEGMENT);
+                // stop at the size, a direct read at an unaligned end of file fails instead of returning -1
+                while (buffer.position() < want && ch.read(buffer) != -1) {}
+                buffer.flip();
+                ended = buffer.remaining() < want;
+                position += buffer.remaining();
+
+                crc.reset();
+                crc.update(buffer);
+                if (count == segments.length) segments = Arrays.copyOf(segments, count * 2);
+                segments[count++] = (int) crc.getValue();
+            } while (position < size && !ended);
+
+            return new Result(position, BlobChecksum.combine(Arrays.copyOf(segments, count)));
+        }
+
+        private void throttle(long bytes) throws InterruptedException {
+            long wait = io.reserve(bytes);
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+        }
+
+        private record Result(long size, String checksum) {}
+    }
+
+    private static class Report {
+        final boolean quarantine;
+        final LocalDateTime started = LocalDateTime.now();
+        volatile LocalDateTime finished;
+        volatile String status = "running";
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong recorded = new AtomicLong(); // checksums computed for the first time
+        final AtomicLong quarantined = new AtomicLong();
+        final Map<String, Integer> cursors = new ConcurrentHashMap<>(); // volume -> last file id read, 0 when done
+        final Findings mismatched = new Findings();
+        final Findings missing = new Findings();
+        final Findings unreadable = new Findings();
+        final Findings errors = new Findings();
+
+        Report(boolean quarantine) {
+            this.quarantine = quarantine;
+        }
+
+        void add(Findings findings, String entry) {
+            findings.count.incrementAndGet();
+            synchronized (findings.entries) {
+                if (findings.entries.size() < REPORT_LIMIT) findings.entries.add(entry);
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("status", status);
+            map.put("quarantine", quarantine);
+            map.put("started", started);
+            map.put("finished", finished);
+            map.put("files", files.get());
+            map.put("bytes", bytes.get());
+            map.put("recorded", recorded.get());
+            map.put("quarantined", quarantined.get());
+            map.put("cursors", new TreeMap<>(cursors));
+            put(map, "mismatched", mismatched);
+            put(map, "missing", missing);
+            put(map, "unreadable", unreadable);
+            put(map, "errors", errors);
+            return map;
+        }
+
+        private void put(Map<String, Object> map, String name, Findings findings) {
+            map.put(name + "Count", findings.count.get());
+            synchronized (findings.entries) {
+                map.put(name, new ArrayList<>(findings.entries));
+            }
+        }
+    }
+
+    private static class Findings {
+        final AtomicLong count = new AtomicLong();
+        final List<String> entries = new ArrayList<>(); // the first REPORT_LIMIT only
+    }
+}
@@ -0,0 +1,512 @@
+package server.phoestorage.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.Tuple;
+import jakarta.persistence.criteria.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import server.phoestorage.classes.PrefixIndex;
+import server.phoestorage.classes.TrigramIndex;
+import server.phoestorage.datasource.file.FileEntity;
+import server.phoestorage.datasource.file.FileRepository;
+import server.phoestorage.datasource.folder.FolderEntity;
+import server.phoestorage.datasource.folder.FolderRepository;
+import server.phoestorage.dto.FileEntry;
+import server.phoestorage.dto.FileQuery;
+import server.phoestorage.dto.FolderEntry;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+
+@Service
+public class SearchService {
+    private static final int LOAD_PAGE = 10_000;
+    private static final int FIRST_CHUNK = 10; // sent and flushed before anything else is looked up
+    private static final int NEXT_CHUNK = 50;
+    private static final int MAX_PAGE = 500;
+    private static final Set<String> SORTS = Set.of("name", "size", "created", "modified");
+
+    private final FileRepository fileRepository;
+    private final FolderRepository folderRepository;
+    private final ObjectMapper objectMapper;
+    private final EntityManager entityManager;
+    private final ContentIndexService contentIndexService;
+
+    private final Cache<String, TrigramIndex> indexes;
+    private final Cache<String, PrefixIndex> prefixIndexes;
+
+    @Autowired
+    public SearchService(FileRepository fileRepository,
+                         FolderRepository folderRepository,
+                         ObjectMapper objectMapper,
+                         EntityManager entityManager,
+                         ContentIndexService contentIndexService,
+                         @Value("${server.search.users}") int maxUsers,
+                         @Value("${server.search.idle}") int idleMinutes) {
+        this.fileRepository = fileRepository;
+        this.folderRepository = folderRepository;
+        this.objectMapper = objectMapper;
+        this.entityManager = entityManager;
+        this.contentIndexService = contentIndexService;
+        // Inactive users fall out and are rebuilt from the database on their next search
+        this.indexes = Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterAccess(Duration.ofMinutes(idleMinutes))
+                .build();
+        this.prefixIndexes = Caffeine.newBuilder()
+                .maximumSize(maxUsers)
+                .expireAfterAccess(Duration.ofMinutes(idleMinutes))
+                .build();
+    }
+
+    /**
+     * Searches the file names of a user
+     *
+     * @param owner the user uuid
+     * @param query substring of the name, or .ext to look for an extension
+     * @param limit max number of results
+     * @return the matching files, best match first
+     *
+     */
+    public List<FileEntry> searchFiles(String owner, String query, int limit) {
+        if (query.isEmpty()) return List.of();
+
+        List<Integer> ids = indexes.get(owner, this::load).search(query, limit);
+        if (ids.isEmpty()) return List.of();
+
+        Map<Integer, FileEntity> found = new HashMap<>();
+        for (FileEntity fileEntity : fileRepository.findAllById(ids)) {
+            found.put(fileEntity.getId(), fileEntity);
+        }
+
+        List<FileEntry> r = new ArrayList<>();
+        for (Integer id : ids) {
+            FileEntity fileEntity = found.get(id);
+            if (fileEntity == null || fileEntity.getTrashed()) continue;
+            r.add(toEntry(fileEntity));
+        }
+        return r;
+    }
+
+    /**
+     * Searches the text inside the files of a user, see ContentIndexService
+     *
+     * @param owner the user uuid
+     * @param query words that all have to be in the file
+     * @param limit max number of results
+     * @return the matching files, newest first
+     *
+     */
+    public List<FileEntry> searchContent(String owner, String query, int limit) {
+        List<Integer> ids = contentIndexService.search(owner, query, limit);
+        if (ids.isEmpty()) return List.of();
+
+        Map<Integer, FileEntity> found = new HashMap<>();
+        for (FileEntity fileEntity : fileRepository.findAllById(ids)) {
+            found.put(fileEntity.getId(), fileEntity);
+        }
+
+        List<FileEntry> r = new ArrayList<>();
+        for (Integer id : ids) {
+            FileEntity fileEntity = found.get(id);
+            if (fileEntity == null || fileEntity.getTrashed() || !fileEntity.getOwner().equals(owner)) continue;
+            r.add(toEntry(fileEntity));
+        }
+        return r;
+    }
+
+    /**
+     * Typeahead over file and folder names. The matches are picked from memory up front, then written as
+     * newline delimited JSON: a small first chunk is flushed straight away and the rest follows in bigger chunks
+     *
+     * @param owner the user uuid
+     * @param prefix what the user has typed so far
+     * @param limit max number of results
+     * @return the response body
+     *
+     */
+    public StreamingResponseBody typeahead(String owner, String prefix, int limit) {
+        List<Long> refs = prefixIndexes.get(owner, this::loadPrefix).search(prefix, limit);
+
+        return out -> {
+            int chunk = FIRST_CHUNK;
+            for (int from = 0; from < refs.size(); from += chunk, chunk = NEXT_CHUNK) {
+                List<Long> part = refs.subList(from, Math.min(from + chunk, refs.size()));
+
+                List<Integer> fileIds = new ArrayList<>();
+                List<Integer> folderIds = new ArrayList<>();
+                for (long ref : part) {
+                    (PrefixIndex.isFolder(ref) ? folderIds : fileIds).add(PrefixIndex.id(ref));
+                }
+
+                Map<Integer, FileEntity> files = new HashMap<>();
+                if (!fileIds.isEmpty()) {
+                    for (FileEntity fileEntity : fileRepository.findAllById(fileIds)) files.put(fileEntity.getId(), fileEntity);
+                }
+                Map<Integer, FolderEntity> folders = new HashMap<>();
+                if (!folderIds.isEmpty()) {
+                    for (FolderEntity folderEntity : folderRepository.findAllById(folderIds)) folders.put(folderEntity.getId(), folderEntity);
+                }
+
+                for (long ref : part) {
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    if (PrefixIndex.isFolder(ref)) {
+                        FolderEntity folder = folders.get(PrefixIndex.id(ref));
+                        if (folder == null || folder.getTrashed()) continue;
+
+                        FolderEntry folderEntry = new FolderEntry();
+                        folderEntry.setUuid(folder.getUuid());
+                        folderEntry.setOwner(folder.getOwner());
+                        folderEntry.setName(folder.getName());
+                        folderEntry.setFolderId(folder.getFolderId());
+                        line.put("type", "folder");
+                        line.put("item", folderEntry);
+                    } else {
+                        FileEntity file = files.get(PrefixIndex.id(ref));
+                        if (file == null || file.getTrashed()) continue;
+
+                        line.put("type", "file");
+                        line.put("item", toEntry(file));
+                    }
+                    out.write(objectMapper.writeValueAsBytes(line));
+                    out.write('\n');
+                }
+                out.flush();
+            }
+        };
+    }
+
+    /**
+     * Structured search over the files of a user. Pages are keyset based on (sort column, id) so going deep into
+     * a large result never costs more than the first page, and every filter plus order hits an (owner, trashed, x) index
+     *
+     * @param owner the user uuid
+     * @param query the filters
+     * @return response entity with the page, the cursor of the next page and, if asked for, facet counts
+     *
+     */
+    public ResponseEntity<Map<String, Object>> queryFiles(String owner, FileQuery query) {
+        String sort = query.getSort() == null ? "modified" : query.getSort();
+        if (!SORTS.contains(sort)) return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        int limit = Math.max(1, Math.min(query.getLimit(), MAX_PAGE));
+
+        List<String> scope = null;
+        if (query.getFolderId() != null && !query.getFolderId().equals(owner)) {
+            scope = folderRepository.findDescendantFolderIds(owner, query.getFolderId());
+            if (scope.isEmpty()) return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+
+        Object[] after = null;
+        if (query.getCursor() != null) {
+            after = decodeCursor(query.getCursor(), sort);
+            if (after == null) return ResponseEntity.status(HttpStatus.BAD_REQUEST).build();
+        }
+
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<FileEntity> cq = cb.createQuery(FileEntity.class);
+        Root<FileEntity> file = cq.from(FileEntity.class);
+
+        List<Predicate> where = filters(cb, file, owner, query, scope);
+        if (after != null) where.add(after(cb, file, sort, (Comparable<?>) after[0], (Integer) after[1], query.getDescending()));
+
+        Path<Integer> id = file.get("id");
+        cq.where(where.toArray(new Predicate[0]));
+        cq.orderBy(query.getDescending()
+                ? List.of(cb.desc(file.get(sort)), cb.desc(id))
+                : List.of(cb.asc(file.get(sort)), cb.asc(id)));
+
+        List<FileEntity> rows = entityManager.createQuery(cq).setMaxResults(limit + 1).getResultList();
+
+        List<FileEntry> items = new ArrayList<>();
+        for (int i = 0; i < Math.min(rows.size(), limit); i++) items.add(toEntry(rows.get(i)));
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("items", items);
+        response.put("next", rows.size() > limit ? encodeCursor(rows.get(limit - 1), sort) : null);
+        if (query.getFacets() && after == null) response.put("facets", facets(cb, owner, query, scope));
+        return ResponseEntity.ok(response);
+    }
+
+    private List<Predicate> filters(CriteriaBuilder cb, Root<FileEntity> file, String owner, FileQuery query, List<String> scope) {
+        List<Predicate> where = new ArrayList<>();
+        where.add(cb.equal(file.get("owner"), owner));
+        where.add(cb.isFalse(file.<Boolean>get("trashed")));
+
+        if (query.getExtensions() != null && !query.getExtensions().isEmpty()) {
+            List<String> extensions = new ArrayList<>();
+            for (String extension : query.getExtensions()) extensions.add(extension.replace(".", "").toLowerCase(Locale.ROOT));
+            where.add(file.get("extension").in(extensions));
+        }
+        if (query.getMinSize() != null) where.add(cb.ge(file.<Long>get("size"), query.getMinSize()));
+        if (query.getMaxSize() != null) where.add(cb.le(file.<Long>get("size"), query.getMaxSize()));
+        if (query.getCreatedAfter() != null) where.add(cb.greaterThanOrEqualTo(file.<LocalDateTime>get("created"), query.getCreatedAfter()));
+        if (query.getCreatedBefore() != null) where.add(cb.lessThan(file.<LocalDateTime>get("created"), query.getCreatedBefore()));
+        if (query.getModifiedAfter() != null) where.add(cb.greaterThanOrEqualTo(file.<LocalDateTime>get("modified"), query.getModifiedAfter()));
+        if (query.getModifiedBefore() != null) where.add(cb.lessThan(file.<LocalDateTime>get("modified"), query.getModifiedBefore()));
+        if (query.getStarred() != null) where.add(cb.equal(file.get("starred"), query.getStarred()));
+        if (scope != null) where.add(file.get("folderId").in(scope));
+
+        // checked last, on the rows the indexed filters left over
+        if (query.getName() != null && !query.getName().isBlank()) {
+            String escaped = query.getName().toLowerCase(Locale.ROOT)
+                    .replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+            where.add(cb.like(cb.lower(file.<String>get("name")), "%" + escaped + "%", '\\'));
+        }
+        return where;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Predicate after(CriteriaBuilder cb, Root<FileEntity> file, String sort, Comparable value, int lastId, boolean descending) {
+        Expression<Comparable> column = file.get(sort);
+        Expression<Integer> id = file.get("id");
+        Predicate beyond = descending ? cb.lessThan(column, value) : cb.greaterThan(column, value);
+        Predicate tie = cb.and(cb.equal(column, value), descending ? cb.lessThan(id, lastId) : cb.greaterThan(id, lastId));
+        return cb.or(beyond, tie);
+    }
+
+    /**
+     * Counts of the whole result per extension, size class, year modified and starred.
+     * Only computed for the first page, the client keeps them while it pages on
+     *
+     */
+    private Map<String, Object> facets(CriteriaBuilder cb, String owner, FileQuery query, List<String> scope) {
+        Map<String, Object> facets = new LinkedHashMap<>();
+
+        CriteriaQuery<Tuple> byExtension = cb.createTupleQuery();
+        Root<FileEntity> file = byExtension.from(FileEntity.class);
+        Expression<Long> count = cb.count(file);
+        byExtension.multiselect(file.get("extension"), count)
+                .where(filters(cb, file, owner, query, scope).toArray(new Predicate[0]))
+                .groupBy(file.get("extension"))
+                .orderBy(cb.desc(count));
+        facets.put("extension", toCounts(entityManager.createQuery(byExtension).setMaxResults(20).getResultList()));
+
+        CriteriaQuery<Tuple> bySize = cb.createTupleQuery();
+        file = bySize.from(FileEntity.class);
+        Expression<Long> size = file.get("size");
+        Expression<String> sizeClass = cb.<String>selectCase()
+                .when(cb.lt(size, 1L << 20), "<1MB")
+                .when(cb.lt(size, 100L << 20), "1MB-100MB")
+                .when(cb.lt(size, 1L << 30), "100MB-1GB")
+                .otherwise(">1GB");
+        bySize.multiselect(sizeClass, cb.count(file))
+                .where(filters(cb, file, owner, query, scope).toArray(new Predicate[0]))
+                .groupBy(sizeClass);
+        facets.put("size", toCounts(entityManager.createQuery(bySize).getResultList()));
+
+        CriteriaQuery<Tuple> byYear = cb.createTupleQuery();
+        file = byYear.from(FileEntity.class);
+        Expression<Integer> year = cb.function("year", Integer.class, file.get("modified"));
+        byYear.multiselect(year, cb.count(file))
+                .where(filters(cb, file, owner, query, scope).toArray(new Predicate[0]))
+                .groupBy(year)
+                .orderBy(cb.desc(year));
+        facets.put("modified", toCounts(entityManager.createQuery(byYear).getResultList()));
+
+        CriteriaQuery<Tuple> byStarred = cb.createTupleQuery();
+        file = byStarred.from(FileEntity.class);
+        byStarred.multiselect(file.get("starred"), cb.count(file))
+                .where(filters(cb, file, owner, query, scope).toArray(new Predicate[0]))
+                .groupBy(file.get("starred"));
+        Map<String, Long> starred = toCounts(entityManager.createQuery(byStarred).getResultList());
+        facets.put("starred", starred);
+
+        long total = 0;
+        for (long c : starred.values()) total += c;
+        facets.put("total", total);
+        return facets;
+    }
+
+    private static Map<String, Long> toCounts(List<Tuple> rows) {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Tuple row : rows) counts.put(String.valueOf(row.get(0)), (Long) row.get(1));
+        return counts;
+    }
+
+    private static String encodeCursor(FileEntity last, String sort) {
+        String value = switch (sort) {
+            case "name" -> last.getName();
+            case "size" -> Long.toString(last.getSize());
+            case "created" -> last.getCreated().toString();
+            default -> last.getModified().toString();
+        };
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((last.getId() + "\n" + value).getBytes(StandardCharsets.UTF_8));
+    }
+
+    // [value, id] or null if the cursor is not one of ours
+    private static Object[] decodeCursor(String cursor, String sort) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int split = decoded.indexOf('\n');
+            int id = Integer.parseInt(decoded.substring(0, split));
+            String value = decoded.substring(split + 1);
+            return new Object[]{switch (sort) {
+                case "name" -> value;
+                case "size" -> Long.parseLong(value);
+                default -> LocalDateTime.parse(value);
+            }, id};
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /* Keep loaded indexes current. Users without a loaded index are skipped, they load fresh on next search */
+
+    public void fileAdded(FileEntity file) {
+        TrigramIndex index = indexes.getIfPresent(file.getOwner());
+        if (index != null) index.put(file.getId(), file.getName());
+        PrefixIndex prefixIndex = prefixIndexes.getIfPresent(file.getOwner());
+        if (prefixIndex != null) prefixIndex.put(PrefixIndex.fileRef(file.getId()), file.getName());
+    }
+
+    public void fileRenamed(String owner, int fileId, String name) {
+        TrigramIndex index = indexes.getIfPresent(owner);
+        if (index != null) index.put(fileId, name);
+        PrefixIndex prefixIndex = prefixIndexes.getIfPresent(owner);
+        if (prefixIndex != null) prefixIndex.put(PrefixIndex.fileRef(fileId), name);
+    }
+
+    public void fileRemoved(String owner, int fileId) {
+        TrigramIndex index = indexes.getIfPresent(owner);
+        if (index != null) index.remove(fileId);
+        PrefixIndex prefixIndex = prefixIndexes.getIfPresent(owner);
+        if (prefixIndex != null) prefixIndex.remove(PrefixIndex.fileRef(fileId));
+    }
+
+    public void folderAdded(FolderEntity folder) {
+        PrefixIndex prefixIndex = prefixIndexes.getIfPresent(folder.getOwner());
+        if (prefixIndex != null) prefixIndex.put(PrefixIndex.folderRef(folder.getId()), folder.getName());
+    }
+
+    public void folderRenamed(String owner, int folderId, String name) {
+        PrefixIndex prefixIndex = prefixIndexes.getIfPresent(owner);
+        if (prefixIndex != null) prefixIndex.put(PrefixIndex.folderRef(folderId), name);
+    }
+
+    public void folderRemoved(String owner, int folderId) {
+        PrefixIndex prefixIndex = prefixIndexes.getIfPresent(owner);
+        if (prefixIndex != null) prefixIndex.remove(PrefixIndex.folderRef(folderId));
+    }
+
+    /**
+     * Takes a folder tree that was just put in the trash out of the loaded indexes, a page of files at a time
+     *
+     * @param owner the user uuid
+     * @param trashRoot uuid of the trashed folder
+     */
+    public void folderTreeTrashed(String owner, String trashRoot) {
+        if (indexes.getIfPresent(owner) == null && prefixIndexes.getIfPresent(owner) == null) return;
+
+        int afterId = 0;
+        List<Integer> page;
+        do {
+            page = fileRepository.findIdsByTrashRootAfter(owner, trashRoot, afterId, PageRequest.of(0, LOAD_PAGE));
+            for (Integer id : page) {
+                afterId = id;
+                fileRemoved(owner, id);
+            }
+        } while (page.size() == LOAD_PAGE);
+
+        for (Integer id : folderRepository.findIdsByTrashRoot(owner, trashRoot)) folderRemoved(owner, id);
+    }
+
+    /**
+     * Puts a folder tree that was restored or copied into the loaded indexes, a page of files at a time
+     *
+     * @param owner the user uuid
+     * @param parentId the folder the tree is in
+     * @param folderUuid uuid of the top folder of the tree
+     */
+    public void folderTreeAdded(String owner, String parentId, String folderUuid) {
+        if (indexes.getIfPresent(owner) == null && prefixIndexes.getIfPresent(owner) == null) return;
+
+        int afterId = 0;
+        List<Object[]> page;
+        do {
+            page = fileRepository.findNamesUnderFolderTreeAfter(owner, parentId, folderUuid, afterId, LOAD_PAGE);
+            for (Object[] row : page) {
+                afterId = ((Number) row[0]).intValue();
+                fileRenamed(owner, afterId, (String) row[1]);
+            }
+        } while (page.size() == LOAD_PAGE);
+
+        for (Object[] row : folderRepository.findNamesInFolderTree(owner, parentId, folderUuid)) {
+            folderRenamed(owner, ((Number) row[0]).intValue(), (String) row[1]);
+        }
+    }
+
+    /**
+     * Drops the indexes of a user, used when all of their rows go at once
+     *
+     * @param owner the user uuid
+     */
+    public void invalidate(String owner) {
+        indexes.invalidate(owner);
+        prefixIndexes.invalidate(owner);
+    }
+
+    private FileEntry toEntry(FileEntity fileEntity) {
+        FileEntry fileEntry = new FileEntry();
+        fileEntry.setUuid(fileEntity.getUuid());
+        fileEntry.setOwner(fileEntity.getOwner());
+        fileEntry.setName(fileEntity.getName());
+        fileEntry.setExtension(fileEntity.getExtension());
+        fileEntry.setFolderId(fileEntity.getFolderId());
+        fileEntry.setCreated(fileEntity.getCreated());
+        fileEntry.setModified(fileEntity.getModified());
+        fileEntry.setAccessed(fileEntity.getAccessed());
+        fileEntry.setSize(fileEntity.getSize());
+        fileEntry.setStarred(fileEntity.getStarred());
+        return fileEntry;
+    }
+
+    private TrigramIndex load(String owner) {
+        TrigramIndex index = new TrigramIndex();
+        int afterId = 0;
+        List<Object[]> page;
+        do {
+            page = fileRepository.findNamesAfter(owner, afterId, PageRequest.of(0, LOAD_PAGE));
+            for (Object[] row : page) {
+                afterId = (Integer) row[0];
+                index.put(afterId, (String) row[1]);
+            }
+        } while (page.size() == LOAD_PAGE);
+        return index;
+    }
+
+    private PrefixIndex loadPrefix(String owner) {
+        PrefixIndex index = new PrefixIndex();
+        int afterId = 0;
+        List<Object[]> page;
+        do {
+            page = fileRepository.findNamesAfter(owner, afterId, PageRequest.of(0, LOAD_PAGE));
+            for (Object[] row : page) {
+                afterId = (Integer) row[0];
+                index.load(PrefixIndex.fileRef(afterId), (String) row[1]);
+            }
+        } while (page.size() == LOAD_PAGE);
+
+        afterId = 0;
+        do {
+            page = folderRepository.findNamesAfter(owner, afterId, PageRequest.of(0, LOAD_PAGE));
+            for (Object[] row : page) {
+                afterId = (Integer) row[0];
+                index.load(PrefixIndex.folderRef(afterId), (String) row[1]);
+            }
+        } while (page.size() == LOAD_PAGE);
+
+        index.merge();
+        return index;
+    }
+}
@@ -0,0 +1,335 @@
+package server.phoestorage.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import server.phoestorage.classes.BloomFilter;
+import server.phoestorage.datasource.download.SignedLinkEntity;
+import server.phoestorage.datasource.download.SignedLinkRepository;
+import server.phoestorage.datasource.file.FileEntity;
+import server.phoestorage.datasource.file.FileRepository;
+import server.phoestorage.datasource.folder.FolderEntity;
+import server.phoestorage.datasource.folder.FolderRepository;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Share links that carry everything needed to serve them in the token itself:
+ * base64url(version|id|owner|parent|item|type|expiry|limit|name) + "." + base64url(HMAC-SHA256 of the first part).
+ * Checking one is a single HMAC, no query. Revoked tokens go in a bloom filter, and a hit in the filter is
+ * confirmed against the signed_link table. Download limits are counted in memory and written to the table async.
+ * The row of a linked file is read once and kept in memory until the file is moved, trashed or its blob changes
+ *
+ */
+@Service
+public class SignedLinkService {
+    private static final String VERSION = "1";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    @Value("${server.root}")
+    private String rootPath;
+    @Value("${server.links.secret}")
+    private String configuredSecret;
+    @Value("${server.links.revocations}")
+    private int expectedRevocations;
+
+    private final AppUserDetailsService appUserDetailsService;
+    private final SignedLinkRepository signedLinkRepository;
+    private final FileRepository fileRepository;
+    private final FolderRepository folderRepository;
+
+    private ThreadLocal<Mac> mac;
+    private BloomFilter revoked;
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+    // owner/uuid -> row of a file served by signed links, dropped by fileChanged and ownerChanged
+    private final Cache<String, FileEntity> files;
+
+    @Autowired
+    public SignedLinkService(AppUserDetailsService appUserDetailsService,
+                             SignedLinkRepository signedLinkRepository,
+                             FileRepository fileRepository,
+                             FolderRepository folderRepository,
+                             @Value("${server.links.files}") int maxFiles) {
+        this.appUserDetailsService = appUserDetailsService;
+        this.signedLinkRepository = signedLinkRepository;
+        this.fileRepository = fileRepository;
+        this.folderRepository = folderRepository;
+        this.files = Caffeine.newBuilder()
+                .maximumSize(maxFiles)
+                .expireAfterWrite(Duration.ofMinutes(10)) // a change that was not reported heals on its own
+                .build();
+    }
+
+    @PostConstruct
+    public void init() throws Exception {
+        SecretKeySpec key = new SecretKeySpec(loadSecret(), "HmacSHA256");
+        this.mac = ThreadLocal.withInitial(() -> {
+            try {
+                Mac m = Mac.getInstance("HmacSHA256");
+                m.init(key);
+                return m;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        this.revoked = new BloomFilter(expectedRevocations, 0.01);
+        for (String tokenId : signedLinkRepository.findRevokedTokenIds()) revoked.put(tokenId);
+    }
+
+    /**
+     * Creates a signed link for a file or folder of the current user
+     *
+     * @param parentId the folder the item is in
+     * @param childId uuid of the file or folder
+     * @param downloadLimit max downloads, -1 for no limit
+     * @param date expiry, -1 for never
+     * @param isFolder is the item a folder
+     * @return the token, or an error string like createDownloadLink
+     *
+     */
+    public String createSignedLink(String parentId, String childId, int downloadLimit, String date, boolean isFolder) {
+        try {
+            String uuid = appUserDetailsService.getUserEntity().getUuid();
+
+            String name;
+            if (isFolder) {
+                Optional<FolderEntity> folder = folderRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, parentId, childId);
+                if (folder.isEmpty()) return "404 - NOT FOUND";
+                name = folder.get().getName();
+            } else {
+                Optional<FileEntity> file = fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(uuid, parentId, childId);
+                if (file.isEmpty()) return "404 - NOT FOUND";
+                name = file.get().getName();
+            }
+
+            LocalDateTime expires = LinkService.expiresAt(date);
+            long expiry = expires == null ? 0 : expires.atZone(ZoneId.systemDefault()).toEpochSecond();
+            String tokenId = UUID.randomUUID().toString().replace("-", "");
+
+            String payload = String.join("|", VERSION, tokenId, uuid, parentId, childId, isFolder ? "d" : "f",
+                    Long.toString(expiry), Integer.toString(Math.max(-1, downloadLimit)), name);
+            String encoded = ENCODER.encodeToString(payload.getBytes(StandardCharsets.UTF_8));
+            return encoded + "." + ENCODER.encodeToString(sign(encoded));
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            return "500 - INTERNAL SERVER ERROR";
+        }
+    }
+
+    /**
+     * Checks the signature, expiry and revocation of a token
+     *
+     * @param token the token from the url
+     * @return what the token grants, null if it is not valid
+     *
+     */
+    public SignedLink verify(String token) {
+        SignedLink link = parse(token);
+        if (link == null) return null;
+        if (link.expiry != 0 && link.expiry <= Instant.now().getEpochSecond()) return null;
+        if (revoked.mightContain(link.tokenId) && signedLinkRepository.existsByTokenIdAndRevokedTrue(link.tokenId)) return null;
+        return link;
+    }
+
+    /**
+     * Counts one download. Links without a limit are not counted at all
+     *
+     * @return false if the link has no downloads left
+     */
+    public boolean claimDownload(SignedLink link) {
+        if (link.limit < 0) return true;
+
+        // first use in this process reads the count once, after that it is memory only
+        Counter counter = counters.computeIfAbsent(link.tokenId, id -> new Counter(link,
+                signedLinkRepository.findByTokenId(id).map(SignedLinkEntity::getDownloads).orElse(0)));
+        while (true) {
+            int downloads = counter.downloads.get();
+            if (downloads >= link.limit) return false;
+            if (counter.downloads.compareAndSet(downloads, downloads + 1)) {
+                counter.dirty = true;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Revokes a token of the current user before it expires
+     *
+     * @param token the token to revoke
+     * @return exit code
+     *
+     */
+    public int revoke(String token) {
+        String uuid = appUserDetailsService.getUserEntity().getUuid();
+        SignedLink link = parse(token);
+        if (link == null || !link.owner.equals(uuid)) return 404;
+
+        try {
+            SignedLinkEntity entity = signedLinkRepository.findByTokenId(link.tokenId).orElseGet(() -> newEntity(link));
+            entity.setRevoked(true);
+            signedLinkRepository.save(entity);
+            revoked.put(link.tokenId);
+            return 0;
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            return 500;
+        }
+    }
+
+    /**
+     * Row of a signed file link. Its blob may not be where the current layout puts it, so the row is read once and
+     * reused until the file changes. Missing files are not remembered
+     *
+     * @return the file row, null if the file is gone, trashed or no longer in the linked folder
+     *
+     */
+    public FileEntity fileOf(SignedLink link) {
+        FileEntity file = files.get(link.owner + "/" + link.itemId, key ->
+                fileRepository.findByOwnerAndFolderIdAndUuidAndTrashedFalse(link.owner, link.parentId, link.itemId).orElse(null));
+        return file == null || !file.getFolderId().equals(link.parentId) ? null : file;
+    }
+
+    /**
+     * Forgets the row of a file that was moved, trashed, deleted or got a new blob
+     */
+    public void fileChanged(String owner, String fileId) {
+        files.invalidate(owner + "/" + fileId);
+    }
+
+    /**
+     * Forgets all rows of an owner, for changes to whole folder trees
+     */
+    public void ownerChanged(String owner) {
+        String prefix = owner + "/";
+        files.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    @Scheduled(fixedDelay = 10 * 1000)
+    @PreDestroy
+    public void flushCounters() {
+        long now = Instant.now().getEpochSecond();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            Counter counter = entry.getValue();
+            if (counter.dirty) {
+                counter.dirty = false;
+                try {
+                    SignedLinkEntity entity = signedLinkRepository.findByTokenId(entry.getKey()).orElseGet(() -> newEntity(counter.link));
+                    entity.setDownloads(counter.downloads.get());
+                    signedLinkRepository.save(entity);
+                } catch (Exception e) {
+                    counter.dirty = true;
+                    System.err.println("Could not save downloads of signed link " + entry.getKey() + ": " + e.getMessage());
+                }
+            }
+            // expired tokens never verify again, their counter can go
+            if (!counter.dirty && counter.link.expiry != 0 && counter.link.expiry <= now) counters.remove(entry.getKey());
+        }
+    }
+
+    @Scheduled(cron = "0 30 3 * * *")
+    public void purgeExpired() {
+        signedLinkRepository.deleteExpired(LocalDateTime.now());
+    }
+
+    private SignedLink parse(String token) {
+        if (token == null) return null;
+        int dot = token.indexOf('.');
+        if (dot <= 0) return null;
+
+        try {
+            String encoded = token.substring(0, dot);
+            byte[] signature = DECODER.decode(token.substring(dot + 1));
+            if (!MessageDigest.isEqual(signature, sign(encoded))) return null;
+
+            String[] parts = new String(DECODER.decode(encoded), StandardCharsets.UTF_8).split("\\|", 9);
+            if (parts.length != 9 || !parts[0].equals(VERSION)) return null;
+            return new SignedLink(parts[1], parts[2], parts[3], parts[4], parts[5].equals("d"),
+                    Long.parseLong(parts[6]), Integer.parseInt(parts[7]), parts[8]);
+        } catch (IllegalArgumentException e) {
+            return null; // not base64 or not a number, either way not ours
+        }
+    }
+
+    private byte[] sign(String encoded) {
+        return mac.get().doFinal(encoded.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private SignedLinkEntity newEntity(SignedLink link) {
+        SignedLinkEntity entity = new SignedLinkEntity();
+        entity.setTokenId(link.tokenId);
+        entity.setOwnerUuid(link.owner);
+        entity.setExpiresAt(link.expiry == 0 ? null
+                : LocalDateTime.ofInstant(Instant.ofEpochSecond(link.expiry), ZoneId.systemDefault()));
+        return entity;
+    }
+
+    /* server.links.secret if set, otherwise a random key kept under the storage root so tokens survive restarts */
+    private byte[] loadSecret() throws Exception {
+        if (configuredSecret != null && !configuredSecret.isBlank()) {
+            return configuredSecret.getBytes(StandardCharsets.UTF_8);
+        }
+
+        Path file = Paths.get(rootPath, ".link-secret");
+        if (Files.exists(file)) return Files.readAllBytes(file);
+
+        byte[] secret = new byte[32];
+        new SecureRandom().nextBytes(secret);
+        Files.createDirectories(file.getParent());
+        Files.write(file, secret, StandardOpenOption.CREATE_NEW);
+        return secret;
+    }
+
+    /**
+     * What a verified token grants
+     *
+     */
+    public static class SignedLink {
+        public final String tokenId;
+        public final String owner;
+        public final String parentId;
+        public final String itemId;
+        public final boolean isFolder;
+        public final long expiry; // epoch seconds, 0 for never
+        public final int limit; // downloads, -1 for no limit
+        public final String name;
+
+        SignedLink(String tokenId, String owner, String parentId, String itemId, boolean isFolder, long expiry, int limit, String name) {
+            this.tokenId = tokenId;
+            this.owner = owner;
+            this.parentId = parentId;
+            this.itemId = itemId;
+            this.isFolder = isFolder;
+            this.expiry = expiry;
+            this.limit = limit;
+            this.name = name;
+        }
+    }
+
+    private static class Counter {
+        final SignedLink link;
+        final AtomicInteger downloads;
+        volatile boolean dirty;
+
+        Counter(SignedLink link, int downloads) {
+            this.link = link;
+            this.downloads = new AtomicInteger(downloads);
+        }
+    }
+}
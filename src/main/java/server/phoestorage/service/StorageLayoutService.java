@@ -0,0 +1,87 @@
+package server.phoestorage.service;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Path;
+
+/**
+ * Where blobs live on a volume. Finished blobs go to <volume>/<owner>/storage/ab/cd/<uuid> with server.layout.levels
+ * levels of two hex characters taken from the uuid, so no directory grows past a few thousand entries.
+ * Uploads in progress are written to <volume>/<owner>/staging and renamed into place once complete.
+ * CompressionService writes compressed blobs as <uuid>.z next to the blob they replace
+ *
+ */
+@Service
+public class StorageLayoutService {
+    private static final String COMPRESSED = ".z";
+
+    private final int levels;
+
+    public StorageLayoutService(@Value("${server.layout.levels}") int levels) {
+        this.levels = Math.max(0, Math.min(3, levels));
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    public Path storageDir(Path volume, String owner) {
+        return volume.resolve(owner).resolve("storage");
+    }
+
+    public Path stagingDir(Path volume, String owner) {
+        return volume.resolve(owner).resolve("staging");
+    }
+
+    public Path stagingPath(Path volume, String owner, String uploadId) {
+        return stagingDir(volume, owner).resolve(uploadId + ".lock");
+    }
+
+    // segment files of packed small files, see PackedBlobStore
+    public Path packDir(Path volume, String owner) {
+        return volume.resolve(owner).resolve("packs");
+    }
+
+    /**
+     * Path of a finished blob
+     *
+     * @param volume root of the volume the blob is on
+     * @param owner owner of the file
+     * @param fileUuid uuid of the file
+     * @return the path under the owner's storage directory
+     *
+     */
+    public Path blobPath(Path volume, String owner, String fileUuid) {
+        Path path = storageDir(volume, owner);
+        String prefix = prefix(fileUuid);
+        for (int i = 0; i < levels; i++) {
+            path = path.resolve(prefix.substring(i * 2, i * 2 + 2));
+        }
+        return path.resolve(fileUuid);
+    }
+
+    /**
+     * Path a blob is rewritten to when it is compressed, next to the blob so it stays on its volume
+     *
+     */
+    public Path compressedPath(Path blob, String fileUuid) {
+        return blob.resolveSibling(fileUuid + COMPRESSED);
+    }
+
+    /**
+     * @return uuid of the file a blob in the storage directory belongs to
+     */
+    public String uuidOf(String blobName) {
+        return blobName.endsWith(COMPRESSED) ? blobName.substring(0, blobName.length() - COMPRESSED.length()) : blobName;
+    }
+
+    /* random uuids start with hex, anything else a client sent as upload id is spread by its hash */
+    private String prefix(String fileUuid) {
+        int needed = levels * 2;
+        if (fileUuid.length() >= needed && fileUuid.substring(0, needed).matches("[0-9a-f]*")) {
+            return fileUuid.substring(0, needed);
+        }
+        return String.format("%08x", fileUuid.hashCode());
+    }
+}
@@ -0,0 +1,436 @@
+package server.phoestorage.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import server.phoestorage.classes.Volume;
+import server.phoestorage.datasource.file.FileRepository;
+import server.phoestorage.datasource.users.UserRepository;
+import server.phoestorage.utils.BlobLink;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves existing blobs while the server keeps running: to the layout of StorageLayoutService, off a volume
+ * being drained, or from full volumes to empty ones. Blobs are moved in batches of rows: each blob is linked
+ * (or copied, between volumes) at its new path first, then the rows of the batch are pointed at the new paths
+ * in one transaction, and only after the commit the old paths are removed. A row always points at a file that
+ * exists, and a job that stops halfway can simply be started again. One job runs at a time
+ *
+ */
+@Service
+public class StorageMigrationService {
+    private static final int REPORT_LIMIT = 1000;
+    private static final double BALANCE_TOLERANCE = 0.05; // rebalance leaves volumes within 5% of the average use
+
+    private final FileRepository fileRepository;
+    private final UserRepository userRepository;
+    private final StorageLayoutService storageLayoutService;
+    private final StoragePoolService storagePoolService;
+    private final BlobStoreService blobStoreService;
+    private final LinkService linkService;
+    private final SignedLinkService signedLinkService;
+    private final TransactionTemplate transactionTemplate;
+
+    @Value("${server.layout.threads}")
+    private int threads;
+    @Value("${server.layout.batch}")
+    private int batch;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private volatile Progress progress;
+
+    @Autowired
+    public StorageMigrationService(FileRepository fileRepository,
+                                   UserRepository userRepository,
+                                   StorageLayoutService storageLayoutService,
+                                   StoragePoolService storagePoolService,
+                                   BlobStoreService blobStoreService,
+                                   LinkService linkService,
+                                   TransactionTemplate transactionTemplate,
+                                   SignedLinkService signedLinkService) {
+        this.fileRepository = fileRepository;
+        this.userRepository = userRepository;
+        this.storageLayoutService = storageLayoutService;
+        this.storagePoolService = storagePoolService;
+        this.blobStoreService = blobStoreService;
+        this.linkService = linkService;
+        this.transactionTemplate = transactionTemplate;
+        this.signedLinkService = signedLinkService;
+    }
+
+    /**
+     * Starts moving blobs to the current layout in the background
+     *
+     * @return exit code, 409 if a job is already running
+     *
+     */
+    public int start() {
+        return start("layout", this::migrateLayout);
+    }
+
+    /**
+     * Stops placing new blobs on a volume and moves all of its blobs to the others. The volume stays out of
+     * placement until restart, remove it from server.pool.volumes once the job is done
+     *
+     * @param volumeId id of the volume
+     * @return exit code, 404 for an unknown volume, 400 if it is the only one, 409 if a job is already running
+     *
+     */
+    public int drain(String volumeId) {
+        Volume volume = storagePoolService.get(volumeId);
+        if (volume == null) return 404;
+        if (storagePoolService.getVolumes().size() < 2) return 400;
+        return start("drain " + volumeId, current -> {
+            volume.setDraining(true);
+            drainVolume(volume, current);
+        });
+    }
+
+    /**
+     * Moves blobs from volumes that are fuller than the average to the emptiest ones
+     *
+     * @return exit code, 409 if a job is already running
+     *
+     */
+    public int rebalance() {
+        return start("rebalance", this::rebalanceVolumes);
+    }
+
+    public Map<String, Object> getProgress() {
+        Progress current = progress;
+        return current == null ? Map.of("status", "never run", "levels", storageLayoutService.getLevels()) : current.toMap();
+    }
+
+    private int start(String job, Job body) {
+        if (!running.compareAndSet(false, true)) return 409;
+        Thread thread = new Thread(() -> run(job, body), "storage-migration");
+        thread.setDaemon(true);
+        thread.start();
+        return 0;
+    }
+
+    private void run(String job, Job body) {
+        Progress current = new Progress(job, storageLayoutService.getLevels());
+        progress = current;
+        try {
+            body.run(current);
+            current.status = "finished";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            current.status = "interrupted";
+        } catch (Exception e) {
+            System.err.println("Storage migration " + job + " failed: " + e.getMessage());
+            current.error(e.getMessage());
+            current.status = "failed";
+        } finally {
+            // shared folder listings hold blob paths
+            linkService.forgetSnapshots();
+            current.finished = LocalDateTime.now();
+            running.set(false);
+        }
+    }
+
+    private void migrateLayout(Progress current) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (String owner : userRepository.findAllUuids()) {
+                futures.add(pool.submit(() -> {
+                    try {
+                        migrateOwner(owner, current);
+                    } catch (Exception e) {
+                        System.err.println("Layout migration of " + owner + " failed: " + e.getMessage());
+                        current.error(owner + ": " + e.getMessage());
+                    }
+                    current.owners.incrementAndGet();
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void migrateOwner(String owner, Progress current) throws IOException {
+        String after = "";
+        List<Object[]> page;
+        while (!(page = fileRepository.findBlobPage(owner, after, PageRequest.of(0, Math.max(1, batch)))).isEmpty()) {
+            List<Move> moves = new ArrayList<>();
+            for (Object[] row : page) {
+                String uuid = (String) row[0];
+                after = uuid;
+                if (!blobStoreService.isLocal((String) row[1])) continue; // remote blobs have no layout
+                Path source = Paths.get((String) row[1]);
+                Volume volume = storagePoolService.volumeOf(source);
+                Path target = storageLayoutService.blobPath(volume.getRoot(), owner, uuid);
+                if (row[4] != null) target = storageLayoutService.compressedPath(target, uuid);
+                if (!target.toString().equals(row[1])) moves.add(new Move(owner, uuid, source, target, volume));
+            }
+            current.rows.addAndGet(page.size());
+            if (!moves.isEmpty()) moveBatch(moves, current);
+            if (Thread.currentThread().isInterrupted()) return;
+        }
+
+        for (Volume volume : storagePoolService.getVolumes()) sweep(volume, owner, current);
+    }
+
+    private void drainVolume(Volume source, Progress current) {
+        int after = 0;
+        List<Object[]> page;
+        while (!(page = fileRepository.findVolumePage(source.getId(), after, PageRequest.of(0, Math.max(1, batch)))).isEmpty()) {
+            List<Move> moves = new ArrayList<>();
+            for (Object[] row : page) {
+                Move move = moveOff(source, row);
+                if (move == null) {
+                    current.error("No volume has room left for " + row[1]);
+                    if (!moves.isEmpty()) moveBatch(moves, current);
+                    return;
+                }
+                if (move.source == null) movePacked(move, current);
+                else moves.add(move);
+                after = (Integer) row[0];
+            }
+            current.rows.addAndGet(page.size());
+            if (!moves.isEmpty()) moveBatch(moves, current);
+            if (Thread.currentThread().isInterrupted()) return;
+        }
+    }
+
+    private void rebalanceVolumes(Progress current) {
+        List<Volume> volumes = new ArrayList<>();
+        for (Volume volume : storagePoolService.getVolumes()) {
+            if (!volume.isDraining() && volume.getTotalSpace() > 0) volumes.add(volume);
+        }
+        if (volumes.size() < 2) return;
+
+        double average = volumes.stream().mapToDouble(Volume::getUsedFraction).average().orElse(0);
+        volumes.sort(Comparator.comparingDouble(Volume::getUsedFraction).reversed());
+
+        for (Volume source : volumes) {
+            if (source.getUsedFraction() <= average + BALANCE_TOLERANCE) break;
+
+            int after = 0;
+            List<Object[]> page;
+            while (source.getUsedFraction() > average
+                    && !(page = fileRepository.findVolumePage(source.getId(), after, PageRequest.of(0, Math.max(1, batch)))).isEmpty()) {
+                List<Move> moves = new ArrayList<>();
+                int packed = 0;
+                for (Object[] row : page) {
+                    Move move = moveOff(source, row);
+                    after = (Integer) row[0];
+                    // only towards volumes that stay below the average
+                    if (move == null || move.volume.getUsedFraction() >= average) break;
+                    if (move.source == null) {
+                        movePacked(move, current);
+                        packed++;
+                    } else {
+                        moves.add(move);
+                    }
+                }
+                if (moves.isEmpty() && packed == 0) break;
+                current.rows.addAndGet(moves.size() + packed);
+                if (!moves.isEmpty()) moveBatch(moves, current);
+                if (Thread.currentThread().isInterrupted()) return;
+            }
+        }
+    }
+
+    /* row of findVolumePage -> move to the volume placement picks, null if no other volume can take it */
+    private Move moveOff(Volume source, Object[] row) {
+        String uuid = (String) row[1];
+        String owner = (String) row[2];
+        String location = (String) row[3];
+        Volume target = storagePoolService.place(((Number) row[4]).longValue(), source);
+        if (target == source) return null;
+        if (blobStoreService.isPacked(location)) return new Move(owner, uuid, location, target);
+        Path path = storageLayoutService.blobPath(target.getRoot(), owner, uuid);
+        // a compressed blob keeps its name
+        if (!Paths.get(location).getFileName().toString().equals(uuid)) path = storageLayoutService.compressedPath(path, uuid);
+        return new Move(owner, uuid, Paths.get(location), path, target);
+    }
+
+    /* a packed blob goes into the owner's segment on the target volume, its old bytes are left to PackService */
+    private void movePacked(Move move, Progress current) {
+        try {
+            String moved = blobStoreService.getPacked().relocate(move.packed, move.owner, move.volume);
+            if (fileRepository.moveBlob(move.owner, move.uuid, move.packed, moved, move.volume.getId()) == 1) {
+                signedLinkService.fileChanged(move.owner, move.uuid);
+                current.moved.incrementAndGet();
+            }
+        } catch (NoSuchFileException e) {
+            current.missing.incrementAndGet();
+        } catch (IOException e) {
+            current.error("Could not move " + move.packed + ": " + e.getMessage());
+        }
+    }
+
+    private void moveBatch(List<Move> moves, Progress current) {
+        List<Move> linked = new ArrayList<>();
+        for (Move move : moves) {
+            try {
+                if (Files.exists(move.target)) {
+                    // left by a job that stopped before its commit, the path is only ever used for this uuid
+                    if (Files.exists(move.source) && !Files.isSameFile(move.source, move.target)) {
+                        Files.delete(move.target);
+                        BlobLink.link(move.source, move.target);
+                        move.created = true;
+                    }
+                } else {
+                    BlobLink.link(move.source, move.target);
+                    move.created = true;
+                }
+                linked.add(move);
+            } catch (NoSuchFileException e) {
+                current.missing.incrementAndGet(); // reported by ReconcileService
+            } catch (IOException e) {
+                current.error("Could not link " + move.source + ": " + e.getMessage());
+            }
+        }
+        if (linked.isEmpty()) return;
+
+        boolean[] updated = new boolean[linked.size()];
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                for (int i = 0; i < linked.size(); i++) {
+                    Move move = linked.get(i);
+                    updated[i] = fileRepository.moveBlob(move.owner, move.uuid, move.source.toString(),
+                            move.target.toString(), move.volume.getId()) == 1;
+                }
+            });
+        } catch (Exception e) {
+            current.error("Could not update rows: " + e.getMessage());
+            Arrays.fill(updated, false);
+        }
+
+        for (int i = 0; i < linked.size(); i++) {
+            Move move = linked.get(i);
+            try {
+                if (updated[i]) {
+                    signedLinkService.fileChanged(move.owner, move.uuid);
+                    Files.deleteIfExists(move.source);
+                    current.moved.incrementAndGet();
+                } else if (move.created) {
+                    // the row was deleted or changed meanwhile, or the transaction failed
+                    Files.deleteIfExists(move.target);
+                }
+            } catch (IOException e) {
+                current.error("Could not clean up " + move.uuid + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Removes what the old layout left in the top of a storage directory: blobs a stopped job had
+     * already linked at their new path, and upload locks of older versions that wrote them there
+     *
+     */
+    private void sweep(Volume volume, String owner, Progress current) throws IOException {
+        Path storage = storageLayoutService.storageDir(volume.getRoot(), owner);
+        if (storageLayoutService.getLevels() == 0 || !Files.isDirectory(storage)) return;
+
+        Instant stale = Instant.now().minus(Duration.ofDays(1));
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(storage, Files::isRegularFile)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.endsWith(".lock")) {
+                    if (Files.getLastModifiedTime(entry).toInstant().isBefore(stale)) Files.deleteIfExists(entry);
+                    continue;
+                }
+                Path target = storageLayoutService.blobPath(volume.getRoot(), owner, name);
+                if (Files.exists(target) && Files.isSameFile(entry, target)) {
+                    Files.delete(entry);
+                    current.moved.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private interface Job {
+        void run(Progress current) throws Exception;
+    }
+
+    private static class Move {
+        final String owner;
+        final String uuid;
+        final Path source; // null for packed blobs
+        final Path target;
+        final String packed; // location of a packed blob
+        final Volume volume; // of the target
+        boolean created;
+
+        Move(String owner, String uuid, Path source, Path target, Volume volume) {
+            this.owner = owner;
+            this.uuid = uuid;
+            this.source = source;
+            this.target = target;
+            this.packed = null;
+            this.volume = volume;
+        }
+
+        Move(String owner, String uuid, String packed, Volume volume) {
+            this.owner = owner;
+            this.uuid = uuid;
+            this.source = null;
+            this.target = null;
+            this.packed = packed;
+            this.volume = volume;
+        }
+    }
+
+    private static class Progress {
+        final String job;
+        final int levels;
+        final LocalDateTime started = LocalDateTime.now();
+        volatile LocalDateTime finished;
+        volatile String status = "running";
+        final AtomicLong owners = new AtomicLong();
+        final AtomicLong rows = new AtomicLong();
+        final AtomicLong moved = new AtomicLong();
+        final AtomicLong missing = new AtomicLong();
+        final AtomicLong errorCount = new AtomicLong();
+        final List<String> errors = new ArrayList<>(); // the first REPORT_LIMIT only
+
+        Progress(String job, int levels) {
+            this.job = job;
+            this.levels = levels;
+        }
+
+        void error(String error) {
+            errorCount.incrementAndGet();
+            synchronized (errors) {
+                if (errors.size() < REPORT_LIMIT) errors.add(error);
+            }
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("job", job);
+            map.put("status", status);
+            map.put("levels", levels);
+            map.put("started", started);
+            map.put("finished", finished);
+            map.put("owners", owners.get());
+            map.put("rows", rows.get());
+            map.put("moved", moved.get());
+            map.put("missing", missing.get());
+            map.put("errorCount", errorCount.get());
+            synchronized (errors) {
+                map.put("errors", new ArrayList<>(errors));
+            }
+            return map;
+        }
+    }
+}
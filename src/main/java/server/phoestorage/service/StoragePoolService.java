@@ -0,0 +1,161 @@
+package server.phoestorage.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import server.phoestorage.classes.Volume;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * The storage roots blobs can live on: server.root plus the ones in server.pool.volumes, each usually its own
+ * disk. Every root keeps a .volume-id file so the id recorded on file rows survives a changed mount point.
+ * New uploads go to the volume with the most free space per stream currently using it, reads simply open
+ * the path of the row, so every disk serves its own blobs
+ *
+ */
+@Service
+public class StoragePoolService {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    @Value("${server.root}")
+    private String rootPath;
+    @Value("${server.pool.volumes}")
+    private String extraVolumes;
+    @Value("${server.pool.reserve}")
+    private long reserveMb;
+
+    private final List<Volume> volumes = new ArrayList<>();
+    private final Map<String, Volume> byId = new HashMap<>();
+    private Volume primary;
+
+    // owner:uploadId -> volume the staging file of an upload is on, all chunks have to go to the same one
+    private final Cache<String, Volume> uploads = Caffeine.newBuilder()
+            .expireAfterAccess(Duration.ofHours(1))
+            .build();
+
+    @PostConstruct
+    public void init() throws IOException {
+        primary = open(Paths.get(rootPath));
+        for (String root : extraVolumes.split(",")) {
+            if (!root.isBlank()) open(Paths.get(root.trim()));
+        }
+    }
+
+    public List<Volume> getVolumes() {
+        return Collections.unmodifiableList(volumes);
+    }
+
+    public Volume getPrimary() {
+        return primary;
+    }
+
+    public Volume get(String id) {
+        return id == null ? null : byId.get(id);
+    }
+
+    /**
+     * Volume a path is on, by the longest root it starts with
+     *
+     * @return the volume, the primary one for paths outside every root
+     *
+     */
+    public Volume volumeOf(Path path) {
+        Path absolute = path.toAbsolutePath().normalize();
+        Volume best = primary;
+        int bestLength = -1;
+        for (Volume volume : volumes) {
+            Path root = volume.getRoot().toAbsolutePath().normalize();
+            if (absolute.startsWith(root) && root.getNameCount() > bestLength) {
+                best = volume;
+                bestLength = root.getNameCount();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Volume of a file row, falling back to its path for rows written before the pool existed
+     *
+     */
+    public Volume volumeOf(String volumeId, String internalPath) {
+        Volume volume = get(volumeId);
+        return volume != null ? volume : volumeOf(Paths.get(internalPath));
+    }
+
+    /**
+     * Volume for the staging file of an upload, chosen on its first chunk
+     *
+     * @param owner uuid of the user
+     * @param uploadId the upload session id
+     * @param bytes expected size of the upload
+     * @return the volume
+     *
+     */
+    public Volume placeUpload(String owner, String uploadId, long bytes) {
+        return uploads.get(owner + ":" + uploadId, k -> place(bytes, null));
+    }
+
+    public void uploadDone(String owner, String uploadId) {
+        uploads.invalidate(owner + ":" + uploadId);
+    }
+
+    /**
+     * Picks the volume for new bytes: the one with the most usable space per active stream, skipping
+     * volumes being drained and those that would drop below server.pool.reserve
+     *
+     * @param bytes size of the blob
+     * @param exclude volume that must not be picked, may be null
+     * @return the volume, the one with the most space if none has room left
+     *
+     */
+    public Volume place(long bytes, Volume exclude) {
+        long reserve = reserveMb * 1024 * 1024;
+        Volume best = null, roomiest = null;
+        double bestScore = -1;
+        for (Volume volume : volumes) {
+            if (volume == exclude || volume.isDraining()) continue;
+            long usable = volume.getUsableSpace();
+            if (roomiest == null || usable > roomiest.getUsableSpace()) roomiest = volume;
+            if (usable - bytes < reserve) continue;
+
+            double score = (double) usable / (1 + volume.getActive());
+            if (score > bestScore) {
+                best = volume;
+                bestScore = score;
+            }
+        }
+        if (best != null) return best;
+        return roomiest != null ? roomiest : primary;
+    }
+
+    private Volume open(Path root) throws IOException {
+        Files.createDirectories(root);
+        Path idFile = root.resolve(".volume-id");
+        String id;
+        if (Files.exists(idFile)) {
+            id = Files.readString(idFile, StandardCharsets.UTF_8).trim();
+        } else {
+            byte[] random = new byte[4];
+            RANDOM.nextBytes(random);
+            id = HexFormat.of().formatHex(random);
+            Files.writeString(idFile, id, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);
+        }
+
+        if (byId.containsKey(id)) {
+            System.err.println("Storage root " + root + " is the same volume as " + byId.get(id).getRoot() + ", ignoring it");
+            return byId.get(id);
+        }
+        Volume volume = new Volume(id, root, Files.getFileStore(root));
+        volumes.add(volume);
+        byId.put(id, volume);
+        return volume;
+    }
+}
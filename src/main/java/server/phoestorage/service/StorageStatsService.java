@@ -0,0 +1,299 @@
+package server.phoestorage.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import server.phoestorage.classes.Volume;
+import server.phoestorage.datasource.file.FileEntity;
+import server.phoestorage.datasource.stats.StorageHistoryEntity;
+import server.phoestorage.datasource.stats.StorageHistoryRepository;
+import server.phoestorage.datasource.stats.StorageStatEntity;
+import server.phoestorage.datasource.stats.StorageStatRepository;
+import server.phoestorage.datasource.users.UserEntity;
+import server.phoestorage.datasource.users.UserRepository;
+
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Storage statistics for the admin dashboard. Files and bytes per user, extension and size class are counted
+ * in memory by the upload, copy and purge paths and written to storage_stat in batches, so reading them
+ * never touches the file table. A nightly job recounts everything from the file table to correct drift
+ * and records the day in storage_history
+ *
+ */
+@Service
+public class StorageStatsService {
+    public static final String[] SIZE_CLASSES = {"<4KB", "4KB-64KB", "64KB-1MB", "1MB-16MB", "16MB-256MB", "256MB-4GB", ">4GB"};
+
+    private final StorageStatRepository storageStatRepository;
+    private final StorageHistoryRepository storageHistoryRepository;
+    private final UserRepository userRepository;
+    private final StoragePoolService storagePoolService;
+
+    @Value("${server.storage-stats.history}")
+    private int historyDays;
+
+    private final ConcurrentHashMap<Key, Totals> totals = new ConcurrentHashMap<>();
+    // changes not written to storage_stat yet
+    private final ConcurrentHashMap<Key, Totals> pending = new ConcurrentHashMap<>();
+
+    @Autowired
+    public StorageStatsService(StorageStatRepository storageStatRepository,
+                               StorageHistoryRepository storageHistoryRepository,
+                               UserRepository userRepository,
+                               StoragePoolService storagePoolService) {
+        this.storageStatRepository = storageStatRepository;
+        this.storageHistoryRepository = storageHistoryRepository;
+        this.userRepository = userRepository;
+        this.storagePoolService = storagePoolService;
+    }
+
+    @PostConstruct
+    public void load() {
+        for (StorageStatEntity stat : storageStatRepository.findAll()) {
+            Totals t = totals.computeIfAbsent(new Key(stat.getOwnerUuid(), stat.getExtension(), stat.getSizeClass()), k -> new Totals());
+            t.files.add(stat.getFiles());
+            t.bytes.add(stat.getBytes());
+        }
+    }
+
+    public boolean isEmpty() {
+        return totals.isEmpty();
+    }
+
+    public void fileAdded(FileEntity file) {
+        change(file, 1);
+    }
+
+    public void filesAdded(Collection<FileEntity> files) {
+        for (FileEntity file : files) change(file, 1);
+    }
+
+    /**
+     * Files whose blobs are gone from disk. Trashed files still take space and are only removed once purged
+     *
+     */
+    public void filesRemoved(Collection<FileEntity> files) {
+        for (FileEntity file : files) change(file, -1);
+    }
+
+    public synchronized void ownerRemoved(String owner) {
+        totals.keySet().removeIf(key -> key.owner.equals(owner));
+        pending.keySet().removeIf(key -> key.owner.equals(owner));
+        storageStatRepository.deleteByOwner(owner);
+    }
+
+    /**
+     * Everything the admin dashboard shows, built from the in memory counters
+     *
+     * @return totals, per user, per extension, size histogram, daily history and free space
+     *
+     */
+    public Map<String, Object> getStorage() {
+        long files = 0, bytes = 0;
+        Map<String, long[]> byOwner = new HashMap<>();
+        Map<String, long[]> byExtension = new HashMap<>();
+        long[][] bySize = new long[SIZE_CLASSES.length][2];
+
+        for (Map.Entry<Key, Totals> entry : totals.entrySet()) {
+            Key key = entry.getKey();
+            long f = entry.getValue().files.sum(), b = entry.getValue().bytes.sum();
+            if (f == 0 && b == 0) continue;
+            files += f;
+            bytes += b;
+            add(byOwner.computeIfAbsent(key.owner, k -> new long[2]), f, b);
+            add(byExtension.computeIfAbsent(key.extension, k -> new long[2]), f, b);
+            add(bySize[key.sizeClass], f, b);
+        }
+
+        List<Map<String, Object>> users = new ArrayList<>();
+        for (UserEntity user : userRepository.findAll()) {
+            long[] t = byOwner.getOrDefault(user.getUuid(), new long[2]);
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("uuid", user.getUuid());
+            row.put("username", user.getUsername());
+            row.put("files", t[0]);
+            row.put("bytes", t[1]);
+            row.put("dataUsed", user.getDataUsed());
+            row.put("dataLimit", user.getDataLimit());
+            users.add(row);
+        }
+        users.sort((a, b) -> Long.compare((long) b.get("bytes"), (long) a.get("bytes")));
+
+        List<Map<String, Object>> extensions = new ArrayList<>();
+        byExtension.entrySet().stream()
+                .sorted((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]))
+                .limit(50)
+                .forEach(e -> extensions.add(row("extension", e.getKey(), e.getValue()[0], e.getValue()[1])));
+
+        List<Map<String, Object>> histogram = new ArrayList<>();
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            histogram.add(row("size", SIZE_CLASSES[i], bySize[i][0], bySize[i][1]));
+        }
+
+        List<Map<String, Object>> history = new ArrayList<>();
+        for (StorageHistoryEntity day : storageHistoryRepository.findByDayGreaterThanEqualOrderByDayAsc(LocalDate.now().minusDays(historyDays))) {
+            Map<String, Object> row = row("day", day.getDay(), day.getFiles(), day.getBytes());
+            row.put("users", day.getUsers());
+            history.add(row);
+        }
+
+        Map<String, Object> storage = new LinkedHashMap<>();
+        storage.put("files", files);
+        storage.put("bytes", bytes);
+        storage.put("users", users);
+        storage.put("extensions", extensions);
+        storage.put("histogram", histogram);
+        storage.put("history", history);
+        storage.put("volumes", getVolumes());
+        return storage;
+    }
+
+    /**
+     * Free space and load of every volume of the storage pool, straight from their FileStores
+     *
+     */
+    public List<Map<String, Object>> getVolumes() {
+        List<Map<String, Object>> volumes = new ArrayList<>();
+        for (Volume volume : storagePoolService.getVolumes()) {
+            long total = volume.getTotalSpace(), usable = volume.getUsableSpace();
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("id", volume.getId());
+            row.put("path", volume.getRoot().toString());
+            row.put("store", volume.getStoreName());
+            row.put("total", total);
+            row.put("usable", usable);
+            row.put("used", total - usable);
+            row.put("draining", volume.isDraining());
+            row.put("activeStreams", volume.getActive());
+            row.put("bytesRead", volume.getBytesRead());
+            row.put("bytesWritten", volume.getBytesWritten());
+            volumes.add(row);
+        }
+        return volumes;
+    }
+
+    @Scheduled(fixedDelay = 30 * 1000)
+    @PreDestroy
+    public synchronized void flush() {
+        for (Key key : pending.keySet()) {
+            long[] delta = new long[2];
+            // taken under the bin lock so a concurrent change either lands before or gets a fresh entry
+            pending.computeIfPresent(key, (k, t) -> {
+                delta[0] = t.files.sumThenReset();
+                delta[1] = t.bytes.sumThenReset();
+                return null;
+            });
+            if (delta[0] == 0 && delta[1] == 0) continue;
+
+            try {
+                storageStatRepository.addTotals(key.owner, key.extension, key.sizeClass, delta[0], delta[1]);
+            } catch (Exception e) {
+                System.err.println("Could not save storage stats: " + e.getMessage());
+                Totals t = pending.computeIfAbsent(key, k -> new Totals());
+                t.files.add(delta[0]);
+                t.bytes.add(delta[1]);
+            }
+        }
+    }
+
+    /**
+     * Recounts everything from the file table and records the day. Changes made while the count runs
+     * can be off by a few files until the next night
+     *
+     */
+    @Scheduled(cron = "0 45 3 * * *")
+    @Transactional
+    public synchronized void reconcile() {
+        pending.clear();
+
+        Map<Key, long[]> counted = new HashMap<>();
+        for (Object[] row : storageStatRepository.countFiles()) {
+            Key key = new Key((String) row[0], (String) row[1], ((Number) row[2]).intValue());
+            counted.put(key, new long[]{((Number) row[3]).longValue(), ((Number) row[4]).longValue()});
+        }
+
+        storageStatRepository.deleteAllInBatch();
+        List<StorageStatEntity> rows = new ArrayList<>();
+        long files = 0, bytes = 0;
+        for (Map.Entry<Key, long[]> entry : counted.entrySet()) {
+            StorageStatEntity stat = new StorageStatEntity();
+            stat.setOwnerUuid(entry.getKey().owner);
+            stat.setExtension(entry.getKey().extension);
+            stat.setSizeClass(entry.getKey().sizeClass);
+            stat.setFiles(entry.getValue()[0]);
+            stat.setBytes(entry.getValue()[1]);
+            rows.add(stat);
+            files += entry.getValue()[0];
+            bytes += entry.getValue()[1];
+        }
+        storageStatRepository.saveAll(rows);
+
+        totals.clear();
+        counted.forEach((key, t) -> {
+            Totals totalsOfKey = new Totals();
+            totalsOfKey.files.add(t[0]);
+            totalsOfKey.bytes.add(t[1]);
+            totals.put(key, totalsOfKey);
+        });
+
+        LocalDate today = LocalDate.now();
+        StorageHistoryEntity day = storageHistoryRepository.findByDay(today).orElseGet(StorageHistoryEntity::new);
+        day.setDay(today);
+        day.setFiles(files);
+        day.setBytes(bytes);
+        day.setUsers(counted.keySet().stream().map(key -> key.owner).distinct().count());
+        storageHistoryRepository.save(day);
+    }
+
+    public static int sizeClass(long size) {
+        if (size < 4L << 10) return 0;
+        if (size < 64L << 10) return 1;
+        if (size < 1L << 20) return 2;
+        if (size < 16L << 20) return 3;
+        if (size < 256L << 20) return 4;
+        if (size < 4L << 30) return 5;
+        return 6;
+    }
+
+    private void change(FileEntity file, int sign) {
+        Key key = new Key(file.getOwner(), file.getExtension() == null ? "" : file.getExtension(), sizeClass(file.getSize()));
+        Totals t = totals.computeIfAbsent(key, k -> new Totals());
+        t.files.add(sign);
+        t.bytes.add(sign * file.getSize());
+
+        pending.compute(key, (k, p) -> {
+            if (p == null) p = new Totals();
+            p.files.add(sign);
+            p.bytes.add(sign * file.getSize());
+            return p;
+        });
+    }
+
+    private static void add(long[] into, long files, long bytes) {
+        into[0] += files;
+        into[1] += bytes;
+    }
+
+    private static Map<String, Object> row(String name, Object value, long files, long bytes) {
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put(name, value);
+        row.put("files", files);
+        row.put("bytes", bytes);
+        return row;
+    }
+
+    private record Key(String owner, String extension, int sizeClass) {}
+
+    private static class Totals {
+        final LongAdder files = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+}
@@ -0,0 +1,277 @@
+package server.phoestorage.service;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.ResponseEntity;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import server.phoestorage.datasource.file.FileEntity;
+import server.phoestorage.datasource.file.FileRepository;
+import server.phoestorage.datasource.folder.FolderEntity;
+import server.phoestorage.datasource.folder.FolderRepository;
+import server.phoestorage.datasource.users.UserRepository;
+import server.phoestorage.dto.FileEntry;
+import server.phoestorage.dto.FolderEntry;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@Service
+public class TrashService {
+    @Value("${server.trash.retention}")
+    private int retentionDays;
+    @Value("${server.trash.batch}")
+    private int batchSize;
+    @Value("${server.trash.pause}")
+    private long batchPause; // ms between batches so purges don't starve foreground I/O
+
+    private final AppUserDetailsService appUserDetailsService;
+
+    private final FileRepository fileRepository;
+    private final FolderRepository folderRepository;
+    private final UserRepository userRepository;
+    private final SearchService searchService;
+    private final ContentIndexService contentIndexService;
+    private final StorageStatsService storageStatsService;
+    private final BlobStoreService blobStoreService;
+    private final SignedLinkService signedLinkService;
+
+    private final AtomicBoolean reclaiming = new AtomicBoolean();
+
+    @Autowired
+    public TrashService(AppUserDetailsService appUserDetailsService,
+                        FileRepository fileRepository,
+                        FolderRepository folderRepository,
+                        UserRepository userRepository,
+                        SearchService searchService,
+                        ContentIndexService contentIndexService,
+                        StorageStatsService storageStatsService,
+                        BlobStoreService blobStoreService,
+                        SignedLinkService signedLinkService) {
+        this.appUserDetailsService = appUserDetailsService;
+        this.fileRepository = fileRepository;
+        this.folderRepository = folderRepository;
+        this.userRepository = userRepository;
+        this.searchService = searchService;
+        this.contentIndexService = contentIndexService;
+        this.storageStatsService = storageStatsService;
+        this.blobStoreService = blobStoreService;
+        this.signedLinkService = signedLinkService;
+    }
+
+    /**
+     * Lists the items the user has put in the trash. Items inside a trashed folder are not listed on their own
+     *
+     * @return response entity with the trashed files and folders
+     *
+     */
+    public ResponseEntity<Map<String, Object>> getTrash() {
+        String uuid = appUserDetailsService.getUserEntity().getUuid();
+        LocalDateTime cutoff = expiredBefore();
+
+        List<FileEntry> fileResult = new ArrayList<>();
+        for (FileEntity file : fileRepository.findTrashRoots(uuid, cutoff)) {
+            FileEntry fileEntry = new FileEntry();
+            fileEntry.setUuid(file.getUuid());
+            fileEntry.setOwner(file.getOwner());
+            fileEntry.setName(file.getName());
+            fileEntry.setExtension(file.getExtension());
+            fileEntry.setFolderId(file.getFolderId());
+            fileEntry.setCreated(file.getCreated());
+            fileEntry.setModified(file.getModified());
+            fileEntry.setAccessed(file.getAccessed());
+            fileEntry.setSize(file.getSize());
+            fileEntry.setStarred(file.getStarred());
+            fileResult.add(fileEntry);
+        }
+
+        List<FolderEntry> folderResult = new ArrayList<>();
+        for (FolderEntity folder : folderRepository.findTrashRoots(uuid, cutoff)) {
+            FolderEntry folderEntry = new FolderEntry();
+            folderEntry.setUuid(folder.getUuid());
+            folderEntry.setOwner(uuid);
+            folderEntry.setName(folder.getTrashedName() != null ? folder.getTrashedName() : folder.getName());
+            folderEntry.setFolderId(folder.getFolderId());
+            folderEntry.setSize(fileRepository.sizeOfTrash(uuid, folder.getUuid()));
+            folderResult.add(folderEntry);
+        }
+
+        Map<String, Object> response = new HashMap<>();
+        response.put("files", fileResult);
+        response.put("folders", folderResult);
+        return ResponseEntity.ok(response);
+    }
+
+    /**
+     * Restores an item from the trash. If its old parent is gone the item is restored into the user root
+     *
+     * @param itemId uuid of the trashed file or folder
+     * @param isFolder is the item a folder
+     * @return exit code
+     *
+     */
+    @Transactional
+    public int restore(String itemId, boolean isFolder) {
+        String uuid = appUserDetailsService.getUserEntity().getUuid();
+
+        try {
+            String target;
+            FileEntity fileEntity = null;
+            if (isFolder) {
+                Optional<FolderEntity> folder = folderRepository.findByOwnerAndUuidAndTrashRoot(uuid, itemId, itemId);
+                if (folder.isEmpty()) return 404;
+
+                FolderEntity folderEntity = folder.get();
+                target = folderEntity.getFolderId();
+                if (folderRepository.findByOwnerAndUuidAndTrashedFalse(uuid, target).isEmpty()) {
+                    target = uuid;
+                }
+                String name = folderEntity.getTrashedName() != null ? folderEntity.getTrashedName() : folderEntity.getName();
+                if (folderRepository.findByOwnerAndFolderIdAndNameAndTrashedFalse(uuid, target, name).isPresent()) {
+                    return 409;
+                }
+                if (!target.equals(folderEntity.getFolderId())) {
+                    folderEntity.setFolderId(target);
+                    folderRepository.saveAndFlush(folderEntity);
+                }
+            } else {
+                Optional<FileEntity> file = fileRepository.findByOwnerAndUuidAndTrashRoot(uuid, itemId, itemId);
+                if (file.isEmpty()) return 404;
+
+                fileEntity = file.get();
+                target = fileEntity.getFolderId();
+                if (folderRepository.findByOwnerAndUuidAndTrashedFalse(uuid, target).isEmpty()) {
+                    target = uuid;
+                }
+                if (fileRepository.findByOwnerAndFolderIdAndNameAndTrashedFalse(uuid, target, fileEntity.getName()).isPresent()) {
+                    return 409;
+                }
+                if (!target.equals(fileEntity.getFolderId())) {
+                    fileEntity.setFolderId(target);
+                    fileRepository.saveAndFlush(fileEntity);
+                }
+            }
+
+            folderRepository.restoreTrash(uuid, itemId);
+            fileRepository.restoreTrash(uuid, itemId);
+            if (isFolder) searchService.folderTreeAdded(uuid, target, itemId);
+            else searchService.fileAdded(fileEntity);
+            return 0;
+        } catch (DataIntegrityViolationException ex) {
+            return 409; // a folder with the same name took its place
+        }
+    }
+
+    /**
+     * Marks an item in the trash as expired, the reclaimer deletes it on its next run
+     *
+     * @param itemId uuid of the trashed file or folder
+     * @return exit code
+     *
+     */
+    @Transactional
+    public int deleteForever(String itemId) {
+        String uuid = appUserDetailsService.getUserEntity().getUuid();
+
+        LocalDateTime expired = expiredBefore().minusSeconds(1);
+        int rows = fileRepository.expireTrash(uuid, itemId, expired)
+                + folderRepository.expireTrash(uuid, itemId, expired);
+
+        return rows == 0 ? 404 : 0;
+    }
+
+    @Transactional
+    public int emptyTrash() {
+        String uuid = appUserDetailsService.getUserEntity().getUuid();
+
+        LocalDateTime expired = expiredBefore().minusSeconds(1);
+        fileRepository.expireAllTrash(uuid, expired);
+        folderRepository.expireAllTrash(uuid, expired);
+        return 0;
+    }
+
+    /**
+     * Purges expired trash in small batches. Quota is only given back here, so trashed bytes keep counting
+     * against dataLimit until they are actually gone from disk. Runs on its own thread, the pauses between
+     * batches would otherwise hold the shared scheduler thread
+     *
+     */
+    @Scheduled(fixedDelay = 10 * 60 * 1000)
+    public void reclaim() {
+        if (!reclaiming.compareAndSet(false, true)) return;
+        Thread thread = new Thread(this::purgeExpired, "trash-reclaim");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void purgeExpired() {
+        LocalDateTime cutoff = expiredBefore();
+
+        try {
+            // keyset pages, files whose blob could not be deleted are passed over and retried on the next run
+            int afterId = 0;
+            List<FileEntity> files;
+            while (!(files = fileRepository.findByTrashedTrueAndTrashedAtBeforeAndIdGreaterThanOrderByIdAsc(cutoff, afterId, PageRequest.of(0, batchSize))).isEmpty()) {
+                afterId = files.get(files.size() - 1).getId();
+                Map<String, Long> freed = new HashMap<>();
+                Map<String, List<Integer>> purgedIds = new HashMap<>();
+                List<FileEntity> purged = new ArrayList<>();
+
+                for (FileEntity file : files) {
+                    try {
+                        blobStoreService.delete(file.getInternalPath());
+                    } catch (IOException e) {
+                        System.err.println("Could not reclaim " + file.getInternalPath() + ": " + e.getMessage());
+                        continue;
+                    }
+                    freed.merge(file.getOwner(), file.getChargedSize(), Long::sum);
+                    purgedIds.computeIfAbsent(file.getOwner(), k -> new ArrayList<>()).add(file.getId());
+                    purged.add(file);
+                }
+                if (!purged.isEmpty()) {
+                    fileRepository.deleteAllInBatch(purged);
+                    for (FileEntity file : purged) signedLinkService.fileChanged(file.getOwner(), file.getUuid());
+                    freed.forEach((owner, bytes) -> userRepository.addDataUsed(owner, -bytes));
+                    purgedIds.forEach(contentIndexService::filesRemoved);
+                    storageStatsService.filesRemoved(purged);
+                }
+
+                Thread.sleep(batchPause);
+            }
+
+            // a folder goes once the files trashed with it are gone, so none are left without a parent
+            afterId = 0;
+            List<FolderEntity> folders;
+            while (!(folders = folderRepository.findByTrashedTrueAndTrashedAtBeforeAndIdGreaterThanOrderByIdAsc(cutoff, afterId, PageRequest.of(0, batchSize))).isEmpty()) {
+                afterId = folders.get(folders.size() - 1).getId();
+                Map<String, Boolean> filesLeft = new HashMap<>();
+                List<FolderEntity> purged = new ArrayList<>();
+
+                for (FolderEntity folder : folders) {
+                    String trashRoot = folder.getTrashRoot();
+                    if (trashRoot != null && filesLeft.computeIfAbsent(folder.getOwner() + "/" + trashRoot,
+                            k -> fileRepository.existsByOwnerAndTrashRoot(folder.getOwner(), trashRoot))) continue;
+                    purged.add(folder);
+                }
+                if (!purged.isEmpty()) folderRepository.deleteAllInBatch(purged);
+
+                Thread.sleep(batchPause);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println(e.getMessage() + "\n With Cause:\n" + e.getCause());
+        } finally {
+            reclaiming.set(false);
+        }
+    }
+
+    private LocalDateTime expiredBefore() {
+        return LocalDateTime.now().minusDays(retentionDays);
+    }
+}
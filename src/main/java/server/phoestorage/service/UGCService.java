@@ -1,8 +1,9 @@
 package server.phoestorage.service;
 
-import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import server.phoestorage.classes.Volume;
 
 import java.io.Console;
 import java.io.IOException;
@@ -17,19 +18,30 @@ import java.util.stream.Stream;
 
 @Service
 public class UGCService {
-    @Value("${server.root}")
-    private String rootFolder;
+    private final StoragePoolService storagePoolService;
     private static final Duration UPLOAD_TIMEOUT = Duration.ofMinutes(5);
 
+    @Autowired
+    public UGCService(StoragePoolService storagePoolService) {
+        this.storagePoolService = storagePoolService;
+    }
+
     @Scheduled(fixedRate = 5 * 60 * 1000)
     public void startUGC(){
         System.out.println("Starting UGC service");
-        try (Stream<Path> userDirs = Files.list(Paths.get(rootFolder))) {
+        for (Volume volume : storagePoolService.getVolumes()) {
+            cleanVolume(volume.getRoot());
+        }
+    }
+
+    private void cleanVolume(Path root) {
+        try (Stream<Path> userDirs = Files.list(root)) {
             Instant now = Instant.now(); // Get time now
             userDirs
                     .filter(Files::isDirectory)
                     .forEach(userDirectory -> {
-                        Path uploadsRoot = Paths.get(userDirectory.toString(), "storage");
+                        // only uploads in progress live here, stale locks left in storage by older versions are removed by the layout migration
+                        Path uploadsRoot = Paths.get(userDirectory.toString(), "staging");
                         // Check if the folder exists
 
                         if (Files.exists(uploadsRoot)) {
@@ -45,7 +57,7 @@ public class UGCService {
                     });
 
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            System.err.println("Could not clean uploads on " + root + ": " + e.getMessage());
         }
     }
 
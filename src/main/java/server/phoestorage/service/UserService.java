@@ -25,14 +25,16 @@ public class UserService {
     private final AppUserDetailsService appUserDetailsService;
     private final SessionRegistry sessionRegistry;
     private final LinkService linkService;
+    private final AccessTokenService accessTokenService;
 
     @Autowired
-    public UserService(UserRepository userRepository, FolderService folderService, AppUserDetailsService appUserDetailsService, SessionRegistry sessionRegistry, LinkService linkService) {
+    public UserService(UserRepository userRepository, FolderService folderService, AppUserDetailsService appUserDetailsService, SessionRegistry sessionRegistry, LinkService linkService, AccessTokenService accessTokenService) {
         this.userRepository = userRepository;
         this.folderService = folderService;
         this.appUserDetailsService = appUserDetailsService;
         this.sessionRegistry = sessionRegistry;
         this.linkService = linkService;
+        this.accessTokenService = accessTokenService;
     }
 
     /**
@@ -79,6 +81,7 @@ public class UserService {
 
 
             linkService.deleteAllDownloadLink(user.getUuid());
+            accessTokenService.deleteAllTokens(user.getUuid());
             folderService.deleteUserFolder(user.getUuid());
             userRepository.delete(user);
             return 0;
@@ -102,6 +105,7 @@ public class UserService {
             user.setEnabled(enabled);
 
             userRepository.save(user);
+            accessTokenService.forgetUser(uuid);
             return 0;
         } catch (Exception e) {
             System.err.println(e.getMessage());
@@ -218,6 +222,7 @@ public class UserService {
             entry.setDataUsed(user.getDataUsed());
             entry.setAdmin(user.isAdmin());
             entry.setEnabled(user.isEnabled());
+            entry.setEncrypted(user.isEncrypted());
             userReturnList.add(entry);
         }
         return userReturnList;
@@ -0,0 +1,32 @@
+package server.phoestorage.utils;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+public class BlobChecksum {
+    public static final int SEGMENT = 1024 * 1024 * 5; // same as an upload chunk
+
+    /**
+     * Checksum of a blob from the CRC32C of each of its segments. Chunks of an upload arrive in any order and
+     * on several requests, hashing the segments on their own lets every chunk be checked while it is written
+     * and the scrubber rebuild the same value from one sequential read. Any change to a segment changes its CRC,
+     * and a CRC over the list of CRCs catches every changed entry
+     *
+     * @param segments CRC32C of every segment in order, one for an empty blob
+     * @return 8 hex characters
+     */
+    public static String combine(int[] segments) {
+        ByteBuffer buffer = ByteBuffer.allocate(segments.length * 4);
+        for (int segment : segments) buffer.putInt(segment);
+        buffer.flip();
+
+        CRC32C crc = new CRC32C();
+        crc.update(buffer);
+        return String.format("%08x", crc.getValue());
+    }
+
+    /* number of segments of a blob of this size */
+    public static int segments(long size) {
+        return (int) Math.max(1, (size + SEGMENT - 1) / SEGMENT);
+    }
+}
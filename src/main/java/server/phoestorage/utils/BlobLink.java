@@ -0,0 +1,38 @@
+package server.phoestorage.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+public class BlobLink {
+    /**
+     * Makes target hold the same bytes as source without sending them through the JVM when possible.
+     * Blobs are never modified in place, so a hardlink is a safe copy. When the link fails (other volume,
+     * filesystem without links) the bytes are copied with transferTo so the kernel can still do the work
+     *
+     * @param source existing blob
+     * @param target new blob path, must not exist
+     */
+    public static void link(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, source);
+            return;
+        } catch (FileAlreadyExistsException e) {
+            throw e;
+        } catch (UnsupportedOperationException | FileSystemException ignored) {}
+
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+            out.force(false);
+        } catch (IOException e) {
+            Files.deleteIfExists(target);
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package server.phoestorage.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Streaming zip writer like ZipOutputStream, that can also take an entry that is already deflated, so files
+ * compressed at rest go into a download as their stored bytes. Entries written through write() are deflated
+ * here and end with a data descriptor, sizes that don't fit 32 bits get zip64 fields
+ *
+ */
+public class ZipWriter extends OutputStream {
+    private static final long MAX32 = 0xFFFFFFFFL;
+    private static final int MAX16 = 0xFFFF;
+    private static final int UTF8 = 1 << 11;
+    private static final int DESCRIPTOR = 1 << 3;
+
+    private final Counting out;
+    private final List<Entry> entries = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] buffer = new byte[65536];
+    private final int dosTime;
+    private Deflater deflater;
+    private int level = Deflater.DEFAULT_COMPRESSION;
+    private Entry current; // entry written through write(), null between entries
+    private boolean finished;
+
+    public ZipWriter(OutputStream out) {
+        this.out = new Counting(out);
+        this.dosTime = dosTime(LocalDateTime.now());
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Starts an entry whose bytes follow through write()
+     *
+     */
+    public void putNextEntry(String name) throws IOException {
+        closeEntry();
+        current = new Entry(name, out.count);
+        current.flags |= DESCRIPTOR;
+        crc.reset();
+        if (deflater == null) deflater = new Deflater(level, true);
+        deflater.setLevel(level);
+        deflater.reset();
+        writeLocalHeader(current);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (current == null) throw new IOException("No entry to write to");
+        crc.update(b, off, len);
+        current.size += len;
+        deflater.setInput(b, off, len);
+        while (!deflater.needsInput()) drain();
+    }
+
+    public void closeEntry() throws IOException {
+        if (current == null) return;
+        deflater.finish();
+        while (!deflater.finished()) drain();
+
+        Entry entry = current;
+        current = null;
+        entry.crc = crc.getValue();
+        entry.compressedSize = out.count - entry.dataStart;
+        // 64 bit sizes in the descriptor once they don't fit, as ZipOutputStream does
+        boolean zip64 = entry.size >= MAX32 || entry.compressedSize >= MAX32;
+        ByteBuffer buf = le(zip64 ? 24 : 16);
+        buf.putInt(0x08074b50).putInt((int) entry.crc);
+        if (zip64) buf.putLong(entry.compressedSize).putLong(entry.size);
+        else buf.putInt((int) entry.compressedSize).putInt((int) entry.size);
+        out.write(buf.array());
+        entries.add(entry);
+    }
+
+    /**
+     * Writes a whole entry from a raw deflate stream without inflating it
+     *
+     * @param crc CRC32 of the uncompressed bytes
+     * @param size uncompressed bytes
+     * @param compressedSize bytes of the deflate stream, exactly this many are read from in
+     * @param in the deflate stream
+     * @throws IOException also if in ends early, the zip is broken then and should be given up
+     */
+    public void putDeflated(String name, long crc, long size, long compressedSize, InputStream in) throws IOException {
+        closeEntry();
+        Entry entry = new Entry(name, out.count);
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = compressedSize;
+        writeLocalHeader(entry);
+
+        long left = compressedSize;
+        while (left > 0) {
+            int n = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+            if (n == -1) throw new IOException("Deflated entry " + name + " ended " + left + " bytes early");
+            out.write(buffer, 0, n);
+            left -= n;
+        }
+        entries.add(entry);
+    }
+
+    /**
+     * Ends the last entry and writes the central directory, the underlying stream stays open
+     *
+     */
+    public void finish() throws IOException {
+        if (finished) return;
+        closeEntry();
+        finished = true;
+        if (deflater != null) deflater.end();
+
+        long cdStart = out.count;
+        for (Entry entry : entries) writeCentralHeader(entry);
+        long cdSize = out.count - cdStart;
+
+        if (entries.size() >= MAX16 || cdStart >= MAX32 || cdSize >= MAX32) {
+            long zip64End = out.count;
+            ByteBuffer buf = le(56 + 20);
+            buf.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45).putInt(0).putInt(0)
+                    .putLong(entries.size()).putLong(entries.size()).putLong(cdSize).putLong(cdStart);
+            buf.putInt(0x07064b50).putInt(0).putLong(zip64End).putInt(1);
+            out.write(buf.array());
+        }
+        ByteBuffer buf = le(22);
+        buf.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) Math.min(entries.size(), MAX16)).putShort((short) Math.min(entries.size(), MAX16))
+                .putInt((int) Math.min(cdSize, MAX32)).putInt((int) Math.min(cdStart, MAX32)).putShort((short) 0);
+        out.write(buf.array());
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        int n = deflater.deflate(buffer);
+        if (n > 0) out.write(buffer, 0, n);
+    }
+
+    /* sizes of descriptor entries are 0 here, entries with known sizes get a zip64 field when they need one */
+    private void writeLocalHeader(Entry entry) throws IOException {
+        boolean descriptor = (entry.flags & DESCRIPTOR) != 0;
+        boolean zip64 = !descriptor && (entry.size >= MAX32 || entry.compressedSize >= MAX32);
+        ByteBuffer buf = le(30 + entry.name.length + (zip64 ? 20 : 0));
+        buf.putInt(0x04034b50).putShort((short) (zip64 ? 45 : 20)).putShort((short) entry.flags)
+                .putShort((short) 8).putInt(dosTime);
+        if (descriptor) {
+            buf.putInt(0).putInt(0).putInt(0);
+        } else {
+            buf.putInt((int) entry.crc)
+                    .putInt((int) (zip64 ? MAX32 : entry.compressedSize))
+                    .putInt((int) (zip64 ? MAX32 : entry.size));
+        }
+        buf.putShort((short) entry.name.length).putShort((short) (zip64 ? 20 : 0)).put(entry.name);
+        if (zip64) buf.putShort((short) 1).putShort((short) 16).putLong(entry.size).putLong(entry.compressedSize);
+        out.write(buf.array());
+        entry.dataStart = out.count;
+    }
+
+    private void writeCentralHeader(Entry entry) throws IOException {
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        ByteBuffer values = le(24);
+        if (entry.size >= MAX32) values.putLong(entry.size);
+        if (entry.compressedSize >= MAX32) values.putLong(entry.compressedSize);
+        if (entry.offset >= MAX32) values.putLong(entry.offset);
+        if (values.position() > 0) {
+            ByteBuffer head = le(4).putShort((short) 1).putShort((short) values.position());
+            extra.write(head.array());
+            extra.write(values.array(), 0, values.position());
+        }
+        short version = (short) (extra.size() > 0 ? 45 : 20);
+
+        ByteBuffer buf = le(46 + entry.name.length + extra.size());
+        buf.putInt(0x02014b50).putShort(version).putShort(version).putShort((short) entry.flags)
+                .putShort((short) 8).putInt(dosTime).putInt((int) entry.crc)
+                .putInt((int) Math.min(entry.compressedSize, MAX32)).putInt((int) Math.min(entry.size, MAX32))
+                .putShort((short) entry.name.length).putShort((short) extra.size()).putShort((short) 0)
+                .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) Math.min(entry.offset, MAX32))
+                .put(entry.name).put(extra.toByteArray());
+        out.write(buf.array());
+    }
+
+    private static ByteBuffer le(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int dosTime(LocalDateTime time) {
+        if (time.getYear() < 1980) return (1 << 21) | (1 << 16);
+        return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+                | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+    }
+
+    private static class Entry {
+        final byte[] name;
+        final long offset; // of the local header
+        int flags = UTF8;
+        long dataStart;
+        long crc;
+        long size;
+        long compressedSize;
+
+        Entry(String name, long offset) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.offset = offset;
+        }
+    }
+
+    private static class Counting extends OutputStream {
+        private final OutputStream out;
+        long count;
+
+        Counting(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}